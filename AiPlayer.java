@@ -0,0 +1,195 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Server-side computer opponent that takes a seat in a room like any other player
+ * The room's messages are queued and handled in order on a shared executor, never on the room's calling thread, so
+ * a search never holds up the room or a network thread. The AI keeps its own copy of the board and answers each
+ * opponent move with a MOVE through GameRoom.handleClientData, exactly as a remote client would.
+ * Positions found in an opening book for the room's variant are answered from the book without searching.
+ * @author Chen Junliang
+ */
+public class AiPlayer implements PlayerChannel {
+    /** Name the computer plays under */
+    public static final String NAME = "Computer";
+    /** System property with the thinking time per move in milliseconds on boards larger than 3×3 */
+    public static final String MOVE_TIME_PROPERTY = "tictactoe.ai.moveMs";
+
+    private static final long DEFAULT_MOVE_TIME_MS = 300;
+
+    private final Executor executor;
+    private final long moveBudgetNanos;
+    private final ConcurrentLinkedQueue<GameData> inbox = new ConcurrentLinkedQueue<>(); // Messages from the room
+    private final AtomicBoolean isScheduled = new AtomicBoolean(); // A drain task is queued or running
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+    private volatile GameRoom room;
+    private volatile int playerId;
+
+    // Only touched by the drain task, which never runs twice at once
+    private GameAi ai;
+    private OpeningBook book; // Null when no book covers the variant
+    private Board board;
+    private boolean isGameRunning;
+    private final long[] positionHashes = new long[Zobrist.SYMMETRIES]; // Lookup scratch for the shared classic solver
+
+    /**
+     * Create a computer player
+     * @param executor Executor the AI thinks on, shared by all computer players
+     */
+    public AiPlayer(Executor executor) {
+        this.executor = executor;
+        this.moveBudgetNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong(MOVE_TIME_PROPERTY, DEFAULT_MOVE_TIME_MS));
+    }
+
+    @Override
+    public void send(GameData data) {
+        if (!isClosed.get()) inbox.add(data);
+    }
+
+    @Override
+    public void sendFrame(ByteBuffer frame) {
+        // The computer never watches games, so it is never sent shared frames
+    }
+
+    @Override
+    public void flush() {
+        schedule();
+    }
+
+    @Override
+    public boolean isWritable() {
+        return true; // The inbox is drained by the computer's own task, which never falls behind for long
+    }
+
+    @Override
+    public void startReading(GameRoom room, int playerId) {
+        this.room = room;
+        this.playerId = playerId;
+        executor.execute(() -> submit(new GameData(GameData.Command.NAME, NAME, 0, 0, 0, 0, 0)));
+    }
+
+    @Override
+    public void pauseReading() {
+        // The computer only answers the room's own messages, so it never runs ahead of its opponent
+    }
+
+    @Override
+    public void resumeReading() {
+    }
+
+    @Override
+    public boolean whenCaughtUp(Runnable task) {
+        return false; // Never falls behind, see isWritable()
+    }
+
+    /**
+     * Queue a drain task unless one is already queued or running
+     */
+    private void schedule() {
+        if (isScheduled.compareAndSet(false, true)) executor.execute(this::drain);
+    }
+
+    /**
+     * Handle every queued message in order, then reschedule if more arrived after the last poll
+     */
+    private void drain() {
+        GameData data;
+        while (!isClosed.get() && (data = inbox.poll()) != null) {
+            handle(data);
+        }
+        isScheduled.set(false);
+        if (!inbox.isEmpty() && !isClosed.get()) schedule();
+    }
+
+    /**
+     * React to one message from the room
+     * @param data Message the room sent to this player
+     */
+    private void handle(GameData data) {
+        switch (data.getCommand()) {
+            case NAME:
+                // Player 1 hears about each NAME; the game runs once the opponent's name is known
+                if (data.getPlayerName() == null) break;
+                int size = data.getBoardSize() > 0 ? data.getBoardSize() : Board.DEFAULT_SIZE;
+                int winLength = data.getWinLength() > 0 ? data.getWinLength() : Board.DEFAULT_WIN_LENGTH;
+                if (board == null) {
+                    board = new Board(size, winLength);
+                    ai = GameAi.forVariant(size, winLength);
+                    book = OpeningBook.forVariant(size, winLength);
+                }
+                startGame();
+                break;
+
+            case MOVE:
+                if (!isGameRunning) break;
+                board.place(data.getRow(), data.getCol(), 3 - playerId);
+                if (board.isWinningMove(data.getRow(), data.getCol()) || board.isFull()) {
+                    isGameRunning = false; // WIN or DRAW follows
+                } else {
+                    makeMove();
+                }
+                break;
+
+            case RESTART:
+                if (board != null) startGame();
+                break;
+
+            case WIN:
+            case DRAW:
+                isGameRunning = false;
+                break;
+
+            case EXIT:
+                break; // The room closes this player right after
+        }
+    }
+
+    /**
+     * Clear the board and open with a move when playing X
+     */
+    private void startGame() {
+        board.reset();
+        isGameRunning = true;
+        if (playerId == 1) makeMove();
+    }
+
+    /**
+     * Pick a move from the book or by searching, record it and submit it to the room
+     */
+    private void makeMove() {
+        int cell = book != null ? book.bestMove(board) : -1;
+        if (cell < 0) cell = ai.chooseMove(board, playerId, moveBudgetNanos, positionHashes);
+        int row = cell / board.getSize();
+        int col = cell % board.getSize();
+        board.place(row, col, playerId);
+        if (board.isWinningMove(row, col) || board.isFull()) isGameRunning = false;
+        submit(new GameData(GameData.Command.MOVE, "", row, col, 0, 0, 0));
+    }
+
+    /**
+     * Pass a message to the room as this player
+     * @param data Message to submit
+     */
+    private void submit(GameData data) {
+        room.handleClientData(data, playerId);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !isClosed.get();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "computer";
+    }
+
+    @Override
+    public void close() {
+        isClosed.set(true);
+        inbox.clear();
+    }
+}
@@ -0,0 +1,169 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Message stream speaking the compact binary protocol (see GameDataCodec and FrameCodec)
+ * Encodes into and decodes from one reusable buffer per direction, so steady-state traffic allocates only the message
+ * objects themselves
+ * @author Chen Junliang
+ */
+public class BinaryMessageStream implements MessageStream {
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final int version;
+    private long clockOffsetMicros; // Server clock minus the trace clock, estimated during a client's handshake
+    private long handshakeRoundTripMicros;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(FrameCodec.MAX_ENCODED_SIZE);
+    private final byte[] readBytes = new byte[FrameCodec.MAX_FRAME_SIZE];
+    private final ByteBuffer readBuffer = ByteBuffer.wrap(readBytes);
+
+    /**
+     * Wrap streams whose handshake has already completed
+     * @param input Socket input
+     * @param output Socket output
+     * @param version Negotiated protocol version
+     */
+    public BinaryMessageStream(InputStream input, OutputStream output, int version) {
+        this.in = new DataInputStream(input instanceof BufferedInputStream ? input : new BufferedInputStream(input));
+        this.out = output instanceof BufferedOutputStream ? output : new BufferedOutputStream(output);
+        this.version = version;
+    }
+
+    /**
+     * Client side: offer our protocol version and wait for the server to accept one
+     * From version 3 the reply carries the server's clock; assuming it was read halfway through the round trip gives
+     * the offset to the server's clock, to within half the round trip
+     * @param socket Connected socket
+     * @return Stream ready for messages
+     * @throws IOException Network exception or the server rejected the handshake
+     */
+    public static BinaryMessageStream connect(Socket socket) throws IOException {
+        ByteBuffer handshake = ByteBuffer.allocate(GameDataCodec.HANDSHAKE_SIZE);
+        GameDataCodec.writeHandshake(handshake, GameDataCodec.VERSION);
+        OutputStream output = socket.getOutputStream();
+        long sentNanos = System.nanoTime();
+        output.write(handshake.array());
+        output.flush();
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        byte[] reply = new byte[GameDataCodec.HANDSHAKE_SIZE];
+        input.readFully(reply);
+        int version = GameDataCodec.readHandshake(reply);
+        if (version < 1 || version > GameDataCodec.VERSION) {
+            throw new IOException("Server rejected protocol handshake");
+        }
+        BinaryMessageStream stream = new BinaryMessageStream(input, output, version);
+        if (version >= GameDataCodec.TRACE_VERSION) {
+            long serverMicros = input.readLong();
+            long receivedNanos = System.nanoTime();
+            long midpointNanos = sentNanos + (receivedNanos - sentNanos) / 2;
+            stream.clockOffsetMicros = serverMicros - MoveTracer.microsAt(midpointNanos);
+            stream.handshakeRoundTripMicros = (receivedNanos - sentNanos) / 1000;
+        }
+        return stream;
+    }
+
+    /**
+     * Server side: answer a binary client's handshake with the version both sides speak
+     * @param input Socket input positioned after the client's handshake
+     * @param output Socket output
+     * @param offeredVersion Version offered by the client
+     * @return Stream ready for messages
+     * @throws IOException Network exception or no common version
+     */
+    public static BinaryMessageStream accept(InputStream input, OutputStream output, int offeredVersion) throws IOException {
+        int version = GameDataCodec.negotiate(offeredVersion);
+        if (version < 0) {
+            throw new IOException("Unsupported protocol version: " + offeredVersion);
+        }
+        ByteBuffer handshake = ByteBuffer.allocate(GameDataCodec.HANDSHAKE_SIZE + GameDataCodec.CLOCK_SIZE);
+        GameDataCodec.writeHandshakeReply(handshake, version);
+        output.write(handshake.array(), 0, handshake.position());
+        output.flush();
+        return new BinaryMessageStream(input, output, version);
+    }
+
+    /**
+     * Get the negotiated protocol version
+     * @return Protocol version
+     */
+    public int getVersion() { return version; }
+
+    /**
+     * Get the offset to the server's clock measured by the client handshake
+     * @return Server clock minus MoveTracer's clock in microseconds, 0 before version 3 or on the server side
+     */
+    public long getClockOffsetMicros() { return clockOffsetMicros; }
+
+    /**
+     * Get the round trip of the client handshake, twice the largest error of the clock offset
+     * @return Round trip in microseconds, 0 before version 3 or on the server side
+     */
+    public long getHandshakeRoundTripMicros() { return handshakeRoundTripMicros; }
+
+    @Override
+    public void write(GameData data) throws IOException {
+        writeBuffered(data);
+        out.flush();
+    }
+
+    @Override
+    public void writeBuffered(GameData data) throws IOException {
+        writeBuffer.clear();
+        FrameCodec.encodeFrame(data, writeBuffer);
+        out.write(writeBuffer.array(), 0, writeBuffer.position());
+    }
+
+    /**
+     * Append one already encoded frame to the stream's buffer without flushing
+     * @param frame Frame from FrameCodec, read through a duplicate and left unchanged
+     * @throws IOException Data sending exception
+     */
+    public void writeFrame(ByteBuffer frame) throws IOException {
+        int length = frame.remaining();
+        frame.duplicate().get(writeBuffer.array(), 0, length);
+        out.write(writeBuffer.array(), 0, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public GameData read() throws IOException {
+        int first = in.read();
+        if (first < 0) throw new EOFException("Connection closed");
+        int length = first & 0x7F;
+        if ((first & 0x80) != 0) {
+            length |= in.readUnsignedByte() << 7;
+        }
+        if (length == 0 || length > FrameCodec.MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        in.readFully(readBytes, 0, length);
+        readBuffer.clear();
+        return FrameCodec.decodePayload(readBuffer, length);
+    }
+
+    @Override
+    public void close() {
+        try {
+            in.close();
+        } catch (IOException ignored) {
+            // Owner closes the socket anyway
+        }
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // Owner closes the socket anyway
+        }
+    }
+}
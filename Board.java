@@ -0,0 +1,349 @@
+import java.util.Arrays;
+
+/**
+ * N×N k-in-a-row engine (classic Tic Tac Toe is 3×3 with k = 3, gomoku-style variants go up to 19×19)
+ * Each player's marks are a bitset, bit (row * size + col), so move validation and draw detection are a few integer
+ * operations. A win is detected incrementally from the lines through the last move: on boards of up to 64 cells they
+ * are precomputed masks tested against the player's single bit word, on larger boards the four lines are walked, at
+ * most k - 1 cells each way, so the cost is O(k) whatever the board size.
+ * @author Chen Junliang
+ */
+public class Board {
+    /** Width and height of the classic board */
+    public static final int DEFAULT_SIZE = 3;
+    /** Marks in a row needed to win on the classic board */
+    public static final int DEFAULT_WIN_LENGTH = 3;
+    /** Smallest supported board */
+    public static final int MIN_SIZE = 3;
+    /** Largest supported board */
+    public static final int MAX_SIZE = 19;
+
+    private static final String SNAPSHOT_DIGITS = "0123456789ABCDEFGHIJKLMNOPQ"; // Base 27, three cells per digit
+    // Line directions through a cell: horizontal, vertical, diagonal, anti-diagonal
+    private static final int[] DIRECTION_ROWS = {0, 1, 1, 1};
+    private static final int[] DIRECTION_COLS = {1, 0, 1, -1};
+    private static final int MAX_MASK_SIZE = 8; // Largest board whose cells fit in one long
+    // Every k-in-a-row line as a cell mask by [size][winLength], and the lines through each cell by [...][cell]
+    private static final long[][][] WIN_MASKS = new long[MAX_MASK_SIZE + 1][][];
+    private static final long[][][][] CELL_WIN_MASKS = new long[MAX_MASK_SIZE + 1][][][];
+
+    static {
+        for (int size = MIN_SIZE; size <= MAX_MASK_SIZE; size++) {
+            WIN_MASKS[size] = new long[size + 1][];
+            CELL_WIN_MASKS[size] = new long[size + 1][][];
+            for (int winLength = 3; winLength <= size; winLength++) {
+                buildWinMasks(size, winLength);
+            }
+        }
+    }
+
+    private final int size;
+    private final int winLength;
+    private final long[] p1Bits; // Cells taken by player 1 (X)
+    private final long[] p2Bits; // Cells taken by player 2 (O)
+    private final long[] winMasks; // Every winning line of this variant, null above MAX_MASK_SIZE
+    private final long[][] cellWinMasks; // Winning lines through each cell, null above MAX_MASK_SIZE
+    private int moveCount;
+
+    /**
+     * Create the classic 3×3 board
+     */
+    public Board() {
+        this(DEFAULT_SIZE, DEFAULT_WIN_LENGTH);
+    }
+
+    /**
+     * Create a board for a variant
+     * @param size Width and height (MIN_SIZE to MAX_SIZE)
+     * @param winLength Marks in a row needed to win (3 to size)
+     */
+    public Board(int size, int winLength) {
+        if (!isValidVariant(size, winLength)) {
+            throw new IllegalArgumentException("Unsupported board " + size + "x" + size + ", " + winLength + " in a row");
+        }
+        this.size = size;
+        this.winLength = winLength;
+        int words = (size * size + 63) / 64;
+        this.p1Bits = new long[words];
+        this.p2Bits = new long[words];
+        this.winMasks = size <= MAX_MASK_SIZE ? WIN_MASKS[size][winLength] : null;
+        this.cellWinMasks = size <= MAX_MASK_SIZE ? CELL_WIN_MASKS[size][winLength] : null;
+    }
+
+    /**
+     * Precompute the winning lines of a variant small enough for one bit word, called once per variant at class load
+     * @param size Width and height (MIN_SIZE to MAX_MASK_SIZE)
+     * @param winLength Marks in a row needed to win (3 to size)
+     */
+    private static void buildWinMasks(int size, int winLength) {
+        long[] lines = new long[4 * size * size];
+        int lineCount = 0;
+        int[] linesPerCell = new int[size * size];
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < size; col++) {
+                for (int d = 0; d < DIRECTION_ROWS.length; d++) {
+                    int endRow = row + DIRECTION_ROWS[d] * (winLength - 1);
+                    int endCol = col + DIRECTION_COLS[d] * (winLength - 1);
+                    if (endRow < 0 || endRow >= size || endCol < 0 || endCol >= size) continue;
+                    long mask = 0;
+                    for (int i = 0; i < winLength; i++) {
+                        int cell = (row + DIRECTION_ROWS[d] * i) * size + col + DIRECTION_COLS[d] * i;
+                        mask |= 1L << cell;
+                        linesPerCell[cell]++;
+                    }
+                    lines[lineCount++] = mask;
+                }
+            }
+        }
+        long[] masks = Arrays.copyOf(lines, lineCount);
+        long[][] cellMasks = new long[size * size][];
+        for (int cell = 0; cell < cellMasks.length; cell++) {
+            cellMasks[cell] = new long[linesPerCell[cell]];
+            int count = 0;
+            for (long mask : masks) {
+                if ((mask >>> cell & 1) != 0) cellMasks[cell][count++] = mask;
+            }
+        }
+        WIN_MASKS[size][winLength] = masks;
+        CELL_WIN_MASKS[size][winLength] = cellMasks;
+    }
+
+    /**
+     * Create an independent copy of a position
+     * @return New board with the same variant and marks
+     */
+    public Board copy() {
+        Board copy = new Board(size, winLength);
+        System.arraycopy(p1Bits, 0, copy.p1Bits, 0, p1Bits.length);
+        System.arraycopy(p2Bits, 0, copy.p2Bits, 0, p2Bits.length);
+        copy.moveCount = moveCount;
+        return copy;
+    }
+
+    /**
+     * Check whether a board size and win length are supported
+     * @param size Width and height
+     * @param winLength Marks in a row needed to win
+     * @return true if a Board can be built for them
+     */
+    public static boolean isValidVariant(int size, int winLength) {
+        return size >= MIN_SIZE && size <= MAX_SIZE && winLength >= 3 && winLength <= size;
+    }
+
+    /**
+     * Get the width and height of the board
+     * @return Board size
+     */
+    public int getSize() { return size; }
+
+    /**
+     * Get the number of marks in a row needed to win
+     * @return Win length k
+     */
+    public int getWinLength() { return winLength; }
+
+    /**
+     * Get the number of marks placed so far
+     * @return Move count
+     */
+    public int getMoveCount() { return moveCount; }
+
+    /**
+     * Check if coordinates lie on the board
+     * @param row Row index
+     * @param col Column index
+     * @return true if inside the board
+     */
+    public boolean isInside(int row, int col) {
+        return row >= 0 && row < size && col >= 0 && col < size;
+    }
+
+    /**
+     * Check if a cell is empty (coordinates must be inside the board)
+     * @param row Row index
+     * @param col Column index
+     * @return true if neither player has marked the cell
+     */
+    public boolean isEmpty(int row, int col) {
+        int cell = row * size + col;
+        return (((p1Bits[cell >>> 6] | p2Bits[cell >>> 6]) >>> cell) & 1) == 0;
+    }
+
+    /**
+     * Get the owner of a cell (coordinates must be inside the board)
+     * @param row Row index
+     * @param col Column index
+     * @return 1 or 2 for the player who marked the cell, 0 if empty
+     */
+    public int getCell(int row, int col) {
+        int cell = row * size + col;
+        if (((p1Bits[cell >>> 6] >>> cell) & 1) != 0) return 1;
+        if (((p2Bits[cell >>> 6] >>> cell) & 1) != 0) return 2;
+        return 0;
+    }
+
+    /**
+     * Mark a cell for a player (caller validates the move first)
+     * @param row Row index
+     * @param col Column index
+     * @param playerId Player ID (1 or 2)
+     */
+    public void place(int row, int col, int playerId) {
+        int cell = row * size + col;
+        long[] bits = playerId == 1 ? p1Bits : p2Bits;
+        bits[cell >>> 6] |= 1L << cell;
+        moveCount++;
+    }
+
+    /**
+     * Take back the mark on a cell (used by search to undo a trial move)
+     * @param row Row index
+     * @param col Column index
+     */
+    public void remove(int row, int col) {
+        int cell = row * size + col;
+        long mask = ~(1L << cell);
+        p1Bits[cell >>> 6] &= mask;
+        p2Bits[cell >>> 6] &= mask;
+        moveCount--;
+    }
+
+    /**
+     * Check if the mark on a cell completes k in a row, testing only the lines through that cell
+     * Call it with the last move to detect a win in O(k)
+     * @param row Row of the last move
+     * @param col Column of the last move
+     * @return true if the cell's owner has won through this cell
+     */
+    public boolean isWinningMove(int row, int col) {
+        if (cellWinMasks != null) {
+            int cell = row * size + col;
+            long bits = (p1Bits[0] >>> cell & 1) != 0 ? p1Bits[0] : (p2Bits[0] >>> cell & 1) != 0 ? p2Bits[0] : 0;
+            if (bits == 0) return false;
+            for (long mask : cellWinMasks[cell]) {
+                if ((bits & mask) == mask) return true;
+            }
+            return false;
+        }
+        int playerId = getCell(row, col);
+        if (playerId == 0) return false;
+        for (int d = 0; d < DIRECTION_ROWS.length; d++) {
+            int dr = DIRECTION_ROWS[d];
+            int dc = DIRECTION_COLS[d];
+            int count = 1 + countRun(row, col, dr, dc, playerId) + countRun(row, col, -dr, -dc, playerId);
+            if (count >= winLength) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Count consecutive marks of a player from a cell in one direction, excluding the cell, capped at k - 1
+     * @param row Start row
+     * @param col Start column
+     * @param dr Row step
+     * @param dc Column step
+     * @param playerId Player ID (1 or 2)
+     * @return Length of the run
+     */
+    private int countRun(int row, int col, int dr, int dc, int playerId) {
+        int count = 0;
+        int r = row + dr;
+        int c = col + dc;
+        while (count < winLength - 1 && isInside(r, c) && getCell(r, c) == playerId) {
+            count++;
+            r += dr;
+            c += dc;
+        }
+        return count;
+    }
+
+    /**
+     * Check if a player has k in a row anywhere on the board
+     * Tests every winning line, or on boards above MAX_MASK_SIZE scans every cell; prefer isWinningMove after each move
+     * @param playerId Player ID (1 or 2)
+     * @return true if the player has won
+     */
+    public boolean checkWin(int playerId) {
+        if (winMasks != null) {
+            long bits = playerId == 1 ? p1Bits[0] : p2Bits[0];
+            for (long mask : winMasks) {
+                if ((bits & mask) == mask) return true;
+            }
+            return false;
+        }
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < size; col++) {
+                if (getCell(row, col) == playerId && isWinningMove(row, col)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if every cell is taken (tie determination)
+     * @return true if the board is full
+     */
+    public boolean isFull() {
+        return moveCount == size * size;
+    }
+
+    /**
+     * Find the n-th empty cell in row-major order
+     * @param n Index among the empty cells (0 to size * size - getMoveCount() - 1)
+     * @return Cell index row * size + col, or -1 if there are not that many empty cells
+     */
+    public int nthEmptyCell(int n) {
+        for (int cell = 0; cell < size * size; cell++) {
+            if ((((p1Bits[cell >>> 6] | p2Bits[cell >>> 6]) >>> cell) & 1) == 0 && n-- == 0) return cell;
+        }
+        return -1;
+    }
+
+    /**
+     * Encode the marks as text, three cells per character, short enough for one message even on the largest board
+     * @return Snapshot readable by fromSnapshot
+     */
+    public String toSnapshot() {
+        int cells = size * size;
+        StringBuilder snapshot = new StringBuilder((cells + 2) / 3);
+        for (int cell = 0; cell < cells; cell += 3) {
+            int digit = 0;
+            for (int i = Math.min(cell + 2, cells - 1); i >= cell; i--) {
+                digit = digit * 3 + getCell(i / size, i % size);
+            }
+            snapshot.append(SNAPSHOT_DIGITS.charAt(digit));
+        }
+        return snapshot.toString();
+    }
+
+    /**
+     * Rebuild a board from a snapshot
+     * @param size Board width and height
+     * @param winLength Marks in a row needed to win
+     * @param snapshot Text written by toSnapshot for the same size
+     * @return Board holding the snapshot's marks
+     * @throws IllegalArgumentException Snapshot does not fit the board
+     */
+    public static Board fromSnapshot(int size, int winLength, String snapshot) {
+        Board board = new Board(size, winLength);
+        int cells = size * size;
+        if (snapshot.length() != (cells + 2) / 3) throw new IllegalArgumentException("Snapshot length " + snapshot.length());
+        for (int i = 0; i < snapshot.length(); i++) {
+            int digit = SNAPSHOT_DIGITS.indexOf(snapshot.charAt(i));
+            if (digit < 0) throw new IllegalArgumentException("Snapshot digit " + snapshot.charAt(i));
+            for (int cell = i * 3; cell < Math.min(i * 3 + 3, cells); cell++, digit /= 3) {
+                if (digit % 3 != 0) board.place(cell / size, cell % size, digit % 3);
+            }
+        }
+        return board;
+    }
+
+    /**
+     * Clear all moves
+     */
+    public void reset() {
+        Arrays.fill(p1Bits, 0);
+        Arrays.fill(p2Bits, 0);
+        moveCount = 0;
+    }
+}
@@ -0,0 +1,58 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of fixed-size direct ByteBuffers shared by the NIO event loops
+ * Direct buffers are expensive to allocate and free, so outbound frames borrow one and return it once written
+ * @author Chen Junliang
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledCount = new AtomicInteger();
+
+    /**
+     * Create an empty pool, buffers are allocated lazily on first use
+     * @param bufferSize Capacity of every buffer in bytes
+     * @param maxPooled Maximum number of idle buffers kept for reuse
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Get the capacity of the buffers handed out by this pool
+     * @return Buffer size in bytes
+     */
+    public int getBufferSize() { return bufferSize; }
+
+    /**
+     * Borrow a cleared buffer, allocating a new one if the pool is empty
+     * @return Buffer ready for writing
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooledCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool; buffers of another size or beyond the pool limit are dropped
+     * @param buffer Buffer previously obtained from acquire
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) return;
+        if (pooledCount.incrementAndGet() > maxPooled) {
+            pooledCount.decrementAndGet();
+            return;
+        }
+        buffers.offer(buffer);
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.List;
+
+/**
+ * Callbacks fired by a ClientSession as server messages arrive
+ * Implemented by the Swing client to update its window and by headless bots to drive simulated players
+ * Callbacks run in message order on the executor given to ClientSession.setListener (the session's listening thread
+ * by default, the EDT for the Swing client), after the session state has been updated; since the session may have
+ * read further messages by then, its getters can be ahead of the callback being run
+ * @author Chen Junliang
+ */
+public interface ClientListener {
+    /**
+     * Both players have submitted names and this player's seat and board are known
+     * @param playerId Own player ID (1 = X, 2 = O)
+     * @param opponentName Opponent's name ("Opponent" if not yet known)
+     * @param boardSize Board width and height confirmed by the server
+     * @param winLength Marks in a row needed to win
+     */
+    void onGameStart(int playerId, String opponentName, int boardSize, int winLength);
+
+    /**
+     * The opponent placed a mark, it is now this player's turn
+     * @param row Row of the opponent's move
+     * @param col Column of the opponent's move
+     */
+    void onOpponentMove(int row, int col);
+
+    /**
+     * A game was won
+     * @param isWinner true if this player won
+     */
+    void onWin(boolean isWinner);
+
+    /**
+     * A game ended in a draw
+     */
+    void onDraw();
+
+    /**
+     * A new game started on an empty board
+     */
+    void onRestart();
+
+    /**
+     * The opponent left the room
+     */
+    void onOpponentExit();
+
+    /**
+     * The leaderboard asked for with requestLeaderboard has arrived
+     * @param topPlayers Highest rated players, best first (empty if the server keeps no ratings)
+     * @param totalPlayers Number of rated players on the server
+     */
+    void onLeaderboard(List<PlayerStats> topPlayers, int totalPlayers);
+
+    /**
+     * The connection dropped and the session reconnected to its seat; seat, turn and scores are already restored
+     * @param board Board as the server holds it, which may include moves made while disconnected
+     */
+    void onResumed(Board board);
+
+    /**
+     * The server closed the connection unexpectedly
+     */
+    void onServerDisconnected();
+
+    /**
+     * The session has stopped listening and its connection is closed
+     */
+    void onSessionClosed();
+}
@@ -0,0 +1,483 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * GUI-independent client side of one connection to the server
+ * Owns the socket, tracks seat, turn and scores from server messages, and reports every message to a ClientListener.
+ * Shared by the Swing client and the headless load generator so both follow exactly the same protocol rules.
+ * Messages are read and decoded and the session state is updated on the listening thread; the listener's callbacks
+ * run on the listener executor, which for the Swing client hands them to the EDT so reading never waits for the UI.
+ * When the connection drops mid-game the session reconnects with its session token for up to RECONNECT_WINDOW_MS and
+ * carries on from the server's snapshot; the listener only hears of a disconnect once that fails.
+ * With -Dtictactoe.trace=true and a version 3 server, NAME, RESUME and MOVE are stamped with the send time on the
+ * server's clock, and each traced move from the opponent is broken down into hops by the shared MoveTracer.
+ * @author Chen Junliang
+ */
+public class ClientSession {
+    /** Longest time spent reconnecting after the connection drops */
+    public static final long RECONNECT_WINDOW_MS = 20000;
+    private static final long RECONNECT_RETRY_MS = 500;
+
+    private final String host; // Where to reconnect after a dropped connection
+    private final int port;
+    private volatile Socket socket; // Replaced when the session resumes on a new connection
+    private volatile MessageStream connection;
+    private final ReentrantLock writeLock = new ReentrantLock(); // Moves may be sent from a UI thread while listening
+    private ClientListener listener;
+    private Executor listenerExecutor = Runnable::run; // Runs callbacks, in order; the listening thread by default
+    private volatile String playerName;
+    private volatile int playerId; // 1=Player 1(X), 2=Player 2(O)
+    private volatile boolean isMyTurn;
+    private volatile boolean isGameActive;
+    private volatile int p1Wins;
+    private volatile int p2Wins;
+    private volatile int draws;
+    private volatile int boardSize = Board.DEFAULT_SIZE;
+    private volatile int winLength = Board.DEFAULT_WIN_LENGTH;
+    private volatile boolean isClosed;
+    private volatile String sessionToken; // Issued by the server after NAME, null if the server does not support it
+    private final List<PlayerStats> leaderboardRows = new ArrayList<>(); // Rows of the leaderboard being received
+    private final MoveTracer tracer = MoveTracer.fromSystemProperty(); // Null unless tracing is on
+    private volatile boolean isTracing; // Tracing is on and the connection speaks version 3
+    private volatile long clockOffsetMicros; // Server clock minus the trace clock, from the last handshake
+
+    /**
+     * Wrap an already connected socket and message stream
+     * @param socket Connected socket
+     * @param connection Message stream over the socket
+     */
+    public ClientSession(Socket socket, MessageStream connection) {
+        this.socket = socket;
+        this.connection = connection;
+        this.host = socket.getInetAddress().getHostAddress();
+        this.port = socket.getPort();
+        useClock(connection);
+    }
+
+    /**
+     * Take the clock offset measured by a connection's handshake and decide whether messages on it are traced
+     * @param stream Newly opened message stream
+     */
+    private void useClock(MessageStream stream) {
+        if (tracer == null || !(stream instanceof BinaryMessageStream)
+                || ((BinaryMessageStream) stream).getVersion() < GameDataCodec.TRACE_VERSION) {
+            isTracing = false;
+            return;
+        }
+        BinaryMessageStream binary = (BinaryMessageStream) stream;
+        clockOffsetMicros = binary.getClockOffsetMicros();
+        tracer.recordHandshake(binary.getHandshakeRoundTripMicros());
+        isTracing = true;
+    }
+
+    /**
+     * Stamp a message with its send time on the server's clock if tracing
+     * @param data Message about to be sent
+     * @return The same message
+     */
+    private GameData stamped(GameData data) {
+        if (isTracing) data.setTrace(MoveTracer.currentTimeMicros() + clockOffsetMicros, 0, 0);
+        return data;
+    }
+
+    /**
+     * Connect to a server
+     * Speaks the binary protocol unless -Dtictactoe.protocol=serialized is set (legacy blocking engine only)
+     * @param host Server host
+     * @param port Server port
+     * @return Connected session (not yet listening)
+     * @throws IOException Connection or handshake failure
+     */
+    public static ClientSession connect(String host, int port) throws IOException {
+        Socket socket = new Socket(host, port);
+        return new ClientSession(socket, openStream(socket));
+    }
+
+    /**
+     * Open the message stream of a freshly connected socket, closing the socket on failure
+     * @param socket Connected socket
+     * @return Binary stream, or an object stream when -Dtictactoe.protocol=serialized
+     * @throws IOException Handshake failure
+     */
+    private static MessageStream openStream(Socket socket) throws IOException {
+        try {
+            socket.setTcpNoDelay(true);
+            if ("serialized".equals(System.getProperty("tictactoe.protocol"))) {
+                return new ObjectMessageStream(socket.getInputStream(), socket.getOutputStream());
+            }
+            return BinaryMessageStream.connect(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Set the listener that receives server events, must be called before listen()
+     * @param listener Event listener
+     */
+    public void setListener(ClientListener listener) {
+        setListener(listener, Runnable::run);
+    }
+
+    /**
+     * Set the listener and the executor its callbacks run on, must be called before listen()
+     * @param listener Event listener
+     * @param executor Runs each callback once, in the order given (e.g. a SwingDispatcher)
+     */
+    public void setListener(ClientListener listener, Executor executor) {
+        this.listener = listener;
+        this.listenerExecutor = executor;
+    }
+
+    /**
+     * Hand one callback to the listener executor
+     * @param callback Call to the listener, with every value it needs already read from the session
+     */
+    private void notifyListener(Runnable callback) {
+        listenerExecutor.execute(callback);
+    }
+
+    /**
+     * Get the name submitted by this player
+     * @return Player name, null before submitName
+     */
+    public String getPlayerName() { return playerName; }
+
+    /**
+     * Get this player's seat
+     * @return 1 for X, 2 for O, 0 before the game starts
+     */
+    public int getPlayerId() { return playerId; }
+
+    /**
+     * Check whether this player may move now
+     * @return true on this player's turn
+     */
+    public boolean isMyTurn() { return isMyTurn; }
+
+    /**
+     * Check whether a game is in progress
+     * @return true once both names are in, until the session ends
+     */
+    public boolean isGameActive() { return isGameActive; }
+
+    /**
+     * Get the number of wins for player 1
+     * @return Cumulative number of wins
+     */
+    public int getP1Wins() { return p1Wins; }
+
+    /**
+     * Get the number of wins for player 2
+     * @return Cumulative number of wins
+     */
+    public int getP2Wins() { return p2Wins; }
+
+    /**
+     * Get the number of ties
+     * @return Cumulative number of ties
+     */
+    public int getDraws() { return draws; }
+
+    /**
+     * Get the board size confirmed by the server
+     * @return Board width and height
+     */
+    public int getBoardSize() { return boardSize; }
+
+    /**
+     * Get the win length confirmed by the server
+     * @return Marks in a row needed to win
+     */
+    public int getWinLength() { return winLength; }
+
+    /**
+     * Send this player's name to the server and ask for the classic 3×3 board
+     * @param name Player name
+     * @throws IOException Data sending exception
+     */
+    public void submitName(String name) throws IOException {
+        submitName(name, Board.DEFAULT_SIZE, Board.DEFAULT_WIN_LENGTH);
+    }
+
+    /**
+     * Send this player's name to the server and ask for a board variant
+     * The server pairs players who asked for the same variant and confirms it in its NAME replies
+     * @param name Player name
+     * @param boardSize Requested board width and height
+     * @param winLength Requested marks in a row needed to win
+     * @throws IOException Data sending exception
+     */
+    public void submitName(String name, int boardSize, int winLength) throws IOException {
+        playerName = name;
+        // The classic board is sent as "no variant" so servers that predate variants understand the message
+        boolean isClassic = boardSize == Board.DEFAULT_SIZE && winLength == Board.DEFAULT_WIN_LENGTH;
+        // Row 1 asks for a session token; servers without reconnect support ignore the row of a NAME
+        send(stamped(new GameData(GameData.Command.NAME, name, 1, 0, p1Wins, p2Wins, draws,
+                isClassic ? 0 : boardSize, isClassic ? 0 : winLength)));
+    }
+
+    /**
+     * Send a move and hand the turn to the opponent
+     * @param row Row of the move
+     * @param col Column of the move
+     * @throws IOException Data sending exception
+     */
+    public void sendMove(int row, int col) throws IOException {
+        send(stamped(new GameData(GameData.Command.MOVE, playerName, row, col, p1Wins, p2Wins, draws)));
+        isMyTurn = false;
+        isGameActive = true;
+    }
+
+    /**
+     * Ask the server to start a new game
+     * @throws IOException Data sending exception
+     */
+    public void requestRestart() throws IOException {
+        send(new GameData(GameData.Command.RESTART, playerName, 0, 0, p1Wins, p2Wins, draws));
+    }
+
+    /**
+     * Ask the server for the highest rated players; the answer arrives through onLeaderboard
+     * Only valid once the player has been seated in a room
+     * @param count Number of players wanted
+     * @throws IOException Data sending exception
+     */
+    public void requestLeaderboard(int count) throws IOException {
+        send(new GameData(GameData.Command.LEADERBOARD, playerName, count, 0, p1Wins, p2Wins, draws));
+    }
+
+    /**
+     * Tell the server this player is leaving, then close the connection
+     */
+    public void exit() {
+        try {
+            send(new GameData(GameData.Command.EXIT, playerName, 0, 0, p1Wins, p2Wins, draws));
+        } catch (IOException e) {
+            if (!isClosed) e.printStackTrace();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Send one message to the server
+     * @param data Game data to send
+     * @throws IOException Data sending exception
+     */
+    private void send(GameData data) throws IOException {
+        writeLock.lock();
+        try {
+            connection.write(data);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Listen for messages sent by the server until the connection ends, updating state and notifying the listener
+     * Blocks the calling thread
+     */
+    public void listen() {
+        try {
+            while (!isClosed) {
+                GameData data;
+                try {
+                    data = connection.read();
+                } catch (SocketException | EOFException e) {
+                    if (isClosed || !reconnect()) throw e;
+                    continue; // Resumed on a new connection
+                }
+                dispatch(data);
+            }
+        } catch (SocketException | EOFException e) {
+            if (!isClosed) notifyListener(listener::onServerDisconnected);
+        } catch (IOException e) {
+            if (!isClosed) e.printStackTrace();
+        } finally {
+            close();
+            notifyListener(listener::onSessionClosed);
+        }
+    }
+
+    /**
+     * Update the session state for one server message and notify the listener
+     * @param data Message from the server
+     */
+    private void dispatch(GameData data) {
+        switch (data.getCommand()) {
+            case NAME:
+                // The row parameter sent by the server = opponent's player ID
+                int opponentId = data.getRow();
+                // Own ID is the opposite of opponent's ID
+                playerId = (opponentId == 1) ? 2 : 1;
+                isMyTurn = (playerId == 1); // Only player 1 moves first
+                // Handle case where opponent's name may be empty
+                String opponentName = data.getPlayerName();
+                if (opponentName == null || opponentName.isEmpty()) {
+                    opponentName = "Opponent";
+                }
+                // No variant in the reply means the classic board
+                boardSize = data.getBoardSize() == 0 ? Board.DEFAULT_SIZE : data.getBoardSize();
+                winLength = data.getWinLength() == 0 ? Board.DEFAULT_WIN_LENGTH : data.getWinLength();
+                isGameActive = true; // Game activates after both players submit names
+                int id = playerId, size = boardSize, length = winLength;
+                String opponent = opponentName;
+                notifyListener(() -> listener.onGameStart(id, opponent, size, length));
+                break;
+
+            case MOVE:
+                long receivedNanos = System.nanoTime();
+                isMyTurn = true; // Opponent has moved, switch to own turn
+                // Traced moves are recorded once shown, so the dispatch hop includes the wait for the listener
+                boolean isTraced = tracer != null && data.isTraced();
+                long offset = clockOffsetMicros;
+                notifyListener(() -> {
+                    listener.onOpponentMove(data.getRow(), data.getCol());
+                    if (isTraced) tracer.recordMove(data, receivedNanos, offset);
+                });
+                break;
+
+            case WIN:
+                p1Wins = data.getP1Wins();
+                p2Wins = data.getP2Wins();
+                boolean isWinner = data.getPlayerName().equals(playerName);
+                notifyListener(() -> listener.onWin(isWinner));
+                break;
+
+            case DRAW:
+                draws = data.getDraws();
+                notifyListener(listener::onDraw);
+                break;
+
+            case EXIT:
+                sessionToken = null; // The room is closed, there is no seat to come back to
+                notifyListener(listener::onOpponentExit);
+                break;
+
+            case RESTART:
+                p1Wins = data.getP1Wins();
+                p2Wins = data.getP2Wins();
+                draws = data.getDraws();
+                isGameActive = true;
+                isMyTurn = (playerId == 1); // Player 1 moves first
+                notifyListener(listener::onRestart);
+                break;
+
+            case SESSION:
+                sessionToken = data.getPlayerName(); // Kept for reconnecting if the connection drops
+                break;
+
+            case LEADERBOARD:
+                // One message per player, then an end marker with rank 0 and the player total in col
+                if (data.getRow() > 0) {
+                    leaderboardRows.add(new PlayerStats(data.getPlayerName(), data.getP1Wins(),
+                            data.getP2Wins(), data.getDraws(), data.getCol()));
+                } else {
+                    List<PlayerStats> topPlayers = new ArrayList<>(leaderboardRows);
+                    leaderboardRows.clear();
+                    int totalPlayers = data.getCol();
+                    notifyListener(() -> listener.onLeaderboard(topPlayers, totalPlayers));
+                }
+                break;
+        }
+    }
+
+    /**
+     * Reconnect after the connection dropped and reclaim the seat with the session token
+     * Retries every RECONNECT_RETRY_MS for up to RECONNECT_WINDOW_MS, which stays inside the server's grace window
+     * @return true once the server has answered with a snapshot, false without a token, when the server turned the
+     *         token away or when the window has passed
+     */
+    private boolean reconnect() {
+        String token = sessionToken;
+        if (token == null) return false;
+        long deadline = System.currentTimeMillis() + RECONNECT_WINDOW_MS;
+        while (!isClosed && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(RECONNECT_RETRY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            Socket newSocket = null;
+            try {
+                newSocket = new Socket(host, port);
+                MessageStream newConnection = openStream(newSocket);
+                useClock(newConnection);
+                newConnection.write(stamped(new GameData(GameData.Command.RESUME, token, 0, 0, 0, 0, 0)));
+                GameData reply = newConnection.read();
+                if (reply.getCommand() != GameData.Command.RESUME) {
+                    newConnection.close();
+                    newSocket.close();
+                    return false; // Token expired: the room is gone
+                }
+                writeLock.lock();
+                try {
+                    connection.close();
+                    socket.close();
+                    connection = newConnection;
+                    socket = newSocket;
+                } finally {
+                    writeLock.unlock();
+                }
+                applySnapshot(reply);
+                return true;
+            } catch (IOException e) {
+                if (newSocket != null) {
+                    try {
+                        newSocket.close();
+                    } catch (IOException ignored) {
+                        // Next attempt opens a fresh socket
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Restore seat, turn, scores and board from the server's RESUME snapshot and notify the listener
+     * @param data RESUME message: board snapshot as name, own ID as row, player to move as col (0 if no game runs)
+     * @throws IOException Snapshot does not fit the board
+     */
+    private void applySnapshot(GameData data) throws IOException {
+        Board board;
+        try {
+            board = Board.fromSnapshot(data.getBoardSize(), data.getWinLength(), data.getPlayerName());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad snapshot: " + e.getMessage());
+        }
+        playerId = data.getRow();
+        isGameActive = data.getCol() != 0;
+        isMyTurn = data.getCol() == playerId;
+        p1Wins = data.getP1Wins();
+        p2Wins = data.getP2Wins();
+        draws = data.getDraws();
+        boardSize = board.getSize();
+        winLength = board.getWinLength();
+        notifyListener(() -> listener.onResumed(board));
+    }
+
+    /**
+     * Close the connection (safe to call more than once)
+     */
+    public void close() {
+        if (isClosed) return;
+        isClosed = true;
+        isGameActive = false;
+        connection.close();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,739 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Front router of a cluster of TicTacToeServer nodes
+ * Clients connect to the router exactly as to a single server. The router answers the handshake itself, reads the
+ * first frame and picks the node that owns it: a NAME starts a new game numbered by the router, and the next NAME for
+ * the same board variant joins that game within the AI wait (-Dtictactoe.ai.waitMs, as on the nodes), so both
+ * players reach the same node; a WATCH carries a room ID, and a RESUME
+ * a session token that starts with its room ID. Game and room IDs are the same number, hashed onto a HashRing of the
+ * nodes. The router then connects to the node, sends a ROUTE frame with the game ID (which the node uses as the room
+ * ID) ahead of the client's frame, and copies bytes both ways until either side closes.
+ * A node that joined (TicTacToeServer --join) claims a lone player's game on the admin port before giving it a
+ * computer opponent, and the router never sends a second player to a claimed game; a node listed only with --nodes
+ * cannot claim, and relies on the router's pairing window ending before its own AI wait.
+ * Nodes are listed with --nodes or join by themselves (TicTacToeServer --join) and leave when they drain. Joins and
+ * leaves are only accepted on a separate admin port, bound to loopback unless --admin-bind says otherwise, so clients
+ * of the game port cannot add or remove nodes. A node that
+ * refuses a connection is taken off the ring and probed every second until it answers again. A membership change only
+ * moves the keys of the arcs that change hands: placed games stay pinned to their node until their last connection
+ * has been gone longer than a client's reconnect window, so new games follow the new ring while live ones finish where
+ * they are (room state is never copied between nodes).
+ * Only binary clients are routed; legacy serialization clients connect to a node directly. Move trace clock offsets
+ * are measured against the router's clock, which matches the nodes' only when their clocks are synchronized.
+ *
+ * Usage: java ClusterRouter [--port=N] [--bind=ADDRESS] [--admin-port=N] [--admin-bind=ADDRESS]
+ *        [--nodes=host:port,host:port...]
+ * @author Chen Junliang
+ */
+public class ClusterRouter {
+    /** ROUTE col of a forwarded connection: row carries the game ID, the name the client's address */
+    public static final int ROUTE_FORWARD = 0;
+    /** ROUTE col of a node joining, on the admin port: the name carries its host:port */
+    public static final int ROUTE_JOIN = 1;
+    /** ROUTE col of a node leaving, on the admin port: the name carries its host:port */
+    public static final int ROUTE_LEAVE = 2;
+    /**
+     * ROUTE col of a node about to give a lone routed player a computer opponent, on the admin port: the row carries
+     * the game ID; the answer's row is 1 if the node may fill the game, 0 if a second player has been sent to it
+     */
+    public static final int ROUTE_CLAIM = 3;
+
+    private static final int HANDSHAKE_TIMEOUT_MS = 10000;
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final long PROBE_INTERVAL_MS = 1000;
+    private static final long PIN_GRACE_MS = ClientSession.RECONNECT_WINDOW_MS + 10000; // Outlasts client reconnects
+
+    private final String bindAddress;
+    private final int port;
+    private final String adminBindAddress;
+    private final int adminPort;
+    private ServerSocket serverSocket;
+    private ServerSocket adminSocket; // Membership changes only
+    private ExecutorService connections; // Two tasks per routed connection, one per direction
+    private ScheduledExecutorService timer; // Probes unreachable nodes and releases idle pins
+    private volatile boolean isRunning;
+    private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet(); // Closed by stop()
+    private final ReentrantLock membershipLock = new ReentrantLock(); // Guards members and unreachable
+    private final Set<String> members = new LinkedHashSet<>(); // Nodes as host:port
+    private final Set<String> unreachable = new HashSet<>(); // Members off the ring until a probe succeeds
+    private volatile HashRing<String> ring; // Replaced on every change
+    private final Map<Integer, Placement> placements = new ConcurrentHashMap<>(); // Node of each live game
+    private final ReentrantLock pairingLock = new ReentrantLock(); // Guards openGames and pairedGames
+    private final Map<Long, OpenGame> openGames = new HashMap<>(); // Game waiting for its second player, by variant
+    private final Map<Integer, Long> pairedGames = new HashMap<>(); // When each recent game got its second player
+    private final long pairingWindowNanos; // How long a game is offered to a second player, as long as the AI wait
+    // Random start, so a restarted router does not reuse the IDs of rooms still running on the nodes
+    private final AtomicInteger nextGameId = new AtomicInteger(ThreadLocalRandom.current().nextInt(1 << 30));
+    private volatile int lastGameId; // Watched by a WATCH without a room ID
+
+    /**
+     * Create a router; nothing is opened until start()
+     * @param bindAddress Address to listen on, empty for all interfaces
+     * @param port Port to listen on, 0 to pick a free one
+     * @param adminBindAddress Address nodes join and leave on, empty for all interfaces
+     * @param adminPort Port nodes join and leave on, 0 to pick a free one
+     * @param nodes Initial nodes as host:port, more can join later
+     */
+    public ClusterRouter(String bindAddress, int port, String adminBindAddress, int adminPort, List<String> nodes) {
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.adminBindAddress = adminBindAddress;
+        this.adminPort = adminPort;
+        long aiWaitMs = Long.getLong(TicTacToeServer.AI_WAIT_PROPERTY, TicTacToeServer.DEFAULT_AI_WAIT_MS);
+        this.pairingWindowNanos = aiWaitMs < 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(aiWaitMs);
+        members.addAll(nodes);
+        ring = new HashRing<>(members);
+    }
+
+    /**
+     * Start listening and return; connections are accepted on the router-acceptor thread
+     * @throws IOException Port cannot be bound
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(bindAddress.isEmpty() ? new InetSocketAddress(port) : new InetSocketAddress(bindAddress, port));
+        adminSocket = new ServerSocket();
+        try {
+            adminSocket.bind(adminBindAddress.isEmpty() ? new InetSocketAddress(adminPort)
+                    : new InetSocketAddress(adminBindAddress, adminPort));
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        isRunning = true;
+        connections = ThreadModel.fromSystemProperty().newPerTaskExecutor("router");
+        timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "router-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::maintain, PROBE_INTERVAL_MS, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        Thread admin = new Thread(this::acceptAdmin, "router-admin");
+        admin.setDaemon(true);
+        admin.start();
+        new Thread(this::acceptClients, "router-acceptor").start(); // Not a daemon, keeps the JVM alive
+        System.out.println("Router listening on port " + getPort() + ", admin port " + getAdminPort() + ", nodes " + members);
+    }
+
+    /**
+     * Stop accepting and close every routed connection
+     */
+    public void stop() {
+        isRunning = false;
+        try {
+            if (serverSocket != null) serverSocket.close();
+            if (adminSocket != null) adminSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Socket socket : openSockets) {
+            closeQuietly(socket);
+        }
+        if (connections != null) connections.shutdownNow();
+        if (timer != null) timer.shutdownNow();
+    }
+
+    /**
+     * Get the port the router listens on
+     * @return Bound port
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Get the port nodes join and leave on
+     * @return Bound admin port
+     */
+    public int getAdminPort() {
+        return adminSocket.getLocalPort();
+    }
+
+    /**
+     * Get the nodes new games are placed on
+     * @return Reachable members
+     */
+    public List<String> getNodes() {
+        return ring.getNodes();
+    }
+
+    /**
+     * Add a node, or put a known one back on the ring
+     * @param node Node as host:port
+     */
+    public void addNode(String node) {
+        membershipLock.lock();
+        try {
+            boolean isNew = members.add(node);
+            if (unreachable.remove(node) || isNew) rebuildRing(node + " joined");
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Remove a node; its live games stay pinned to it until they end
+     * @param node Node as host:port
+     */
+    public void removeNode(String node) {
+        membershipLock.lock();
+        try {
+            unreachable.remove(node);
+            if (members.remove(node)) rebuildRing(node + " left");
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Take a node that refused a connection off the ring and drop its games, which ended with it
+     * @param node Node as host:port
+     */
+    private void markUnreachable(String node) {
+        membershipLock.lock();
+        try {
+            if (members.contains(node) && unreachable.add(node)) rebuildRing(node + " is unreachable");
+        } finally {
+            membershipLock.unlock();
+        }
+        placements.values().removeIf(placement -> placement.node.equals(node));
+    }
+
+    /**
+     * Replace the ring after a membership change and report the new key shares, with membershipLock held
+     * @param change What changed, for the log
+     */
+    private void rebuildRing(String change) {
+        List<String> reachable = new ArrayList<>(members);
+        reachable.removeAll(unreachable);
+        HashRing<String> next = new HashRing<>(reachable);
+        int moved = 0;
+        for (Map.Entry<Integer, Placement> placed : placements.entrySet()) {
+            if (!placed.getValue().node.equals(next.nodeFor(placed.getKey()))) moved++;
+        }
+        ring = next;
+        StringBuilder shares = new StringBuilder();
+        for (String node : reachable) {
+            shares.append(String.format(" %s %.1f%%", node, next.shareOf(node) * 100));
+        }
+        System.out.println("Cluster: " + change + "; " + reachable.size() + " nodes, key shares" + shares + "; "
+                + moved + " of " + placements.size() + " pinned games keep their node until they end");
+    }
+
+    /**
+     * Accept connections until stopped and route each one on its own task
+     */
+    private void acceptClients() {
+        while (isRunning) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (SocketException e) {
+                break; // Router socket closed
+            } catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+            try {
+                connections.execute(() -> route(client));
+            } catch (RuntimeException e) {
+                closeQuietly(client); // Stopped meanwhile
+            }
+        }
+    }
+
+    /**
+     * Accept node connections on the admin port until stopped and apply each one's join or leave
+     */
+    private void acceptAdmin() {
+        while (isRunning) {
+            Socket node;
+            try {
+                node = adminSocket.accept();
+            } catch (SocketException e) {
+                break; // Admin socket closed
+            } catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+            try {
+                connections.execute(() -> administer(node));
+            } catch (RuntimeException e) {
+                closeQuietly(node); // Stopped meanwhile
+            }
+        }
+    }
+
+    /**
+     * Handshake with a node on the admin port and apply the join, leave or claim in its first frame
+     * @param node Accepted admin connection
+     */
+    private void administer(Socket node) {
+        openSockets.add(node);
+        try {
+            node.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(node.getInputStream());
+            OutputStream out = node.getOutputStream();
+            acceptHandshake(in, out);
+            byte[] frame = readFrame(in);
+            ByteBuffer payload = ByteBuffer.wrap(frame);
+            GameData route = FrameCodec.decodePayload(payload, FrameCodec.readFrameHeader(payload));
+            if (route.getCommand() != GameData.Command.ROUTE) throw new IOException("Expected ROUTE, got " + route.getCommand());
+            if (route.getCol() == ROUTE_CLAIM) answerClaim(route, out);
+            else changeMembership(route, out);
+        } catch (IOException | RuntimeException e) {
+            if (isRunning) System.out.println("Router dropping admin " + node.getRemoteSocketAddress() + ": " + e.getMessage());
+        } finally {
+            closeQuietly(node);
+        }
+    }
+
+    /**
+     * Read a binary handshake and answer it
+     * @param in Peer input
+     * @param out Peer output
+     * @return Negotiated protocol version
+     * @throws IOException Network exception or not a binary client
+     */
+    private static int acceptHandshake(DataInputStream in, OutputStream out) throws IOException {
+        byte[] handshake = new byte[GameDataCodec.HANDSHAKE_SIZE];
+        in.readFully(handshake);
+        int version = GameDataCodec.negotiate(GameDataCodec.readHandshake(handshake));
+        if (version < 0) throw new IOException("Not a binary client");
+        ByteBuffer reply = ByteBuffer.allocate(GameDataCodec.HANDSHAKE_SIZE + GameDataCodec.CLOCK_SIZE);
+        GameDataCodec.writeHandshakeReply(reply, version);
+        out.write(reply.array(), 0, reply.position());
+        return version;
+    }
+
+    /**
+     * Handshake with a client, pick the node owning its first frame and relay the connection to it
+     * @param client Accepted connection
+     */
+    private void route(Socket client) {
+        openSockets.add(client);
+        Socket node = null;
+        Placement placement = null;
+        try {
+            client.setTcpNoDelay(true);
+            client.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(client.getInputStream()); // Unbuffered: later bytes go to the node
+            OutputStream out = client.getOutputStream();
+            int version = acceptHandshake(in, out);
+
+            byte[] frame = readFrame(in);
+            ByteBuffer payload = ByteBuffer.wrap(frame);
+            GameData first = FrameCodec.decodePayload(payload, FrameCodec.readFrameHeader(payload));
+            int gameId = gameIdOf(first);
+            while (node == null) {
+                placement = placementOf(gameId);
+                if (placement == null) {
+                    turnAway(out); // No node left to send it to
+                    return;
+                }
+                try {
+                    node = connectNode(placement.node, version);
+                } catch (IOException e) {
+                    System.out.println("Cluster: cannot reach " + placement.node + ": " + e.getMessage());
+                    placements.remove(gameId, placement);
+                    markUnreachable(placement.node);
+                    placement = null;
+                }
+            }
+            openSockets.add(node);
+            placement.connections.incrementAndGet();
+
+            // The game ID ahead of the client's own first frame, in one write
+            ByteBuffer preface = ByteBuffer.allocate(FrameCodec.MAX_ENCODED_SIZE + frame.length);
+            FrameCodec.encodeFrame(new GameData(GameData.Command.ROUTE, String.valueOf(client.getRemoteSocketAddress()),
+                    gameId, ROUTE_FORWARD, 0, 0, 0), preface);
+            preface.put(frame);
+            node.getOutputStream().write(preface.array(), 0, preface.position());
+            client.setSoTimeout(0);
+
+            Socket upstream = node;
+            connections.execute(() -> relay(client, upstream));
+            relay(upstream, client);
+        } catch (IOException | RuntimeException e) {
+            if (isRunning) System.out.println("Router dropping " + client.getRemoteSocketAddress() + ": " + e.getMessage());
+        } finally {
+            closeQuietly(client);
+            if (node != null) closeQuietly(node);
+            if (placement != null && placement.connections.decrementAndGet() == 0) {
+                placement.idleSinceNanos = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Read exactly one frame, leaving every later byte unread
+     * @param in Client input
+     * @return Frame with its length header
+     * @throws IOException Network exception or invalid frame length
+     */
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        int first = in.readUnsignedByte();
+        int second = (first & 0x80) != 0 ? in.readUnsignedByte() : 0;
+        int headerSize = (first & 0x80) != 0 ? 2 : 1;
+        int length = (first & 0x7F) | second << 7;
+        if (length == 0 || length > FrameCodec.MAX_FRAME_SIZE) throw new IOException("Invalid frame length: " + length);
+        byte[] frame = new byte[headerSize + length];
+        frame[0] = (byte) first;
+        if (headerSize == 2) frame[1] = (byte) second;
+        in.readFully(frame, headerSize, length);
+        return frame;
+    }
+
+    /**
+     * Find the game a first frame belongs to
+     * @param first Client's NAME, WATCH or RESUME
+     * @return Game ID, which is also the room ID on its node
+     * @throws IOException Any other first frame
+     */
+    private int gameIdOf(GameData first) throws IOException {
+        switch (first.getCommand()) {
+            case NAME:
+                return pairGame(first);
+            case WATCH:
+                return first.getRow() != 0 ? first.getRow() : lastGameId;
+            case RESUME:
+                return roomIdOfToken(first.getPlayerName());
+            default:
+                throw new IOException("Expected NAME, RESUME or WATCH, got " + first.getCommand());
+        }
+    }
+
+    /**
+     * Give a player the game opened by the last player of the same variant, or open a new one
+     * A game is only offered for the pairing window: after it, its node gives the first player a computer opponent
+     * @param name Player's NAME with the requested variant
+     * @return Game ID
+     */
+    private int pairGame(GameData name) {
+        int size = name.getBoardSize() != 0 ? name.getBoardSize() : Board.DEFAULT_SIZE;
+        int winLength = name.getWinLength() != 0 ? name.getWinLength() : Board.DEFAULT_WIN_LENGTH;
+        long variant = (long) size << 32 | winLength;
+        long now = System.nanoTime();
+        pairingLock.lock();
+        try {
+            OpenGame open = openGames.remove(variant);
+            if (open != null && now - open.openedNanos < pairingWindowNanos) {
+                pairedGames.put(open.gameId, now);
+                return open.gameId;
+            }
+            int gameId;
+            do {
+                gameId = nextGameId.incrementAndGet() & Integer.MAX_VALUE;
+            } while (gameId == 0);
+            openGames.put(variant, new OpenGame(gameId, now));
+            lastGameId = gameId;
+            return gameId;
+        } finally {
+            pairingLock.unlock();
+        }
+    }
+
+    /**
+     * Answer a node that wants to give a lone player a computer opponent: the game stops being offered, unless a
+     * second player has already been sent to it
+     * @param claim ROUTE frame from the node, game ID as row
+     * @param out Node's connection
+     * @throws IOException The answer cannot be sent
+     */
+    private void answerClaim(GameData claim, OutputStream out) throws IOException {
+        int gameId = claim.getRow();
+        boolean mayFill;
+        pairingLock.lock();
+        try {
+            mayFill = !pairedGames.containsKey(gameId);
+            if (mayFill) openGames.values().removeIf(open -> open.gameId == gameId);
+        } finally {
+            pairingLock.unlock();
+        }
+        ByteBuffer answer = ByteBuffer.allocate(FrameCodec.MAX_ENCODED_SIZE);
+        FrameCodec.encodeFrame(new GameData(GameData.Command.ROUTE, "", mayFill ? 1 : 0, ROUTE_CLAIM, 0, 0, 0), answer);
+        out.write(answer.array(), 0, answer.position());
+    }
+
+    /**
+     * Read the room ID a session token starts with (see TicTacToeServer.issueSessionToken)
+     * @param token Session token from a RESUME
+     * @return Room ID, or 0 for a token without one (the node it lands on rejects it)
+     */
+    private static int roomIdOfToken(String token) {
+        int dash = token == null ? -1 : token.indexOf('-');
+        try {
+            return dash > 0 ? Integer.parseInt(token.substring(0, dash)) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Get the node a game is pinned to, pinning it to its owner on the ring if it is not pinned yet
+     * @param gameId Game ID
+     * @return Placement, or null if no node is reachable
+     */
+    private Placement placementOf(int gameId) {
+        Placement placement = placements.get(gameId);
+        if (placement != null) return placement;
+        String node = ring.nodeFor(gameId);
+        if (node == null) return null;
+        return placements.computeIfAbsent(gameId, id -> new Placement(node));
+    }
+
+    /**
+     * Open a connection to a node and complete the handshake at the version the client negotiated
+     * @param node Node as host:port
+     * @param version Protocol version agreed with the client
+     * @return Connected socket
+     * @throws IOException Node unreachable or speaking another version
+     */
+    private static Socket connectNode(String node, int version) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(addressOf(node), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+            ByteBuffer handshake = ByteBuffer.allocate(GameDataCodec.HANDSHAKE_SIZE);
+            GameDataCodec.writeHandshake(handshake, version);
+            socket.getOutputStream().write(handshake.array());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] reply = new byte[GameDataCodec.HANDSHAKE_SIZE];
+            in.readFully(reply);
+            if (GameDataCodec.readHandshake(reply) != version) throw new IOException("Node speaks another protocol version");
+            if (version >= GameDataCodec.TRACE_VERSION) in.readLong(); // The node's clock, clients got the router's
+            socket.setSoTimeout(0);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copy bytes from one socket to the other until either closes, then close both
+     * @param from Source
+     * @param to Destination
+     */
+    private void relay(Socket from, Socket to) {
+        try (InputStream in = from.getInputStream()) {
+            in.transferTo(to.getOutputStream()); // Writes each chunk as it arrives, sockets have no output buffer
+        } catch (IOException ignored) {
+            // Either side went away
+        } finally {
+            closeQuietly(from);
+            closeQuietly(to);
+        }
+    }
+
+    /**
+     * Apply a node's join or leave and acknowledge it with the number of nodes on the ring
+     * @param route ROUTE frame from the node
+     * @param out Node's connection
+     * @throws IOException Unknown change or the acknowledgement cannot be sent
+     */
+    private void changeMembership(GameData route, OutputStream out) throws IOException {
+        String node = route.getPlayerName();
+        if (route.getCol() == ROUTE_JOIN) addNode(node);
+        else if (route.getCol() == ROUTE_LEAVE) removeNode(node);
+        else throw new IOException("Unexpected ROUTE from " + node);
+        ByteBuffer ack = ByteBuffer.allocate(FrameCodec.MAX_ENCODED_SIZE);
+        FrameCodec.encodeFrame(new GameData(GameData.Command.ROUTE, node, ring.getNodes().size(), route.getCol(), 0, 0, 0), ack);
+        out.write(ack.array(), 0, ack.position());
+    }
+
+    /**
+     * Tell a client there is nowhere to play with EXIT
+     * @param out Client's connection
+     * @throws IOException Network exception
+     */
+    private static void turnAway(OutputStream out) throws IOException {
+        ByteBuffer exit = ByteBuffer.allocate(FrameCodec.MAX_ENCODED_SIZE);
+        FrameCodec.encodeFrame(new GameData(GameData.Command.EXIT, "", 0, 0, 0, 0, 0), exit);
+        out.write(exit.array(), 0, exit.position());
+    }
+
+    /**
+     * Put unreachable nodes that answer again back on the ring, release pins idle for longer than PIN_GRACE_MS and
+     * forget pairings older than the pairing window, run every PROBE_INTERVAL_MS on the timer
+     */
+    private void maintain() {
+        List<String> probes;
+        membershipLock.lock();
+        try {
+            probes = new ArrayList<>(unreachable);
+        } finally {
+            membershipLock.unlock();
+        }
+        for (String node : probes) {
+            try (Socket probe = new Socket()) {
+                probe.connect(addressOf(node), CONNECT_TIMEOUT_MS);
+                addNode(node);
+            } catch (IOException ignored) {
+                // Still down
+            }
+        }
+        long now = System.nanoTime();
+        for (Map.Entry<Integer, Placement> placed : placements.entrySet()) {
+            Placement placement = placed.getValue();
+            if (placement.connections.get() == 0
+                    && TimeUnit.NANOSECONDS.toMillis(now - placement.idleSinceNanos) > PIN_GRACE_MS
+                    && placements.remove(placed.getKey(), placement)
+                    && placement.connections.get() > 0) {
+                placements.putIfAbsent(placed.getKey(), placement); // A connection attached meanwhile
+            }
+        }
+        pairingLock.lock();
+        try {
+            // A second player that has not reached its node by now never will; the node may fill the game
+            pairedGames.values().removeIf(pairedNanos -> now - pairedNanos > pairingWindowNanos);
+        } finally {
+            pairingLock.unlock();
+        }
+    }
+
+    /**
+     * Ask a router whether a lone player's game may get a computer opponent, called by nodes
+     * @param router Router's admin port as host:port
+     * @param gameId Game ID the router gave the player
+     * @return true if no second player has been sent to the game, which the router no longer offers
+     * @throws IOException Router unreachable
+     */
+    public static boolean claim(String router, int gameId) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(addressOf(router), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+            BinaryMessageStream stream = BinaryMessageStream.connect(socket);
+            stream.write(new GameData(GameData.Command.ROUTE, "", gameId, ROUTE_CLAIM, 0, 0, 0));
+            return stream.read().getRow() == 1;
+        }
+    }
+
+    /**
+     * Tell a router that a node joins or leaves the cluster, called by nodes
+     * @param router Router's admin port as host:port
+     * @param node This node as host:port, as the router should connect to it
+     * @param change ROUTE_JOIN or ROUTE_LEAVE
+     * @return Number of nodes on the router's ring afterwards
+     * @throws IOException Router unreachable
+     */
+    public static int announce(String router, String node, int change) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(addressOf(router), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+            BinaryMessageStream stream = BinaryMessageStream.connect(socket);
+            stream.write(new GameData(GameData.Command.ROUTE, node, 0, change, 0, 0, 0));
+            return stream.read().getRow();
+        }
+    }
+
+    /**
+     * Parse a host:port address
+     * @param address Address as host:port
+     * @return Socket address
+     * @throws IOException Missing or invalid port
+     */
+    private static InetSocketAddress addressOf(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        try {
+            return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid address, expected host:port: " + address);
+        }
+    }
+
+    /**
+     * Close a socket, ignoring errors
+     * @param socket Socket to close
+     */
+    private void closeQuietly(Socket socket) {
+        openSockets.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Game waiting for its second player
+     */
+    private static final class OpenGame {
+        final int gameId;
+        final long openedNanos;
+
+        OpenGame(int gameId, long openedNanos) {
+            this.gameId = gameId;
+            this.openedNanos = openedNanos;
+        }
+    }
+
+    /**
+     * Node a game is pinned to, with the connections routed to it
+     */
+    private static final class Placement {
+        final String node;
+        final AtomicInteger connections = new AtomicInteger();
+        volatile long idleSinceNanos = System.nanoTime(); // Since the last connection closed
+
+        Placement(String node) {
+            this.node = node;
+        }
+    }
+
+    /**
+     * Main method: start a router
+     * @param args --port=N (default 8888), --bind=ADDRESS (default all interfaces), --admin-port=N (default 8889),
+     *             --admin-bind=ADDRESS (default 127.0.0.1), --nodes=host:port,... (default none, nodes join with
+     *             TicTacToeServer --join)
+     */
+    public static void main(String[] args) {
+        int port = 8888;
+        String bind = "";
+        int adminPort = 8889;
+        String adminBind = "127.0.0.1";
+        List<String> nodes = new ArrayList<>();
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--port=")) port = Integer.parseInt(arg.substring(7));
+                else if (arg.startsWith("--bind=")) bind = arg.substring(7);
+                else if (arg.startsWith("--admin-port=")) adminPort = Integer.parseInt(arg.substring(13));
+                else if (arg.startsWith("--admin-bind=")) adminBind = arg.substring(13);
+                else if (arg.startsWith("--nodes=")) nodes.addAll(Arrays.asList(arg.substring(8).split(",")));
+                else throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            new ClusterRouter(bind, port, adminBind, adminPort, nodes).start();
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println("Usage: java ClusterRouter [--port=N] [--bind=ADDRESS] [--admin-port=N] [--admin-bind=ADDRESS]"
+                    + " [--nodes=host:port,host:port...]");
+            System.exit(2);
+        }
+    }
+}
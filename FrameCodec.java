@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Length-prefixed framing of binary GameData messages on a byte stream
+ * Each frame is a varint payload length (1 byte for every normal message) followed by one GameDataCodec message
+ * @author Chen Junliang
+ */
+public final class FrameCodec {
+    /** Largest payload accepted from a peer, anything bigger is treated as a protocol error */
+    public static final int MAX_FRAME_SIZE = 1024;
+    /** Largest length prefix for a frame of MAX_FRAME_SIZE */
+    public static final int MAX_HEADER_SIZE = 2;
+    /** Buffer size that always fits one encoded frame */
+    public static final int MAX_ENCODED_SIZE = MAX_HEADER_SIZE + MAX_FRAME_SIZE;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Encode one frame at the buffer's position
+     * A one-byte length is reserved up front; the rare frame of 128+ bytes is shifted right to fit a two-byte length
+     * @param data Game data to encode
+     * @param buffer Destination buffer, advanced past the frame
+     * @throws IOException Message cannot be encoded
+     */
+    public static void encodeFrame(GameData data, ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        buffer.position(start + 1);
+        GameDataCodec.encode(data, buffer);
+        int end = buffer.position();
+        int length = end - start - 1;
+        if (length > MAX_FRAME_SIZE) {
+            throw new IOException("Frame too large: " + length);
+        }
+        if (length < 0x80) {
+            buffer.put(start, (byte) length);
+            return;
+        }
+        for (int i = end - 1; i > start; i--) {
+            buffer.put(i + 1, buffer.get(i));
+        }
+        buffer.put(start, (byte) ((length & 0x7F) | 0x80));
+        buffer.put(start + 1, (byte) (length >>> 7));
+        buffer.position(end + 1);
+    }
+
+    /**
+     * Consume the header of the next frame if the whole frame is available
+     * @param buffer Buffer positioned at a frame boundary
+     * @return Payload length with the buffer advanced to the payload, or -1 (buffer unchanged) if the frame is incomplete
+     * @throws IOException Invalid frame length
+     */
+    public static int readFrameHeader(ByteBuffer buffer) throws IOException {
+        int position = buffer.position();
+        int remaining = buffer.remaining();
+        if (remaining < 1) return -1;
+        int first = buffer.get(position) & 0xFF;
+        int length = first & 0x7F;
+        int headerSize = 1;
+        if ((first & 0x80) != 0) {
+            if (remaining < 2) return -1;
+            int second = buffer.get(position + 1) & 0xFF;
+            if ((second & 0x80) != 0) throw new IOException("Invalid frame header");
+            length |= second << 7;
+            headerSize = 2;
+        }
+        if (length == 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if (remaining < headerSize + length) return -1;
+        buffer.position(position + headerSize);
+        return length;
+    }
+
+    /**
+     * Decode exactly one payload of a known length
+     * @param buffer Buffer positioned at the payload, advanced past it
+     * @param length Payload length returned by readFrameHeader
+     * @return Decoded game data
+     * @throws IOException Malformed payload, including any payload the decoder fails on
+     */
+    public static GameData decodePayload(ByteBuffer buffer, int length) throws IOException {
+        int limit = buffer.limit();
+        int end = buffer.position() + length;
+        buffer.limit(end);
+        try {
+            GameData data = GameDataCodec.decode(buffer);
+            if (buffer.position() != end) throw new IOException("Trailing bytes in frame");
+            return data;
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed frame: " + e, e); // Callers drop the peer on IOException only
+        } finally {
+            buffer.limit(limit);
+            buffer.position(end);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+/**
+ * Move search for the computer opponent
+ * The classic 3×3 game is solved once, at first use: every reachable position's exact score and best move go into a
+ * symmetry-canonicalized transposition table, so each move afterwards is a single table lookup. Larger boards use
+ * iterative-deepening alpha-beta over cells next to existing marks, with a transposition table and a per-move time
+ * budget; the deepest completed iteration decides the move.
+ * @author Chen Junliang
+ */
+public class GameAi {
+    /** Score of a won position, reduced by the number of plies needed so faster wins score higher */
+    public static final int WIN_SCORE = 1_000_000;
+
+    private static final int INFINITY = WIN_SCORE + 1;
+    private static final int WIN_THRESHOLD = WIN_SCORE - 1000; // Scores beyond this are forced wins or losses
+    private static final int SOLVED_DEPTH = 255; // Depth stored with exact scores of the solved classic game
+    private static final int CLASSIC_TABLE_BITS = 12; // Fits the ~600 canonical in-progress classic positions
+    private static final int SEARCH_TABLE_BITS = 16;
+    private static final int MAX_DEPTH = 64;
+    private static final int DEADLINE_CHECK_MASK = 1023; // Read the clock every 1024 nodes
+    private static final int ALL_CELLS_MAX_SIZE = 5; // Boards up to this size consider every empty cell
+    private static final int[] DIRECTION_ROWS = {0, 1, 1, 1};
+    private static final int[] DIRECTION_COLS = {1, 0, 1, -1};
+
+    private final int size;
+    private final int winLength;
+    private final Zobrist zobrist;
+    private final TranspositionTable table;
+    private final int[] windowWeights; // Evaluation weight of a k-cell window holding n marks of one player only
+    private boolean isSolved; // Table holds exact results for every reachable position; then the instance is read-only
+
+    // Search scratch, only touched by the thread running chooseMove
+    private final Board board;
+    private final long[] hashes = new long[Zobrist.SYMMETRIES];
+    private final int[][] moveBuffers;
+    private long deadlineNanos;
+    private long nodes;
+    private boolean isAborted;
+    private int rootBestMove;
+
+    /**
+     * Holder so the classic game is solved on first use and published safely by class initialization
+     */
+    private static final class Classic {
+        static final GameAi SOLVED = solveClassic();
+    }
+
+    /**
+     * Create a searcher with an empty table
+     * @param size Board width and height
+     * @param winLength Marks in a row needed to win
+     * @param tableBits Log2 of the transposition table size
+     */
+    private GameAi(int size, int winLength, int tableBits) {
+        this.size = size;
+        this.winLength = winLength;
+        this.zobrist = Zobrist.forSize(size);
+        this.table = new TranspositionTable(tableBits);
+        this.board = new Board(size, winLength);
+        this.moveBuffers = new int[MAX_DEPTH + 1][size * size];
+        this.windowWeights = new int[winLength + 1];
+        for (int n = 1; n <= winLength; n++) {
+            windowWeights[n] = 1 << (3 * Math.min(n - 1, 6));
+        }
+    }
+
+    /**
+     * Get the shared solver of the classic 3×3 game, solving it on the first call
+     * @return Read-only solver, safe to use from any number of threads
+     */
+    public static GameAi classic() {
+        return Classic.SOLVED;
+    }
+
+    /**
+     * Get a searcher for a board variant
+     * @param size Board width and height
+     * @param winLength Marks in a row needed to win
+     * @return The shared classic solver, or a new searcher owned by the caller
+     */
+    public static GameAi forVariant(int size, int winLength) {
+        if (size == Board.DEFAULT_SIZE && winLength == Board.DEFAULT_WIN_LENGTH) return classic();
+        return new GameAi(size, winLength, SEARCH_TABLE_BITS);
+    }
+
+    /**
+     * Solve the classic game from the empty board
+     * @return Solver whose table covers every reachable in-progress position
+     */
+    private static GameAi solveClassic() {
+        GameAi ai = new GameAi(Board.DEFAULT_SIZE, Board.DEFAULT_WIN_LENGTH, CLASSIC_TABLE_BITS);
+        ai.zobrist.hashAll(ai.board, ai.hashes);
+        ai.solve(0, 1);
+        ai.isSolved = true;
+        return ai;
+    }
+
+    /**
+     * Exact negamax over the whole game tree without pruning, storing every in-progress position
+     * @param ply Moves played so far
+     * @param playerId Player to move
+     * @return Exact score from the side to move
+     */
+    private int solve(int ply, int playerId) {
+        int symmetry = Zobrist.canonicalSymmetry(hashes);
+        long key = hashes[symmetry];
+        long entry = table.probe(key);
+        if (entry != TranspositionTable.MISS) return fromTable(TranspositionTable.score(entry), ply);
+
+        int best = -INFINITY;
+        int bestMove = -1;
+        for (int cell = 0; cell < size * size; cell++) {
+            int row = cell / size;
+            int col = cell % size;
+            if (!board.isEmpty(row, col)) continue;
+            board.place(row, col, playerId);
+            zobrist.toggle(hashes, cell, playerId);
+            int score;
+            if (board.isWinningMove(row, col)) score = WIN_SCORE - ply - 1;
+            else if (board.isFull()) score = 0;
+            else score = -solve(ply + 1, 3 - playerId);
+            zobrist.toggle(hashes, cell, playerId);
+            board.remove(row, col);
+            if (score > best) {
+                best = score;
+                bestMove = cell;
+            }
+        }
+        table.store(key, TranspositionTable.pack(toTable(best, ply), SOLVED_DEPTH, TranspositionTable.EXACT,
+                zobrist.transform(symmetry, bestMove)));
+        return best;
+    }
+
+    /**
+     * Choose a move for the side to move
+     * The classic solver answers from its table; other searchers take up to the time budget
+     * @param position Current position, not modified (game must be in progress)
+     * @param playerId Player to move (1 or 2)
+     * @param budgetNanos Time allowed for the search
+     * @return Cell index row * size + col of an empty cell
+     */
+    public int chooseMove(Board position, int playerId, long budgetNanos) {
+        return chooseMove(position, playerId, budgetNanos, isSolved ? new long[Zobrist.SYMMETRIES] : null);
+    }
+
+    /**
+     * Choose a move for the side to move, hashing a classic lookup into the caller's buffer
+     * The classic solver is shared by every computer player, so each caller keeps its own buffer and lookups allocate
+     * nothing
+     * @param position Current position, not modified (game must be in progress)
+     * @param playerId Player to move (1 or 2)
+     * @param budgetNanos Time allowed for the search
+     * @param positionHashes Zobrist.SYMMETRIES longs owned by the calling thread, only used by the classic solver
+     * @return Cell index row * size + col of an empty cell
+     */
+    public int chooseMove(Board position, int playerId, long budgetNanos, long[] positionHashes) {
+        if (isSolved) {
+            zobrist.hashAll(position, positionHashes);
+            int symmetry = Zobrist.canonicalSymmetry(positionHashes);
+            long entry = table.probe(positionHashes[symmetry]);
+            if (entry != TranspositionTable.MISS) {
+                return zobrist.inverse(symmetry, TranspositionTable.move(entry));
+            }
+            // Not reachable in a legal game; search it with a private searcher instead
+            return new GameAi(size, winLength, SEARCH_TABLE_BITS).chooseMove(position, playerId, budgetNanos);
+        }
+
+        board.reset();
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < size; col++) {
+                int owner = position.getCell(row, col);
+                if (owner != 0) board.place(row, col, owner);
+            }
+        }
+        zobrist.hashAll(board, hashes);
+
+        // Take a win, or block the opponent's, without searching
+        int forced = findWinningCell(playerId);
+        if (forced < 0) forced = findWinningCell(3 - playerId);
+        if (forced >= 0) return forced;
+
+        deadlineNanos = System.nanoTime() + budgetNanos;
+        isAborted = false;
+        nodes = 0;
+        generateMoves(0, -1);
+        int bestMove = moveBuffers[0][0]; // Fallback if not even depth 1 completes
+        int emptyCells = size * size - board.getMoveCount();
+        for (int depth = 1; depth <= Math.min(MAX_DEPTH, emptyCells); depth++) {
+            int score = negamax(depth, -INFINITY, INFINITY, 0, playerId);
+            if (isAborted) break;
+            bestMove = rootBestMove;
+            if (Math.abs(score) >= WIN_THRESHOLD) break; // Result is forced, deeper search cannot change it
+        }
+        return bestMove;
+    }
+
+    /**
+     * Find a cell that completes k in a row for a player on the scratch board
+     * @param playerId Player ID (1 or 2)
+     * @return Winning cell, or -1 if none
+     */
+    private int findWinningCell(int playerId) {
+        for (int cell = 0; cell < size * size; cell++) {
+            int row = cell / size;
+            int col = cell % size;
+            if (!board.isEmpty(row, col)) continue;
+            board.place(row, col, playerId);
+            boolean isWin = board.isWinningMove(row, col);
+            board.remove(row, col);
+            if (isWin) return cell;
+        }
+        return -1;
+    }
+
+    /**
+     * Depth-limited negamax with alpha-beta pruning and the transposition table
+     * @param depth Remaining plies to search
+     * @param alpha Lower bound of the search window
+     * @param beta Upper bound of the search window
+     * @param ply Plies from the root
+     * @param playerId Player to move
+     * @return Score from the side to move, meaningless once isAborted is set
+     */
+    private int negamax(int depth, int alpha, int beta, int ply, int playerId) {
+        if ((++nodes & DEADLINE_CHECK_MASK) == 0 && System.nanoTime() > deadlineNanos) isAborted = true;
+        if (isAborted) return 0;
+
+        int alphaOrig = alpha;
+        int symmetry = Zobrist.canonicalSymmetry(hashes);
+        long key = hashes[symmetry];
+        long entry = table.probe(key);
+        int tableMove = -1;
+        if (entry != TranspositionTable.MISS) {
+            int move = TranspositionTable.move(entry);
+            if (move >= 0) tableMove = zobrist.inverse(symmetry, move);
+            if (ply > 0 && TranspositionTable.depth(entry) >= depth) {
+                int score = fromTable(TranspositionTable.score(entry), ply);
+                int bound = TranspositionTable.bound(entry);
+                if (bound == TranspositionTable.EXACT) return score;
+                if (bound == TranspositionTable.LOWER) alpha = Math.max(alpha, score);
+                else beta = Math.min(beta, score);
+                if (alpha >= beta) return score;
+            }
+        }
+        if (depth == 0) return evaluate(playerId);
+
+        int count = generateMoves(ply, tableMove);
+        if (count == 0) return 0;
+        int[] moves = moveBuffers[ply];
+        int best = -INFINITY;
+        int bestMove = moves[0];
+        for (int i = 0; i < count; i++) {
+            int cell = moves[i];
+            int row = cell / size;
+            int col = cell % size;
+            board.place(row, col, playerId);
+            zobrist.toggle(hashes, cell, playerId);
+            int score;
+            if (board.isWinningMove(row, col)) score = WIN_SCORE - ply - 1;
+            else if (board.isFull()) score = 0;
+            else score = -negamax(depth - 1, -beta, -alpha, ply + 1, 3 - playerId);
+            zobrist.toggle(hashes, cell, playerId);
+            board.remove(row, col);
+            if (isAborted) return 0;
+            if (score > best) {
+                best = score;
+                bestMove = cell;
+            }
+            if (best > alpha) alpha = best;
+            if (alpha >= beta) break;
+        }
+        if (ply == 0) rootBestMove = bestMove;
+        int bound = best <= alphaOrig ? TranspositionTable.UPPER
+                : best >= beta ? TranspositionTable.LOWER : TranspositionTable.EXACT;
+        table.store(key, TranspositionTable.pack(toTable(best, ply), depth, bound, zobrist.transform(symmetry, bestMove)));
+        return best;
+    }
+
+    /**
+     * Fill the move buffer of a ply with candidate cells: the table move first, then empty cells touching a mark
+     * ordered by how many marks they touch (every empty cell on small boards, the centre on an empty board)
+     * @param ply Plies from the root, selects the buffer
+     * @param tableMove Best move remembered for this position, or -1
+     * @return Number of candidates
+     */
+    private int generateMoves(int ply, int tableMove) {
+        int[] moves = moveBuffers[ply];
+        if (board.getMoveCount() == 0) {
+            moves[0] = (size / 2) * size + size / 2;
+            return 1;
+        }
+        int count = 0;
+        if (tableMove >= 0 && !board.isEmpty(tableMove / size, tableMove % size)) tableMove = -1; // Key collision
+        if (tableMove >= 0) moves[count++] = tableMove;
+        int first = count;
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < size; col++) {
+                int cell = row * size + col;
+                if (cell == tableMove || !board.isEmpty(row, col)) continue;
+                int touching = countNeighbours(row, col);
+                if (touching == 0 && size > ALL_CELLS_MAX_SIZE) continue;
+                // Insertion by neighbour count, packed above the cell index so one int compare orders both
+                int keyed = (touching << 16) | cell;
+                int i = count++;
+                while (i > first && moves[i - 1] < keyed) {
+                    moves[i] = moves[i - 1];
+                    i--;
+                }
+                moves[i] = keyed;
+            }
+        }
+        for (int i = first; i < count; i++) {
+            moves[i] &= 0xFFFF;
+        }
+        return count;
+    }
+
+    /**
+     * Count the marks in the 8 cells around a cell
+     * @param row Row index
+     * @param col Column index
+     * @return Number of neighbouring marks
+     */
+    private int countNeighbours(int row, int col) {
+        int count = 0;
+        for (int r = row - 1; r <= row + 1; r++) {
+            for (int c = col - 1; c <= col + 1; c++) {
+                if (board.isInside(r, c) && !board.isEmpty(r, c)) count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Static evaluation: every k-cell window that only one player has marks in counts for that player, weighted
+     * steeply by how many marks it already holds
+     * @param playerId Player to move
+     * @return Score from the side to move, kept inside the non-forced range
+     */
+    private int evaluate(int playerId) {
+        long total = 0;
+        for (int d = 0; d < DIRECTION_ROWS.length; d++) {
+            int dr = DIRECTION_ROWS[d];
+            int dc = DIRECTION_COLS[d];
+            for (int row = 0; row < size; row++) {
+                for (int col = 0; col < size; col++) {
+                    if (!board.isInside(row + (winLength - 1) * dr, col + (winLength - 1) * dc)) continue;
+                    int p1 = 0;
+                    int p2 = 0;
+                    for (int i = 0; i < winLength; i++) {
+                        int owner = board.getCell(row + i * dr, col + i * dc);
+                        if (owner == 1) p1++;
+                        else if (owner == 2) p2++;
+                    }
+                    if (p2 == 0) total += windowWeights[p1];
+                    else if (p1 == 0) total -= windowWeights[p2];
+                }
+            }
+        }
+        long score = playerId == 1 ? total : -total;
+        return (int) Math.max(-(WIN_THRESHOLD - 1), Math.min(WIN_THRESHOLD - 1, score));
+    }
+
+    /**
+     * Convert a forced-result score from root-relative to node-relative before storing it
+     * @param score Score relative to the root
+     * @param ply Plies from the root
+     * @return Score relative to this node
+     */
+    private static int toTable(int score, int ply) {
+        if (score >= WIN_THRESHOLD) return score + ply;
+        if (score <= -WIN_THRESHOLD) return score - ply;
+        return score;
+    }
+
+    /**
+     * Convert a stored forced-result score back to root-relative
+     * @param score Score relative to the stored node
+     * @param ply Plies from the root
+     * @return Score relative to the root
+     */
+    private static int fromTable(int score, int ply) {
+        if (score >= WIN_THRESHOLD) return score - ply;
+        if (score <= -WIN_THRESHOLD) return score + ply;
+        return score;
+    }
+
+    /**
+     * Get the number of nodes visited by the last search
+     * @return Node count
+     */
+    public long getNodes() {
+        return nodes;
+    }
+}
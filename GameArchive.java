@@ -0,0 +1,607 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Compact archive of every completed game's move sequence, for offline analytics
+ * Player 1 always moves first and the players alternate, so a game is its cells in order plus the result. A classic
+ * game is a header byte and one 4-bit cell index per move, at most 6 bytes; a larger board stores each cell as a
+ * zigzag varint delta from the previous one, starting from the centre, so nearby moves take one byte.
+ * Rooms encode a finished game and hand it to append(), which only queues it; one writer thread packs the queue into
+ * CRC-checked blocks of up to BLOCK_BYTES and writes each batch with one FileChannel.write. Each open writes to a new
+ * numbered segment, so a torn block can only be the last of a segment, and replay stops there. The game log remains
+ * the durable record; the archive is forced at segment ends and on close.
+ * replay() maps the segments and replays the blocks through the board's win rules in parallel on a ForkJoinPool,
+ * rebuilding results and length statistics, and counts every game whose stored result the rules disagree with.
+ * Usage: java GameArchive [directory] [threads]
+ * @author Chen Junliang
+ */
+public class GameArchive {
+    /** System property with the archive directory; "none" disables the archive */
+    public static final String DIR_PROPERTY = "tictactoe.archive.dir";
+    /** System property with the segment size limit in bytes */
+    public static final String SEGMENT_BYTES_PROPERTY = "tictactoe.archive.segmentBytes";
+    /** System property with the longest time in milliseconds a game waits in memory before it is written */
+    public static final String FLUSH_MS_PROPERTY = "tictactoe.archive.flushMs";
+    /** Winner ID of a drawn game */
+    public static final int DRAW = 0;
+
+    private static final String DEFAULT_DIR = "archive";
+    private static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final long DEFAULT_FLUSH_MS = 1000;
+    private static final String SEGMENT_PREFIX = "archive-";
+    private static final String SEGMENT_SUFFIX = ".gar";
+    private static final int BLOCK_HEADER_SIZE = 12; // Body length, game count and CRC32 of the body
+    private static final int BLOCK_BYTES = 16 * 1024; // Largest block body; larger length fields mean a torn write
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_CELLS = Board.MAX_SIZE * Board.MAX_SIZE;
+    private static final int VARIANT_FLAG = 0x80; // Header bit: size, win length and a varint count follow
+    private static final int LEAF_BLOCKS = 8; // Blocks one replay task handles without splitting further
+    private static final byte[] WAKE = new byte[0]; // Queued by close() so the writer stops waiting for a batch
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long flushNanos;
+    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE); // Writer thread only
+    private final CRC32 crc = new CRC32(); // Writer thread only
+    private final Thread writer;
+    private volatile boolean isOpen = true;
+    private FileChannel segment; // Writer thread only; null until the first block after an open or a roll-over
+    private int segmentNumber; // Number of the current segment, or of the last existing one before the first write
+    private int blockStart; // Position of the open block's header in the write buffer
+    private int blockGames; // Games in the open block, 0 if no block is open
+
+    /**
+     * Results, lengths and rule mismatches rebuilt by a replay
+     */
+    public static final class Stats {
+        private long games;
+        private long moves;
+        private long p1Wins;
+        private long p2Wins;
+        private long draws;
+        private long mismatches;
+        private long corruptBlocks;
+        private final long[] lengths = new long[MAX_CELLS + 1]; // Games by move count
+
+        /**
+         * Get the number of games replayed
+         * @return Games, mismatches included
+         */
+        public long getGames() { return games; }
+
+        /**
+         * Get the number of moves replayed
+         * @return Moves over all games
+         */
+        public long getMoves() { return moves; }
+
+        /**
+         * Get the number of games player 1 won
+         * @return Wins of the first mover
+         */
+        public long getP1Wins() { return p1Wins; }
+
+        /**
+         * Get the number of games player 2 won
+         * @return Wins of the second mover
+         */
+        public long getP2Wins() { return p2Wins; }
+
+        /**
+         * Get the number of drawn games
+         * @return Draws
+         */
+        public long getDraws() { return draws; }
+
+        /**
+         * Get the number of games whose stored result the win rules disagree with, or that hold an illegal move
+         * @return Mismatching games, not counted as wins or draws
+         */
+        public long getMismatches() { return mismatches; }
+
+        /**
+         * Get the number of blocks skipped because their checksum failed or they did not decode
+         * @return Corrupt blocks
+         */
+        public long getCorruptBlocks() { return corruptBlocks; }
+
+        /**
+         * Get the number of games of a given length
+         * @param moveCount Moves in the game
+         * @return Games with exactly that many moves
+         */
+        public long getLengthCount(int moveCount) {
+            return moveCount >= 0 && moveCount < lengths.length ? lengths[moveCount] : 0;
+        }
+
+        /**
+         * Add another replay's counts to these
+         * @param other Counts of a disjoint set of blocks
+         * @return This object
+         */
+        Stats merge(Stats other) {
+            games += other.games;
+            moves += other.moves;
+            p1Wins += other.p1Wins;
+            p2Wins += other.p2Wins;
+            draws += other.draws;
+            mismatches += other.mismatches;
+            corruptBlocks += other.corruptBlocks;
+            for (int i = 0; i < lengths.length; i++) {
+                lengths[i] += other.lengths[i];
+            }
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return games + " games, " + moves + " moves, " + p1Wins + "/" + p2Wins + "/" + draws + " X/O/draw, "
+                    + mismatches + " mismatches, " + corruptBlocks + " corrupt blocks";
+        }
+    }
+
+    /**
+     * Open an archive directory and start the writer thread; the first block written starts a new segment
+     * @param directory Archive directory, created if missing
+     * @param segmentBytes Size after which the writer starts a new segment
+     * @param flushMillis Longest time a queued game waits before its block is written
+     * @throws IOException Directory cannot be created or read
+     */
+    public GameArchive(Path directory, long segmentBytes, long flushMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        Files.createDirectories(directory);
+        List<Path> segments = listSegments(directory);
+        segmentNumber = segments.isEmpty() ? 0 : segmentNumber(segments.get(segments.size() - 1));
+        writer = new Thread(this::writeLoop, "game-archive-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Open the archive configured by system properties, if enabled
+     * @return Open archive, or null if disabled or the directory cannot be used
+     */
+    public static GameArchive openFromSystemProperty() {
+        String dir = System.getProperty(DIR_PROPERTY, DEFAULT_DIR);
+        if (dir.equals("none")) return null;
+        try {
+            GameArchive archive = new GameArchive(Paths.get(dir), Long.getLong(SEGMENT_BYTES_PROPERTY, DEFAULT_SEGMENT_BYTES),
+                    Long.getLong(FLUSH_MS_PROPERTY, DEFAULT_FLUSH_MS));
+            System.out.println("Game archive at " + Paths.get(dir).toAbsolutePath());
+            return archive;
+        } catch (IOException e) {
+            System.out.println("Game archive not opened: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Encode a finished game and queue it for writing; never blocks and never touches the disk
+     * @param size Board width and height
+     * @param winLength Marks in a row needed to win
+     * @param cells Cell index (row * size + col) of each move, player 1's first
+     * @param moveCount Number of moves in cells
+     * @param winnerId Winner (1 or 2), or DRAW
+     */
+    public void append(int size, int winLength, int[] cells, int moveCount, int winnerId) {
+        if (isOpen) queue.add(encode(size, winLength, cells, moveCount, winnerId));
+    }
+
+    /**
+     * Encode one game
+     * @param size Board width and height
+     * @param winLength Marks in a row needed to win
+     * @param cells Cell index of each move, player 1's first
+     * @param moveCount Number of moves in cells
+     * @param winnerId Winner (1 or 2), or DRAW
+     * @return Header, then 4-bit cells for the classic board or varint cell deltas for any other
+     */
+    static byte[] encode(int size, int winLength, int[] cells, int moveCount, int winnerId) {
+        int header = (winnerId & 3) << 4;
+        if (size == Board.DEFAULT_SIZE && winLength == Board.DEFAULT_WIN_LENGTH) {
+            byte[] game = new byte[1 + (moveCount + 1) / 2];
+            game[0] = (byte) (header | moveCount);
+            for (int i = 0; i < moveCount; i++) {
+                game[1 + i / 2] |= (byte) (cells[i] << ((i & 1) * 4)); // Even moves in the low nibble
+            }
+            return game;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(3 + 3 + moveCount * 3); // Deltas stay within 3 varint bytes
+        buffer.put((byte) (VARIANT_FLAG | header));
+        buffer.put((byte) size);
+        buffer.put((byte) winLength);
+        putVarint(buffer, moveCount);
+        int previous = size * size / 2;
+        for (int i = 0; i < moveCount; i++) {
+            int delta = cells[i] - previous;
+            putVarint(buffer, (delta << 1) ^ (delta >> 31)); // Zigzag: small negative deltas stay small
+            previous = cells[i];
+        }
+        byte[] game = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(game);
+        return game;
+    }
+
+    /**
+     * Write an unsigned varint, seven bits per byte, low bits first
+     * @param buffer Destination
+     * @param value Non-negative value
+     */
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Read a varint written by putVarint
+     * @param buffer Source
+     * @return Value
+     * @throws IllegalArgumentException Longer than an int
+     */
+    private static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    /**
+     * Writer thread: gather queued games for up to the flush interval, pack them into blocks, one write per batch
+     */
+    private void writeLoop() {
+        try {
+            while (isOpen || !queue.isEmpty()) {
+                byte[] game = queue.poll(flushNanos, TimeUnit.NANOSECONDS);
+                if (game == null) continue;
+                long deadline = System.nanoTime() + flushNanos;
+                while (game != null) {
+                    if (game.length > 0) add(game);
+                    game = queue.poll();
+                    long wait = deadline - System.nanoTime();
+                    if (game == null && isOpen && wait > 0) game = queue.poll(wait, TimeUnit.NANOSECONDS);
+                }
+                finishBlock();
+                writeBuffered();
+                if (segment != null && segment.size() >= segmentBytes) {
+                    segment.force(false);
+                    segment.close();
+                    segment = null; // The next block starts the next segment
+                }
+            }
+            finishBlock();
+            writeBuffered();
+            if (segment != null) segment.force(false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Game archive writer stopped: " + e.getMessage());
+            isOpen = false;
+        }
+    }
+
+    /**
+     * Add one encoded game to the open block, finishing the block first if the game does not fit
+     * @param game Encoded game
+     * @throws IOException Write failure
+     */
+    private void add(byte[] game) throws IOException {
+        if (blockGames > 0 && writeBuffer.position() - blockStart - BLOCK_HEADER_SIZE + game.length > BLOCK_BYTES) {
+            finishBlock();
+        }
+        if (blockGames == 0) {
+            if (writeBuffer.remaining() < BLOCK_HEADER_SIZE + BLOCK_BYTES) writeBuffered();
+            blockStart = writeBuffer.position();
+            writeBuffer.position(blockStart + BLOCK_HEADER_SIZE);
+        }
+        writeBuffer.put(game);
+        blockGames++;
+    }
+
+    /**
+     * Fill in the header of the open block, if any
+     */
+    private void finishBlock() {
+        if (blockGames == 0) return;
+        int end = writeBuffer.position();
+        ByteBuffer body = writeBuffer.duplicate();
+        body.position(blockStart + BLOCK_HEADER_SIZE).limit(end);
+        crc.reset();
+        crc.update(body);
+        writeBuffer.putInt(blockStart, end - blockStart - BLOCK_HEADER_SIZE);
+        writeBuffer.putInt(blockStart + 4, blockGames);
+        writeBuffer.putInt(blockStart + 8, (int) crc.getValue());
+        blockGames = 0;
+    }
+
+    /**
+     * Write the finished blocks of the write buffer to the current segment, starting a new one if there is none
+     * @throws IOException Write or create failure
+     */
+    private void writeBuffered() throws IOException {
+        if (writeBuffer.position() == 0) return;
+        if (segment == null) openSegment(segmentNumber + 1);
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            segment.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    /**
+     * Create and open a new, empty segment
+     * @param number Segment number
+     * @throws IOException Create failure
+     */
+    private void openSegment(int number) throws IOException {
+        segmentNumber = number;
+        Path path = directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segment.position(segment.size());
+    }
+
+    /**
+     * Stop accepting games, write and force everything queued, and close the segment
+     */
+    public void close() {
+        isOpen = false;
+        queue.add(WAKE);
+        try {
+            writer.join();
+            if (segment != null) segment.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Get the archive directory
+     * @return Directory holding the segments
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * List the segment files of an archive directory in order
+     * @param directory Archive directory
+     * @return Segment paths, oldest first
+     * @throws IOException Directory cannot be read
+     */
+    private static List<Path> listSegments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) return segments;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments); // Zero-padded numbers sort by name
+        return segments;
+    }
+
+    /**
+     * Parse the number of a segment file
+     * @param segment Segment path
+     * @return Segment number
+     */
+    private static int segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Replay every game of an archive directory in parallel and rebuild its statistics
+     * Segments are mapped and split into blocks on the calling thread, reading only the length fields; checksums,
+     * decoding and the replay itself run on the pool. Each segment is read up to its first torn block.
+     * @param directory Archive directory
+     * @param pool Pool to replay on
+     * @return Statistics of every readable game
+     * @throws IOException Segment cannot be read
+     */
+    public static Stats replay(Path directory, ForkJoinPool pool) throws IOException {
+        List<ByteBuffer> blocks = new ArrayList<>();
+        for (Path path : listSegments(directory)) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // Outlives the channel
+                int position = 0;
+                while (mapped.limit() - position >= BLOCK_HEADER_SIZE) {
+                    int length = mapped.getInt(position);
+                    if (length <= 0 || length > BLOCK_BYTES || mapped.limit() - position - BLOCK_HEADER_SIZE < length) break;
+                    ByteBuffer block = mapped.duplicate();
+                    block.position(position).limit(position + BLOCK_HEADER_SIZE + length);
+                    blocks.add(block.slice());
+                    position += BLOCK_HEADER_SIZE + length;
+                }
+            }
+        }
+        return pool.invoke(new ReplayTask(blocks, 0, blocks.size()));
+    }
+
+    /**
+     * Replays a range of blocks, splitting it in halves down to LEAF_BLOCKS
+     */
+    private static final class ReplayTask extends RecursiveTask<Stats> {
+        private static final long serialVersionUID = 1L;
+        private final List<ByteBuffer> blocks;
+        private final int from;
+        private final int to;
+
+        /**
+         * Create a task for a range of blocks
+         * @param blocks All blocks, each a buffer holding header and body
+         * @param from First block of the range
+         * @param to End of the range (exclusive)
+         */
+        ReplayTask(List<ByteBuffer> blocks, int from, int to) {
+            this.blocks = blocks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Stats compute() {
+            if (to - from > LEAF_BLOCKS) {
+                int middle = (from + to) >>> 1;
+                ReplayTask left = new ReplayTask(blocks, from, middle);
+                left.fork();
+                Stats right = new ReplayTask(blocks, middle, to).compute();
+                return left.join().merge(right);
+            }
+            Stats stats = new Stats();
+            Replayer replayer = new Replayer();
+            CRC32 checksum = new CRC32();
+            for (int i = from; i < to; i++) {
+                ByteBuffer block = blocks.get(i).duplicate();
+                ByteBuffer body = block.duplicate();
+                body.position(BLOCK_HEADER_SIZE);
+                checksum.reset();
+                checksum.update(body.duplicate());
+                if ((int) checksum.getValue() != block.getInt(8)) {
+                    stats.corruptBlocks++;
+                    continue;
+                }
+                Stats blockStats = new Stats();
+                try {
+                    replayer.replayBlock(body, block.getInt(4), blockStats);
+                    stats.merge(blockStats);
+                } catch (RuntimeException e) {
+                    stats.corruptBlocks++; // Checksum matched but the body does not decode: treat as corrupt
+                }
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Decodes games and replays them on a reused board, one per replay task
+     */
+    private static final class Replayer {
+        private final int[] cells = new int[MAX_CELLS];
+        private Board board = new Board(); // Replaced when a game of another variant comes along
+
+        /**
+         * Decode and replay every game of a block body
+         * @param body Body positioned at its first game
+         * @param gameCount Games the block header promises
+         * @param stats Receives the counts
+         * @throws IllegalArgumentException Body does not hold exactly that many well-formed games
+         */
+        void replayBlock(ByteBuffer body, int gameCount, Stats stats) {
+            for (int game = 0; game < gameCount; game++) {
+                int header = body.get() & 0xFF;
+                int winnerId = (header >>> 4) & 3;
+                int size = Board.DEFAULT_SIZE;
+                int winLength = Board.DEFAULT_WIN_LENGTH;
+                int moveCount;
+                if ((header & VARIANT_FLAG) == 0) {
+                    moveCount = header & 0x0F;
+                    for (int i = 0; i < moveCount; i += 2) {
+                        int pair = body.get();
+                        cells[i] = pair & 0x0F;
+                        cells[i + 1] = (pair >>> 4) & 0x0F; // Unused after an odd last move
+                    }
+                } else {
+                    size = body.get() & 0xFF;
+                    winLength = body.get() & 0xFF;
+                    moveCount = getVarint(body);
+                    if (moveCount > MAX_CELLS) throw new IllegalArgumentException("Move count " + moveCount);
+                    int cell = size * size / 2;
+                    for (int i = 0; i < moveCount; i++) {
+                        int zigzag = getVarint(body);
+                        cell += (zigzag >>> 1) ^ -(zigzag & 1);
+                        cells[i] = cell;
+                    }
+                }
+                replayGame(size, winLength, moveCount, winnerId, stats);
+            }
+            if (body.hasRemaining()) throw new IllegalArgumentException(body.remaining() + " bytes after the last game");
+        }
+
+        /**
+         * Play one decoded game through the win rules and count it
+         * @param size Board width and height
+         * @param winLength Marks in a row needed to win
+         * @param moveCount Moves in cells
+         * @param winnerId Stored result
+         * @param stats Receives the counts
+         */
+        private void replayGame(int size, int winLength, int moveCount, int winnerId, Stats stats) {
+            stats.games++;
+            stats.moves += moveCount;
+            stats.lengths[Math.min(moveCount, MAX_CELLS)]++;
+            int result = play(size, winLength, moveCount);
+            if (result != winnerId) stats.mismatches++;
+            else if (result == 1) stats.p1Wins++;
+            else if (result == 2) stats.p2Wins++;
+            else stats.draws++;
+        }
+
+        /**
+         * Replay the moves on the board; a game must end exactly with its winning move or with the board full
+         * @param size Board width and height
+         * @param winLength Marks in a row needed to win
+         * @param moveCount Moves in cells
+         * @return Winner (1 or 2), DRAW, or -1 for an illegal or unfinished game
+         */
+        private int play(int size, int winLength, int moveCount) {
+            if (!Board.isValidVariant(size, winLength)) return -1;
+            if (board.getSize() != size || board.getWinLength() != winLength) board = new Board(size, winLength);
+            else board.reset();
+            for (int i = 0; i < moveCount; i++) {
+                int cell = cells[i];
+                if (cell < 0 || cell >= size * size) return -1;
+                int row = cell / size;
+                int col = cell % size;
+                if (!board.isEmpty(row, col)) return -1;
+                int playerId = (i & 1) + 1; // Player 1 moves first
+                board.place(row, col, playerId);
+                if (board.isWinningMove(row, col)) return i == moveCount - 1 ? playerId : -1;
+            }
+            return board.isFull() ? DRAW : -1;
+        }
+    }
+
+    /**
+     * Main method: replay an archive directory and print its statistics
+     * @param args Directory (default archive) and thread count (default one per core)
+     * @throws IOException Archive cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        Path directory = Paths.get(args.length > 0 ? args[0] : DEFAULT_DIR);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long start = System.nanoTime();
+        Stats stats = replay(directory, pool);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+        System.out.println(stats);
+        System.out.printf("Replayed in %.2f s on %d threads, %,.0f games/s%n", seconds, threads, stats.getGames() / seconds);
+    }
+}
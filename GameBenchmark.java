@@ -0,0 +1,1301 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.swing.SwingUtilities;
+
+/**
+ * Micro and end-to-end benchmarks for the game engine, the wire codecs and the server
+ * The repository has no build tool, so instead of a JMH module this is a self-contained harness run with plain
+ * javac/java. Every suite uses fixed seeds, fixed operation counts and separate warmup and measurement iterations,
+ * and reports throughput plus bytes allocated per operation (from the JVM's per-thread allocation counter).
+ * Usage: java GameBenchmark [engine|codec|e2e|ai|all|heap|log|players|cluster|archive|resume] [blocking|nio]
+ * The heap suite is a regression check rather than a benchmark and fails the run if the heap grows; the ai suite
+ * first checks that the classic solver never loses, and times opening book lookups when -Dtictactoe.book is set;
+ * the log suite is a crash-recovery check of the game log and fails if replayed totals do not match; the players
+ * suite times the player store and fails if its leaderboard disagrees with a full sort, before or after reopening;
+ * the cluster suite starts node processes behind a ClusterRouter one at a time and measures games through the router,
+ * then drains one node and fails if games on the remaining nodes see any error; the archive suite archives millions of
+ * random games, reports bytes per game and replay speed, and fails if a replay does not rebuild the played results;
+ * the resume suite reconnects a player while its opponent moves and fails unless the RESUME snapshot always comes
+ * first and the move reaches the reconnected player exactly once
+ * @author Chen Junliang
+ */
+public class GameBenchmark {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURE_ITERATIONS = 10;
+    private static final int LOOPBACK_WARMUP_ITERATIONS = 2; // Network iterations are slow, run fewer of them
+    private static final int LOOPBACK_MEASURE_ITERATIONS = 5;
+    private static final long SEED = 42L;
+    private static final int HEAP_CHECK_MOVES = 1_000_000;
+    private static final long HEAP_GROWTH_LIMIT = 4L * 1024 * 1024; // Far below the ~100 MB an unbounded table reaches
+    private static final int LOG_CHECK_GAMES = 100_000;
+    private static final int PLAYER_CHECK_PLAYERS = 200_000;
+    private static final int PLAYER_CHECK_GAMES = 1_000_000;
+    private static final int PLAYER_CHECK_QUERIES = 100_000;
+    private static final int SPECTATORS_PER_ROOM = 8;
+    private static final int MAILBOX_PRODUCERS = 4;
+    private static final int CLUSTER_MAX_NODES = 3;
+    private static final int CLUSTER_BOTS = 200;
+    private static final int CLUSTER_GAMES = 20; // Per pair of bots
+    private static final int ARCHIVE_CHECK_GAMES = 2_000_000;
+    private static final int ARCHIVE_CHECK_VARIANT_GAMES = 100_000;
+    private static final int RESUME_CHECK_ROUNDS = 300;
+    private static volatile long blackhole; // Consumes results so the JIT cannot drop benchmark bodies
+
+    /**
+     * A measured unit of work
+     */
+    private interface Workload {
+        /**
+         * Run the given number of operations
+         * @param ops Operation count
+         * @return Checksum of the results, fed to the blackhole
+         * @throws Exception Any failure aborts the suite
+         */
+        long run(long ops) throws Exception;
+    }
+
+    /**
+     * Main method: run the selected suites and print one result line per benchmark
+     * @param args Suite name (default all) and server engine for e2e (default blocking)
+     * @throws Exception Benchmark failure
+     */
+    public static void main(String[] args) throws Exception {
+        String suite = args.length > 0 ? args[0] : "all";
+        String engine = args.length > 1 ? args[1] : TicTacToeServer.ENGINE_BLOCKING;
+        System.out.println("# JVM " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+                + ", " + Runtime.getRuntime().availableProcessors() + " cpus, seed " + SEED);
+        System.out.printf("%-28s %16s %12s %14s%n", "benchmark", "ops/s", "+-%", "bytes/op");
+        if (suite.equals("engine") || suite.equals("all")) runEngineSuite();
+        if (suite.equals("codec") || suite.equals("all")) runCodecSuite();
+        if (suite.equals("e2e") || suite.equals("all")) runLoopbackSuite(engine);
+        if (suite.equals("ai") || suite.equals("all")) runAiSuite();
+        if (suite.equals("heap")) runHeapCheck();
+        if (suite.equals("log")) runLogCheck();
+        if (suite.equals("players")) runPlayerCheck();
+        if (suite.equals("cluster")) runClusterSuite(engine);
+        if (suite.equals("archive")) runArchiveCheck();
+        if (suite.equals("resume")) runResumeCheck(engine);
+        System.exit(0); // The in-process server's threads would otherwise keep the JVM alive
+    }
+
+    /**
+     * Benchmark win detection and isValidMove over fixed sets of random reachable positions
+     * Full-board checkWin is compared with the incremental isWinningMove on the classic board and on 19×19 gomoku
+     */
+    private static void runEngineSuite() throws Exception {
+        runEngineSuite("board", Board.DEFAULT_SIZE, Board.DEFAULT_WIN_LENGTH);
+        runEngineSuite("board19", Board.MAX_SIZE, 5);
+        runMailboxSuite();
+        runDispatchSuite();
+    }
+
+    /**
+     * Benchmark handing UI updates from a network thread to the EDT through a SwingDispatcher, which coalesces them
+     * into few EDT tasks, against one invokeLater per update; fails if updates run out of order
+     */
+    private static void runDispatchSuite() throws Exception {
+        SwingDispatcher dispatcher = new SwingDispatcher();
+        measure("dispatch.coalesced", 1_000_000, ops -> dispatchUpdates(ops, dispatcher));
+        measure("dispatch.invokeLater", 1_000_000, ops -> dispatchUpdates(ops, SwingUtilities::invokeLater));
+    }
+
+    /**
+     * Post ops updates from this thread and wait until the EDT has run the last one
+     * @param ops Update count
+     * @param executor Hands an update to the EDT
+     * @return Number of updates run
+     * @throws Exception Interrupted, or IllegalStateException if an update ran out of order
+     */
+    private static long dispatchUpdates(long ops, Executor executor) throws Exception {
+        long[] next = new long[1]; // Only touched on the EDT
+        boolean[] isOrdered = {true};
+        CountDownLatch done = new CountDownLatch(1);
+        for (long i = 0; i < ops; i++) {
+            long update = i;
+            executor.execute(() -> {
+                if (next[0]++ != update) isOrdered[0] = false;
+                if (update == ops - 1) done.countDown();
+            });
+        }
+        done.await();
+        if (!isOrdered[0]) throw new IllegalStateException("UI updates ran out of order");
+        return next[0];
+    }
+
+    /**
+     * Benchmark a room mailbox fed by several producer threads and drained by one consumer, as GameRoom uses it, and
+     * compare with ConcurrentLinkedQueue; fails if any producer's elements come out of order or go missing
+     */
+    private static void runMailboxSuite() throws Exception {
+        int producers = MAILBOX_PRODUCERS;
+        MpscQueue<long[]> mpsc = new MpscQueue<>();
+        measure("mailbox.mpsc(" + producers + ")", 2_000_000, ops -> drainMailbox(producers, ops, mpsc::offer, mpsc::poll));
+        ConcurrentLinkedQueue<long[]> clq = new ConcurrentLinkedQueue<>();
+        measure("mailbox.clq(" + producers + ")", 2_000_000, ops -> drainMailbox(producers, ops, clq::offer, clq::poll));
+    }
+
+    /**
+     * Send ops elements through a queue from several producer threads and take them on this thread
+     * @param producers Producer thread count
+     * @param ops Total elements
+     * @param offer Producer side of the queue
+     * @param poll Consumer side of the queue
+     * @return Checksum of the taken elements
+     * @throws Exception Producer failure, or IllegalStateException if order was broken
+     */
+    private static long drainMailbox(int producers, long ops, Consumer<long[]> offer, Supplier<long[]> poll)
+            throws Exception {
+        long perProducer = ops / producers;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads[p] = new Thread(() -> {
+                for (long i = 0; i < perProducer; i++) {
+                    offer.accept(new long[]{producer, i});
+                }
+            }, "mailbox-producer-" + p);
+            threads[p].start();
+        }
+        long[] next = new long[producers]; // Next sequence number expected from each producer
+        long taken = 0;
+        long checksum = 0;
+        while (taken < perProducer * producers) {
+            long[] element = poll.get();
+            if (element == null) {
+                Thread.onSpinWait();
+                continue;
+            }
+            int producer = (int) element[0];
+            if (element[1] != next[producer]++) {
+                throw new IllegalStateException("Producer " + producer + " out of order at " + element[1]);
+            }
+            checksum += element[1];
+            taken++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return checksum;
+    }
+
+    /**
+     * Benchmark one board variant
+     * @param prefix Benchmark name prefix
+     * @param size Board size
+     * @param winLength Marks in a row needed to win
+     */
+    private static void runEngineSuite(String prefix, int size, int winLength) throws Exception {
+        int positionCount = 1024;
+        Board[] boards = new Board[positionCount];
+        int[] lastMoves = new int[positionCount];
+        int[] probes = new int[positionCount];
+        Random random = new Random(SEED);
+        for (int i = 0; i < positionCount; i++) {
+            boards[i] = new Board(size, winLength);
+            lastMoves[i] = playRandomPosition(boards[i], random);
+            probes[i] = random.nextInt(size * size);
+        }
+        int mask = positionCount - 1;
+
+        measure(prefix + ".checkWin", 10_000_000 / (size * size / 9), ops -> {
+            long wins = 0;
+            for (long i = 0; i < ops; i++) {
+                Board board = boards[(int) i & mask];
+                if (board.checkWin(1) || board.checkWin(2)) wins++;
+            }
+            return wins;
+        });
+        measure(prefix + ".isWinningMove", 10_000_000, ops -> {
+            long wins = 0;
+            for (long i = 0; i < ops; i++) {
+                int index = (int) i & mask;
+                int cell = lastMoves[index];
+                if (cell >= 0 && boards[index].isWinningMove(cell / size, cell % size)) wins++;
+            }
+            return wins;
+        });
+        measure(prefix + ".isValidMove", 10_000_000, ops -> {
+            long valid = 0;
+            for (long i = 0; i < ops; i++) {
+                int index = (int) i & mask;
+                int cell = probes[index];
+                int row = cell / size, col = cell % size;
+                Board board = boards[index];
+                if (board.isInside(row, col) && board.isEmpty(row, col)) valid++;
+            }
+            return valid;
+        });
+        measure(prefix + ".isFull", 10_000_000, ops -> {
+            long full = 0;
+            for (long i = 0; i < ops; i++) {
+                if (boards[(int) i & mask].isFull()) full++;
+            }
+            return full;
+        });
+    }
+
+    /**
+     * Fill an empty board with a random reachable position by alternating moves until someone wins or it fills
+     * @param board Empty board
+     * @param random Seeded source of randomness
+     * @return Cell index of the last move, or -1 if no move was made
+     */
+    private static int playRandomPosition(Board board, Random random) {
+        int size = board.getSize();
+        int moves = random.nextInt(size * size + 1);
+        int playerId = 1;
+        int lastMove = -1;
+        for (int i = 0; i < moves && !board.isFull(); i++) {
+            int row, col;
+            do {
+                row = random.nextInt(size);
+                col = random.nextInt(size);
+            } while (!board.isEmpty(row, col));
+            board.place(row, col, playerId);
+            lastMove = row * size + col;
+            if (board.isWinningMove(row, col)) break;
+            playerId = 3 - playerId;
+        }
+        return lastMove;
+    }
+
+    /**
+     * Check the classic solver against every possible opponent, then benchmark classic lookups and a timed search
+     * on 9×9 five in a row
+     * @throws Exception IllegalStateException if the solver loses a game
+     */
+    private static void runAiSuite() throws Exception {
+        GameAi classic = GameAi.classic();
+        for (int aiPlayer = 1; aiPlayer <= 2; aiPlayer++) {
+            int losses = countLosses(classic, new Board(), 1, aiPlayer);
+            System.out.println("ai.classic.asPlayer" + aiPlayer + " losses against every opponent line: " + losses);
+            if (losses > 0) throw new IllegalStateException("Classic solver lost " + losses + " games as player " + aiPlayer);
+        }
+
+        int positionCount = 1024;
+        Board[] positions = new Board[positionCount];
+        int[] toMove = new int[positionCount];
+        Random random = new Random(SEED);
+        for (int i = 0; i < positionCount; i++) {
+            // Random in-progress positions: replay until one is neither won nor full
+            Board board;
+            int last;
+            do {
+                board = new Board();
+                last = playRandomPosition(board, random);
+            } while (board.isFull() || (last >= 0 && board.isWinningMove(last / 3, last % 3)));
+            positions[i] = board;
+            toMove[i] = board.getMoveCount() % 2 == 0 ? 1 : 2;
+        }
+        int mask = positionCount - 1;
+        long[] positionHashes = new long[Zobrist.SYMMETRIES]; // Owned by this thread, as each AiPlayer owns one
+        measure("ai.classic.lookup", 1_000_000, ops -> {
+            long sum = 0;
+            for (long i = 0; i < ops; i++) {
+                int index = (int) i & mask;
+                sum += classic.chooseMove(positions[index], toMove[index], 0, positionHashes);
+            }
+            return sum;
+        });
+
+        OpeningBook book = OpeningBook.forVariant(Board.DEFAULT_SIZE, Board.DEFAULT_WIN_LENGTH);
+        if (book != null) { // Only with -Dtictactoe.book naming a classic book
+            measure("ai.classic.book", 1_000_000, ops -> {
+                long sum = 0;
+                for (long i = 0; i < ops; i++) {
+                    sum += book.bestMove(positions[(int) i & mask]);
+                }
+                return sum;
+            });
+        }
+
+        long budgetNanos = 50_000_000L;
+        measure("ai.gomoku9.move(50ms)", 1, 3, 10, ops -> {
+            Board board = new Board(9, 5);
+            GameAi ai = GameAi.forVariant(9, 5);
+            int playerId = 1;
+            long nodes = 0;
+            for (long i = 0; i < ops; i++) {
+                int cell = ai.chooseMove(board, playerId, budgetNanos);
+                board.place(cell / 9, cell % 9, playerId);
+                nodes += ai.getNodes();
+                if (board.isWinningMove(cell / 9, cell % 9)) board.reset();
+                playerId = 3 - playerId;
+            }
+            return nodes;
+        });
+    }
+
+    /**
+     * Play the classic solver against every sequence of opponent moves
+     * @param ai Classic solver
+     * @param board Current position, restored before returning
+     * @param playerId Player to move
+     * @param aiPlayer Player the solver plays
+     * @return Number of opponent lines that beat the solver
+     */
+    private static int countLosses(GameAi ai, Board board, int playerId, int aiPlayer) {
+        if (playerId == aiPlayer) {
+            int cell = ai.chooseMove(board, playerId, 0);
+            return countLossesAfter(ai, board, cell, playerId, aiPlayer);
+        }
+        int losses = 0;
+        for (int cell = 0; cell < 9; cell++) {
+            if (board.isEmpty(cell / 3, cell % 3)) losses += countLossesAfter(ai, board, cell, playerId, aiPlayer);
+        }
+        return losses;
+    }
+
+    /**
+     * Play one move, count losses below it and take it back
+     * @param ai Classic solver
+     * @param board Current position, restored before returning
+     * @param cell Move to play
+     * @param playerId Player making the move
+     * @param aiPlayer Player the solver plays
+     * @return Number of opponent lines that beat the solver
+     */
+    private static int countLossesAfter(GameAi ai, Board board, int cell, int playerId, int aiPlayer) {
+        int row = cell / 3;
+        int col = cell % 3;
+        board.place(row, col, playerId);
+        int losses;
+        if (board.isWinningMove(row, col)) losses = playerId == aiPlayer ? 0 : 1;
+        else if (board.isFull()) losses = 0;
+        else losses = countLosses(ai, board, 3 - playerId, aiPlayer);
+        board.remove(row, col);
+        return losses;
+    }
+
+    /**
+     * Benchmark the binary codec against Java serialization for typical messages; fails if trace stamps do not
+     * survive a round trip
+     */
+    private static void runCodecSuite() throws Exception {
+        GameData[] moves = new GameData[8];
+        for (int i = 0; i < moves.length; i++) {
+            moves[i] = new GameData(GameData.Command.MOVE, "", i % 3, i / 3, 3, 4, 5);
+        }
+        GameData move = moves[5];
+        GameData win = new GameData(GameData.Command.WIN, "Alice", 0, 0, 3, 4, 5);
+        GameData traced = new GameData(GameData.Command.MOVE, "", 1, 2, 3, 4, 5);
+        long sent = MoveTracer.currentTimeMicros();
+        traced.setTrace(sent, sent - 250, sent + 40); // Received "before" sent: the clocks disagree by a little
+        ByteBuffer buffer = ByteBuffer.allocate(FrameCodec.MAX_ENCODED_SIZE);
+
+        measure("binary.encode(MOVE)", 5_000_000, ops -> {
+            long bytes = 0;
+            for (long i = 0; i < ops; i++) {
+                buffer.clear();
+                FrameCodec.encodeFrame(moves[(int) i & 7], buffer);
+                bytes += buffer.position() + buffer.get(2);
+            }
+            return bytes;
+        });
+        measure("binary.roundtrip(MOVE)", 5_000_000, ops -> {
+            long sum = 0;
+            for (long i = 0; i < ops; i++) {
+                buffer.clear();
+                FrameCodec.encodeFrame(moves[(int) i & 7], buffer);
+                buffer.flip();
+                int length = FrameCodec.readFrameHeader(buffer);
+                sum += FrameCodec.decodePayload(buffer, length).getCol();
+            }
+            return sum;
+        });
+        measure("binary.roundtrip(WIN)", 2_000_000, ops -> {
+            long sum = 0;
+            for (long i = 0; i < ops; i++) {
+                buffer.clear();
+                FrameCodec.encodeFrame(win, buffer);
+                buffer.flip();
+                int length = FrameCodec.readFrameHeader(buffer);
+                sum += FrameCodec.decodePayload(buffer, length).getPlayerName().length();
+            }
+            return sum;
+        });
+        measure("binary.roundtrip(traced MOVE)", 5_000_000, ops -> {
+            long sum = 0;
+            for (long i = 0; i < ops; i++) {
+                buffer.clear();
+                FrameCodec.encodeFrame(traced, buffer);
+                buffer.flip();
+                int length = FrameCodec.readFrameHeader(buffer);
+                sum += FrameCodec.decodePayload(buffer, length).getTraceForwardedMicros() - sent;
+            }
+            return sum;
+        });
+        measure("serialization.roundtrip(MOVE)", 100_000, ops -> {
+            long sum = 0;
+            for (long i = 0; i < ops; i++) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+                try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                    out.writeObject(move);
+                }
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                    sum += ((GameData) in.readObject()).getCol();
+                }
+            }
+            return sum;
+        });
+
+        buffer.clear();
+        FrameCodec.encodeFrame(traced, buffer);
+        int tracedSize = buffer.position();
+        buffer.flip();
+        GameData decoded = FrameCodec.decodePayload(buffer, FrameCodec.readFrameHeader(buffer));
+        if (decoded.getTraceSentMicros() != traced.getTraceSentMicros()
+                || decoded.getTraceReceivedMicros() != traced.getTraceReceivedMicros()
+                || decoded.getTraceForwardedMicros() != traced.getTraceForwardedMicros()) {
+            throw new IllegalStateException("Trace stamps changed in a round trip");
+        }
+
+        buffer.clear();
+        FrameCodec.encodeFrame(move, buffer);
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+            out.writeObject(move);
+        }
+        System.out.println("# MOVE wire size: binary " + buffer.position() + " bytes (" + tracedSize
+                + " traced), serialization " + serialized.size() + " bytes");
+    }
+
+    /**
+     * Benchmark whole moves per second between pairs of headless players over loopback
+     * Each player thread counts one operation per move it sends; the server runs in-process on port 8888
+     * The games are then repeated with spectators on every room, including one per room that never reads, which must
+     * not slow the players down; its backlog shows up in the outbound queue depth, bounded by OutboundLimit
+     * Finally the server is drained, which must stop it and free the port well within the drain timeout
+     * @param engine Server engine to start
+     */
+    private static void runLoopbackSuite(String engine) throws Exception {
+        TicTacToeServer server = new TicTacToeServer(ServerConfig.fromArgs(new String[] {engine, "platform"}));
+        server.start(); // Returns once the server listens
+
+        int pairs = 4;
+        LoopbackPlayer[] players = new LoopbackPlayer[pairs * 2];
+        for (int i = 0; i < players.length; i++) {
+            players[i] = new LoopbackPlayer("bench-" + i);
+        }
+        for (LoopbackPlayer player : players) {
+            player.awaitStart();
+        }
+        int movesPerGame = LoopbackPlayer.P1_MOVES.length + LoopbackPlayer.P2_MOVES.length;
+        measure("loopback.moves(" + engine + ")", LOOPBACK_WARMUP_ITERATIONS, LOOPBACK_MEASURE_ITERATIONS, 2_000, ops -> {
+            AtomicLong moves = new AtomicLong();
+            CountDownLatch done = new CountDownLatch(players.length);
+            long games = ops / ((long) pairs * movesPerGame);
+            for (LoopbackPlayer player : players) {
+                player.play(games, moves, done);
+            }
+            done.await();
+            return moves.get();
+        });
+
+        // The same games watched by spectators on every room, one of which never reads
+        List<LoopbackSpectator> spectators = new ArrayList<>();
+        for (int room = 1; room <= pairs; room++) {
+            for (int i = 0; i < SPECTATORS_PER_ROOM; i++) {
+                spectators.add(new LoopbackSpectator(room, true));
+            }
+            spectators.add(new LoopbackSpectator(room, false));
+        }
+        measure("loopback.watched(" + engine + ")", LOOPBACK_WARMUP_ITERATIONS, LOOPBACK_MEASURE_ITERATIONS, 2_000, ops -> {
+            AtomicLong moves = new AtomicLong();
+            CountDownLatch done = new CountDownLatch(players.length);
+            long games = ops / ((long) pairs * movesPerGame);
+            for (LoopbackPlayer player : players) {
+                player.play(games, moves, done);
+            }
+            done.await();
+            return moves.get();
+        });
+        long frames = 0;
+        for (LoopbackSpectator spectator : spectators) {
+            frames += spectator.getFramesReceived();
+        }
+        System.out.println("# " + spectators.size() + " spectators (" + pairs + " stalled) received " + frames + " frames");
+        MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+        ObjectName metricsName = new ObjectName(ServerMetrics.OBJECT_NAME);
+        System.out.println("# outbound queued " + beans.getAttribute(metricsName, "OutboundQueuedBytes") + " bytes, "
+                + beans.getAttribute(metricsName, "SlowConnections") + " slow connections, "
+                + beans.getAttribute(metricsName, "SpectatorResyncs") + " spectator resyncs");
+        for (LoopbackSpectator spectator : spectators) {
+            spectator.close();
+        }
+        for (LoopbackPlayer player : players) {
+            player.close();
+        }
+        if (frames == 0) throw new IllegalStateException("Spectators received nothing");
+
+        long drainNanos = System.nanoTime();
+        server.drain().get(10, TimeUnit.SECONDS);
+        try (ServerSocket reopened = new ServerSocket(server.getPort())) {
+            System.out.println("# drained and port " + reopened.getLocalPort() + " freed in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drainNanos) + " ms");
+        }
+    }
+
+    /**
+     * Benchmark games per second through a ClusterRouter as nodes join, then drain one node and check that the games
+     * that follow only use the others and see no error
+     * Nodes are separate processes on this host with the game log, game archive, player store and metrics endpoint off;
+     * they pick free ports and join the router themselves. On a single machine every node shares the same cores, so this
+     * shows the router's overhead and the spread of games rather than the scaling of separate machines.
+     * @param engine Server engine of the nodes
+     */
+    private static void runClusterSuite(String engine) throws Exception {
+        ClusterRouter router = new ClusterRouter("127.0.0.1", 0, "127.0.0.1", 0, new ArrayList<>());
+        router.start();
+        List<Process> nodes = new ArrayList<>();
+        try {
+            for (int count = 1; count <= CLUSTER_MAX_NODES; count++) {
+                nodes.add(startNode(engine, router.getAdminPort()));
+                awaitNodes(router, count);
+                if (count == 1) runClusterLoad("cluster.warmup", router); // This JVM's bots and router code get compiled
+                runClusterLoad("cluster.moves(" + count + " nodes)", router);
+            }
+            nodes.get(0).destroy(); // SIGTERM: the node drains and leaves the ring
+            nodes.get(0).waitFor(10, TimeUnit.SECONDS);
+            awaitNodes(router, CLUSTER_MAX_NODES - 1);
+            runClusterLoad("cluster.moves(1 drained)", router);
+        } finally {
+            for (Process node : nodes) {
+                node.destroyForcibly();
+            }
+            router.stop();
+        }
+    }
+
+    /**
+     * Start a node process that joins the router
+     * @param engine Server engine
+     * @param adminPort Router's admin port on this host
+     * @return Node process, its output discarded
+     * @throws IOException Process cannot be started
+     */
+    private static Process startNode(String engine, int adminPort) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "-D" + GameLog.DIR_PROPERTY + "=none", "-D" + GameArchive.DIR_PROPERTY + "=none",
+                "-D" + PlayerStore.FILE_PROPERTY + "=none",
+                "-D" + MetricsHttpEndpoint.PORT_PROPERTY + "=-1",
+                "TicTacToeServer", engine, "--port=0", "--join=127.0.0.1:" + adminPort)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+    }
+
+    /**
+     * Wait until the router has the given number of nodes on its ring
+     * @param router Router
+     * @param count Expected node count
+     * @throws Exception Interrupted, or IllegalStateException after 20 seconds
+     */
+    private static void awaitNodes(ClusterRouter router, int count) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        while (router.getNodes().size() != count) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Expected " + count + " nodes, router has " + router.getNodes());
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Play CLUSTER_GAMES games per pair of CLUSTER_BOTS bots through the router and print the move rate
+     * @param name Result name
+     * @param router Router to connect to
+     * @throws Exception Interrupted, or IllegalStateException if any bot saw an error or a game did not finish
+     */
+    private static void runClusterLoad(String name, ClusterRouter router) throws Exception {
+        LoadGenerator load = new LoadGenerator("127.0.0.1", router.getPort(), CLUSTER_GAMES, 0,
+                Board.DEFAULT_SIZE, Board.DEFAULT_WIN_LENGTH);
+        long startNanos = System.nanoTime();
+        load.run(CLUSTER_BOTS);
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("%-28s %16.0f %12s %14s%n", name, load.getMoveCount() / seconds, "-", "-");
+        long expectedGames = (long) CLUSTER_BOTS / 2 * CLUSTER_GAMES;
+        if (load.getErrorCount() != 0 || load.getGameCount() != expectedGames) {
+            throw new IllegalStateException(name + ": " + load.getErrorCount() + " errors, "
+                    + load.getGameCount() + " of " + expectedGames + " games");
+        }
+    }
+
+    /**
+     * Regression check for the legacy serialization stream: send HEAP_CHECK_MOVES moves over one loopback connection
+     * and fail if the heap in use after GC grows by more than HEAP_GROWTH_LIMIT between the first and last sample.
+     * Without periodic resets both ObjectOutputStream and ObjectInputStream keep every message ever sent.
+     * @throws Exception Connection failure, or IllegalStateException if the heap grew
+     */
+    private static void runHeapCheck() throws Exception {
+        try (ServerSocket listener = new ServerSocket(0);
+             Socket clientSocket = new Socket("127.0.0.1", listener.getLocalPort());
+             Socket serverSocket = listener.accept()) {
+            MessageStream[] reader = new MessageStream[1];
+            Thread opener = new Thread(() -> {
+                try {
+                    reader[0] = new ObjectMessageStream(serverSocket.getInputStream(), serverSocket.getOutputStream());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            opener.start();
+            MessageStream writer = new ObjectMessageStream(clientSocket.getInputStream(), clientSocket.getOutputStream());
+            opener.join();
+
+            AtomicLong received = new AtomicLong();
+            Thread readerThread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < HEAP_CHECK_MOVES; i++) {
+                        received.addAndGet(reader[0].read().getRow());
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "heap-check-reader");
+            readerThread.start();
+
+            long firstSample = -1;
+            long lastSample = 0;
+            int sampleEvery = HEAP_CHECK_MOVES / 10;
+            for (int i = 1; i <= HEAP_CHECK_MOVES; i++) {
+                writer.writeBuffered(new GameData(GameData.Command.MOVE, "heap", i % 3, i % 3, 0, 0, 0));
+                if (i % 64 == 0) writer.flush();
+                if (i % sampleEvery == 0) {
+                    writer.flush();
+                    lastSample = usedHeapAfterGc();
+                    if (firstSample < 0) firstSample = lastSample;
+                    System.out.printf("heap.moves %,9d  used %,8d KB%n", i, lastSample / 1024);
+                }
+            }
+            writer.flush();
+            readerThread.join();
+            blackhole += received.get();
+            long growth = lastSample - firstSample;
+            System.out.printf("heap.growth %,d KB over %,d moves (limit %,d KB)%n",
+                    growth / 1024, HEAP_CHECK_MOVES, HEAP_GROWTH_LIMIT / 1024);
+            if (growth > HEAP_GROWTH_LIMIT) {
+                throw new IllegalStateException("Heap grew by " + growth + " bytes over one connection");
+            }
+        }
+    }
+
+    /**
+     * Crash-recovery check for the game log: append LOG_CHECK_GAMES games across many small segments, tear the last
+     * record in half as a crash mid-write would, reopen (which must truncate the torn bytes), append one more game and
+     * check that replayed per-player totals match the totals counted while appending
+     * @throws Exception IO failure, or IllegalStateException if the replayed totals differ
+     */
+    private static void runLogCheck() throws Exception {
+        Path directory = Files.createTempDirectory("gamelog-check");
+        Map<String, int[]> expected = new HashMap<>(); // name -> {wins, losses, draws}
+        Random random = new Random(SEED);
+        GameLog log = new GameLog(directory, 64 * 1024, 10);
+        long start = System.nanoTime();
+        for (int game = 0; game < LOG_CHECK_GAMES; game++) {
+            appendGame(log, game, random, expected);
+        }
+        double appendSeconds = (System.nanoTime() - start) / 1e9;
+        log.close();
+        double durableSeconds = (System.nanoTime() - start) / 1e9;
+        long records = LOG_CHECK_GAMES * 7L;
+        System.out.printf("log.append %,.0f records/s queued, %,.0f records/s durable%n",
+                records / appendSeconds, records / durableSeconds);
+
+        // Crash mid-write: a record header promising more bytes than follow it
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) segments.add(file);
+        }
+        Collections.sort(segments);
+        Path last = segments.get(segments.size() - 1);
+        Files.write(last, new byte[] {0, 0, 0, 100, 1, 2, 3, 4, 5, 6}, StandardOpenOption.APPEND);
+
+        log = new GameLog(directory, 64 * 1024, 10);
+        appendGame(log, LOG_CHECK_GAMES, random, expected);
+        log.close();
+
+        Map<String, GameLog.Totals> replayed = GameLog.replayTotals(directory);
+        int mismatches = 0;
+        for (Map.Entry<String, int[]> entry : expected.entrySet()) {
+            GameLog.Totals totals = replayed.get(entry.getKey());
+            int[] counts = entry.getValue();
+            if (totals == null || totals.getWins() != counts[0] || totals.getLosses() != counts[1]
+                    || totals.getDraws() != counts[2]) mismatches++;
+        }
+        System.out.printf("log.recovery %d segments, %d players, %d mismatches%n", segments.size(), expected.size(), mismatches);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) Files.delete(file);
+        }
+        Files.delete(directory);
+        if (mismatches > 0 || replayed.size() != expected.size()) {
+            throw new IllegalStateException("Replayed totals differ for " + mismatches + " players");
+        }
+    }
+
+    /**
+     * Append one game (start, five moves, result) between two of 100 named players and count the expected totals
+     * @param log Log to append to
+     * @param game Game number, used as room ID
+     * @param random Seeded source of players and results
+     * @param expected Totals by name, {wins, losses, draws}, updated with the result
+     */
+    private static void appendGame(GameLog log, int game, Random random, Map<String, int[]> expected) {
+        String p1 = "player" + random.nextInt(100);
+        String p2 = "player" + random.nextInt(100);
+        log.append(GameLog.Record.gameStart(game, p1, p2, 3, 3));
+        for (int move = 0; move < 5; move++) {
+            log.append(GameLog.Record.move(game, move % 2 + 1, move / 3, move % 3));
+        }
+        int winner = random.nextInt(3);
+        log.append(GameLog.Record.result(game, winner, p1, p2));
+        int[] p1Counts = expected.computeIfAbsent(p1, name -> new int[3]);
+        int[] p2Counts = expected.computeIfAbsent(p2, name -> new int[3]);
+        if (winner == 1) {
+            p1Counts[0]++;
+            p2Counts[1]++;
+        } else if (winner == 2) {
+            p2Counts[0]++;
+            p1Counts[1]++;
+        } else {
+            p1Counts[2]++;
+            p2Counts[2]++;
+        }
+    }
+
+    /**
+     * Game archive check: archive ARCHIVE_CHECK_GAMES random classic games, ARCHIVE_CHECK_VARIANT_GAMES random 15×15 and
+     * 19×19 gomoku games and one classic game stored with the wrong winner, then replay the archive on one thread and
+     * on every core; both replays must rebuild the results and move counts seen while playing and flag only that game
+     * @throws Exception IO failure, or IllegalStateException if a replay disagrees
+     */
+    private static void runArchiveCheck() throws Exception {
+        Path directory = Files.createTempDirectory("archive-check");
+        Random random = new Random(SEED);
+        long[] classic = new long[5]; // Draws, player 1 wins, player 2 wins, moves, encoded bytes
+        long[] variant = new long[5];
+        int[] cells = new int[Board.MAX_SIZE * Board.MAX_SIZE];
+        GameArchive archive = new GameArchive(directory, 16L * 1024 * 1024, 100);
+        long start = System.nanoTime();
+        for (int game = 0; game < ARCHIVE_CHECK_GAMES; game++) {
+            archiveRandomGame(archive, Board.DEFAULT_SIZE, Board.DEFAULT_WIN_LENGTH, cells, random, classic);
+        }
+        for (int game = 0; game < ARCHIVE_CHECK_VARIANT_GAMES; game++) {
+            archiveRandomGame(archive, game % 2 == 0 ? 15 : Board.MAX_SIZE, 5, cells, random, variant);
+        }
+        archive.append(Board.DEFAULT_SIZE, Board.DEFAULT_WIN_LENGTH, new int[] {0, 3, 1, 4, 2}, 5, 2); // Player 1 won
+        archive.close();
+        double writeSeconds = (System.nanoTime() - start) / 1e9;
+        long games = ARCHIVE_CHECK_GAMES + ARCHIVE_CHECK_VARIANT_GAMES + 1L;
+        long fileBytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) fileBytes += Files.size(file);
+        }
+        System.out.printf("archive.write %,.0f games/s played and written, %.2f bytes/game 3x3, %.1f bytes/game "
+                        + "(%.1f moves) gomoku, %.2f bytes/game on disk%n", games / writeSeconds,
+                classic[4] / (double) ARCHIVE_CHECK_GAMES, variant[4] / (double) ARCHIVE_CHECK_VARIANT_GAMES,
+                variant[3] / (double) ARCHIVE_CHECK_VARIANT_GAMES, fileBytes / (double) games);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads : new int[] {1, cores}) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            long replayStart = System.nanoTime();
+            GameArchive.Stats stats = GameArchive.replay(directory, pool);
+            double seconds = (System.nanoTime() - replayStart) / 1e9;
+            pool.shutdown();
+            System.out.printf("archive.replay %d threads %,.0f games/s, %s%n", threads, stats.getGames() / seconds, stats);
+            long lengthTotal = 0;
+            for (int moves = 0; moves <= Board.MAX_SIZE * Board.MAX_SIZE; moves++) {
+                lengthTotal += stats.getLengthCount(moves);
+            }
+            if (stats.getGames() != games || lengthTotal != games || stats.getMismatches() != 1
+                    || stats.getCorruptBlocks() != 0 || stats.getDraws() != classic[0] + variant[0]
+                    || stats.getP1Wins() != classic[1] + variant[1] || stats.getP2Wins() != classic[2] + variant[2]
+                    || stats.getMoves() != classic[3] + variant[3] + 5) {
+                throw new IllegalStateException("Replay on " + threads + " threads disagrees: " + stats);
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Play one game of random moves to its end and archive it
+     * @param archive Archive to append to
+     * @param size Board width and height
+     * @param winLength Marks in a row needed to win
+     * @param cells Scratch array of at least size * size cells; the moves end up at its start
+     * @param random Seeded source of moves
+     * @param counts {draws, player 1 wins, player 2 wins, moves, encoded bytes}, updated with the game
+     */
+    private static void archiveRandomGame(GameArchive archive, int size, int winLength, int[] cells, Random random,
+                                          long[] counts) {
+        int cellCount = size * size;
+        for (int cell = 0; cell < cellCount; cell++) {
+            cells[cell] = cell;
+        }
+        Board board = new Board(size, winLength);
+        int winnerId = GameArchive.DRAW;
+        int moves = 0;
+        while (moves < cellCount) {
+            // Shuffle as we go: the next move is a random cell among those not yet played
+            int pick = moves + random.nextInt(cellCount - moves);
+            int cell = cells[pick];
+            cells[pick] = cells[moves];
+            cells[moves] = cell;
+            int playerId = moves % 2 + 1;
+            board.place(cell / size, cell % size, playerId);
+            moves++;
+            if (board.isWinningMove(cell / size, cell % size)) {
+                winnerId = playerId;
+                break;
+            }
+        }
+        archive.append(size, winLength, cells, moves, winnerId);
+        counts[winnerId]++;
+        counts[3] += moves;
+        counts[4] += GameArchive.encode(size, winLength, cells, moves, winnerId).length;
+    }
+
+    /**
+     * Player store check: record PLAYER_CHECK_GAMES random results among PLAYER_CHECK_PLAYERS players through a small
+     * cache, time top-10 queries, then check that the leaderboard matches a full sort of every player's record and
+     * that reopening the file rebuilds the same leaderboard
+     * @throws Exception IO failure, or IllegalStateException if a leaderboard is wrong
+     */
+    private static void runPlayerCheck() throws Exception {
+        Path file = Files.createTempFile("players-check", ".db");
+        Files.delete(file); // The store creates it
+        Random random = new Random(SEED);
+        PlayerStore store = new PlayerStore(file, 10_000);
+        long start = System.nanoTime();
+        for (int game = 0; game < PLAYER_CHECK_GAMES; game++) {
+            int p1 = random.nextInt(PLAYER_CHECK_PLAYERS);
+            int p2 = (p1 + 1 + random.nextInt(PLAYER_CHECK_PLAYERS - 1)) % PLAYER_CHECK_PLAYERS;
+            store.recordResult("player" + p1, "player" + p2, random.nextInt(3));
+        }
+        store.awaitPending();
+        double updateSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("players.update %,.0f results/s applied, %d players, cache hit rate %.2f%n",
+                PLAYER_CHECK_GAMES / updateSeconds, store.getPlayerCount(), store.getCacheHitRate());
+
+        start = System.nanoTime();
+        long checksum = 0;
+        for (int query = 0; query < PLAYER_CHECK_QUERIES; query++) {
+            checksum += store.getTopPlayers(10).size();
+        }
+        blackhole = checksum;
+        System.out.printf("players.top10 %,.0f queries/s%n", PLAYER_CHECK_QUERIES / ((System.nanoTime() - start) / 1e9));
+
+        List<PlayerStats> all = new ArrayList<>();
+        for (int player = 0; player < PLAYER_CHECK_PLAYERS; player++) {
+            PlayerStats stats = store.getStats("player" + player);
+            if (stats != null) all.add(stats);
+        }
+        all.sort((a, b) -> a.getRating() != b.getRating() ? Double.compare(b.getRating(), a.getRating())
+                : a.getName().compareTo(b.getName()));
+        List<String> expected = new ArrayList<>();
+        for (PlayerStats stats : all.subList(0, 10)) expected.add(stats.getName());
+        List<String> before = topNames(store);
+        store.close();
+        store = new PlayerStore(file, 10_000);
+        List<String> reopened = topNames(store);
+        int count = store.getPlayerCount();
+        store.close();
+        Files.delete(file);
+        System.out.printf("players.leaderboard %s%n", before);
+        if (!before.equals(expected) || !reopened.equals(expected) || count != all.size()) {
+            throw new IllegalStateException("Leaderboard " + before + ", after reopening " + reopened + ", expected " + expected);
+        }
+    }
+
+    /**
+     * Get the names of a store's top 10 players
+     * @param store Player store
+     * @return Names, highest rating first
+     * @throws IOException Read failure
+     */
+    private static List<String> topNames(PlayerStore store) throws IOException {
+        List<String> names = new ArrayList<>();
+        for (PlayerStats stats : store.getTopPlayers(10)) names.add(stats.getName());
+        return names;
+    }
+
+    /**
+     * Measure heap in use after asking for a full collection
+     * @return Used heap bytes
+     * @throws InterruptedException If interrupted while letting the collector settle
+     */
+    private static long usedHeapAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Drop and reconnect player 1 of a fresh room in every round while player 2 makes its move, and check what the
+     * reconnected connection receives
+     * Player 2 moves a little after the RESUME is sent, varying by round, so the move lands before, during and after
+     * the seat moves to the new connection.
+     * @param engine Server engine
+     * @throws IllegalStateException A reconnect was not answered with RESUME first, or the move was lost or repeated
+     */
+    private static void runResumeCheck(String engine) throws Exception {
+        TicTacToeServer server = new TicTacToeServer(ServerConfig.fromArgs(new String[] {engine, "platform", "--port=0"}));
+        server.start();
+        long start = System.nanoTime();
+        int inSnapshot = 0;
+        for (int round = 0; round < RESUME_CHECK_ROUNDS; round++) {
+            if (resumeRound(server.getPort(), round)) inSnapshot++;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("resume.check %d reconnects in %.1f s, move in the snapshot %d times, after it %d times%n",
+                RESUME_CHECK_ROUNDS, seconds, inSnapshot, RESUME_CHECK_ROUNDS - inSnapshot);
+        server.stop();
+    }
+
+    /**
+     * Play one reconnect round in a new room
+     * The player holding a session token moves (second, if it got seat 2), drops, and reconnects while the other
+     * player answers on the centre cell
+     * @param port Server port
+     * @param round Round number, sets the other player's delay
+     * @return true if the other player's move was already in the snapshot, false if it followed the snapshot as a MOVE
+     * @throws IllegalStateException The reconnected player saw something else first, or the move twice or never
+     */
+    private static boolean resumeRound(int port, int round) throws Exception {
+        Socket first = new Socket("127.0.0.1", port);
+        try (Socket second = new Socket("127.0.0.1", port)) {
+            BinaryMessageStream dropping = BinaryMessageStream.connect(first);
+            dropping.write(new GameData(GameData.Command.NAME, "resume-a", 1, 0, 0, 0, 0)); // Row 1 asks for a token
+            BinaryMessageStream other = BinaryMessageStream.connect(second);
+            other.write(new GameData(GameData.Command.NAME, "resume-b", 0, 0, 0, 0, 0));
+            // The game starts once both names are in: each side then has a NAME reply carrying the other's name
+            GameData session = null;
+            boolean isStarted = false;
+            while (session == null || !isStarted) {
+                GameData data = dropping.read();
+                if (data.getCommand() == GameData.Command.SESSION) session = data;
+                else if (data.getCommand() == GameData.Command.NAME) isStarted = "resume-b".equals(data.getPlayerName());
+                else throw new IllegalStateException("Expected SESSION or NAME, got " + data.getCommand());
+            }
+            GameData reply;
+            do {
+                reply = expect(other, GameData.Command.NAME); // Skips a reply sent before the other name arrived
+            } while (!"resume-a".equals(reply.getPlayerName()));
+            int otherId = session.getRow() == 1 ? 2 : 1;
+            if (otherId == 1) {
+                other.write(new GameData(GameData.Command.MOVE, "resume-b", 0, 0, 0, 0, 0));
+                expect(dropping, GameData.Command.MOVE);
+            }
+            dropping.write(new GameData(GameData.Command.MOVE, "resume-a", 2, 2, 0, 0, 0));
+            expect(other, GameData.Command.MOVE);
+
+            first.close(); // Drops and comes straight back while the other player moves
+            try (Socket again = new Socket("127.0.0.1", port)) {
+                again.setSoTimeout(5000);
+                BinaryMessageStream resumed = BinaryMessageStream.connect(again);
+                resumed.write(new GameData(GameData.Command.RESUME, session.getPlayerName(), 0, 0, 0, 0, 0));
+                Thread.sleep(round % 3);
+                other.write(new GameData(GameData.Command.MOVE, "resume-b", 1, 1, 0, 0, 0));
+                GameData snapshot = resumed.read();
+                if (snapshot.getCommand() != GameData.Command.RESUME) {
+                    throw new IllegalStateException("Round " + round + ": reconnect answered with " + snapshot.getCommand());
+                }
+                Board board = Board.fromSnapshot(snapshot.getBoardSize(), snapshot.getWinLength(), snapshot.getPlayerName());
+                boolean isInSnapshot = board.getCell(1, 1) == otherId;
+                if (!isInSnapshot) expect(resumed, GameData.Command.MOVE);
+                resumed.write(new GameData(GameData.Command.EXIT, "resume-a", 0, 0, 0, 0, 0));
+                expect(other, GameData.Command.EXIT);
+                GameData after = readOrNull(resumed);
+                if (after != null) throw new IllegalStateException("Round " + round + ": unexpected " + after.getCommand());
+                return isInSnapshot;
+            }
+        } finally {
+            first.close();
+        }
+    }
+
+    /**
+     * Read messages until one with the expected command, skipping NAME replies, whose number depends on the order
+     * the server handled the two names in
+     * @param stream Connection to read
+     * @param command Expected command
+     * @return Message
+     * @throws IllegalStateException Another command arrived
+     */
+    private static GameData expect(BinaryMessageStream stream, GameData.Command command) throws IOException {
+        GameData data = stream.read();
+        while (data.getCommand() == GameData.Command.NAME && command != GameData.Command.NAME) {
+            data = stream.read();
+        }
+        if (data.getCommand() != command) {
+            throw new IllegalStateException("Expected " + command + ", got " + data.getCommand());
+        }
+        return data;
+    }
+
+    /**
+     * Read the next message of a connection the server is about to close
+     * @param stream Connection to read
+     * @return Message, or null once the server has closed the connection
+     */
+    private static GameData readOrNull(BinaryMessageStream stream) {
+        try {
+            return stream.read();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Headless player used by the loopback suite
+     * Player 1 plays the top row and wins in five moves, then restarts; player 2 answers in the middle row
+     */
+    private static class LoopbackPlayer {
+        private static final int[][] P1_MOVES = {{0, 0}, {0, 1}, {0, 2}};
+        private static final int[][] P2_MOVES = {{1, 0}, {1, 1}};
+
+        private final Socket socket;
+        private final BinaryMessageStream stream;
+        private final String name;
+        private int playerId;
+        private int moveIndex; // Only touched by the current play thread
+
+        /**
+         * Connect and submit a name
+         * @param name Player name
+         * @throws IOException Connection failure
+         */
+        LoopbackPlayer(String name) throws IOException {
+            this.name = name;
+            this.socket = new Socket("127.0.0.1", 8888);
+            this.socket.setTcpNoDelay(true);
+            this.stream = BinaryMessageStream.connect(socket);
+            stream.write(new GameData(GameData.Command.NAME, name, 0, 0, 0, 0, 0));
+        }
+
+        /**
+         * Wait until the room has both names: player 1 gets two NAME replies, player 2 gets one
+         * @throws IOException Connection failure
+         */
+        void awaitStart() throws IOException {
+            GameData reply = stream.read();
+            playerId = reply.getRow() == 2 ? 1 : 2;
+            if (playerId == 1) stream.read();
+        }
+
+        /**
+         * Play a fixed number of games on a new thread; player 1 restarts first so every call begins on an empty board
+         * @param games Games to finish
+         * @param moves Shared counter of sent moves
+         * @param done Counted down when this player stops
+         */
+        void play(long games, AtomicLong moves, CountDownLatch done) {
+            new Thread(() -> {
+                try {
+                    long sent = 0;
+                    long finished = 0;
+                    boolean isMyTurn = false;
+                    if (playerId == 1) {
+                        stream.write(new GameData(GameData.Command.RESTART, name, 0, 0, 0, 0, 0));
+                    }
+                    while (finished < games) {
+                        int[][] script = playerId == 1 ? P1_MOVES : P2_MOVES;
+                        // The winning move is forwarded before WIN arrives, so player 2 may get a turn with no move left
+                        if (isMyTurn && moveIndex < script.length) {
+                            int[] move = script[moveIndex++];
+                            stream.write(new GameData(GameData.Command.MOVE, name, move[0], move[1], 0, 0, 0));
+                            sent++;
+                            isMyTurn = false;
+                        }
+                        GameData data = stream.read();
+                        switch (data.getCommand()) {
+                            case MOVE:
+                                isMyTurn = true;
+                                break;
+                            case WIN:
+                            case DRAW:
+                                finished++;
+                                if (finished < games && playerId == 1) {
+                                    stream.write(new GameData(GameData.Command.RESTART, name, 0, 0, 0, 0, 0));
+                                }
+                                break;
+                            case RESTART:
+                                moveIndex = 0;
+                                isMyTurn = playerId == 1;
+                                break;
+                            default:
+                                throw new IOException("Unexpected " + data.getCommand());
+                        }
+                    }
+                    moves.addAndGet(sent);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }, "bench-" + name).start();
+        }
+
+        /**
+         * Close the connection
+         * @throws IOException Close failure
+         */
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Headless spectator used by the loopback suite, either counting every frame on its own thread or never reading
+     */
+    private static class LoopbackSpectator {
+        private final Socket socket;
+        private final AtomicLong framesReceived = new AtomicLong();
+
+        /**
+         * Connect and ask to watch a room
+         * @param roomId Room to watch
+         * @param isReading false for a stalled spectator that never reads, with a small receive buffer
+         * @throws IOException Connection failure
+         */
+        LoopbackSpectator(int roomId, boolean isReading) throws IOException {
+            this.socket = new Socket();
+            if (!isReading) socket.setReceiveBufferSize(4096); // Fills after a few hundred frames
+            socket.connect(new InetSocketAddress("127.0.0.1", 8888));
+            BinaryMessageStream stream = BinaryMessageStream.connect(socket);
+            stream.write(new GameData(GameData.Command.WATCH, "", roomId, 0, 0, 0, 0));
+            if (!isReading) return;
+            Thread reader = new Thread(() -> {
+                try {
+                    GameData snapshot = stream.read();
+                    if (snapshot.getCommand() != GameData.Command.WATCH || snapshot.getRow() != roomId) {
+                        throw new IOException("Expected WATCH for room " + roomId + ", got " + snapshot.getCommand());
+                    }
+                    while (true) {
+                        stream.read();
+                        framesReceived.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    // Closed by the benchmark
+                }
+            }, "bench-spectator-" + roomId);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Get the number of frames read after the snapshot
+         * @return Frames received
+         */
+        long getFramesReceived() {
+            return framesReceived.get();
+        }
+
+        /**
+         * Close the connection
+         * @throws IOException Close failure
+         */
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Run warmup and measurement iterations of a workload and print throughput, error and allocation per operation
+     * @param name Benchmark name
+     * @param opsPerIteration Operations per iteration
+     * @param workload Work to measure
+     * @throws Exception Workload failure
+     */
+    private static void measure(String name, long opsPerIteration, Workload workload) throws Exception {
+        measure(name, WARMUP_ITERATIONS, MEASURE_ITERATIONS, opsPerIteration, workload);
+    }
+
+    /**
+     * Run a workload with explicit iteration counts
+     * @param name Benchmark name
+     * @param warmupIterations Iterations run before measuring
+     * @param measureIterations Measured iterations
+     * @param opsPerIteration Operations per iteration
+     * @param workload Work to measure
+     * @throws Exception Workload failure
+     */
+    private static void measure(String name, int warmupIterations, int measureIterations, long opsPerIteration,
+                                Workload workload) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            blackhole += workload.run(opsPerIteration);
+        }
+        double[] rates = new double[measureIterations];
+        long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < measureIterations; i++) {
+            long start = System.nanoTime();
+            blackhole += workload.run(opsPerIteration);
+            rates[i] = opsPerIteration * 1e9 / (System.nanoTime() - start);
+        }
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        double mean = 0;
+        for (double rate : rates) mean += rate;
+        mean /= rates.length;
+        double variance = 0;
+        for (double rate : rates) variance += (rate - mean) * (rate - mean);
+        double errorPercent = 100 * Math.sqrt(variance / (rates.length - 1)) / mean;
+        String bytesPerOp = allocated < 0 ? "n/a"
+                : String.format("%.1f", (double) allocated / (opsPerIteration * measureIterations));
+        System.out.printf("%-28s %16.0f %11.1f%% %14s%n", name, mean, errorPercent, bytesPerOp);
+    }
+
+    /**
+     * Read the bytes allocated so far by the current thread
+     * Only the measuring thread is counted, so the loopback suite reports the client side's driver allocation
+     * @return Allocated bytes, or -1 if the JVM does not expose the counter
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if (hotspot.isThreadAllocatedMemorySupported()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
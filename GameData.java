@@ -6,8 +6,15 @@ import java.io.Serializable;
  * @author Chen Junliang
  */
 public class GameData implements Serializable {
-    // Command types: NAME(submit name), MOVE(make a move), WIN(victory), DRAW(tie), EXIT(exit), RESTART(restart)
-    public enum Command { NAME, MOVE, WIN, DRAW, EXIT, RESTART }
+    // Pinned to the value computed for the original class so legacy serialization clients stay compatible
+    private static final long serialVersionUID = -292152554367785451L;
+
+    // Command types: NAME(submit name), MOVE(make a move), WIN(victory), DRAW(tie), EXIT(exit), RESTART(restart),
+    // LEADERBOARD(request the top players / one leaderboard row), SESSION(session token for reconnecting),
+    // RESUME(reclaim a seat with a token / state snapshot after reconnecting), WATCH(spectate a room / room snapshot),
+    // ROUTE(cluster traffic between router and nodes, never sent to clients, see ClusterRouter);
+    // new commands go at the end, the codec sends ordinals
+    public enum Command { NAME, MOVE, WIN, DRAW, EXIT, RESTART, LEADERBOARD, SESSION, RESUME, WATCH, ROUTE }
 
     private Command command;
     private String playerName;
@@ -16,6 +23,12 @@ public class GameData implements Serializable {
     private int p1Wins;
     private int p2Wins;
     private int draws;
+    private int boardSize; // 0 = classic 3×3; added fields read as 0 from older peers
+    private int winLength;
+    // Trace stamps on the server's clock in microseconds, 0 when not stamped (see MoveTracer)
+    private long traceSentMicros;
+    private long traceReceivedMicros;
+    private long traceForwardedMicros;
 
     /**
      * Constructor: Initialize data according to different command types
@@ -37,6 +50,25 @@ public class GameData implements Serializable {
         this.draws = draws;
     }
 
+    /**
+     * Constructor for NAME messages that request (client) or confirm (server) a board variant
+     * @param command Command type
+     * @param playerName Player name
+     * @param row Row number (opponent's player ID in server NAME replies)
+     * @param col Column number
+     * @param p1Wins Number of wins for player 1
+     * @param p2Wins Number of wins for player 2
+     * @param draws Number of ties
+     * @param boardSize Board width and height, 0 for the classic 3×3 board
+     * @param winLength Marks in a row needed to win, 0 for the classic 3
+     */
+    public GameData(Command command, String playerName, int row, int col, int p1Wins, int p2Wins, int draws,
+                    int boardSize, int winLength) {
+        this(command, playerName, row, col, p1Wins, p2Wins, draws);
+        this.boardSize = boardSize;
+        this.winLength = winLength;
+    }
+
     // Getters (JavaDoc required for non-private members to meet assignment requirements)
     /**
      * Get the command type
@@ -52,13 +84,13 @@ public class GameData implements Serializable {
 
     /**
      * Get the row number of the move
-     * @return Row index (0-2)
+     * @return Row index (0 to board size - 1)
      */
     public int getRow() { return row; }
 
     /**
      * Get the column number of the move
-     * @return Column index (0-2)
+     * @return Column index (0 to board size - 1)
      */
     public int getCol() { return col; }
 
@@ -79,4 +111,52 @@ public class GameData implements Serializable {
      * @return Cumulative number of ties
      */
     public int getDraws() { return draws; }
+
+    /**
+     * Get the requested or confirmed board size
+     * @return Board width and height, 0 if not given (classic 3×3)
+     */
+    public int getBoardSize() { return boardSize; }
+
+    /**
+     * Get the requested or confirmed win length
+     * @return Marks in a row needed to win, 0 if not given (classic 3)
+     */
+    public int getWinLength() { return winLength; }
+
+    /**
+     * Check whether the message carries trace stamps
+     * @return true if the sender stamped it
+     */
+    public boolean isTraced() { return traceSentMicros != 0; }
+
+    /**
+     * Get when the sender sent the message
+     * @return Server clock in microseconds, 0 if not traced
+     */
+    public long getTraceSentMicros() { return traceSentMicros; }
+
+    /**
+     * Get when the server received the message
+     * @return Server clock in microseconds, 0 if not stamped
+     */
+    public long getTraceReceivedMicros() { return traceReceivedMicros; }
+
+    /**
+     * Get when the server forwarded the message to the opponent
+     * @return Server clock in microseconds, 0 if not stamped
+     */
+    public long getTraceForwardedMicros() { return traceForwardedMicros; }
+
+    /**
+     * Attach trace stamps, before the message is sent or handed to the room
+     * @param sentMicros When the sender sent it, 0 for an untraced message
+     * @param receivedMicros When the server received it, 0 if not yet
+     * @param forwardedMicros When the server forwarded it, 0 if not yet
+     */
+    public void setTrace(long sentMicros, long receivedMicros, long forwardedMicros) {
+        this.traceSentMicros = sentMicros;
+        this.traceReceivedMicros = receivedMicros;
+        this.traceForwardedMicros = forwardedMicros;
+    }
 }
@@ -0,0 +1,268 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of GameData, replacing Java serialization on the wire
+ * A message is one opcode byte (low 4 bits = command, high bits = which optional fields follow), then the optional
+ * player name (varint length + UTF-8), move coordinates (two varints), scores (three varints) and, since version 2,
+ * the board variant (size and win length, two varints), which is only ever sent for non-classic boards.
+ * Since version 3 the server's handshake reply ends with its clock, and a message may end with trace stamps (see
+ * MoveTracer): the send time as a varint, then the receive and forward times as zigzag varint deltas plus one, 0 when
+ * not stamped. Only clients that negotiated version 3 and enabled tracing send them, and the server forwards stamps
+ * only to players whose own messages were stamped, so older peers never see them.
+ * A typical MOVE is 3 bytes instead of the few hundred bytes of a serialized object.
+ * @author Chen Junliang
+ */
+public final class GameDataCodec {
+    /** Protocol version spoken by this build */
+    public static final int VERSION = 3;
+    /** Size of the handshake sent by a binary client and echoed by the server */
+    public static final int HANDSHAKE_SIZE = 4;
+    /** First version whose handshake reply carries the server's clock and whose messages may carry trace stamps */
+    public static final int TRACE_VERSION = 3;
+    /** Size of the server clock (microseconds since the epoch) after a version 3 handshake reply */
+    public static final int CLOCK_SIZE = 8;
+    /** Longest player name accepted, in UTF-8 bytes */
+    public static final int MAX_NAME_BYTES = 256;
+
+    // Handshake is "TTT" + version byte; a legacy client instead starts with the serialization magic 0xACED
+    private static final byte[] MAGIC = {'T', 'T', 'T'};
+    private static final int COMMAND_MASK = 0x0F;
+    private static final int FLAG_NAME = 0x10;
+    private static final int FLAG_COORDS = 0x20;
+    private static final int FLAG_SCORES = 0x40;
+    private static final int FLAG_VARIANT = 0x80;
+    private static final GameData.Command[] COMMANDS = GameData.Command.values();
+
+    private GameDataCodec() {
+    }
+
+    /**
+     * Write the handshake that opens a binary connection
+     * @param buffer Destination buffer
+     * @param version Protocol version offered (client) or accepted (server)
+     */
+    public static void writeHandshake(ByteBuffer buffer, int version) {
+        buffer.put(MAGIC).put((byte) version);
+    }
+
+    /**
+     * Write the server's answer to a handshake: the accepted version, followed by the server clock from version 3
+     * @param buffer Destination buffer with room for HANDSHAKE_SIZE + CLOCK_SIZE bytes
+     * @param version Accepted protocol version
+     */
+    public static void writeHandshakeReply(ByteBuffer buffer, int version) {
+        writeHandshake(buffer, version);
+        if (version >= TRACE_VERSION) buffer.putLong(MoveTracer.currentTimeMicros());
+    }
+
+    /**
+     * Parse a handshake from the first HANDSHAKE_SIZE bytes of a connection
+     * @param bytes First bytes received
+     * @return Offered version, or -1 if the bytes are not a binary handshake (e.g. a legacy serialization client)
+     */
+    public static int readHandshake(byte[] bytes) {
+        if (bytes.length < HANDSHAKE_SIZE) return -1;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) return -1;
+        }
+        return bytes[MAGIC.length] & 0xFF;
+    }
+
+    /**
+     * Choose the version both sides speak
+     * @param offeredVersion Version offered by the peer
+     * @return Version to use, or -1 if there is none in common
+     */
+    public static int negotiate(int offeredVersion) {
+        return offeredVersion >= 1 ? Math.min(offeredVersion, VERSION) : -1;
+    }
+
+    /**
+     * Encode one message at the buffer's position
+     * @param data Game data to encode
+     * @param buffer Destination buffer, advanced past the message
+     * @throws IOException Player name too long to encode
+     */
+    public static void encode(GameData data, ByteBuffer buffer) throws IOException {
+        String name = data.getPlayerName();
+        boolean hasName = name != null && !name.isEmpty();
+        boolean hasCoords = data.getRow() != 0 || data.getCol() != 0;
+        boolean hasScores = data.getP1Wins() != 0 || data.getP2Wins() != 0 || data.getDraws() != 0;
+        boolean hasVariant = data.getBoardSize() != 0 || data.getWinLength() != 0;
+
+        int opcode = data.getCommand().ordinal();
+        if (hasName) opcode |= FLAG_NAME;
+        if (hasCoords) opcode |= FLAG_COORDS;
+        if (hasScores) opcode |= FLAG_SCORES;
+        if (hasVariant) opcode |= FLAG_VARIANT;
+        buffer.put((byte) opcode);
+
+        if (hasName) {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            if (nameBytes.length > MAX_NAME_BYTES) {
+                throw new IOException("Player name too long: " + nameBytes.length + " bytes");
+            }
+            writeVarInt(buffer, nameBytes.length);
+            buffer.put(nameBytes);
+        }
+        if (hasCoords) {
+            writeVarInt(buffer, data.getRow());
+            writeVarInt(buffer, data.getCol());
+        }
+        if (hasScores) {
+            writeVarInt(buffer, data.getP1Wins());
+            writeVarInt(buffer, data.getP2Wins());
+            writeVarInt(buffer, data.getDraws());
+        }
+        if (hasVariant) {
+            writeVarInt(buffer, data.getBoardSize());
+            writeVarInt(buffer, data.getWinLength());
+        }
+        if (data.isTraced()) {
+            writeVarLong(buffer, data.getTraceSentMicros());
+            writeStamp(buffer, data.getTraceReceivedMicros(), data.getTraceSentMicros());
+            writeStamp(buffer, data.getTraceForwardedMicros(), data.getTraceReceivedMicros());
+        }
+    }
+
+    /**
+     * Decode one message from the buffer's position to its limit
+     * Absent fields decode as an empty name and zero numbers
+     * @param buffer Source buffer, advanced past the message
+     * @return Decoded game data
+     * @throws IOException Malformed message
+     */
+    public static GameData decode(ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) throw new IOException("Empty message");
+        int opcode = buffer.get() & 0xFF;
+        int commandIndex = opcode & COMMAND_MASK;
+        if (commandIndex >= COMMANDS.length) throw new IOException("Unknown command: " + commandIndex);
+
+        String name = "";
+        int row = 0, col = 0, p1Wins = 0, p2Wins = 0, draws = 0, boardSize = 0, winLength = 0;
+        if ((opcode & FLAG_NAME) != 0) {
+            int length = readVarInt(buffer);
+            if (length < 0 || length > MAX_NAME_BYTES || length > buffer.remaining()) {
+                throw new IOException("Invalid name length: " + length);
+            }
+            byte[] nameBytes = new byte[length];
+            buffer.get(nameBytes);
+            name = new String(nameBytes, StandardCharsets.UTF_8);
+        }
+        if ((opcode & FLAG_COORDS) != 0) {
+            row = readVarInt(buffer);
+            col = readVarInt(buffer);
+        }
+        if ((opcode & FLAG_SCORES) != 0) {
+            p1Wins = readVarInt(buffer);
+            p2Wins = readVarInt(buffer);
+            draws = readVarInt(buffer);
+        }
+        if ((opcode & FLAG_VARIANT) != 0) {
+            boardSize = readVarInt(buffer);
+            winLength = readVarInt(buffer);
+        }
+        GameData data = new GameData(COMMANDS[commandIndex], name, row, col, p1Wins, p2Wins, draws, boardSize, winLength);
+        if (buffer.hasRemaining()) {
+            // Anything after the fields is the trace section
+            long sent = readVarLong(buffer);
+            long received = readStamp(buffer, sent);
+            long forwarded = readStamp(buffer, received);
+            data.setTrace(sent, received, forwarded);
+        }
+        return data;
+    }
+
+    /**
+     * Write a trace stamp relative to the previous one
+     * @param buffer Destination buffer
+     * @param stamp Stamp, 0 if not stamped
+     * @param previous Previous stamp of the message
+     */
+    private static void writeStamp(ByteBuffer buffer, long stamp, long previous) {
+        if (stamp == 0) {
+            buffer.put((byte) 0);
+            return;
+        }
+        long delta = stamp - previous; // Negative when two clocks disagree
+        writeVarLong(buffer, ((delta << 1) ^ (delta >> 63)) + 1);
+    }
+
+    /**
+     * Read a trace stamp written by writeStamp
+     * @param buffer Source buffer
+     * @param previous Previous stamp of the message
+     * @return Stamp, 0 if not stamped
+     * @throws IOException Truncated or over-long varint
+     */
+    private static long readStamp(ByteBuffer buffer, long previous) throws IOException {
+        long zigzag = readVarLong(buffer);
+        if (zigzag == 0) return 0;
+        zigzag--;
+        return previous + ((zigzag >>> 1) ^ -(zigzag & 1));
+    }
+
+    /**
+     * Write an int as an unsigned LEB128 varint (1 byte for 0-127, at most 5 bytes)
+     * @param buffer Destination buffer
+     * @param value Value to write
+     */
+    public static void writeVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Write a long as an unsigned LEB128 varint (at most 10 bytes)
+     * @param buffer Destination buffer
+     * @param value Value to write
+     */
+    public static void writeVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Read an unsigned LEB128 varint written by writeVarLong
+     * @param buffer Source buffer
+     * @return Decoded value
+     * @throws IOException Truncated or over-long varint
+     */
+    public static long readVarLong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            if (!buffer.hasRemaining()) throw new IOException("Truncated varint");
+            int b = buffer.get();
+            if (shift == 63 && (b & 0x7E) != 0) throw new IOException("Varint overflows a long");
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Varint too long");
+    }
+
+    /**
+     * Read an unsigned LEB128 varint written by writeVarInt
+     * @param buffer Source buffer
+     * @return Decoded value
+     * @throws IOException Truncated or over-long varint
+     */
+    public static int readVarInt(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!buffer.hasRemaining()) throw new IOException("Truncated varint");
+            int b = buffer.get();
+            if (shift == 28 && (b & 0x70) != 0) throw new IOException("Varint overflows an int");
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Varint too long");
+    }
+}
@@ -0,0 +1,568 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append-only log of every game start, move and result
+ * Rooms hand records to append(), which only queues them; a single writer thread drains the queue in batches, encodes
+ * each batch into one buffer and writes it with one FileChannel.write (group commit), forcing to disk at most every
+ * force interval. The log is a directory of numbered segment files, rolled over at a size limit. Each record is
+ * length-prefixed and CRC-checked, so on startup a torn write at the end of the last segment is found and truncated,
+ * and replay() rebuilds per-player totals from whatever was durably written.
+ * @author Chen Junliang
+ */
+public class GameLog {
+    /** System property with the log directory; "none" disables the log */
+    public static final String DIR_PROPERTY = "tictactoe.log.dir";
+    /** System property with the segment size limit in bytes */
+    public static final String SEGMENT_BYTES_PROPERTY = "tictactoe.log.segmentBytes";
+    /** System property with the longest time in milliseconds between disk forces */
+    public static final String FORCE_MS_PROPERTY = "tictactoe.log.forceMs";
+
+    private static final String DEFAULT_DIR = "gamelog";
+    private static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final long DEFAULT_FORCE_MS = 100;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int RECORD_HEADER_SIZE = 8; // Body length and CRC32 of the body
+    private static final int MAX_BODY_SIZE = 4096; // Larger length fields can only come from a torn or corrupt write
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_BATCH = 4096;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long forceNanos;
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE); // Writer thread only
+    private final CRC32 crc = new CRC32(); // Writer thread only
+    private final Thread writer;
+    private volatile boolean isOpen = true;
+    private FileChannel segment; // Writer thread only after construction
+    private int segmentNumber;
+
+    /**
+     * A logged event
+     */
+    public static final class Record {
+        /**
+         * Kind of event
+         */
+        public enum Type {
+            /** Both players named, a game began */
+            GAME_START,
+            /** A valid move was applied */
+            MOVE,
+            /** A game ended; winnerId 0 is a draw */
+            RESULT
+        }
+
+        private static final Type[] TYPES = Type.values();
+
+        private final Type type;
+        private final long timeMillis;
+        private final int roomId;
+        private final int playerId; // Mover for MOVE, winner (0 = draw) for RESULT, board size for GAME_START
+        private final int row; // Win length for GAME_START
+        private final int col;
+        private final String p1Name;
+        private final String p2Name;
+
+        /**
+         * Create a record
+         * @param type Kind of event
+         * @param timeMillis Wall-clock time of the event
+         * @param roomId Room the event happened in
+         * @param playerId Type-specific value, see the field comment
+         * @param row Type-specific value, see the field comment
+         * @param col Move column
+         * @param p1Name Player 1's name, "" if not carried
+         * @param p2Name Player 2's name, "" if not carried
+         */
+        private Record(Type type, long timeMillis, int roomId, int playerId, int row, int col, String p1Name, String p2Name) {
+            this.type = type;
+            this.timeMillis = timeMillis;
+            this.roomId = roomId;
+            this.playerId = playerId;
+            this.row = row;
+            this.col = col;
+            this.p1Name = p1Name == null ? "" : p1Name;
+            this.p2Name = p2Name == null ? "" : p2Name;
+        }
+
+        /**
+         * A game began
+         * @param roomId Room ID
+         * @param p1Name Player 1's name
+         * @param p2Name Player 2's name
+         * @param boardSize Board width and height
+         * @param winLength Marks in a row needed to win
+         * @return Record
+         */
+        public static Record gameStart(int roomId, String p1Name, String p2Name, int boardSize, int winLength) {
+            return new Record(Type.GAME_START, System.currentTimeMillis(), roomId, boardSize, winLength, 0, p1Name, p2Name);
+        }
+
+        /**
+         * A move was applied
+         * @param roomId Room ID
+         * @param playerId Mover (1 or 2)
+         * @param row Move row
+         * @param col Move column
+         * @return Record
+         */
+        public static Record move(int roomId, int playerId, int row, int col) {
+            return new Record(Type.MOVE, System.currentTimeMillis(), roomId, playerId, row, col, "", "");
+        }
+
+        /**
+         * A game ended; both names are carried so totals replay without the matching GAME_START
+         * @param roomId Room ID
+         * @param winnerId Winner (1 or 2), 0 for a draw
+         * @param p1Name Player 1's name
+         * @param p2Name Player 2's name
+         * @return Record
+         */
+        public static Record result(int roomId, int winnerId, String p1Name, String p2Name) {
+            return new Record(Type.RESULT, System.currentTimeMillis(), roomId, winnerId, 0, 0, p1Name, p2Name);
+        }
+
+        /**
+         * Get the kind of event
+         * @return Record type
+         */
+        public Type getType() { return type; }
+
+        /**
+         * Get the wall-clock time of the event
+         * @return Milliseconds since the epoch
+         */
+        public long getTimeMillis() { return timeMillis; }
+
+        /**
+         * Get the room the event happened in
+         * @return Room ID
+         */
+        public int getRoomId() { return roomId; }
+
+        /**
+         * Get the mover of a MOVE or the winner of a RESULT
+         * @return Player ID, 0 for a drawn RESULT
+         */
+        public int getPlayerId() { return playerId; }
+
+        /**
+         * Get the row of a MOVE
+         * @return Row index
+         */
+        public int getRow() { return row; }
+
+        /**
+         * Get the column of a MOVE
+         * @return Column index
+         */
+        public int getCol() { return col; }
+
+        /**
+         * Get the board size of a GAME_START
+         * @return Board width and height
+         */
+        public int getBoardSize() { return playerId; }
+
+        /**
+         * Get the win length of a GAME_START
+         * @return Marks in a row needed to win
+         */
+        public int getWinLength() { return row; }
+
+        /**
+         * Get player 1's name of a GAME_START or RESULT
+         * @return Name, "" if not carried
+         */
+        public String getP1Name() { return p1Name; }
+
+        /**
+         * Get player 2's name of a GAME_START or RESULT
+         * @return Name, "" if not carried
+         */
+        public String getP2Name() { return p2Name; }
+
+        /**
+         * Encode the record body (type and fields, without the length and CRC header)
+         * @param buffer Destination with room for MAX_BODY_SIZE bytes
+         */
+        void encodeBody(ByteBuffer buffer) {
+            buffer.put((byte) type.ordinal());
+            buffer.putLong(timeMillis);
+            buffer.putInt(roomId);
+            buffer.putShort((short) playerId);
+            buffer.putShort((short) row);
+            buffer.putShort((short) col);
+            putString(buffer, p1Name);
+            putString(buffer, p2Name);
+        }
+
+        /**
+         * Decode a record body
+         * @param buffer Source positioned at the body
+         * @return Record
+         */
+        static Record decodeBody(ByteBuffer buffer) {
+            Type type = TYPES[buffer.get()];
+            long timeMillis = buffer.getLong();
+            int roomId = buffer.getInt();
+            int playerId = buffer.getShort();
+            int row = buffer.getShort();
+            int col = buffer.getShort();
+            String p1Name = getString(buffer);
+            String p2Name = getString(buffer);
+            return new Record(type, timeMillis, roomId, playerId, row, col, p1Name, p2Name);
+        }
+
+        /**
+         * Write a string as a 2-byte length and UTF-8 bytes, truncated to keep the body within MAX_BODY_SIZE
+         * @param buffer Destination
+         * @param value String to write
+         */
+        private static void putString(ByteBuffer buffer, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(bytes.length, (MAX_BODY_SIZE - 32) / 2);
+            buffer.putShort((short) length);
+            buffer.put(bytes, 0, length);
+        }
+
+        /**
+         * Read a string written by putString
+         * @param buffer Source
+         * @return Decoded string
+         */
+        private static String getString(ByteBuffer buffer) {
+            int length = buffer.getShort() & 0xFFFF;
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Win, loss and draw counts of one player
+     */
+    public static final class Totals {
+        private int wins;
+        private int losses;
+        private int draws;
+
+        /**
+         * Get the number of games won
+         * @return Wins
+         */
+        public int getWins() { return wins; }
+
+        /**
+         * Get the number of games lost
+         * @return Losses
+         */
+        public int getLosses() { return losses; }
+
+        /**
+         * Get the number of games drawn
+         * @return Draws
+         */
+        public int getDraws() { return draws; }
+
+        @Override
+        public String toString() {
+            return wins + "W/" + losses + "L/" + draws + "D";
+        }
+    }
+
+    /**
+     * Open a log directory: recover the last segment, then start the writer thread
+     * @param directory Log directory, created if missing
+     * @param segmentBytes Size after which the writer starts a new segment
+     * @param forceMillis Longest time between disk forces
+     * @throws IOException Directory or segment cannot be opened
+     */
+    public GameLog(Path directory, long segmentBytes, long forceMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.forceNanos = TimeUnit.MILLISECONDS.toNanos(forceMillis);
+        Files.createDirectories(directory);
+        List<Path> segments = listSegments(directory);
+        if (segments.isEmpty()) {
+            openSegment(1);
+        } else {
+            Path last = segments.get(segments.size() - 1);
+            segmentNumber = segmentNumber(last);
+            segment = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long validBytes = scan(segment, null);
+            if (validBytes < segment.size()) {
+                System.out.println("Game log: truncating " + (segment.size() - validBytes) + " torn bytes from " + last);
+                segment.truncate(validBytes);
+                segment.force(true);
+            }
+            segment.position(validBytes);
+        }
+        writer = new Thread(this::writeLoop, "game-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Open the log configured by system properties, if enabled
+     * @return Open log, or null if disabled or the directory cannot be used
+     */
+    public static GameLog openFromSystemProperty() {
+        String dir = System.getProperty(DIR_PROPERTY, DEFAULT_DIR);
+        if (dir.equals("none")) return null;
+        try {
+            GameLog log = new GameLog(Paths.get(dir), Long.getLong(SEGMENT_BYTES_PROPERTY, DEFAULT_SEGMENT_BYTES),
+                    Long.getLong(FORCE_MS_PROPERTY, DEFAULT_FORCE_MS));
+            System.out.println("Game log at " + Paths.get(dir).toAbsolutePath());
+            return log;
+        } catch (IOException e) {
+            System.out.println("Game log not opened: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Queue a record for writing; never blocks and never touches the disk
+     * @param record Record to append
+     */
+    public void append(Record record) {
+        if (isOpen) queue.add(record);
+    }
+
+    /**
+     * Writer thread: drain the queue in batches, one write per batch, force at most every force interval
+     */
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<>();
+        long lastForceNanos = System.nanoTime();
+        boolean isDirty = false;
+        try {
+            while (isOpen || !queue.isEmpty()) {
+                Record first = queue.poll(forceNanos, TimeUnit.NANOSECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (Record record : batch) {
+                        encode(record);
+                    }
+                    batch.clear();
+                    writeBuffered();
+                    isDirty = true;
+                    if (segment.size() >= segmentBytes) {
+                        segment.force(false);
+                        segment.close();
+                        openSegment(segmentNumber + 1);
+                        isDirty = false;
+                        lastForceNanos = System.nanoTime();
+                    }
+                }
+                if (isDirty && System.nanoTime() - lastForceNanos >= forceNanos) {
+                    segment.force(false);
+                    isDirty = false;
+                    lastForceNanos = System.nanoTime();
+                }
+            }
+            if (isDirty) segment.force(false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Game log writer stopped: " + e.getMessage());
+            isOpen = false;
+        }
+    }
+
+    /**
+     * Append one framed record to the write buffer, writing the buffer out first if it is full
+     * @param record Record to encode
+     * @throws IOException Write failure
+     */
+    private void encode(Record record) throws IOException {
+        if (writeBuffer.remaining() < RECORD_HEADER_SIZE + MAX_BODY_SIZE) writeBuffered();
+        int start = writeBuffer.position();
+        writeBuffer.position(start + RECORD_HEADER_SIZE);
+        record.encodeBody(writeBuffer);
+        int end = writeBuffer.position();
+        ByteBuffer body = writeBuffer.duplicate();
+        body.position(start + RECORD_HEADER_SIZE).limit(end);
+        crc.reset();
+        crc.update(body);
+        writeBuffer.putInt(start, end - start - RECORD_HEADER_SIZE);
+        writeBuffer.putInt(start + 4, (int) crc.getValue());
+    }
+
+    /**
+     * Write the whole write buffer to the current segment
+     * @throws IOException Write failure
+     */
+    private void writeBuffered() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            segment.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    /**
+     * Create and open a new, empty segment
+     * @param number Segment number
+     * @throws IOException Create failure
+     */
+    private void openSegment(int number) throws IOException {
+        segmentNumber = number;
+        Path path = directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        segment.position(segment.size());
+    }
+
+    /**
+     * Stop accepting records, write and force everything queued, and close the segment
+     */
+    public void close() {
+        isOpen = false;
+        try {
+            writer.join();
+            segment.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * List the segment files of a log directory in order
+     * @param directory Log directory
+     * @return Segment paths, oldest first
+     * @throws IOException Directory cannot be read
+     */
+    private static List<Path> listSegments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) return segments;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments); // Zero-padded numbers sort by name
+        return segments;
+    }
+
+    /**
+     * Parse the number of a segment file
+     * @param segment Segment path
+     * @return Segment number
+     */
+    private static int segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Read records from the start of a segment until the end or the first incomplete or corrupt record
+     * @param channel Open segment
+     * @param consumer Receives each valid record, or null to only validate
+     * @return Length of the valid prefix in bytes
+     * @throws IOException Read failure
+     */
+    private static long scan(FileChannel channel, Consumer<Record> consumer) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        CRC32 checksum = new CRC32();
+        long validBytes = 0;
+        long readPosition = 0;
+        while (true) {
+            int read = channel.read(buffer, readPosition);
+            if (read > 0) readPosition += read;
+            buffer.flip();
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                int start = buffer.position();
+                int length = buffer.getInt(start);
+                if (length <= 0 || length > MAX_BODY_SIZE) return validBytes;
+                if (buffer.remaining() < RECORD_HEADER_SIZE + length) break; // Rest of the record is in the next read
+                ByteBuffer body = buffer.duplicate();
+                body.position(start + RECORD_HEADER_SIZE).limit(start + RECORD_HEADER_SIZE + length);
+                checksum.reset();
+                checksum.update(body.duplicate());
+                if ((int) checksum.getValue() != buffer.getInt(start + 4)) return validBytes;
+                if (consumer != null) {
+                    try {
+                        consumer.accept(Record.decodeBody(body));
+                    } catch (RuntimeException e) {
+                        return validBytes; // Checksum matched but the body does not decode: treat as corrupt
+                    }
+                }
+                buffer.position(start + RECORD_HEADER_SIZE + length);
+                validBytes += RECORD_HEADER_SIZE + length;
+            }
+            buffer.compact();
+            if (read <= 0) return validBytes;
+        }
+    }
+
+    /**
+     * Read every valid record of a log directory in order; each segment is read up to its first corrupt record
+     * @param directory Log directory
+     * @param consumer Receives each record
+     * @throws IOException Read failure
+     */
+    public static void replay(Path directory, Consumer<Record> consumer) throws IOException {
+        for (Path path : listSegments(directory)) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                scan(channel, consumer);
+            }
+        }
+    }
+
+    /**
+     * Rebuild every player's win, loss and draw totals from the RESULT records of a log directory
+     * @param directory Log directory
+     * @return Totals by player name
+     * @throws IOException Read failure
+     */
+    public static Map<String, Totals> replayTotals(Path directory) throws IOException {
+        Map<String, Totals> totals = new HashMap<>();
+        replay(directory, record -> {
+            if (record.getType() != Record.Type.RESULT) return;
+            Totals p1 = totals.computeIfAbsent(record.getP1Name(), name -> new Totals());
+            Totals p2 = totals.computeIfAbsent(record.getP2Name(), name -> new Totals());
+            if (record.getPlayerId() == 1) {
+                p1.wins++;
+                p2.losses++;
+            } else if (record.getPlayerId() == 2) {
+                p2.wins++;
+                p1.losses++;
+            } else {
+                p1.draws++;
+                p2.draws++;
+            }
+        });
+        return totals;
+    }
+
+    /**
+     * Get the log directory
+     * @return Directory holding the segments
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+}
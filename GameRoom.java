@@ -0,0 +1,849 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One independent two-player match hosted by the server
+ * Holds its own board, turn and scores so that many rooms can run side by side in one server process
+ * The room is an actor: every entry point only queues a task on its lock-free mailbox, and one thread at a time owns
+ * the room and runs the tasks in order, so game state needs no lock. The thread that finds the room idle runs the
+ * tasks itself, which on the NIO engine means no hand-off at all; a backlog longer than one batch moves to the
+ * server's room pool, so a busy room cannot hold a reader thread for long and rooms spread over all cores.
+ * A player who asked for a session token keeps its seat for the server's reconnect grace window after its connection
+ * drops, and gets it back, with a snapshot of the board, turn and scores, by reconnecting with RESUME and the token
+ * Spectators get IDs from 3 up, so their connections read into the same handleClientData, and follow the game
+ * through the room's SpectatorFeed
+ * Traced messages (see MoveTracer) are stamped when they arrive and, for moves, when they are forwarded; stamps are
+ * only forwarded to a player whose own messages are traced, since only such a client can read them
+ * @author Chen Junliang
+ */
+public class GameRoom {
+    private static final int DEFAULT_LEADERBOARD_SIZE = 10;
+    private static final int MAX_LEADERBOARD_SIZE = 100;
+    /** Lowest ID given to a spectator; player IDs are 1 and 2 */
+    public static final int FIRST_SPECTATOR_ID = 3;
+    private static final int TASKS_PER_RUN = 64; // Tasks one thread runs before handing the room to the room pool
+    private final int roomId;
+    private final TicTacToeServer server;
+    private final ServerMetrics metrics;
+    private final GameLog gameLog; // Null when the server runs without a log
+    private final GameArchive archive; // Null when the server runs without an archive
+    private final PlayerStore playerStore; // Null when the server runs without a player store
+    private final Executor roomExecutor; // Runs the mailbox when a batch was not enough
+    private final boolean isBlockingPolicy; // BLOCK outbound policy: a client that falls behind holds back its sender
+    private final MpscQueue<Runnable> mailbox = new MpscQueue<>(); // Tasks for the room, from any thread
+    private final AtomicBoolean isRunning = new AtomicBoolean(); // Some thread owns the room and is running its tasks
+    private volatile boolean isRoomOpen = true; // Whether the room still accepts messages; written by the owner only
+    // Everything below is only touched by the thread that owns the room
+    // Replaced when a player drops (by a DetachedPlayer) and when it resumes
+    private PlayerChannel player1;
+    private PlayerChannel player2;
+    private boolean isCurrentGameRunning; // Whether the current game is in progress
+    private boolean isPlayer1Turn;
+    private String p1Name;
+    private String p2Name;
+    private int p1Wins;
+    private int p2Wins;
+    private int draws;
+    private String p1Token; // Session tokens, issued when the player asks for one in its NAME
+    private String p2Token;
+    private boolean isP1Traced; // The seat's client stamps its messages, so it understands forwarded stamps
+    private boolean isP2Traced;
+    private boolean isP1HeldBack; // Seat's reading is paused until a client behind on its messages catches up
+    private boolean isP2HeldBack;
+    // Messages a held back seat's reader had already queued, handled once the seat is released
+    private final ArrayDeque<GameData> p1HeldMessages = new ArrayDeque<>();
+    private final ArrayDeque<GameData> p2HeldMessages = new ArrayDeque<>();
+    private final Board board; // Room maintains its own bitboard
+    private final int[] gameMoves; // Cell of each move of the current game, by move number, for the archive
+    private final int variantSize; // Board size sent in NAME replies, 0 for the classic board
+    private final int variantWinLength;
+    private final SpectatorFeed spectators;
+    private final List<PlayerChannel> failedChannels = new ArrayList<>(2); // Sends that failed during one message
+    private int nextSpectatorId = FIRST_SPECTATOR_ID;
+
+    /**
+     * Create a room for two matched players
+     * @param roomId Unique room ID assigned by the server
+     * @param server Owning server, notified when the room closes
+     * @param player1 Connection of player 1 (X)
+     * @param player2 Connection of player 2 (O)
+     * @param boardSize Board width and height both players asked for
+     * @param winLength Marks in a row needed to win
+     */
+    public GameRoom(int roomId, TicTacToeServer server, PlayerChannel player1, PlayerChannel player2,
+                    int boardSize, int winLength) {
+        this.roomId = roomId;
+        this.server = server;
+        this.metrics = server.getMetrics();
+        this.gameLog = server.getGameLog();
+        this.archive = server.getArchive();
+        this.playerStore = server.getPlayerStore();
+        this.roomExecutor = server.getRoomExecutor();
+        this.isBlockingPolicy = server.getOutboundPolicy() == OutboundLimit.Policy.BLOCK;
+        this.player1 = player1;
+        this.player2 = player2;
+        this.board = new Board(boardSize, winLength);
+        this.gameMoves = new int[boardSize * boardSize];
+        // Classic rooms leave the variant out, so clients that predate variants never see the new fields
+        boolean isClassic = boardSize == Board.DEFAULT_SIZE && winLength == Board.DEFAULT_WIN_LENGTH;
+        this.variantSize = isClassic ? 0 : boardSize;
+        this.variantWinLength = isClassic ? 0 : winLength;
+        this.spectators = new SpectatorFeed(this::tell, this::spectatorSnapshot, server.getSpectatorExecutor(), metrics);
+        isCurrentGameRunning = false; // Initial game not started
+        isPlayer1Turn = true;
+        p1Wins = 0;
+        p2Wins = 0;
+        draws = 0;
+    }
+
+    /**
+     * Get the room ID
+     * @return Room ID
+     */
+    public int getRoomId() { return roomId; }
+
+    /**
+     * Start delivering both players' messages to this room
+     */
+    public void start() {
+        tell(() -> {
+            player1.startReading(this, 1);
+            player2.startReading(this, 2);
+        });
+    }
+
+    /**
+     * Queue a task for the room, and run the mailbox on this thread if no other thread owns the room
+     * @param task Task that reads or changes room state
+     */
+    private void tell(Runnable task) {
+        mailbox.offer(task);
+        if (isRunning.compareAndSet(false, true)) runMailbox();
+    }
+
+    /**
+     * Run queued tasks as the room's owner, handing ownership to the room pool after TASKS_PER_RUN of them
+     * Ownership is given up only once the mailbox looks empty, and taken back if a task arrived meanwhile
+     */
+    private void runMailbox() {
+        do {
+            Runnable task;
+            int count = 0;
+            while ((task = mailbox.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace(); // One bad task must not leave the room without an owner
+                }
+                if (++count == TASKS_PER_RUN && !mailbox.isEmpty()) {
+                    try {
+                        roomExecutor.execute(this::runMailbox); // Still the owner, on a pool thread from now on
+                        return;
+                    } catch (RejectedExecutionException e) {
+                        count = 0; // Server shutting down, finish here
+                    }
+                }
+            }
+            isRunning.set(false);
+        } while (!mailbox.isEmpty() && isRunning.compareAndSet(false, true));
+    }
+
+    /**
+     * Handle a lost connection reported by a player's transport
+     * A player holding a session token keeps its seat for the grace window; anyone else ends the room at once
+     * @param playerId Player ID whose connection was lost (1 or 2, or a spectator's ID)
+     * @param channel Connection that was lost, ignored if the seat has since moved to a newer one
+     */
+    public void onDisconnect(int playerId, PlayerChannel channel) {
+        if (!isRoomOpen) return;
+        tell(() -> playerLost(playerId, channel));
+    }
+
+    /**
+     * Hold or give up the seat of a player whose connection was lost, run by the room's owner
+     * @param playerId Player ID whose connection was lost
+     * @param channel Connection that was lost
+     */
+    private void playerLost(int playerId, PlayerChannel channel) {
+        if (!isRoomOpen) return; // The other player's reader already closed the room
+        if (playerId >= FIRST_SPECTATOR_ID) {
+            spectators.remove(playerId);
+            return;
+        }
+        if (channel != channelOf(playerId)) return; // Replaced by a reconnect
+        String token = playerId == 1 ? p1Token : p2Token;
+        if (token == null || server.getReconnectGraceMs() <= 0) {
+            System.out.println("Room " + roomId + ": player " + playerId + " disconnected");
+            notifyOpponentExit(playerId == 1 ? 2 : 1);
+            return;
+        }
+        System.out.println("Room " + roomId + ": player " + playerId + " disconnected, seat held for "
+                + server.getReconnectGraceMs() + " ms");
+        channel.close();
+        DetachedPlayer detached = new DetachedPlayer();
+        setChannel(playerId, detached);
+        server.scheduleSessionExpiry(() -> tell(() -> expireSeat(playerId, detached)));
+    }
+
+    /**
+     * End the room if a dropped player has not come back by the end of the grace window
+     * @param playerId Player ID whose seat was held
+     * @param detached Placeholder put in the seat when the connection dropped
+     */
+    private void expireSeat(int playerId, DetachedPlayer detached) {
+        if (!isRoomOpen || channelOf(playerId) != detached) return; // Resumed, or the room already ended
+        System.out.println("Room " + roomId + ": player " + playerId + " did not reconnect");
+        notifyOpponentExit(playerId == 1 ? 2 : 1);
+    }
+
+    /**
+     * Move a seat to the connection of a reconnecting player, called by the server
+     * A seat whose old connection has not been noticed as dropped yet is taken over, closing the old connection;
+     * a token that no longer belongs to this open room is turned away with EXIT
+     * The RESUME snapshot is queued as soon as the seat moves, so it is the first message on the new connection
+     * @param token Session token the player reconnected with
+     * @param channel New connection, holding the player's RESUME until reading starts
+     */
+    public void resume(String token, PlayerChannel channel) {
+        tell(() -> {
+            int playerId = !isRoomOpen ? 0 : token.equals(p1Token) ? 1 : token.equals(p2Token) ? 2 : 0;
+            if (playerId == 0) {
+                System.out.println("Resume rejected: " + channel.getRemoteAddress());
+                server.rejectPlayer(channel, ServerMetrics.DisconnectReason.RESUME_REJECTED);
+                return;
+            }
+            channelOf(playerId).close();
+            setChannel(playerId, channel);
+            setTraced(playerId, false); // Until the new connection's RESUME shows otherwise
+            setHeldBack(playerId, false); // The old connection's pause went with it
+            heldMessagesOf(playerId).clear(); // Unhandled like anything else lost with the connection; RESUME resyncs
+            System.out.println("Room " + roomId + ": player " + playerId + " reconnected");
+            sendTo(channel, snapshotFor(playerId)); // Ahead of any move the opponent makes from now on
+            flushPlayers();
+            dropFailedChannels();
+            if (channelOf(playerId) == channel) channel.startReading(this, playerId); // The held RESUME only sets tracing
+        });
+    }
+
+    /**
+     * Add a spectator connection, called by the server; a room that has closed meanwhile turns it away with EXIT
+     * @param channel Spectator's connection, holding its WATCH until reading starts
+     */
+    public void watch(PlayerChannel channel) {
+        tell(() -> {
+            if (!isRoomOpen) {
+                server.rejectPlayer(channel, ServerMetrics.DisconnectReason.WATCH_REJECTED);
+                return;
+            }
+            int spectatorId = nextSpectatorId++;
+            spectators.add(spectatorId, channel);
+            channel.startReading(this, spectatorId); // The held WATCH arrives first and starts the stream
+        });
+    }
+
+    /**
+     * Build the messages that bring a spectator up to date, run by the room's owner
+     * @return WATCH snapshot (board as name, room ID as row, player to move as col), then each known player's NAME
+     */
+    private List<GameData> spectatorSnapshot() {
+        List<GameData> messages = new ArrayList<>(3);
+        int toMove = isCurrentGameRunning ? (isPlayer1Turn ? 1 : 2) : 0;
+        messages.add(new GameData(GameData.Command.WATCH, board.toSnapshot(), roomId, toMove, p1Wins, p2Wins, draws,
+                board.getSize(), board.getWinLength()));
+        if (p1Name != null) messages.add(new GameData(GameData.Command.NAME, p1Name, 1, 0, p1Wins, p2Wins, draws));
+        if (p2Name != null) messages.add(new GameData(GameData.Command.NAME, p2Name, 2, 0, p1Wins, p2Wins, draws));
+        return messages;
+    }
+
+    /**
+     * Queue data sent by a client for the room; returns without waiting for it to be handled
+     * @param data Game data transmitted by client
+     * @param playerId Player ID (1 or 2, or a spectator's ID)
+     */
+    public void handleClientData(GameData data, int playerId) {
+        if (!isRoomOpen) return;
+        metrics.messageIn(data.getCommand());
+        if (data.isTraced()) data.setTrace(data.getTraceSentMicros(), MoveTracer.currentTimeMicros(), 0);
+        tell(() -> handle(data, playerId));
+    }
+
+    /**
+     * Execute the logic of one client message according to its command type, run by the room's owner
+     * A connection that a reply cannot be sent to loses its seat like a lost connection, whoever sent the message
+     * @param data Game data transmitted by client
+     * @param playerId Player ID (1 or 2, or a spectator's ID)
+     */
+    private void handle(GameData data, int playerId) {
+        if (!isRoomOpen) return;
+        if (playerId < FIRST_SPECTATOR_ID && isHeldBack(playerId)) {
+            heldMessagesOf(playerId).add(data); // Read before the pause took effect
+            return;
+        }
+        long startNanos = System.nanoTime();
+        try {
+            if (playerId >= FIRST_SPECTATOR_ID) {
+                // Spectators may only start watching or leave
+                if (data.getCommand() == GameData.Command.WATCH) spectators.activate(playerId);
+                else if (data.getCommand() == GameData.Command.EXIT) spectators.remove(playerId);
+                return;
+            }
+            if (data.isTraced()) setTraced(playerId, true);
+            switch (data.getCommand()) {
+                case NAME:
+                    // Save player name and synchronize "opponent's ID + name" to client
+                    // A NAME with row 1 asks for a session token, answered before the NAME replies
+                    if (data.getRow() == 1) issueSessionToken(playerId);
+                    if (playerId == 1) {
+                        p1Name = data.getPlayerName();
+                        // Send confirmation to player 1
+                        sendTo(player1, nameReply(p2Name, 2));
+                    } else {
+                        p2Name = data.getPlayerName();
+                        // Send to player 1: player 2's ID is 2 + name
+                        sendTo(player1, nameReply(p2Name, 2));
+                    }
+                    spectators.publish(new GameData(GameData.Command.NAME, data.getPlayerName(), playerId, 0,
+                            p1Wins, p2Wins, draws));
+                    // Start current game after both players submit names
+                    if (p1Name != null && p2Name != null) {
+                        if (!isCurrentGameRunning) logGameStart();
+                        isCurrentGameRunning = true;
+                        // Send to player 2: player 1's ID is 1 + name
+                        sendTo(player2, nameReply(p1Name, 1));
+                    }
+                    break;
+
+                case MOVE:
+                    // Verify move validity (current game must be running)
+                    int row = data.getRow();
+                    int col = data.getCol();
+                    if (isCurrentGameRunning && isValidMove(row, col, playerId)) {
+                        board.place(row, col, playerId);
+                        gameMoves[board.getMoveCount() - 1] = row * board.getSize() + col;
+                        metrics.moveHandled();
+                        log(GameLog.Record.move(roomId, playerId, row, col));
+
+                        // Forward move information to opponent
+                        GameData moveData = new GameData(GameData.Command.MOVE, "", row, col, p1Wins, p2Wins, draws);
+                        sendTo(opponentOf(playerId), forwardedMove(data, moveData, playerId == 1 ? 2 : 1));
+                        spectators.publish(moveData);
+
+                        // Determine win or loss (only the lines through the new mark can have changed)
+                        if (isWinningMove(row, col)) {
+                            handleWin(playerId);
+                            isCurrentGameRunning = false; // Game ends
+                        } else if (isBoardFull()) {
+                            handleDraw();
+                            isCurrentGameRunning = false; // Game ends
+                        } else {
+                            switchTurn(); // Switch turns
+                        }
+                    }
+                    break;
+
+                case RESTART:
+                    // Restart game, reset board and turn
+                    // Both players may ask; the second request finds the new game already started and unplayed
+                    boolean isNewGame = !isCurrentGameRunning || board.getMoveCount() > 0;
+                    resetBoard();
+                    isPlayer1Turn = true;
+                    isCurrentGameRunning = true; // Start new game after restart
+                    if (isNewGame) logGameStart();
+                    GameData restartData = new GameData(GameData.Command.RESTART, "", 0, 0, p1Wins, p2Wins, draws);
+                    sendTo(player1, restartData);
+                    sendTo(player2, restartData);
+                    spectators.publish(restartData);
+                    break;
+
+                case LEADERBOARD:
+                    // Answer only the asking player; the row field carries how many players were asked for
+                    sendLeaderboard(channelOf(playerId), data.getRow());
+                    break;
+
+                case RESUME:
+                    // Already answered with a snapshot by resume(), when the seat moved to this connection
+                    break;
+
+                case EXIT:
+                    // Handle player exit, only this room is closed
+                    metrics.disconnected(ServerMetrics.DisconnectReason.CLIENT_EXIT, 1);
+                    notifyOpponentExit(playerId == 1 ? 2 : 1);
+                    break;
+            }
+            flushPlayers(); // Everything this message produced leaves in one write per player
+            dropFailedChannels();
+            holdBackIfBehind(playerId);
+            closeIfDraining(); // A game that just ended is the last one while the server drains
+        } finally {
+            metrics.recordHandleTime(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Build the RESUME snapshot of a reclaimed seat: the board, whose turn it is and the scores in one message
+     * @param playerId Player ID (1 or 2)
+     * @return RESUME message: board snapshot as name, the player's ID as row, player to move as col (0 if no game runs)
+     */
+    private GameData snapshotFor(int playerId) {
+        int toMove = isCurrentGameRunning ? (isPlayer1Turn ? 1 : 2) : 0;
+        return new GameData(GameData.Command.RESUME, board.toSnapshot(), playerId, toMove,
+                p1Wins, p2Wins, draws, board.getSize(), board.getWinLength());
+    }
+
+    /**
+     * Queue a message for a player, remembering the connection if it fails instead of failing the whole message
+     * @param channel Player's connection
+     * @param data Game data to send
+     */
+    private void sendTo(PlayerChannel channel, GameData data) {
+        try {
+            channel.send(data);
+        } catch (IOException e) {
+            sendFailed(channel, e);
+        }
+    }
+
+    /**
+     * Deliver the messages queued for both players while the room is open
+     */
+    private void flushPlayers() {
+        if (!isRoomOpen) return;
+        for (PlayerChannel player : new PlayerChannel[] {player1, player2}) {
+            try {
+                player.flush();
+            } catch (IOException e) {
+                sendFailed(player, e);
+            }
+        }
+    }
+
+    /**
+     * Remember a connection that could not be sent to, dropped by dropFailedChannels once the message is handled
+     * @param channel Connection that failed
+     * @param e Sending exception
+     */
+    private void sendFailed(PlayerChannel channel, IOException e) {
+        if (failedChannels.contains(channel)) return;
+        System.out.println("Room " + roomId + ": cannot send to " + channel.getRemoteAddress() + ": " + e.getMessage());
+        failedChannels.add(channel);
+    }
+
+    /**
+     * End the seat of each connection a send or flush failed on, like a lost connection
+     * A closed transport has counted its own disconnect; one still open failed to encode and is counted here
+     */
+    private void dropFailedChannels() {
+        for (PlayerChannel channel : failedChannels) {
+            if (isRoomOpen && channel.isOpen()) metrics.disconnected(ServerMetrics.DisconnectReason.WRITE_FAILED, 1);
+            if (channel == player1) playerLost(1, channel);
+            else if (channel == player2) playerLost(2, channel);
+        }
+        failedChannels.clear();
+    }
+
+    /**
+     * Build a NAME reply telling a player who the opponent is and which board the room plays
+     * @param opponentName Opponent's name (null until submitted)
+     * @param opponentId Opponent's player ID, carried in the row field
+     * @return NAME message
+     */
+    private GameData nameReply(String opponentName, int opponentId) {
+        return new GameData(GameData.Command.NAME, opponentName, opponentId, 0, p1Wins, p2Wins, draws,
+                variantSize, variantWinLength);
+    }
+
+    /**
+     * Queue a record on the server's game log, if any (never blocks)
+     * @param record Record to append
+     */
+    private void log(GameLog.Record record) {
+        if (gameLog != null) gameLog.append(record);
+    }
+
+    /**
+     * Hand the finished game's moves to the server's game archive, if any (never blocks)
+     * @param winnerId Winner (1 or 2), or GameArchive.DRAW
+     */
+    private void archiveGame(int winnerId) {
+        if (archive != null) archive.append(board.getSize(), board.getWinLength(), gameMoves, board.getMoveCount(), winnerId);
+    }
+
+    /**
+     * Log the start of a game with both names and the board variant
+     */
+    private void logGameStart() {
+        log(GameLog.Record.gameStart(roomId, p1Name, p2Name, board.getSize(), board.getWinLength()));
+    }
+
+    /**
+     * Send the top players as one LEADERBOARD message per player followed by an end marker
+     * Each row carries rank, rounded rating, wins, losses and draws in the row, col and score fields; the marker has
+     * rank 0 and the total number of rated players in col (0 when the store cannot be read)
+     * @param player Connection of the asking player
+     * @param requested Number of players asked for, 0 for the default
+     */
+    private void sendLeaderboard(PlayerChannel player, int requested) {
+        int total = 0;
+        if (playerStore != null) {
+            int count = requested <= 0 ? DEFAULT_LEADERBOARD_SIZE : Math.min(requested, MAX_LEADERBOARD_SIZE);
+            try {
+                List<PlayerStats> top = playerStore.getTopPlayers(count);
+                for (int i = 0; i < top.size(); i++) {
+                    PlayerStats stats = top.get(i);
+                    sendTo(player, new GameData(GameData.Command.LEADERBOARD, stats.getName(), i + 1,
+                            (int) Math.max(0, Math.round(stats.getRating())), stats.getWins(), stats.getLosses(), stats.getDraws()));
+                }
+                total = playerStore.getPlayerCount();
+            } catch (IOException e) {
+                // The store's fault, not the player's: answer with the end marker alone
+                System.out.println("Room " + roomId + ": leaderboard unavailable: " + e.getMessage());
+            }
+        }
+        sendTo(player, new GameData(GameData.Command.LEADERBOARD, "", 0, total, 0, 0, 0));
+    }
+
+    /**
+     * Issue a session token for a seat, once, and send it to the player
+     * @param playerId Player ID (1 or 2)
+     */
+    private void issueSessionToken(int playerId) {
+        String token = playerId == 1 ? p1Token : p2Token;
+        if (token == null) {
+            token = server.issueSessionToken(this);
+            if (playerId == 1) p1Token = token;
+            else p2Token = token;
+        }
+        sendTo(channelOf(playerId), new GameData(GameData.Command.SESSION, token, playerId, 0, 0, 0, 0));
+    }
+
+    /**
+     * Get the move to forward to the opponent, stamped with the forward time if both players trace
+     * @param request MOVE as received from the mover, with its send and receive stamps
+     * @param move Untraced MOVE, also sent to spectators
+     * @param opponentId Opponent player ID (1 or 2)
+     * @return Message for the opponent
+     */
+    private GameData forwardedMove(GameData request, GameData move, int opponentId) {
+        if (!request.isTraced() || !(opponentId == 1 ? isP1Traced : isP2Traced)) return move;
+        GameData traced = new GameData(GameData.Command.MOVE, "", move.getRow(), move.getCol(), p1Wins, p2Wins, draws);
+        traced.setTrace(request.getTraceSentMicros(), request.getTraceReceivedMicros(), MoveTracer.currentTimeMicros());
+        return traced;
+    }
+
+    /**
+     * Record whether a seat's client traces its messages
+     * @param playerId Player ID (1 or 2)
+     * @param isTraced true once a traced message arrived from the seat's current connection
+     */
+    private void setTraced(int playerId, boolean isTraced) {
+        if (playerId == 1) isP1Traced = isTraced;
+        else isP2Traced = isTraced;
+    }
+
+    /**
+     * Stop reading from a player while a seat is behind on what its message produced, under the BLOCK outbound policy
+     * The room never waits for a slow client itself: the sender's connection is resumed by a task the slow client's
+     * OutboundLimit runs once it is back under its low watermark, or once it closes
+     * @param playerId Player ID (1 or 2) whose message was just handled
+     */
+    private void holdBackIfBehind(int playerId) {
+        if (!isBlockingPolicy || !isRoomOpen || isHeldBack(playerId)) return;
+        PlayerChannel sender = channelOf(playerId);
+        Runnable resume = () -> {
+            try {
+                // Off the thread draining the slow client, whose flush must not be re-entered by the room's sends
+                roomExecutor.execute(() -> tell(() -> releaseHeldBack(playerId, sender)));
+            } catch (RejectedExecutionException e) {
+                // Server shutting down
+            }
+        };
+        if (player1.whenCaughtUp(resume) || player2.whenCaughtUp(resume)) {
+            setHeldBack(playerId, true);
+            sender.pauseReading();
+        }
+    }
+
+    /**
+     * Handle a held back player's messages again, run by the room's owner once the client it waited for caught up
+     * Messages held meanwhile are handled first, in order, until one of them leaves a client behind again
+     * @param playerId Player ID (1 or 2)
+     * @param sender Connection that was paused; a seat that has moved to a new connection since is left alone
+     */
+    private void releaseHeldBack(int playerId, PlayerChannel sender) {
+        if (channelOf(playerId) != sender) return;
+        setHeldBack(playerId, false);
+        ArrayDeque<GameData> held = heldMessagesOf(playerId);
+        GameData data;
+        while (!isHeldBack(playerId) && (data = held.poll()) != null) handle(data, playerId);
+        holdBackIfBehind(playerId); // The other seat may still be behind
+        if (!isHeldBack(playerId)) sender.resumeReading();
+    }
+
+    /**
+     * Get the messages held for a seat while it is held back
+     * @param playerId Player ID (1 or 2)
+     * @return Seat's held messages, oldest first
+     */
+    private ArrayDeque<GameData> heldMessagesOf(int playerId) {
+        return playerId == 1 ? p1HeldMessages : p2HeldMessages;
+    }
+
+    /**
+     * Check whether a seat's reading is paused
+     * @param playerId Player ID (1 or 2)
+     * @return true while the seat waits for a slow client to catch up
+     */
+    private boolean isHeldBack(int playerId) {
+        return playerId == 1 ? isP1HeldBack : isP2HeldBack;
+    }
+
+    /**
+     * Record whether a seat's reading is paused
+     * @param playerId Player ID (1 or 2)
+     * @param isHeldBack true while the seat waits for a slow client to catch up
+     */
+    private void setHeldBack(int playerId, boolean isHeldBack) {
+        if (playerId == 1) isP1HeldBack = isHeldBack;
+        else isP2HeldBack = isHeldBack;
+    }
+
+    /**
+     * Get the connection in a seat
+     * @param playerId Player ID (1 or 2)
+     * @return Player's current connection
+     */
+    private PlayerChannel channelOf(int playerId) {
+        return playerId == 1 ? player1 : player2;
+    }
+
+    /**
+     * Put a connection in a seat
+     * @param playerId Player ID (1 or 2)
+     * @param channel New connection of the player
+     */
+    private void setChannel(int playerId, PlayerChannel channel) {
+        if (playerId == 1) player1 = channel;
+        else player2 = channel;
+    }
+
+    /**
+     * Get the connection of the opponent of a player
+     * @param playerId Player ID (1 or 2)
+     * @return Opponent's connection
+     */
+    private PlayerChannel opponentOf(int playerId) {
+        return playerId == 1 ? player2 : player1;
+    }
+
+    /**
+     * Verify if a move is valid (empty board position + current player's turn)
+     * @param row Move row number
+     * @param col Move column number
+     * @param playerId Player ID
+     * @return true if valid, false otherwise
+     */
+    private boolean isValidMove(int row, int col, int playerId) {
+        if (!board.isInside(row, col)) return false;
+        if (!board.isEmpty(row, col)) return false;
+        return (playerId == 1 && isPlayer1Turn) || (playerId == 2 && !isPlayer1Turn);
+    }
+
+    /**
+     * Check if a move completed k in a row through its cell
+     * @param row Row of the move just placed
+     * @param col Column of the move just placed
+     * @return true if the mover won, false otherwise
+     */
+    private boolean isWinningMove(int row, int col) {
+        return board.isWinningMove(row, col);
+    }
+
+    /**
+     * Check if the board is full (tie determination)
+     * @return true if board is full, false otherwise
+     */
+    private boolean isBoardFull() {
+        return board.isFull();
+    }
+
+    /**
+     * Handle player win logic, update scores and notify both players
+     * @param winnerId Winning player ID (1 or 2)
+     */
+    private void handleWin(int winnerId) {
+        if (winnerId == 1) p1Wins++;
+        else p2Wins++;
+        log(GameLog.Record.result(roomId, winnerId, p1Name, p2Name));
+        archiveGame(winnerId);
+        if (playerStore != null) playerStore.recordResult(p1Name, p2Name, winnerId);
+
+        GameData winData = new GameData(
+                GameData.Command.WIN,
+                winnerId == 1 ? p1Name : p2Name,
+                0, 0,
+                p1Wins, p2Wins, draws
+        );
+        sendTo(player1, winData);
+        sendTo(player2, winData);
+        spectators.publish(winData);
+    }
+
+    /**
+     * Handle tie logic, update scores and notify both players
+     */
+    private void handleDraw() {
+        draws++;
+        log(GameLog.Record.result(roomId, 0, p1Name, p2Name));
+        archiveGame(GameArchive.DRAW);
+        if (playerStore != null) playerStore.recordResult(p1Name, p2Name, 0);
+        GameData drawData = new GameData(
+                GameData.Command.DRAW,
+                "", 0, 0,
+                p1Wins, p2Wins, draws
+        );
+        sendTo(player1, drawData);
+        sendTo(player2, drawData);
+        spectators.publish(drawData);
+    }
+
+    /**
+     * Switch player turns
+     */
+    private void switchTurn() {
+        isPlayer1Turn = !isPlayer1Turn;
+    }
+
+    /**
+     * Notify opponent that a player has exited, then close this room
+     * Send failures are ignored because the room is being torn down anyway
+     * @param opponentId Opponent player ID (1 or 2)
+     */
+    private void notifyOpponentExit(int opponentId) {
+        GameData exitData = new GameData(GameData.Command.EXIT, "", 0, 0, p1Wins, p2Wins, draws);
+        try {
+            PlayerChannel opponent = opponentId == 1 ? player1 : player2;
+            opponent.send(exitData);
+            opponent.flush();
+        } catch (IOException ignored) {
+            // Opponent is already gone as well
+        }
+        closeRoom();
+    }
+
+    /**
+     * Reset the board (clear all moves)
+     */
+    private void resetBoard() {
+        board.reset();
+    }
+
+    /**
+     * Close the room once no game is in progress, called by the server when it starts draining
+     */
+    public void drain() {
+        tell(this::closeIfDraining);
+    }
+
+    /**
+     * Send EXIT to both players and close the room if the server is draining and no game is in progress, run by the
+     * room's owner
+     */
+    private void closeIfDraining() {
+        if (!isRoomOpen || isCurrentGameRunning || !server.isDraining()) return;
+        metrics.disconnected(ServerMetrics.DisconnectReason.SERVER_SHUTDOWN, 2);
+        GameData exitData = new GameData(GameData.Command.EXIT, "", 0, 0, p1Wins, p2Wins, draws);
+        for (PlayerChannel player : new PlayerChannel[] {player1, player2}) {
+            try {
+                player.send(exitData);
+                player.flush();
+            } catch (IOException ignored) {
+                // Player is already gone
+            }
+        }
+        closeRoom();
+    }
+
+    /**
+     * Close the room, called by the server on shutdown
+     */
+    public void close() {
+        tell(this::closeRoom);
+    }
+
+    /**
+     * Close both player connections and unregister the room from the server, run by the room's owner
+     */
+    private void closeRoom() {
+        if (!isRoomOpen) return;
+        isRoomOpen = false;
+        player1.close();
+        player2.close();
+        spectators.closeAll(new GameData(GameData.Command.EXIT, "", 0, 0, p1Wins, p2Wins, draws));
+        String token1 = p1Token;
+        String token2 = p2Token;
+        if (token1 != null) server.endSession(token1);
+        if (token2 != null) server.endSession(token2);
+        server.removeRoom(this);
+        System.out.println("Room " + roomId + " closed");
+    }
+
+    /**
+     * Stand-in for a dropped player while its seat is held: messages for it are discarded, the snapshot sent on
+     * RESUME brings the player up to date
+     */
+    private static final class DetachedPlayer implements PlayerChannel {
+        @Override
+        public void send(GameData data) {
+        }
+
+        @Override
+        public void sendFrame(ByteBuffer frame) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public boolean isWritable() {
+            return true;
+        }
+
+        @Override
+        public void startReading(GameRoom room, int playerId) {
+        }
+
+        @Override
+        public void pauseReading() {
+        }
+
+        @Override
+        public void resumeReading() {
+        }
+
+        @Override
+        public boolean whenCaughtUp(Runnable task) {
+            return false;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return false;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "detached";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,102 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable consistent-hash ring mapping integer keys (game and room IDs) to nodes
+ * Each node is placed at POINTS_PER_NODE pseudo-random points on a 32-bit ring, hashed from its name, and a key
+ * belongs to the first point at or after the key's own hash. Adding or removing a node therefore only moves the keys
+ * of the arcs that node gains or loses, about 1/N of them, and the many points per node keep the shares even.
+ * Membership changes build a new ring, so lookups need no lock.
+ * @param <N> Node type; its toString() names the node and must be stable and unique
+ * @author Chen Junliang
+ */
+public final class HashRing<N> {
+    /** Points each node occupies on the ring */
+    public static final int POINTS_PER_NODE = 160;
+
+    private final TreeMap<Integer, N> points = new TreeMap<>();
+    private final List<N> nodes;
+
+    /**
+     * Build a ring of the given nodes
+     * @param nodes Members, without duplicates
+     */
+    public HashRing(Collection<N> nodes) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        for (N node : nodes) {
+            String name = node.toString();
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                points.put(hash(name + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * Find the node owning a key
+     * @param key Game or room ID
+     * @return Owning node, or null if the ring is empty
+     */
+    public N nodeFor(int key) {
+        if (points.isEmpty()) return null;
+        Map.Entry<Integer, N> owner = points.ceilingEntry(mix(key));
+        return owner != null ? owner.getValue() : points.firstEntry().getValue();
+    }
+
+    /**
+     * Get the members of the ring
+     * @return Nodes in the order given
+     */
+    public List<N> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Get the fraction of the key space a node owns
+     * @param node Member
+     * @return Share between 0 and 1
+     */
+    public double shareOf(N node) {
+        long owned = 0;
+        Integer previous = points.isEmpty() ? null : points.lastKey();
+        for (Map.Entry<Integer, N> point : points.entrySet()) {
+            // A point owns the arc from the previous point (exclusive) up to itself, wrapping below the first
+            long arc = (point.getKey() - (long) previous) & 0xFFFFFFFFL;
+            if (arc == 0) arc = 1L << 32; // A single point owns the whole ring
+            if (point.getValue().equals(node)) owned += arc;
+            previous = point.getKey();
+        }
+        return owned / (double) (1L << 32);
+    }
+
+    /**
+     * Hash a node point name: FNV-1a over its UTF-8 bytes, finished with mix
+     * @param name Point name
+     * @return Ring position
+     */
+    private static int hash(String name) {
+        int hash = 0x811C9DC5;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xFF)) * 0x01000193;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Spread consecutive keys over the ring (MurmurHash3's 32-bit finalizer)
+     * @param key Key or raw hash
+     * @return Ring position
+     */
+    private static int mix(int key) {
+        key ^= key >>> 16;
+        key *= 0x85EBCA6B;
+        key ^= key >>> 13;
+        key *= 0xC2B2AE35;
+        key ^= key >>> 16;
+        return key;
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of nanosecond durations
+ * Values below 32 get an exact bucket; above that every power of two is split into 32 buckets, so any
+ * recorded value is off by at most about 3%. Recording is a few atomic adds and never allocates.
+ * @author Chen Junliang
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // Exact buckets, then one group of SUB_COUNT buckets for each power of two from 2^5 to 2^63
+    private static final int BUCKET_COUNT = SUB_COUNT + (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record one duration (negative values are clamped to zero)
+     * @param nanos Duration in nanoseconds
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) break;
+        }
+    }
+
+    /**
+     * Map a value to its bucket
+     * @param value Non-negative value
+     * @return Bucket index
+     */
+    private static int bucketIndex(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return SUB_COUNT + shift * SUB_COUNT + (int) ((value >>> shift) & (SUB_COUNT - 1));
+    }
+
+    /**
+     * Get the highest value that falls into a bucket
+     * @param index Bucket index
+     * @return Upper bound of the bucket
+     */
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = (index - SUB_COUNT) / SUB_COUNT;
+        long sub = (index - SUB_COUNT) % SUB_COUNT;
+        return ((SUB_COUNT + sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Get the value at a percentile (upper bound of the bucket holding it)
+     * @param percentile Percentile between 0 and 100
+     * @return Value in nanoseconds, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) return Math.min(bucketUpperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Get the number of recorded values
+     * @return Sample count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the mean of recorded values
+     * @return Mean in nanoseconds, 0 if nothing was recorded
+     */
+    public double getMean() {
+        long total = count.get();
+        return total == 0 ? 0 : (double) sum.get() / total;
+    }
+
+    /**
+     * Get the largest recorded value
+     * @return Maximum in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+}
@@ -0,0 +1,365 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load generator: connects many bot players to a running server and plays complete games
+ * Bots speak through ClientSession, so they follow exactly the same protocol rules as the Swing client.
+ * Reports move throughput, move latency percentiles (sender's send to opponent's receipt) and error counts.
+ * With -Dtictactoe.trace=true the summary also breaks move latency down into network, server and dispatch hops.
+ *
+ * Usage: java [-Dtictactoe.threads=virtual] [-Dtictactoe.trace=true] LoadGenerator [players] [games] [moveDelayMs] [host] [port] [size] [k]
+ * @author Chen Junliang
+ */
+public class LoadGenerator {
+    private static final int DEFAULT_PLAYERS = 1000;
+    private static final int DEFAULT_GAMES = 10;
+    private static final int REPORT_INTERVAL_MS = 1000;
+    private static final long STALL_TIMEOUT_MS = 30_000; // Give up when no move is seen for this long
+
+    private final String host;
+    private final int port;
+    private final int games;
+    private final long moveDelayMs;
+    private final int boardSize;
+    private final int winLength;
+    private final Map<String, Bot> botsByName = new ConcurrentHashMap<>();
+    private final LatencyHistogram moveLatency = new LatencyHistogram();
+    private final AtomicLong moves = new AtomicLong();
+    private final AtomicLong gamesCompleted = new AtomicLong();
+    private final AtomicLong connectFailures = new AtomicLong();
+    private final AtomicLong serverDisconnects = new AtomicLong();
+    private final AtomicLong earlyExits = new AtomicLong();
+    private final AtomicLong protocolErrors = new AtomicLong();
+
+    /**
+     * Create a load generator
+     * @param host Server host
+     * @param port Server port
+     * @param games Games each pair plays before leaving
+     * @param moveDelayMs Think time before each move
+     * @param boardSize Board width and height the bots ask for
+     * @param winLength Marks in a row needed to win
+     */
+    public LoadGenerator(String host, int port, int games, long moveDelayMs, int boardSize, int winLength) {
+        this.host = host;
+        this.port = port;
+        this.games = games;
+        this.moveDelayMs = moveDelayMs;
+        this.boardSize = boardSize;
+        this.winLength = winLength;
+    }
+
+    /**
+     * Connect the bots, let them play, and print a report every second and at the end
+     * @param players Number of bots (rounded up to an even number)
+     * @throws InterruptedException If interrupted while waiting for the bots
+     */
+    public void run(int players) throws InterruptedException {
+        players += players & 1; // Bots are matched in pairs
+        CountDownLatch finished = new CountDownLatch(players);
+        ExecutorService listeners = ThreadModel.fromSystemProperty().newPerTaskExecutor("bot");
+        long start = System.nanoTime();
+
+        for (int i = 0; i < players; i++) {
+            Bot bot = new Bot("bot-" + i, finished);
+            try {
+                bot.session = ClientSession.connect(host, port);
+                bot.session.setListener(bot);
+                botsByName.put(bot.name, bot);
+                bot.session.submitName(bot.name, boardSize, winLength);
+                listeners.execute(bot.session::listen);
+            } catch (IOException e) {
+                connectFailures.incrementAndGet();
+                finished.countDown();
+            }
+        }
+        System.out.println("Connected " + (players - connectFailures.get()) + " of " + players + " bots");
+
+        long lastMoves = 0;
+        long lastReport = System.nanoTime();
+        long lastProgress = lastReport;
+        while (!finished.await(REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+            long now = System.nanoTime();
+            long totalMoves = moves.get();
+            if (totalMoves != lastMoves) lastProgress = now;
+            printProgress((totalMoves - lastMoves) * 1e9 / (now - lastReport), finished.getCount());
+            lastMoves = totalMoves;
+            lastReport = now;
+            if (TimeUnit.NANOSECONDS.toMillis(now - lastProgress) > STALL_TIMEOUT_MS) {
+                System.out.println("No progress for " + STALL_TIMEOUT_MS / 1000 + "s, stopping " + finished.getCount() + " stalled bots");
+                for (Bot bot : botsByName.values()) {
+                    if (bot.session != null) bot.session.close();
+                }
+                break;
+            }
+        }
+        listeners.shutdown();
+        printSummary(players, System.nanoTime() - start);
+    }
+
+    /**
+     * Get the moves bots have received so far
+     * @return Move count
+     */
+    public long getMoveCount() {
+        return moves.get();
+    }
+
+    /**
+     * Get the games played to the end so far
+     * @return Game count
+     */
+    public long getGameCount() {
+        return gamesCompleted.get();
+    }
+
+    /**
+     * Get the connect failures, server disconnects, early exits and protocol errors so far
+     * @return Error count
+     */
+    public long getErrorCount() {
+        return connectFailures.get() + serverDisconnects.get() + earlyExits.get() + protocolErrors.get();
+    }
+
+    /**
+     * Print one progress line
+     * @param movesPerSecond Moves received during the last interval, per second
+     * @param remaining Bots still playing
+     */
+    private void printProgress(double movesPerSecond, long remaining) {
+        System.out.printf("moves/s %,10.0f | games %,d | p50 %.3f ms | p99 %.3f ms | bots left %d%n",
+                movesPerSecond, gamesCompleted.get(),
+                moveLatency.getPercentile(50) / 1e6, moveLatency.getPercentile(99) / 1e6, remaining);
+    }
+
+    /**
+     * Print the final throughput, latency and error report
+     * @param players Number of bots started
+     * @param elapsedNanos Total run time
+     */
+    private void printSummary(int players, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println("=== Load test summary ===");
+        System.out.printf("bots %d, board %dx%d (%d in a row), games/pair %d, move delay %d ms, threads %s%n",
+                players, boardSize, boardSize, winLength, games, moveDelayMs, ThreadModel.fromSystemProperty());
+        System.out.printf("elapsed %.2f s, moves %,d (%,.0f/s), games %,d (%,.0f/s)%n",
+                seconds, moves.get(), moves.get() / seconds, gamesCompleted.get(), gamesCompleted.get() / seconds);
+        System.out.printf("move latency ms: mean %.3f | p50 %.3f | p99 %.3f | p999 %.3f | max %.3f%n",
+                moveLatency.getMean() / 1e6, moveLatency.getPercentile(50) / 1e6, moveLatency.getPercentile(99) / 1e6,
+                moveLatency.getPercentile(99.9) / 1e6, moveLatency.getMax() / 1e6);
+        System.out.printf("errors: connect %d | server disconnect %d | early exit %d | protocol %d%n",
+                connectFailures.get(), serverDisconnects.get(), earlyExits.get(), protocolErrors.get());
+        MoveTracer tracer = MoveTracer.fromSystemProperty();
+        if (tracer != null) tracer.printSummary();
+    }
+
+    /**
+     * One simulated player: mirrors the board locally and plays a random empty cell on its turn
+     * Player 1 restarts after each result until the game count is reached, then exits the room
+     */
+    private class Bot implements ClientListener {
+        private final String name;
+        private final CountDownLatch finished;
+        private Board board; // Built for the variant the server confirms
+        private ClientSession session;
+        private Bot opponent;
+        private int playerId;
+        private int gamesPlayed;
+        private boolean isLeaving;
+        private volatile long lastMoveSentNanos;
+
+        /**
+         * Create a bot
+         * @param name Unique player name
+         * @param finished Latch counted down when the bot's session ends
+         */
+        Bot(String name, CountDownLatch finished) {
+            this.name = name;
+            this.finished = finished;
+        }
+
+        /**
+         * Start playing once the opponent is known (player 1 may see several NAME replies)
+         * @param playerId Own player ID
+         * @param opponentName Opponent's name
+         * @param boardSize Confirmed board size
+         * @param winLength Confirmed win length
+         */
+        @Override
+        public void onGameStart(int playerId, String opponentName, int boardSize, int winLength) {
+            if (opponent != null) return;
+            Bot named = botsByName.get(opponentName);
+            if (named == null) return; // Opponent has not submitted its name yet
+            this.playerId = playerId;
+            board = new Board(boardSize, winLength);
+            opponent = named;
+            if (playerId == 1) makeMove();
+        }
+
+        /**
+         * Mirror the opponent's move, then answer unless the game just ended
+         * @param row Row of the opponent's move
+         * @param col Column of the opponent's move
+         */
+        @Override
+        public void onOpponentMove(int row, int col) {
+            long now = System.nanoTime();
+            moves.incrementAndGet();
+            if (opponent == null || !board.isInside(row, col) || !board.isEmpty(row, col)) {
+                protocolErrors.incrementAndGet();
+                return;
+            }
+            moveLatency.record(now - opponent.lastMoveSentNanos);
+            int opponentId = playerId == 1 ? 2 : 1;
+            board.place(row, col, opponentId);
+            // The winning move is forwarded before WIN/DRAW, so do not answer it
+            if (board.isWinningMove(row, col) || board.isFull()) return;
+            makeMove();
+        }
+
+        /**
+         * Count a won or lost game
+         * @param isWinner true if this bot won
+         */
+        @Override
+        public void onWin(boolean isWinner) {
+            gameOver();
+        }
+
+        /**
+         * Count a drawn game
+         */
+        @Override
+        public void onDraw() {
+            gameOver();
+        }
+
+        /**
+         * Clear the mirrored board, player 1 opens the new game
+         */
+        @Override
+        public void onRestart() {
+            board.reset();
+            if (playerId == 1) makeMove();
+        }
+
+        /**
+         * Opponent left: expected after the last game, an error otherwise
+         */
+        @Override
+        public void onOpponentExit() {
+            if (gamesPlayed < games) earlyExits.incrementAndGet();
+            isLeaving = true;
+            session.close();
+        }
+
+        /**
+         * Continue from the server's board after a reconnect, moving if it is this bot's turn
+         * @param board Board as the server holds it
+         */
+        @Override
+        public void onResumed(Board board) {
+            this.board = board;
+            if (session.isMyTurn()) makeMove();
+        }
+
+        /**
+         * Leaderboard arrived; bots never ask for one
+         * @param topPlayers Highest rated players
+         * @param totalPlayers Number of rated players
+         */
+        @Override
+        public void onLeaderboard(List<PlayerStats> topPlayers, int totalPlayers) {
+        }
+
+        /**
+         * Server dropped the connection
+         */
+        @Override
+        public void onServerDisconnected() {
+            if (!isLeaving) serverDisconnects.incrementAndGet();
+        }
+
+        /**
+         * Session ended
+         */
+        @Override
+        public void onSessionClosed() {
+            finished.countDown();
+        }
+
+        /**
+         * Handle the end of a game: player 1 restarts or leaves
+         */
+        private void gameOver() {
+            gamesPlayed++;
+            if (playerId != 1) return;
+            gamesCompleted.incrementAndGet();
+            if (gamesPlayed < games) {
+                try {
+                    session.requestRestart();
+                } catch (IOException e) {
+                    serverDisconnects.incrementAndGet();
+                    session.close();
+                }
+            } else {
+                isLeaving = true;
+                session.exit();
+            }
+        }
+
+        /**
+         * Wait the configured think time, then play a random empty cell
+         */
+        private void makeMove() {
+            if (moveDelayMs > 0) {
+                try {
+                    Thread.sleep(moveDelayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            int size = board.getSize();
+            int cell = board.nthEmptyCell(ThreadLocalRandom.current().nextInt(size * size - board.getMoveCount()));
+            int row = cell / size;
+            int col = cell % size;
+            board.place(row, col, playerId);
+            try {
+                lastMoveSentNanos = System.nanoTime();
+                session.sendMove(row, col);
+            } catch (IOException e) {
+                if (!isLeaving) serverDisconnects.incrementAndGet();
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Main method: run a load test against a running server
+     * @param args [players] [games] [moveDelayMs] [host] [port] [boardSize] [winLength]
+     * @throws InterruptedException If interrupted while waiting for the bots
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int players = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PLAYERS;
+        int games = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_GAMES;
+        long moveDelayMs = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        String host = args.length > 3 ? args[3] : "127.0.0.1";
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : 8888;
+        int boardSize = args.length > 5 ? Integer.parseInt(args[5]) : Board.DEFAULT_SIZE;
+        int winLength = args.length > 6 ? Integer.parseInt(args[6]) : Math.min(boardSize, 5);
+        if (!Board.isValidVariant(boardSize, winLength)) {
+            System.out.println("Unsupported board: " + boardSize + "x" + boardSize + ", " + winLength + " in a row");
+            return;
+        }
+        new LoadGenerator(host, port, games, moveDelayMs, boardSize, winLength).run(players);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,40 @@
+import java.io.IOException;
+
+/**
+ * Blocking, bidirectional stream of GameData messages over one socket
+ * Hides whether the peer speaks legacy Java serialization or the compact binary protocol
+ * @author Chen Junliang
+ */
+public interface MessageStream {
+    /**
+     * Send one message and flush it to the socket
+     * @param data Game data to send
+     * @throws IOException Data sending exception
+     */
+    void write(GameData data) throws IOException;
+
+    /**
+     * Append one message to the stream's buffer without flushing, so several messages can leave in one write
+     * @param data Game data to send
+     * @throws IOException Data sending exception
+     */
+    void writeBuffered(GameData data) throws IOException;
+
+    /**
+     * Push every buffered message to the socket
+     * @throws IOException Data sending exception
+     */
+    void flush() throws IOException;
+
+    /**
+     * Block until the next message arrives
+     * @return Received game data
+     * @throws IOException Network exception or malformed message
+     */
+    GameData read() throws IOException;
+
+    /**
+     * Close both directions of the stream (the socket itself is closed by the owner)
+     */
+    void close();
+}
@@ -0,0 +1,89 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Plain-text metrics scrape endpoint on the loopback interface: GET http://127.0.0.1:port/metrics
+ * Runs on a single background thread of the JDK's built-in HTTP server, away from the game threads
+ * @author Chen Junliang
+ */
+public class MetricsHttpEndpoint {
+    /** System property holding the scrape port; a negative value disables the endpoint */
+    public static final String PORT_PROPERTY = "tictactoe.metrics.port";
+    /** Port used when the property is not set */
+    public static final int DEFAULT_PORT = 8889;
+
+    private final HttpServer httpServer;
+
+    /**
+     * Bind the endpoint to the loopback interface and start serving
+     * @param metrics Metrics to render
+     * @param port Local port to listen on (0 picks a free port)
+     * @throws IOException Port unavailable
+     */
+    public MetricsHttpEndpoint(ServerMetrics metrics, int port) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", exchange -> respond(exchange, metrics));
+        httpServer.start();
+    }
+
+    /**
+     * Start the endpoint on the port given by -Dtictactoe.metrics.port, if enabled
+     * @param metrics Metrics to render
+     * @return Running endpoint, or null if disabled or the port is taken
+     */
+    public static MetricsHttpEndpoint startFromSystemProperty(ServerMetrics metrics) {
+        int port = Integer.getInteger(PORT_PROPERTY, DEFAULT_PORT);
+        if (port < 0) return null;
+        try {
+            MetricsHttpEndpoint endpoint = new MetricsHttpEndpoint(metrics, port);
+            System.out.println("Metrics available at http://127.0.0.1:" + endpoint.getPort() + "/metrics");
+            return endpoint;
+        } catch (IOException e) {
+            System.out.println("Metrics endpoint not started: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Write the current metrics as the response body
+     * @param exchange HTTP exchange
+     * @param metrics Metrics to render
+     * @throws IOException Response writing exception
+     */
+    private static void respond(HttpExchange exchange, ServerMetrics metrics) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Get the port the endpoint listens on
+     * @return Bound port
+     */
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    /**
+     * Stop serving
+     */
+    public void stop() {
+        httpServer.stop(0);
+    }
+}
@@ -0,0 +1,136 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side breakdown of move latency into hops, enabled with -Dtictactoe.trace=true
+ * A traced MOVE carries stamps on the server's clock: when the sender sent it (the sender's clock shifted by the
+ * offset it estimated during the handshake), when the server received it, and when the server forwarded it to the
+ * opponent. The opponent adds when it received the move and when its listener had shown it, which splits the time
+ * from click to board update into network to the server, server processing (including the room's mailbox), network
+ * to the opponent, and dispatch to the GUI. Every session of a process feeds the same histograms, which are printed
+ * every few seconds while moves arrive.
+ * Each clock offset is only known to within half the handshake's round trip, so the two network hops may be off by
+ * that much either way (negative durations count as zero); the handshake round trips are shown to judge this.
+ * @author Chen Junliang
+ */
+public class MoveTracer {
+    /** System property that enables tracing in clients and load generators */
+    public static final String PROPERTY = "tictactoe.trace";
+    /** System property with the seconds between summaries */
+    public static final String INTERVAL_PROPERTY = "tictactoe.trace.interval";
+
+    private static final long DEFAULT_INTERVAL_SECONDS = 10;
+    // Wall clock sampled once, advanced by the monotonic clock, so stamps have microsecond resolution
+    private static final long BASE_MICROS = System.currentTimeMillis() * 1000;
+    private static final long BASE_NANOS = System.nanoTime();
+
+    private final LatencyHistogram toServer = new LatencyHistogram();
+    private final LatencyHistogram inServer = new LatencyHistogram();
+    private final LatencyHistogram toOpponent = new LatencyHistogram();
+    private final LatencyHistogram dispatch = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final LatencyHistogram handshakeRoundTrip = new LatencyHistogram();
+    private long lastPrintedCount; // Only touched by the summary thread
+
+    /**
+     * Holder of the process-wide tracer, created on first use
+     */
+    private static final class Shared {
+        static final MoveTracer INSTANCE = Boolean.getBoolean(PROPERTY) ? new MoveTracer().startSummaries() : null;
+    }
+
+    /**
+     * Get the process-wide tracer if -Dtictactoe.trace=true is set
+     * @return Tracer shared by all sessions, or null when tracing is off
+     */
+    public static MoveTracer fromSystemProperty() {
+        return Shared.INSTANCE;
+    }
+
+    /**
+     * Get the trace clock, which the server also stamps with
+     * @return Microseconds since the epoch
+     */
+    public static long currentTimeMicros() {
+        return microsAt(System.nanoTime());
+    }
+
+    /**
+     * Convert a System.nanoTime reading to the trace clock
+     * @param nanoTime Reading of System.nanoTime
+     * @return Microseconds since the epoch
+     */
+    public static long microsAt(long nanoTime) {
+        return BASE_MICROS + (nanoTime - BASE_NANOS) / 1000;
+    }
+
+    /**
+     * Print a summary every INTERVAL_PROPERTY seconds on a daemon thread
+     * @return This tracer
+     */
+    private MoveTracer startSummaries() {
+        long interval = Long.getLong(INTERVAL_PROPERTY, DEFAULT_INTERVAL_SECONDS);
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "move-tracer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(() -> {
+            long count = total.getCount();
+            if (count == lastPrintedCount) return; // Nothing new since the last summary
+            lastPrintedCount = count;
+            printSummary();
+        }, interval, interval, TimeUnit.SECONDS);
+        return this;
+    }
+
+    /**
+     * Record the round trip of a handshake, which bounds the error of its clock offset
+     * @param roundTripMicros Time from sending the handshake to reading the server's reply
+     */
+    public void recordHandshake(long roundTripMicros) {
+        handshakeRoundTrip.record(roundTripMicros * 1000);
+    }
+
+    /**
+     * Record the hops of one traced move once the listener has shown it
+     * @param move MOVE carrying the sender's, receive and forward stamps
+     * @param receivedNanos System.nanoTime when the move was read from the connection
+     * @param clockOffsetMicros Server clock minus this process's trace clock
+     */
+    public void recordMove(GameData move, long receivedNanos, long clockOffsetMicros) {
+        if (move.getTraceReceivedMicros() == 0 || move.getTraceForwardedMicros() == 0) return;
+        long received = microsAt(receivedNanos) + clockOffsetMicros;
+        long shown = currentTimeMicros() + clockOffsetMicros;
+        toServer.record((move.getTraceReceivedMicros() - move.getTraceSentMicros()) * 1000);
+        inServer.record((move.getTraceForwardedMicros() - move.getTraceReceivedMicros()) * 1000);
+        toOpponent.record((received - move.getTraceForwardedMicros()) * 1000);
+        dispatch.record((shown - received) * 1000);
+        total.record((shown - move.getTraceSentMicros()) * 1000);
+    }
+
+    /**
+     * Print percentiles of every hop over all moves traced so far
+     */
+    public void printSummary() {
+        System.out.println("=== Move trace: " + total.getCount() + " moves ===");
+        printHop("client->server", toServer);
+        printHop("server", inServer);
+        printHop("server->client", toOpponent);
+        printHop("dispatch", dispatch);
+        printHop("click->board", total);
+        printHop("handshake rtt", handshakeRoundTrip);
+    }
+
+    /**
+     * Print one line of the summary
+     * @param hop Name of the hop
+     * @param histogram Its durations
+     */
+    private static void printHop(String hop, LatencyHistogram histogram) {
+        System.out.printf("%-15s ms: mean %.3f | p50 %.3f | p99 %.3f | p999 %.3f | max %.3f%n", hop,
+                histogram.getMean() / 1e6, histogram.getPercentile(50) / 1e6, histogram.getPercentile(99) / 1e6,
+                histogram.getPercentile(99.9) / 1e6, histogram.getMax() / 1e6);
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded lock-free queue for many producers and one consumer
+ * A linked list where producers swap themselves in as the tail with one atomic exchange and then link the previous
+ * tail to their node; the single consumer follows the links from a stub head without compare-and-set. Unlike
+ * ConcurrentLinkedQueue no producer ever retries, so offer is wait-free, and the consumer side never contends.
+ * A producer that has swapped the tail but not yet linked its node makes poll briefly see an empty queue while
+ * isEmpty already reports the element, so a consumer that gives up ownership and then checks isEmpty never strands it.
+ * @param <E> Element type
+ * @author Chen Junliang
+ */
+public class MpscQueue<E> {
+    private final AtomicReference<Node<E>> tail; // Last node, swapped by producers
+    private volatile Node<E> head; // Stub node before the first element, only written by the consumer
+
+    /**
+     * Create an empty queue
+     */
+    public MpscQueue() {
+        Node<E> stub = new Node<>(null);
+        head = stub;
+        tail = new AtomicReference<>(stub);
+    }
+
+    /**
+     * Append an element, from any thread
+     * @param element Element to append, not null
+     */
+    public void offer(E element) {
+        Node<E> node = new Node<>(element);
+        Node<E> previous = tail.getAndSet(node);
+        previous.next = node; // Volatile write publishes the element to the consumer
+    }
+
+    /**
+     * Take the first element, from the consumer thread only
+     * @return First element, or null if the queue is empty (or its next element is still being linked)
+     */
+    public E poll() {
+        Node<E> next = head.next;
+        if (next == null) return null;
+        E value = next.value;
+        next.value = null; // next becomes the new stub, drop its reference for the collector
+        head = next;
+        return value;
+    }
+
+    /**
+     * Check whether the queue holds elements, from any thread (exact only on the consumer thread)
+     * @return false if an element is queued or a producer is still linking one
+     */
+    public boolean isEmpty() {
+        return head == tail.get();
+    }
+
+    /**
+     * One element and the link to the next node
+     * @param <E> Element type
+     */
+    private static final class Node<E> {
+        E value; // Null once taken, and in the stub
+        volatile Node<E> next;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+}
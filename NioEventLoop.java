@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread of the NIO server engine
+ * Owns a set of player channels and performs all of their reads and writes, so a channel is never touched by two threads
+ * @author Chen Junliang
+ */
+public class NioEventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final BufferPool bufferPool;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE); // Shared by all channels of this loop
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean isRunning;
+
+    /**
+     * Create an event loop and its selector, the thread is started by start()
+     * @param index Loop index, used in the thread name
+     * @param bufferPool Pool for outbound frame buffers
+     * @throws IOException Selector creation exception
+     */
+    public NioEventLoop(int index, BufferPool bufferPool) throws IOException {
+        this.selector = Selector.open();
+        this.bufferPool = bufferPool;
+        this.thread = new Thread(this, "nio-loop-" + index);
+    }
+
+    /**
+     * Start the selector thread
+     */
+    public void start() {
+        isRunning = true;
+        thread.start();
+    }
+
+    /**
+     * Get the outbound buffer pool used by channels of this loop
+     * @return Buffer pool
+     */
+    public BufferPool getBufferPool() { return bufferPool; }
+
+    /**
+     * Check whether the caller is running on this loop's thread
+     * @return true if called from the selector thread
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run a task on the selector thread, immediately if already on it
+     * @param task Task to run
+     */
+    public void execute(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Get the read buffer shared by all channels of this loop, only valid on the loop thread
+     * @return Shared read buffer
+     */
+    ByteBuffer getReadBuffer() { return readBuffer; }
+
+    /**
+     * Register an accepted socket with this loop and start reading its handshake
+     * @param socketChannel Accepted, non-blocking socket channel
+     * @param server Server whose matchmaking queue the player joins after the handshake
+     * @return Player channel bound to this loop
+     */
+    public NioPlayerChannel register(SocketChannel socketChannel, TicTacToeServer server) {
+        NioPlayerChannel channel = new NioPlayerChannel(this, socketChannel, server);
+        execute(() -> {
+            try {
+                SelectionKey key = socketChannel.register(selector, SelectionKey.OP_READ, channel);
+                channel.setSelectionKey(key);
+            } catch (IOException e) {
+                channel.close();
+            }
+        });
+        return channel;
+    }
+
+    /**
+     * Selector loop: run queued tasks, then dispatch ready keys to their channels
+     */
+    @Override
+    public void run() {
+        while (isRunning) {
+            try {
+                runTasks();
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioPlayerChannel channel = (NioPlayerChannel) key.attachment();
+                    if (!key.isValid()) {
+                        channel.close();
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        channel.handleRead(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        channel.flushOutbound();
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace(); // One bad channel must not stop the loop serving every other one
+            }
+        }
+    }
+
+    /**
+     * Run every task queued from other threads
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stop the loop and close every channel registered with it
+     */
+    public void shutdown() {
+        execute(() -> {
+            for (SelectionKey key : selector.keys()) {
+                ((NioPlayerChannel) key.attachment()).close();
+            }
+            isRunning = false;
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+}
@@ -0,0 +1,441 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A single client connected to the NIO server engine
+ * Holds no buffers while idle: inbound bytes are parsed out of the loop's shared read buffer, and only an incomplete
+ * trailing frame is copied into a small per-connection buffer until the rest of it arrives.
+ * The channel first completes the binary protocol handshake, then joins matchmaking once its NAME arrives (the NAME
+ * carries the requested board variant) or goes back to its old seat if it opens with RESUME; that first message and
+ * any frames that follow it are held until the room starts reading.
+ * Outbound batches are written only by the loop; the bytes waiting in them are bounded by an OutboundLimit, so a
+ * client that falls behind holds back the player feeding it, has spectator messages dropped or is disconnected, rather
+ * than blocking its sender. Holding a player back clears OP_READ on its key until the room resumes it.
+ * @author Chen Junliang
+ */
+public class NioPlayerChannel implements PlayerChannel {
+    private static final int MAX_PENDING_BYTES = 4 * FrameCodec.MAX_ENCODED_SIZE; // Inbound limit while unmatched
+
+    private final NioEventLoop loop;
+    private final SocketChannel socketChannel;
+    private final TicTacToeServer server;
+    private final ServerMetrics metrics;
+    private final String remoteAddress;
+    private final OutboundLimit outboundLimit;
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>(); // Encoded batches waiting to be written
+    private final ReentrantLock batchLock = new ReentrantLock(); // Guards batch
+    private ByteBuffer batch; // Frames sent since the last flush, null when empty
+    private boolean hasQueuedFrames; // Shared frames were queued since the last flush; guarded by batchLock
+    private SelectionKey selectionKey; // Only touched on the loop thread
+    private ByteBuffer pendingInbound; // Unprocessed inbound bytes, only touched on the loop thread
+    private volatile boolean isHandshakeDone; // Only written on the loop thread
+    private GameData nameRequest; // First message, held until matched; only touched on the loop thread
+    private int gameId; // Game ID from a cluster router's ROUTE, 0 if connected directly; only touched on the loop thread
+    private volatile GameRoom room;
+    private volatile int playerId;
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+
+    /**
+     * Wrap an accepted socket channel, called by NioEventLoop.register
+     * @param loop Event loop that owns this channel
+     * @param socketChannel Accepted, non-blocking socket channel
+     * @param server Server whose matchmaking queue the player joins after the handshake
+     */
+    public NioPlayerChannel(NioEventLoop loop, SocketChannel socketChannel, TicTacToeServer server) {
+        this.loop = loop;
+        this.socketChannel = socketChannel;
+        this.server = server;
+        this.metrics = server.getMetrics();
+        String address;
+        try {
+            address = String.valueOf(socketChannel.getRemoteAddress());
+        } catch (IOException e) {
+            address = "unknown";
+        }
+        this.remoteAddress = address;
+        this.outboundLimit = server.newOutboundLimit();
+    }
+
+    /**
+     * Attach the selection key once the channel is registered with the selector
+     * @param selectionKey Key of this channel
+     */
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    @Override
+    public void send(GameData data) throws IOException {
+        if (isClosed.get()) {
+            throw new IOException("Channel closed: " + remoteAddress);
+        }
+        if (!admit()) return;
+        batchLock.lock();
+        try {
+            if (batch != null && batch.remaining() < FrameCodec.MAX_ENCODED_SIZE) {
+                sealBatch(); // Full: queue it and continue in a fresh buffer
+            }
+            if (batch == null) {
+                batch = loop.getBufferPool().acquire();
+            }
+            int start = batch.position();
+            try {
+                FrameCodec.encodeFrame(data, batch);
+            } catch (IOException | RuntimeException e) {
+                batch.position(start); // Drop the partial frame, keep earlier ones
+                throw e;
+            }
+        } finally {
+            batchLock.unlock();
+        }
+        metrics.messageOut(data.getCommand());
+    }
+
+    @Override
+    public void sendFrame(ByteBuffer frame) throws IOException {
+        if (isClosed.get()) {
+            throw new IOException("Channel closed: " + remoteAddress);
+        }
+        if (!admit()) return;
+        batchLock.lock();
+        try {
+            if (batch != null) sealBatch(); // Keep frames in send order
+            outbound.add(frame.duplicate()); // A heap buffer, so the pool drops it after writing instead of reusing it
+            outboundLimit.queued(frame.remaining());
+            hasQueuedFrames = true;
+        } finally {
+            batchLock.unlock();
+        }
+    }
+
+    /**
+     * Apply the outbound limit to one message
+     * @return true to queue the message, false to discard it
+     */
+    private boolean admit() {
+        switch (outboundLimit.admit(playerId >= GameRoom.FIRST_SPECTATOR_ID)) {
+            case QUEUE:
+                return true;
+            case DISCONNECT:
+                // Sent by whichever thread owns the room's mailbox, but the key and socket belong to our loop;
+                // the room hears of the loss as a mailbox task, after the one sending this message
+                loop.execute(() -> {
+                    if (isClosed.get()) return;
+                    System.out.println("Dropping slow client " + remoteAddress);
+                    disconnect(ServerMetrics.DisconnectReason.SLOW_CONSUMER);
+                });
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public boolean isWritable() {
+        return outboundLimit.isWritable();
+    }
+
+    @Override
+    public void flush() {
+        if (isClosed.get()) return;
+        batchLock.lock();
+        try {
+            if (batch == null && !hasQueuedFrames) return;
+            if (batch != null) sealBatch();
+            hasQueuedFrames = false;
+        } finally {
+            batchLock.unlock();
+        }
+        loop.execute(this::flushOutbound);
+    }
+
+    /**
+     * Move the current batch to the outbound queue, caller holds the batch lock
+     */
+    private void sealBatch() {
+        ByteBuffer sealed = batch;
+        batch = null;
+        if (sealed.position() == 0) {
+            loop.getBufferPool().release(sealed);
+            return;
+        }
+        sealed.flip();
+        outboundLimit.queued(sealed.remaining());
+        outbound.add(sealed);
+    }
+
+    @Override
+    public void startReading(GameRoom room, int playerId) {
+        this.playerId = playerId;
+        this.room = room;
+        loop.execute(() -> {
+            if (isClosed.get()) {
+                room.onDisconnect(playerId, this);
+                return;
+            }
+            // Deliver the NAME and any frames that arrived while the player was waiting for an opponent
+            deliverNameRequest(room);
+            if (pendingInbound != null) {
+                ByteBuffer readBuffer = loop.getReadBuffer();
+                readBuffer.clear();
+                takePending(readBuffer);
+                readBuffer.flip();
+                processInbound(readBuffer);
+            }
+        });
+    }
+
+    @Override
+    public void pauseReading() {
+        loop.execute(() -> setReadInterest(false));
+    }
+
+    @Override
+    public void resumeReading() {
+        loop.execute(() -> setReadInterest(true));
+    }
+
+    @Override
+    public boolean whenCaughtUp(Runnable task) {
+        return outboundLimit.whenCaughtUp(task);
+    }
+
+    /**
+     * Turn reading on or off, called on the loop thread; bytes left unread stay in the socket buffer
+     * @param isReading Whether the selector should report this channel readable
+     */
+    private void setReadInterest(boolean isReading) {
+        if (isClosed.get() || selectionKey == null || !selectionKey.isValid()) return;
+        int ops = selectionKey.interestOps();
+        selectionKey.interestOps(isReading ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+    }
+
+    /**
+     * Read available bytes and process them, called on the loop thread when the key is readable
+     * @param readBuffer The loop's shared read buffer
+     */
+    void handleRead(ByteBuffer readBuffer) {
+        readBuffer.clear();
+        takePending(readBuffer);
+        int bytesRead;
+        try {
+            bytesRead = socketChannel.read(readBuffer);
+        } catch (IOException e) {
+            bytesRead = -1;
+        }
+        if (bytesRead < 0) {
+            disconnect(ServerMetrics.DisconnectReason.PEER_CLOSED);
+            return;
+        }
+        metrics.addBytesIn(bytesRead);
+        readBuffer.flip();
+        processInbound(readBuffer);
+    }
+
+    /**
+     * Move held-back inbound bytes to the front of the read buffer
+     * @param readBuffer Cleared read buffer
+     */
+    private void takePending(ByteBuffer readBuffer) {
+        if (pendingInbound != null) {
+            pendingInbound.flip();
+            readBuffer.put(pendingInbound);
+            pendingInbound = null;
+        }
+    }
+
+    /**
+     * Complete the handshake if needed, dispatch every complete frame to the room, and keep any remainder
+     * @param readBuffer Buffer flipped for reading
+     */
+    private void processInbound(ByteBuffer readBuffer) {
+        try {
+            if (!isHandshakeDone) {
+                if (readBuffer.remaining() < GameDataCodec.HANDSHAKE_SIZE) {
+                    keepPending(readBuffer);
+                    return;
+                }
+                completeHandshake(readBuffer);
+            }
+            if (room == null && nameRequest == null) readNameRequest(readBuffer);
+            if (room != null) deliverNameRequest(room); // Matched or resumed, but the start task has not run yet
+            GameRoom currentRoom;
+            while ((currentRoom = room) != null && !isClosed.get()) {
+                int length = FrameCodec.readFrameHeader(readBuffer);
+                if (length < 0) break;
+                GameData data = FrameCodec.decodePayload(readBuffer, length);
+                currentRoom.handleClientData(data, playerId);
+            }
+            if (isClosed.get()) return;
+            if (room == null && readBuffer.remaining() > MAX_PENDING_BYTES) {
+                throw new IOException("Too much data before matchmaking");
+            }
+            keepPending(readBuffer);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Dropping " + remoteAddress + ": " + e.getMessage());
+            disconnect(isHandshakeDone ? ServerMetrics.DisconnectReason.PROTOCOL_ERROR
+                    : ServerMetrics.DisconnectReason.HANDSHAKE_FAILED);
+        }
+    }
+
+    /**
+     * Take the player's first frame, which must be NAME (or RESUME to reclaim a seat, or WATCH to spectate), hold it
+     * and hand the player to the server; a connection relayed by a cluster router starts with a ROUTE carrying the
+     * game ID
+     * @param readBuffer Buffer positioned after the handshake
+     * @throws IOException Malformed frame or a first message other than NAME, RESUME or WATCH
+     */
+    private void readNameRequest(ByteBuffer readBuffer) throws IOException {
+        int length = FrameCodec.readFrameHeader(readBuffer);
+        if (length < 0) return; // Not complete yet
+        GameData data = FrameCodec.decodePayload(readBuffer, length);
+        if (data.getCommand() == GameData.Command.ROUTE && data.getCol() == ClusterRouter.ROUTE_FORWARD && gameId == 0) {
+            gameId = data.getRow();
+            readNameRequest(readBuffer); // The client's own first frame, now or on a later read
+            return;
+        }
+        if (data.getCommand() != GameData.Command.NAME && data.getCommand() != GameData.Command.RESUME
+                && data.getCommand() != GameData.Command.WATCH) {
+            throw new IOException("Expected NAME, RESUME or WATCH, got " + data.getCommand());
+        }
+        nameRequest = data;
+        server.admitPlayer(this, data, gameId);
+    }
+
+    /**
+     * Pass the held NAME to the room ahead of any later frame, if it has not been delivered yet
+     * @param currentRoom Room the player was matched into
+     */
+    private void deliverNameRequest(GameRoom currentRoom) {
+        GameData held = nameRequest;
+        if (held == null) return;
+        nameRequest = null;
+        currentRoom.handleClientData(held, playerId);
+    }
+
+    /**
+     * Answer the client's handshake; the NIO engine only speaks the binary protocol
+     * @param readBuffer Buffer holding at least HANDSHAKE_SIZE bytes
+     * @throws IOException Legacy serialization client or unsupported version
+     */
+    private void completeHandshake(ByteBuffer readBuffer) throws IOException {
+        byte[] head = new byte[GameDataCodec.HANDSHAKE_SIZE];
+        readBuffer.get(head);
+        int version = GameDataCodec.negotiate(GameDataCodec.readHandshake(head));
+        if (version < 0) {
+            throw new IOException("Binary protocol handshake required");
+        }
+        ByteBuffer reply = loop.getBufferPool().acquire();
+        GameDataCodec.writeHandshakeReply(reply, version);
+        reply.flip();
+        outboundLimit.queued(reply.remaining());
+        outbound.add(reply);
+        flushOutbound();
+        isHandshakeDone = true;
+        metrics.connectionOpened();
+        System.out.println("Player connected: " + remoteAddress);
+    }
+
+    /**
+     * Copy unprocessed bytes into a right-sized per-connection buffer
+     * @param readBuffer Buffer flipped for reading
+     */
+    private void keepPending(ByteBuffer readBuffer) {
+        if (readBuffer.hasRemaining()) {
+            pendingInbound = ByteBuffer.allocate(readBuffer.remaining());
+            pendingInbound.put(readBuffer);
+        }
+    }
+
+    /**
+     * Write queued frames until the queue is empty or the socket buffer is full, called on the loop thread
+     */
+    void flushOutbound() {
+        if (isClosed.get()) return;
+        ByteBuffer frame;
+        try {
+            while ((frame = outbound.peek()) != null) {
+                int written = socketChannel.write(frame);
+                metrics.addBytesOut(written);
+                outboundLimit.removed(written);
+                if (frame.hasRemaining()) {
+                    // Socket buffer full, resume when the selector reports writability
+                    selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.poll();
+                loop.getBufferPool().release(frame);
+            }
+            if (selectionKey != null && selectionKey.isValid()) {
+                selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        } catch (IOException | CancelledKeyException e) {
+            disconnect(ServerMetrics.DisconnectReason.WRITE_FAILED);
+        }
+    }
+
+    /**
+     * Close the channel and report the lost connection to the room, if matched
+     * @param reason Why the connection ended, counted only if the channel was still open
+     */
+    private void disconnect(ServerMetrics.DisconnectReason reason) {
+        boolean wasOpen = !isClosed.get();
+        if (wasOpen) metrics.disconnected(reason, 1);
+        close();
+        GameRoom currentRoom = room;
+        if (wasOpen && currentRoom != null) {
+            currentRoom.onDisconnect(playerId, this);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !isClosed.get();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public void close() {
+        if (!isClosed.compareAndSet(false, true)) return;
+        if (isHandshakeDone) metrics.connectionClosed();
+        batchLock.lock();
+        try {
+            if (batch != null) sealBatch(); // Unflushed frames are written by the best-effort flush below
+        } finally {
+            batchLock.unlock();
+        }
+        loop.execute(() -> {
+            // Best-effort write of frames queued before the close, such as a final EXIT notice
+            ByteBuffer frame;
+            while ((frame = outbound.poll()) != null) {
+                try {
+                    if (socketChannel.isOpen()) metrics.addBytesOut(socketChannel.write(frame));
+                } catch (IOException ignored) {
+                    // Peer is gone, remaining frames are discarded
+                }
+                loop.getBufferPool().release(frame);
+            }
+            if (selectionKey != null) {
+                selectionKey.cancel();
+            }
+            try {
+                socketChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            pendingInbound = null;
+            outboundLimit.release();
+        });
+    }
+}
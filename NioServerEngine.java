@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking server engine built on java.nio selectors
+ * Accepted sockets are spread round-robin over a small fixed set of event loops instead of getting a thread each,
+ * and speak the binary protocol in length-prefixed frames (see FrameCodec); legacy serialization clients need the
+ * blocking engine
+ * @author Chen Junliang
+ */
+public class NioServerEngine {
+    private static final int OUTBOUND_BUFFER_SIZE = 4096; // Fits a flushed batch of several frames
+    private static final int MAX_POOLED_BUFFERS = 4096;
+
+    private final TicTacToeServer server;
+    private final ServerSocketChannel serverChannel;
+    private final NioEventLoop[] loops;
+    private final int sendBufferSize; // 0 keeps the OS default
+    private volatile boolean isRunning;
+    private int nextLoop;
+
+    /**
+     * Bind the listening channel and create the event loops
+     * @param server Server that receives accepted players for matchmaking
+     * @param address Address and port to listen on
+     * @param config Backlog, socket buffer sizes and number of event loop threads
+     * @throws IOException Bind or selector creation exception
+     */
+    public NioServerEngine(TicTacToeServer server, InetSocketAddress address, ServerConfig config) throws IOException {
+        this.server = server;
+        this.sendBufferSize = config.getSendBufferSize();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            // Set before binding so accepted sockets inherit it in time for the TCP window negotiation
+            if (config.getReceiveBufferSize() > 0) {
+                serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferSize());
+            }
+            serverChannel.bind(address, config.getBacklog());
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        BufferPool bufferPool = new BufferPool(OUTBOUND_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+        this.loops = new NioEventLoop[config.getLoopCount()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(i, bufferPool);
+        }
+    }
+
+    /**
+     * Get the port the engine listens on
+     * @return Bound port, useful when port 0 was asked for
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Start the event loops and accept clients on the calling thread until shutdown
+     */
+    public void acceptClients() {
+        isRunning = true;
+        for (NioEventLoop loop : loops) {
+            loop.start();
+        }
+        while (isRunning) {
+            try {
+                SocketChannel socketChannel = serverChannel.accept();
+                socketChannel.configureBlocking(false);
+                socketChannel.socket().setTcpNoDelay(true);
+                if (sendBufferSize > 0) socketChannel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+                NioEventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                loop.register(socketChannel, server); // Joins matchmaking once its handshake completes
+            } catch (ClosedChannelException e) {
+                break; // Listening channel closed by shutdown
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stop accepting new clients; connected ones are still served
+     */
+    public void stopAccepting() {
+        isRunning = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stop accepting and shut every event loop down
+     */
+    public void shutdown() {
+        stopAccepting();
+        for (NioEventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Legacy message stream that exchanges GameData through Java object serialization
+ * Kept so that clients built before the binary protocol can still connect to the blocking engine
+ * The output is reset every RESET_INTERVAL messages: ObjectOutputStream otherwise keeps a back-reference to every
+ * object it has written, and the reset marker clears the peer's ObjectInputStream table too, so both sides of a
+ * long-lived connection stay at a bounded size.
+ * @author Chen Junliang
+ */
+public class ObjectMessageStream implements MessageStream {
+    /** Messages written between two resets of the serialization handle table */
+    public static final int RESET_INTERVAL = 256;
+
+    private final ObjectOutputStream out;
+    private final ObjectInputStream in;
+    private int writesSinceReset;
+
+    /**
+     * Open the object streams; the output header is flushed first so the peer's ObjectInputStream does not deadlock
+     * @param input Socket input (may already have been peeked by the handshake)
+     * @param output Socket output
+     * @throws IOException Stream initialization exception
+     */
+    public ObjectMessageStream(InputStream input, OutputStream output) throws IOException {
+        this.out = new ObjectOutputStream(new BufferedOutputStream(output)); // Buffered so flush() decides when bytes leave
+        this.out.flush();
+        this.in = new ObjectInputStream(input);
+    }
+
+    @Override
+    public void write(GameData data) throws IOException {
+        writeBuffered(data);
+        out.flush();
+    }
+
+    @Override
+    public void writeBuffered(GameData data) throws IOException {
+        if (++writesSinceReset >= RESET_INTERVAL) {
+            out.reset(); // Costs one class descriptor resend per interval
+            writesSinceReset = 0;
+        }
+        out.writeObject(data);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public GameData read() throws IOException {
+        try {
+            return (GameData) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Unexpected object in stream", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            in.close();
+        } catch (IOException ignored) {
+            // Owner closes the socket anyway
+        }
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // Owner closes the socket anyway
+        }
+    }
+}
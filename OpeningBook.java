@@ -0,0 +1,198 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Read-only table of solved positions, memory-mapped from a PositionFile
+ * The file is mapped with FileChannel.map and binary searched in place, so it costs no heap, opens instantly and
+ * every process on the machine shares one page-cached copy. Lookups canonicalize the position over the 8 board
+ * symmetries and map the stored move back, so one entry serves a whole symmetric family.
+ * Books named in -Dtictactoe.book (comma-separated paths) are opened on first use by both server and client.
+ * Build one with: java OpeningBook [size] [winLength] [output] [tableBits]
+ * @author Chen Junliang
+ */
+public class OpeningBook {
+    /** System property listing the book files to open */
+    public static final String PROPERTY = "tictactoe.book";
+    /** Returned by getResult when the position is not in the book */
+    public static final int NOT_FOUND = Integer.MIN_VALUE;
+
+    private final MappedByteBuffer buffer;
+    private final int size;
+    private final int winLength;
+    private final int count;
+    private final Zobrist zobrist;
+
+    /**
+     * Holder so configured books are opened on first use
+     */
+    private static final class Configured {
+        static final List<OpeningBook> BOOKS = openFromSystemProperty();
+    }
+
+    /**
+     * Wrap a mapped file whose header has been checked
+     * @param buffer Mapped file
+     */
+    private OpeningBook(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        this.size = buffer.get(6);
+        this.winLength = buffer.get(7);
+        this.count = buffer.getInt(8);
+        this.zobrist = Zobrist.forSize(size);
+    }
+
+    /**
+     * Map a book file
+     * @param path PositionFile written by ParallelSolver or this class's main
+     * @return Opened book
+     * @throws IOException File missing, unreadable or not a position file
+     */
+    public static OpeningBook open(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // Stays valid after close
+        }
+        if (buffer.capacity() < PositionFile.HEADER_SIZE || buffer.getInt(0) != PositionFile.MAGIC
+                || buffer.getShort(4) != PositionFile.VERSION) {
+            throw new IOException("Not a position file: " + path);
+        }
+        int size = buffer.get(6);
+        int winLength = buffer.get(7);
+        long expected = PositionFile.HEADER_SIZE + (long) buffer.getInt(8) * PositionFile.ENTRY_SIZE;
+        if (!Board.isValidVariant(size, winLength) || buffer.capacity() != expected) {
+            throw new IOException("Corrupt position file: " + path);
+        }
+        return new OpeningBook(buffer);
+    }
+
+    /**
+     * Open every book named in the tictactoe.book property, reporting and skipping files that fail to open
+     * @return Opened books, empty if the property is unset
+     */
+    private static List<OpeningBook> openFromSystemProperty() {
+        List<OpeningBook> books = new ArrayList<>();
+        String paths = System.getProperty(PROPERTY);
+        if (paths == null || paths.trim().isEmpty()) return books;
+        for (String path : paths.split(",")) {
+            try {
+                OpeningBook book = open(Paths.get(path.trim()));
+                books.add(book);
+                System.out.println("Opening book " + path.trim() + ": " + book.size + "x" + book.size + ", "
+                        + book.winLength + " in a row, " + book.count + " positions");
+            } catch (IOException e) {
+                System.out.println("Opening book not loaded: " + e.getMessage());
+            }
+        }
+        return books;
+    }
+
+    /**
+     * Open the configured books now rather than on first use
+     * @return Number of books opened
+     */
+    public static int loadConfigured() {
+        return Configured.BOOKS.size();
+    }
+
+    /**
+     * Get the configured book for a board variant
+     * @param size Board width and height
+     * @param winLength Marks in a row needed to win
+     * @return Book, or null if none was configured for the variant
+     */
+    public static OpeningBook forVariant(int size, int winLength) {
+        for (OpeningBook book : Configured.BOOKS) {
+            if (book.size == size && book.winLength == winLength) return book;
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of positions in the book
+     * @return Entry count
+     */
+    public int getPositionCount() {
+        return count;
+    }
+
+    /**
+     * Find the entry offset of a position
+     * @param board Position of this book's variant
+     * @param symmetry Receives the symmetry of the canonical key
+     * @return Byte offset of the entry, or -1 if absent
+     */
+    private int find(Board board, int[] symmetry) {
+        long[] hashes = new long[Zobrist.SYMMETRIES];
+        zobrist.hashAll(board, hashes);
+        symmetry[0] = Zobrist.canonicalSymmetry(hashes);
+        long key = hashes[symmetry[0]];
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = PositionFile.HEADER_SIZE + mid * PositionFile.ENTRY_SIZE;
+            long midKey = buffer.getLong(offset); // Absolute reads, safe from any number of threads
+            if (midKey < key) low = mid + 1;
+            else if (midKey > key) high = mid - 1;
+            else return offset;
+        }
+        return -1;
+    }
+
+    /**
+     * Look up the best move for the side to move
+     * @param board Position of this book's variant, game in progress
+     * @return Cell index row * size + col, or -1 if the position is not in the book
+     */
+    public int bestMove(Board board) {
+        int[] symmetry = new int[1];
+        int offset = find(board, symmetry);
+        if (offset < 0) return -1;
+        int move = buffer.getShort(offset + 8);
+        return move < 0 ? -1 : zobrist.inverse(symmetry[0], move);
+    }
+
+    /**
+     * Look up the solved result for the side to move
+     * @param board Position of this book's variant, game in progress
+     * @return +n wins in n plies, -n loses in n plies, 0 draw, or NOT_FOUND
+     */
+    public int getResult(Board board) {
+        int offset = find(board, new int[1]);
+        return offset < 0 ? NOT_FOUND : buffer.getShort(offset + 10);
+    }
+
+    /**
+     * Main method: solve a variant on all cores and write it as a book
+     * @param args Board size (default 3), win length (default 3), output file (default book-SxS-K.bin) and
+     *             table bits (default 22)
+     * @throws Exception Solve or write failure
+     */
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : Board.DEFAULT_SIZE;
+        int winLength = args.length > 1 ? Integer.parseInt(args[1]) : Board.DEFAULT_WIN_LENGTH;
+        Path output = Paths.get(args.length > 2 ? args[2] : "book-" + size + "x" + size + "-" + winLength + ".bin");
+        int tableBits = args.length > 3 ? Integer.parseInt(args[3]) : 22;
+        if (!Board.isValidVariant(size, winLength)) {
+            System.out.println("Unsupported board " + size + "x" + size + ", " + winLength + " in a row");
+            return;
+        }
+        long start = System.nanoTime();
+        ParallelSolver solver = new ParallelSolver(size, winLength, tableBits);
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        solver.solve(pool);
+        pool.shutdown();
+        int written = solver.write(output);
+        System.out.printf("Wrote %,d positions to %s in %.1f s%n", written, output, (System.nanoTime() - start) / 1e9);
+        if (solver.getTable().getEvictions() > 0) {
+            System.out.println("Table full: positions deeper than the table could hold are missing; raise tableBits");
+        }
+    }
+}
@@ -0,0 +1,217 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bound on the bytes one connection may have queued for writing, with high and low watermarks
+ * A connection falls behind when its queue reaches the high watermark and catches up again once the queue drains to
+ * the low watermark; the gap keeps a client hovering at the limit from flipping state on every message. While a
+ * client is behind, each new message is handled by the configured policy: the message is queued while the room stops
+ * reading from the player who caused it (BLOCK), a spectator's message is discarded (DROP), or the slow client is
+ * disconnected (DISCONNECT). Senders are room actors serving every player of their rooms, so the limit never makes them
+ * wait. The watermarks and policy are settings of ServerConfig, validated once at startup.
+ * @author Chen Junliang
+ */
+public class OutboundLimit {
+    /** System property with the queued bytes at which a connection falls behind, read by ServerConfig */
+    public static final String HIGH_WATERMARK_PROPERTY = "tictactoe.outbound.highWatermark";
+    /** System property with the queued bytes at which a connection that fell behind catches up, read by ServerConfig */
+    public static final String LOW_WATERMARK_PROPERTY = "tictactoe.outbound.lowWatermark";
+    /** System property with the policy for messages sent to a connection that is behind, read by ServerConfig */
+    public static final String POLICY_PROPERTY = "tictactoe.outbound.policy";
+    private static final int BLOCK_HARD_LIMIT_FACTOR = 4; // BLOCK disconnects a client this many high watermarks behind
+
+    /**
+     * What happens to a message sent to a connection that is behind
+     */
+    public enum Policy {
+        /** Message is queued and the room stops reading from the player it answers until this client catches up */
+        BLOCK,
+        /** Spectator's message is discarded, its feed already holds frames back; a player is disconnected instead */
+        DROP,
+        /** Slow client is disconnected */
+        DISCONNECT;
+
+        /**
+         * Parse a policy name
+         * @param name "block", "drop" or "disconnect", null selects DISCONNECT
+         * @return Policy
+         * @throws IllegalArgumentException Unknown name
+         */
+        public static Policy fromName(String name) {
+            if (name == null || name.isEmpty()) return DISCONNECT;
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Outcome of admitting one message
+     */
+    public enum Admission { QUEUE, DROP, DISCONNECT }
+
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final Policy policy;
+    private final ServerMetrics metrics;
+    private final ReentrantLock lock = new ReentrantLock(); // Held briefly; never while writing to the socket
+    private long queuedBytes; // Guarded by lock
+    private boolean isBehind; // Reached the high watermark and not yet back to the low one; guarded by lock
+    private boolean isReleased; // Connection closed, later counts are ignored; guarded by lock
+    private volatile boolean isWritable = true; // Mirrors !isBehind for lock-free checks
+    private List<Runnable> caughtUpTasks = new ArrayList<>(); // Run once on catching up or release; guarded by lock
+
+    /**
+     * Create a limit
+     * @param highWatermark Queued bytes at which the connection falls behind
+     * @param lowWatermark Queued bytes at which it catches up again
+     * @param policy Policy for messages sent while behind
+     * @param metrics Server metrics, tracks queued bytes, slow connections and dropped messages
+     */
+    public OutboundLimit(long highWatermark, long lowWatermark, Policy policy, ServerMetrics metrics) {
+        if (lowWatermark < 0 || lowWatermark >= highWatermark) {
+            throw new IllegalArgumentException("Need 0 <= low watermark < high watermark: " + lowWatermark + ", " + highWatermark);
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.policy = policy;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Decide whether a message may be queued; never waits
+     * @param isSpectator Whether the connection watches a room, whose feed resynchronizes it if it falls far behind
+     * @return QUEUE, or DROP / DISCONNECT if the connection is behind
+     */
+    public Admission admit(boolean isSpectator) {
+        if (isWritable) return Admission.QUEUE;
+        switch (policy) {
+            case BLOCK:
+                // The room has stopped reading from the sender, so only a burst already in flight lands here
+                if (getQueuedBytes() < highWatermark * BLOCK_HARD_LIMIT_FACTOR) return Admission.QUEUE;
+                return Admission.DISCONNECT;
+            case DROP:
+                if (!isSpectator) return Admission.DISCONNECT; // A player's board would silently go out of sync
+                metrics.outboundDropped();
+                return Admission.DROP;
+            default:
+                return Admission.DISCONNECT;
+        }
+    }
+
+    /**
+     * Have a task run once the connection, behind on its queue, catches up or closes
+     * @param task Task to run, on the thread that drains the queue; must not block or queue anything itself
+     * @return true if the task was registered, false if the connection is not behind (task is not run)
+     */
+    public boolean whenCaughtUp(Runnable task) {
+        lock.lock();
+        try {
+            if (!isBehind || isReleased) return false;
+            caughtUpTasks.add(task);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Count bytes added to the queue
+     * @param bytes Bytes queued
+     */
+    public void queued(long bytes) {
+        lock.lock();
+        try {
+            if (isReleased) return;
+            queuedBytes += bytes;
+            if (!isBehind && queuedBytes >= highWatermark) {
+                isBehind = true;
+                isWritable = false;
+                metrics.outboundFellBehind();
+            }
+        } finally {
+            lock.unlock();
+        }
+        metrics.outboundQueued(bytes);
+    }
+
+    /**
+     * Count bytes removed from the queue, written or discarded
+     * @param bytes Bytes removed
+     */
+    public void removed(long bytes) {
+        if (bytes == 0) return;
+        List<Runnable> tasks = null;
+        lock.lock();
+        try {
+            if (isReleased) return;
+            queuedBytes -= bytes;
+            if (isBehind && queuedBytes <= lowWatermark) {
+                isBehind = false;
+                isWritable = true;
+                metrics.outboundCaughtUp();
+                tasks = takeCaughtUpTasks();
+            }
+        } finally {
+            lock.unlock();
+        }
+        metrics.outboundQueued(-bytes);
+        if (tasks != null) tasks.forEach(Runnable::run);
+    }
+
+    /**
+     * Forget a closed connection's queue, so it no longer counts as queued or behind
+     */
+    public void release() {
+        long bytes;
+        List<Runnable> tasks;
+        lock.lock();
+        try {
+            if (isReleased) return;
+            isReleased = true;
+            bytes = queuedBytes;
+            queuedBytes = 0;
+            if (isBehind) {
+                isBehind = false;
+                metrics.outboundCaughtUp();
+            }
+            isWritable = true;
+            tasks = takeCaughtUpTasks();
+        } finally {
+            lock.unlock();
+        }
+        metrics.outboundQueued(-bytes);
+        tasks.forEach(Runnable::run);
+    }
+
+    /**
+     * Take the registered catch-up tasks, to run once the lock is released; call with the lock held
+     * @return Tasks registered so far
+     */
+    private List<Runnable> takeCaughtUpTasks() {
+        List<Runnable> tasks = caughtUpTasks;
+        caughtUpTasks = new ArrayList<>();
+        return tasks;
+    }
+
+    /**
+     * Check whether the connection is keeping up, so producers that can coalesce can hold messages back instead
+     * @return false from the high watermark until the queue drains to the low watermark
+     */
+    public boolean isWritable() {
+        return isWritable;
+    }
+
+    /**
+     * Get the bytes currently queued
+     * @return Queued bytes
+     */
+    public long getQueuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Offline tool that solves every reachable position of a board variant on a ForkJoinPool
+ * The top plies of the game tree are forked as work-stealing tasks; below them each task runs a sequential exact
+ * negamax. All tasks share a striped transposition table keyed by symmetry-canonical Zobrist key, so every position
+ * family is solved once. The solve is repeated on 1, 2, 4 ... N threads to report nodes/sec scaling, and the last
+ * run's table is written as a PositionFile.
+ * When the table is too small for the variant, the deepest positions are evicted first and the file holds what fit.
+ * Usage: java ParallelSolver [size] [winLength] [output] [tableBits] [maxThreads]
+ * @author Chen Junliang
+ */
+public class ParallelSolver {
+    /** Score of a position the side to move has already won, reduced by one per ply to the win */
+    private static final int WIN_SCORE = GameAi.WIN_SCORE;
+    private static final int SPLIT_PLIES = 3; // Plies near the root whose children are forked as separate tasks
+    private static final int STRIPE_BITS = 8;
+    private static final int DEFAULT_TABLE_BITS = 22;
+
+    private final int size;
+    private final int winLength;
+    private final Zobrist zobrist;
+    private final StripedTranspositionTable table;
+    private final LongAdder nodes = new LongAdder();
+
+    /**
+     * Create a solver with an empty table
+     * @param size Board width and height
+     * @param winLength Marks in a row needed to win
+     * @param tableBits Log2 of the table size
+     */
+    public ParallelSolver(int size, int winLength, int tableBits) {
+        this.size = size;
+        this.winLength = winLength;
+        this.zobrist = Zobrist.forSize(size);
+        this.table = new StripedTranspositionTable(tableBits, Math.min(STRIPE_BITS, tableBits - 4));
+    }
+
+    /**
+     * Solve from the empty board
+     * @param pool Pool to run on
+     * @return Score of the empty board for player 1
+     */
+    public int solve(ForkJoinPool pool) {
+        Board board = new Board(size, winLength);
+        long[] hashes = new long[Zobrist.SYMMETRIES];
+        zobrist.hashAll(board, hashes);
+        return pool.invoke(new SolveTask(board, hashes, 0, 1));
+    }
+
+    /**
+     * Get the number of positions visited so far
+     * @return Node count
+     */
+    public long getNodes() {
+        return nodes.sum();
+    }
+
+    /**
+     * Get the table the results are stored in
+     * @return Shared transposition table
+     */
+    public StripedTranspositionTable getTable() {
+        return table;
+    }
+
+    /**
+     * Score of a child position seen from its parent, one ply further from any forced result
+     * @param childScore Score from the child's side to move
+     * @return Score from the parent's side to move
+     */
+    private static int fromChild(int childScore) {
+        int score = -childScore;
+        if (score > 0) return score - 1;
+        if (score < 0) return score + 1;
+        return 0;
+    }
+
+    /**
+     * Store a solved position: every entry is exact; depth holds the empty cell count so shallow positions win slots
+     * @param board Solved position
+     * @param hashes Its symmetric hashes
+     * @param score Exact score for the side to move
+     * @param bestMove Best move cell in the board's own orientation
+     */
+    private void store(Board board, long[] hashes, int score, int bestMove) {
+        int symmetry = Zobrist.canonicalSymmetry(hashes);
+        int emptyCells = Math.min(255, size * size - board.getMoveCount());
+        table.store(hashes[symmetry], TranspositionTable.pack(score, emptyCells, TranspositionTable.EXACT,
+                zobrist.transform(symmetry, bestMove)));
+    }
+
+    /**
+     * Sequential exact negamax below the split plies
+     * @param board Position, restored before returning
+     * @param hashes Its symmetric hashes, restored before returning
+     * @param playerId Player to move
+     * @return Exact score for the side to move
+     */
+    private int solveSequential(Board board, long[] hashes, int playerId) {
+        nodes.increment();
+        long entry = table.probe(hashes[Zobrist.canonicalSymmetry(hashes)]);
+        if (entry != TranspositionTable.MISS) return TranspositionTable.score(entry);
+
+        int best = -WIN_SCORE - 1;
+        int bestMove = -1;
+        for (int cell = 0; cell < size * size; cell++) {
+            int row = cell / size;
+            int col = cell % size;
+            if (!board.isEmpty(row, col)) continue;
+            board.place(row, col, playerId);
+            zobrist.toggle(hashes, cell, playerId);
+            int score;
+            if (board.isWinningMove(row, col)) score = WIN_SCORE - 1;
+            else if (board.isFull()) score = 0;
+            else score = fromChild(solveSequential(board, hashes, 3 - playerId));
+            zobrist.toggle(hashes, cell, playerId);
+            board.remove(row, col);
+            if (score > best) {
+                best = score;
+                bestMove = cell;
+            }
+        }
+        store(board, hashes, best, bestMove);
+        return best;
+    }
+
+    /**
+     * Solves one position, forking its children while it is within SPLIT_PLIES of the root
+     */
+    private final class SolveTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+        private final Board board;
+        private final long[] hashes;
+        private final int ply;
+        private final int playerId;
+
+        /**
+         * Create a task owning its own copy of the position
+         * @param board Position
+         * @param hashes Its symmetric hashes
+         * @param ply Plies from the root
+         * @param playerId Player to move
+         */
+        SolveTask(Board board, long[] hashes, int ply, int playerId) {
+            this.board = board;
+            this.hashes = hashes;
+            this.ply = ply;
+            this.playerId = playerId;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (ply >= SPLIT_PLIES) return solveSequential(board, hashes, playerId);
+            nodes.increment();
+            long entry = table.probe(hashes[Zobrist.canonicalSymmetry(hashes)]);
+            if (entry != TranspositionTable.MISS) return TranspositionTable.score(entry);
+
+            int[] cells = new int[size * size];
+            int[] scores = new int[size * size];
+            List<SolveTask> children = new ArrayList<>();
+            int count = 0;
+            for (int cell = 0; cell < size * size; cell++) {
+                int row = cell / size;
+                int col = cell % size;
+                if (!board.isEmpty(row, col)) continue;
+                Board child = board.copy();
+                child.place(row, col, playerId);
+                cells[count] = cell;
+                if (child.isWinningMove(row, col)) {
+                    scores[count] = WIN_SCORE - 1;
+                } else if (child.isFull()) {
+                    scores[count] = 0;
+                } else {
+                    long[] childHashes = hashes.clone();
+                    zobrist.toggle(childHashes, cell, playerId);
+                    SolveTask task = new SolveTask(child, childHashes, ply + 1, 3 - playerId);
+                    task.fork();
+                    children.add(task);
+                    scores[count] = Integer.MIN_VALUE; // Filled in from the task below
+                }
+                count++;
+            }
+            int next = 0;
+            int best = -WIN_SCORE - 1;
+            int bestMove = -1;
+            for (int i = 0; i < count; i++) {
+                int score = scores[i] == Integer.MIN_VALUE ? fromChild(children.get(next++).join()) : scores[i];
+                if (score > best) {
+                    best = score;
+                    bestMove = cells[i];
+                }
+            }
+            store(board, hashes, best, bestMove);
+            return best;
+        }
+    }
+
+    /**
+     * Write the table to a PositionFile, sorted by key
+     * @param path Destination
+     * @return Number of entries written
+     * @throws IOException Write failure
+     */
+    public int write(Path path) throws IOException {
+        AtomicInteger counter = new AtomicInteger();
+        table.forEach((key, entry) -> counter.incrementAndGet());
+        long[] keys = new long[counter.get()];
+        AtomicInteger filled = new AtomicInteger();
+        table.forEach((key, entry) -> keys[filled.getAndIncrement()] = key);
+        Arrays.parallelSort(keys);
+        short[] moves = new short[keys.length];
+        short[] results = new short[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            long entry = table.probe(keys[i]);
+            int score = TranspositionTable.score(entry);
+            moves[i] = (short) TranspositionTable.move(entry);
+            results[i] = (short) (score > 0 ? WIN_SCORE - score : score < 0 ? -(WIN_SCORE + score) : 0);
+        }
+        PositionFile.write(path, size, winLength, keys, moves, results, keys.length);
+        return keys.length;
+    }
+
+    /**
+     * Describe a root score
+     * @param score Score for player 1
+     * @return Human-readable result
+     */
+    private static String describe(int score) {
+        if (score > 0) return "player 1 wins in " + (WIN_SCORE - score) + " plies";
+        if (score < 0) return "player 2 wins in " + (WIN_SCORE + score) + " plies";
+        return "draw";
+    }
+
+    /**
+     * Main method: solve a variant on 1..N threads, print the scaling table and write the solved positions
+     * @param args Board size (default 3), win length (default 3), output file (default solved-SxS-K.bin),
+     *             table bits (default 22) and maximum threads (default all cores)
+     * @throws Exception Solve or write failure
+     */
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : Board.DEFAULT_SIZE;
+        int winLength = args.length > 1 ? Integer.parseInt(args[1]) : Board.DEFAULT_WIN_LENGTH;
+        Path output = Paths.get(args.length > 2 ? args[2] : "solved-" + size + "x" + size + "-" + winLength + ".bin");
+        int tableBits = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_TABLE_BITS;
+        int maxThreads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        if (!Board.isValidVariant(size, winLength)) {
+            System.out.println("Unsupported board " + size + "x" + size + ", " + winLength + " in a row");
+            return;
+        }
+
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads < maxThreads; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(maxThreads);
+
+        System.out.printf("Solving %dx%d, %d in a row, table 2^%d slots%n", size, size, winLength, tableBits);
+        System.out.printf("%8s %14s %12s %16s %9s%n", "threads", "nodes", "seconds", "nodes/s", "speedup");
+        double baseRate = 0;
+        ParallelSolver solver = null;
+        int score = 0;
+        for (int threads : threadCounts) {
+            solver = new ParallelSolver(size, winLength, tableBits); // Fresh table so every run does the same work
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            long start = System.nanoTime();
+            score = solver.solve(pool);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            pool.shutdown();
+            double rate = solver.getNodes() / seconds;
+            if (baseRate == 0) baseRate = rate;
+            System.out.printf("%8d %,14d %12.3f %,16.0f %8.2fx%n", threads, solver.getNodes(), seconds, rate, rate / baseRate);
+        }
+
+        System.out.println("Result: " + describe(score));
+        if (solver.getTable().getEvictions() > 0) {
+            System.out.println("Table full: " + solver.getTable().getEvictions()
+                    + " deep positions evicted; raise tableBits to keep them");
+        }
+        int written = solver.write(output);
+        System.out.printf("Wrote %,d positions to %s%n", written, output);
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Server-side view of one connected player, independent of the transport engine behind it
+ * Implemented by the blocking socket connection and by the NIO channel connection
+ * @author Chen Junliang
+ */
+public interface PlayerChannel {
+    /**
+     * Queue one message for this player; it is delivered by the next flush()
+     * A client that has fallen behind gets the message according to the OutboundLimit policy: the message is queued
+     * while the room holds back the player it answers (see whenCaughtUp), a spectator's message is dropped, or the
+     * client is disconnected; the call never waits
+     * @param data Game data to send
+     * @throws IOException Data sending exception
+     */
+    void send(GameData data) throws IOException;
+
+    /**
+     * Queue one already encoded frame; it is delivered by the next flush()
+     * The frame is shared with other connections, so implementations read it through a duplicate and never modify,
+     * pool or release it
+     * @param frame Read-only frame from FrameCodec (binary protocol only)
+     * @throws IOException Data sending exception, or a connection that does not speak the binary protocol
+     */
+    void sendFrame(ByteBuffer frame) throws IOException;
+
+    /**
+     * Deliver every queued message in one write (no-op when nothing is queued or the connection is closed)
+     * @throws IOException Data sending exception
+     */
+    void flush() throws IOException;
+
+    /**
+     * Check whether the client is keeping up with what is queued for it
+     * Producers that can coalesce, such as spectator feeds, hold messages back while this is false instead of letting
+     * the connection's overflow policy drop or disconnect
+     * @return false while the outbound queue is above its high watermark and has not drained to its low watermark
+     */
+    boolean isWritable();
+
+    /**
+     * Start delivering this player's messages to a room
+     * Each message is passed to GameRoom.handleClientData, and a lost connection to GameRoom.onDisconnect
+     * Called again on a new channel when a dropped player resumes its seat
+     * @param room Room the player has been matched into
+     * @param playerId Player ID inside the room (1 or 2, or a spectator ID from GameRoom.FIRST_SPECTATOR_ID on)
+     */
+    void startReading(GameRoom room, int playerId);
+
+    /**
+     * Stop reading this player's messages, leaving them in the socket so TCP pushes back on the client
+     * Called by the room while a client is behind on what this player's messages produced; never waits
+     */
+    void pauseReading();
+
+    /**
+     * Read this player's messages again after pauseReading() (no-op when reading is not paused)
+     */
+    void resumeReading();
+
+    /**
+     * Have a task run once this client, behind on what is queued for it, catches up or closes
+     * Lets a producer that held messages back, or a room holding back a player under the BLOCK outbound policy,
+     * carry on without polling
+     * @param task Task to run on the thread draining this client's queue; must not block or send to this client
+     * @return true if the task was registered, false if the client is not behind (task is not run)
+     */
+    boolean whenCaughtUp(Runnable task);
+
+    /**
+     * Check whether the connection is still usable, so matchmaking can skip players who left while waiting
+     * @return true until the connection is closed or lost
+     */
+    boolean isOpen();
+
+    /**
+     * Get the remote address of this player, used for logging
+     * @return Remote address description
+     */
+    String getRemoteAddress();
+
+    /**
+     * Close the connection of this player (safe to call more than once)
+     */
+    void close();
+}
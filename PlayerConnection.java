@@ -0,0 +1,415 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A single client connected to the blocking server engine
+ * Owns the socket and its message stream, and reads it on an executor thread once matched into a room
+ * Outgoing messages go through a bounded queue with a single writer task, so a room's thread never blocks on a slow
+ * client's socket: it only queues, and the client's own writer does the blocking write (see OutboundLimit)
+ * The wire format is detected from the client's first bytes: binary clients send a handshake, legacy clients start
+ * straight away with the Java serialization stream header
+ * @author Chen Junliang
+ */
+public class PlayerConnection implements PlayerChannel {
+    private final Socket socket;
+    private final MessageStream stream;
+    private final Executor readerExecutor;
+    private final ServerMetrics metrics;
+    private final OutboundLimit outboundLimit;
+    // Encoded frames (binary protocol) or messages (legacy protocol); only the writer task touches the output stream
+    private final Queue<Object> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean isWriting = new AtomicBoolean(); // A writer task is queued or running
+    // send() runs on whichever thread owns the room at the time, or on the server's thread turning the player away;
+    // the lock hands encodeBuffer between them (not synchronized, so virtual threads stay unpinned)
+    private final ReentrantLock encodeLock = new ReentrantLock();
+    private final ByteBuffer encodeBuffer = ByteBuffer.allocate(FrameCodec.MAX_ENCODED_SIZE); // Guarded by encodeLock
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+    private final AtomicBoolean isSocketClosed = new AtomicBoolean();
+    private final ReentrantLock pauseLock = new ReentrantLock(); // Parks the reader while the room holds it back
+    private final Condition readingResumed = pauseLock.newCondition();
+    private boolean isReadingPaused; // Guarded by pauseLock
+    private volatile boolean isSpectator; // Watches a room, so the DROP policy may discard its messages
+    private volatile GameData nameRequest; // First message, held until the room starts reading
+    private int gameId; // Game ID from a cluster router's ROUTE ahead of the first message, 0 if connected directly
+    private static final int LEGACY_MESSAGE_BYTES = 128; // Typical serialized GameData once class descriptors are shared
+
+    /**
+     * Perform the protocol handshake on an accepted socket
+     * @param socket Accepted client socket
+     * @param readerExecutor Executor that runs the reader loop and the writer task (platform or virtual threads)
+     * @param metrics Server metrics, counts bytes, messages and disconnects
+     * @param outboundLimit Limit on the bytes queued for this client
+     * @throws IOException Stream initialization exception or unsupported protocol version
+     */
+    public PlayerConnection(Socket socket, Executor readerExecutor, ServerMetrics metrics, OutboundLimit outboundLimit)
+            throws IOException {
+        this.socket = socket;
+        this.readerExecutor = readerExecutor;
+        this.metrics = metrics;
+        this.stream = openStream(socket, metrics);
+        this.outboundLimit = outboundLimit;
+        metrics.connectionOpened();
+    }
+
+    /**
+     * Peek at the client's first bytes and open the matching message stream
+     * @param socket Accepted client socket
+     * @param metrics Server metrics, counts raw socket bytes
+     * @return Binary stream for handshaking clients, object stream for legacy clients
+     * @throws IOException Stream initialization exception
+     */
+    private static MessageStream openStream(Socket socket, ServerMetrics metrics) throws IOException {
+        BufferedInputStream input = new BufferedInputStream(new CountingInputStream(socket.getInputStream(), metrics));
+        OutputStream output = new CountingOutputStream(socket.getOutputStream(), metrics);
+        byte[] head = new byte[GameDataCodec.HANDSHAKE_SIZE];
+        input.mark(head.length);
+        int offeredVersion = input.readNBytes(head, 0, head.length) == head.length ? GameDataCodec.readHandshake(head) : -1;
+        if (offeredVersion >= 0) {
+            return BinaryMessageStream.accept(input, output, offeredVersion);
+        }
+        input.reset(); // Not a handshake: hand the bytes to the serialization stream
+        return new ObjectMessageStream(input, output);
+    }
+
+    /**
+     * Block until the player's first message, which must be NAME (or RESUME from a reconnecting player, or WATCH
+     * from a spectator), and hold it for the room
+     * Matchmaking needs it because the NAME carries the requested board variant
+     * A connection relayed by a cluster router starts with a ROUTE carrying the game ID, see getGameId()
+     * @return The NAME, RESUME or WATCH message
+     * @throws IOException Network exception or a first message other than NAME, RESUME or WATCH
+     */
+    public GameData readNameRequest() throws IOException {
+        GameData data = stream.read();
+        if (data.getCommand() == GameData.Command.ROUTE && data.getCol() == ClusterRouter.ROUTE_FORWARD) {
+            gameId = data.getRow();
+            data = stream.read();
+        }
+        if (data.getCommand() != GameData.Command.NAME && data.getCommand() != GameData.Command.RESUME
+                && data.getCommand() != GameData.Command.WATCH) {
+            throw new IOException("Expected NAME, RESUME or WATCH, got " + data.getCommand());
+        }
+        nameRequest = data;
+        return data;
+    }
+
+    /**
+     * Get the game ID a cluster router gave this connection, valid after readNameRequest
+     * @return Game ID, 0 for a direct connection
+     */
+    public int getGameId() {
+        return gameId;
+    }
+
+    @Override
+    public void send(GameData data) throws IOException {
+        if (isClosed.get() || !admit()) return;
+        Object item;
+        int bytes;
+        if (stream instanceof BinaryMessageStream) {
+            encodeLock.lock();
+            try {
+                encodeBuffer.clear();
+                FrameCodec.encodeFrame(data, encodeBuffer);
+                encodeBuffer.flip();
+                ByteBuffer frame = ByteBuffer.allocate(encodeBuffer.remaining());
+                frame.put(encodeBuffer).flip();
+                item = frame;
+                bytes = frame.remaining();
+            } finally {
+                encodeLock.unlock();
+            }
+        } else {
+            item = data; // The serialization stream is stateful, so the writer encodes
+            bytes = LEGACY_MESSAGE_BYTES;
+        }
+        outboundLimit.queued(bytes);
+        outbound.add(item);
+        metrics.messageOut(data.getCommand());
+    }
+
+    @Override
+    public void sendFrame(ByteBuffer frame) throws IOException {
+        if (!(stream instanceof BinaryMessageStream)) {
+            throw new IOException("Frames need the binary protocol: " + getRemoteAddress());
+        }
+        if (isClosed.get() || !admit()) return;
+        outboundLimit.queued(frame.remaining());
+        outbound.add(frame);
+    }
+
+    /**
+     * Apply the outbound limit to one message, disconnecting the client if the policy says so
+     * @return true to queue the message, false to discard it
+     */
+    private boolean admit() {
+        switch (outboundLimit.admit(isSpectator)) {
+            case QUEUE:
+                return !isClosed.get();
+            case DISCONNECT:
+                System.out.println("Dropping slow client " + getRemoteAddress());
+                if (!isClosed.get()) metrics.disconnected(ServerMetrics.DisconnectReason.SLOW_CONSUMER, 1);
+                abort(); // Its reader reports the lost connection to the room
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (isClosed.get()) return;
+        startWriting();
+    }
+
+    @Override
+    public boolean isWritable() {
+        return outboundLimit.isWritable();
+    }
+
+    /**
+     * Queue the writer task unless one is already queued or running
+     */
+    private void startWriting() {
+        if (isWriting.compareAndSet(false, true)) {
+            try {
+                readerExecutor.execute(this::writeQueued);
+            } catch (RejectedExecutionException e) {
+                isWriting.set(false); // Server shutting down
+                abort();
+            }
+        }
+    }
+
+    /**
+     * Write everything queued and flush it, called on the writer task only
+     * Once the connection is closed, the last run writes what was queued before the close and then closes the socket
+     */
+    private void writeQueued() {
+        // Read before draining, so a run only closes the socket after writing everything queued before the close
+        boolean isClosing = isClosed.get();
+        try {
+            if (!isSocketClosed.get()) {
+                Object item;
+                while ((item = outbound.poll()) != null) {
+                    if (item instanceof ByteBuffer) {
+                        ByteBuffer frame = (ByteBuffer) item;
+                        ((BinaryMessageStream) stream).writeFrame(frame);
+                        outboundLimit.removed(frame.remaining());
+                    } else {
+                        stream.writeBuffered((GameData) item);
+                        outboundLimit.removed(LEGACY_MESSAGE_BYTES);
+                    }
+                }
+                stream.flush(); // Blocks only this connection's writer when the client reads slowly
+            }
+        } catch (IOException e) {
+            if (!isClosed.get()) metrics.disconnected(ServerMetrics.DisconnectReason.WRITE_FAILED, 1);
+            abort();
+        }
+        if (isClosing) {
+            closeSocket(); // isWriting stays set, no writer runs after this one
+            return;
+        }
+        isWriting.set(false);
+        if (!outbound.isEmpty() || isClosed.get()) startWriting(); // Queued or closed while this run was finishing
+    }
+
+    @Override
+    public void startReading(GameRoom room, int playerId) {
+        isSpectator = playerId >= GameRoom.FIRST_SPECTATOR_ID;
+        readerExecutor.execute(() -> {
+            try {
+                GameData held = nameRequest;
+                if (held != null) {
+                    nameRequest = null;
+                    room.handleClientData(held, playerId);
+                }
+                while (!isClosed.get()) {
+                    awaitReading();
+                    GameData data = stream.read();
+                    room.handleClientData(data, playerId);
+                }
+                room.onDisconnect(playerId, this); // Closed while handling, such as a slow client dropped by its own request
+            } catch (SocketException | EOFException e) {
+                if (!isClosed.get()) {
+                    metrics.disconnected(ServerMetrics.DisconnectReason.PEER_CLOSED, 1);
+                }
+                room.onDisconnect(playerId, this);
+            } catch (IOException | RuntimeException e) {
+                if (!isClosed.get()) {
+                    e.printStackTrace();
+                    metrics.disconnected(ServerMetrics.DisconnectReason.PROTOCOL_ERROR, 1);
+                }
+                room.onDisconnect(playerId, this);
+            }
+        });
+    }
+
+    @Override
+    public void pauseReading() {
+        pauseLock.lock();
+        try {
+            isReadingPaused = true;
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    @Override
+    public void resumeReading() {
+        pauseLock.lock();
+        try {
+            isReadingPaused = false;
+            readingResumed.signalAll();
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean whenCaughtUp(Runnable task) {
+        return outboundLimit.whenCaughtUp(task);
+    }
+
+    /**
+     * Park the reader while reading is paused, called on the reader only
+     * A close wakes it through resumeReading(), and the read that follows fails on the closed socket
+     */
+    private void awaitReading() {
+        pauseLock.lock();
+        try {
+            while (isReadingPaused && !isClosed.get()) readingResumed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Executor shutting down
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !isClosed.get();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return String.valueOf(socket.getInetAddress());
+    }
+
+    @Override
+    public void close() {
+        if (!outboundLimit.isWritable()) {
+            abort(); // Too far behind to wait for, such as a client that stopped reading
+            return;
+        }
+        if (!isClosed.compareAndSet(false, true)) return;
+        metrics.connectionClosed();
+        try {
+            socket.shutdownInput(); // Ends the reader now; the writer sends what is queued, such as an EXIT, then closes
+        } catch (IOException ignored) {
+            // Already closed by the peer
+        }
+        resumeReading(); // Wakes a paused reader so it sees the close
+        startWriting();
+    }
+
+    /**
+     * Close the connection immediately, discarding anything still queued
+     */
+    private void abort() {
+        if (isClosed.compareAndSet(false, true)) metrics.connectionClosed();
+        closeSocket();
+        resumeReading(); // Wakes a paused reader so it sees the close
+    }
+
+    /**
+     * Close the stream and socket once, and stop counting the discarded queue
+     */
+    private void closeSocket() {
+        if (!isSocketClosed.compareAndSet(false, true)) return;
+        stream.close();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        outbound.clear();
+        outboundLimit.release();
+    }
+
+    /**
+     * Input stream that adds every byte read from the socket to the server's inbound byte count
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final ServerMetrics metrics;
+
+        /**
+         * Wrap a socket input stream
+         * @param in Socket input stream
+         * @param metrics Server metrics
+         */
+        CountingInputStream(InputStream in, ServerMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) metrics.addBytesIn(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) metrics.addBytesIn(n);
+            return n;
+        }
+    }
+
+    /**
+     * Output stream that adds every byte written to the socket to the server's outbound byte count
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final ServerMetrics metrics;
+
+        /**
+         * Wrap a socket output stream
+         * @param out Socket output stream
+         * @param metrics Server metrics
+         */
+        CountingOutputStream(OutputStream out, ServerMetrics metrics) {
+            super(out);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            metrics.addBytesOut(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len); // Pass arrays straight through instead of FilterOutputStream's byte-at-a-time loop
+            metrics.addBytesOut(len);
+        }
+    }
+}
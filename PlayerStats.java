@@ -0,0 +1,91 @@
+/**
+ * Immutable snapshot of one player's record: wins, losses, draws and Elo rating
+ * The player store replaces a player's snapshot after every result, so snapshots can be handed to any thread
+ * @author Chen Junliang
+ */
+public final class PlayerStats {
+    /** Rating of a player who has not finished a game yet */
+    public static final double INITIAL_RATING = 1500;
+    private static final double K_FACTOR = 32; // Largest rating change one game can cause
+
+    private final String name;
+    private final int wins;
+    private final int losses;
+    private final int draws;
+    private final double rating;
+
+    /**
+     * Create a snapshot
+     * @param name Player name
+     * @param wins Games won
+     * @param losses Games lost
+     * @param draws Games drawn
+     * @param rating Elo rating
+     */
+    public PlayerStats(String name, int wins, int losses, int draws, double rating) {
+        this.name = name;
+        this.wins = wins;
+        this.losses = losses;
+        this.draws = draws;
+        this.rating = rating;
+    }
+
+    /**
+     * Create the record of a player who has not played yet
+     * @param name Player name
+     * @return Empty record at the initial rating
+     */
+    public static PlayerStats newPlayer(String name) {
+        return new PlayerStats(name, 0, 0, 0, INITIAL_RATING);
+    }
+
+    /**
+     * Get the player name
+     * @return Name
+     */
+    public String getName() { return name; }
+
+    /**
+     * Get the number of games won
+     * @return Wins
+     */
+    public int getWins() { return wins; }
+
+    /**
+     * Get the number of games lost
+     * @return Losses
+     */
+    public int getLosses() { return losses; }
+
+    /**
+     * Get the number of games drawn
+     * @return Draws
+     */
+    public int getDraws() { return draws; }
+
+    /**
+     * Get the Elo rating
+     * @return Rating
+     */
+    public double getRating() { return rating; }
+
+    /**
+     * Apply one finished game against an opponent
+     * @param opponentRating Opponent's rating before the game
+     * @param score 1 for a win, 0.5 for a draw, 0 for a loss
+     * @return New snapshot with the result counted and the rating moved toward the score
+     */
+    public PlayerStats withResult(double opponentRating, double score) {
+        double expected = 1 / (1 + Math.pow(10, (opponentRating - rating) / 400));
+        return new PlayerStats(name,
+                wins + (score == 1 ? 1 : 0),
+                losses + (score == 0 ? 1 : 0),
+                draws + (score == 0.5 ? 1 : 0),
+                rating + K_FACTOR * (score - expected));
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + Math.round(rating) + " (" + wins + "W/" + losses + "L/" + draws + "D)";
+    }
+}
@@ -0,0 +1,449 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persistent win/loss/draw and Elo record of every player, keyed by name
+ * Records live in one file of fixed-size slots read and written in place with positional FileChannel IO. In memory the
+ * store keeps only a name index and the leaderboard, a skip list ordered by rating, so a result moves a player in
+ * O(log n) and the top N are read in O(N) even with millions of players; full records of recently seen players are
+ * held in a bounded LRU cache in front of the file. Rooms report results through recordResult, which only queues the
+ * update for the store's own thread, so a game never waits for the disk.
+ * Slots are written through without forcing; the file is forced on close. When the file is missing it is rebuilt by
+ * replaying the results of the game log, so deleting it is always safe.
+ * @author Chen Junliang
+ */
+public class PlayerStore {
+    /** System property with the store file; "none" disables the store */
+    public static final String FILE_PROPERTY = "tictactoe.players.file";
+    /** System property with the number of full player records cached in memory */
+    public static final String CACHE_SIZE_PROPERTY = "tictactoe.players.cacheSize";
+    /** Longest name stored; longer names are cut at a character boundary */
+    public static final int MAX_NAME_BYTES = 100;
+
+    private static final String DEFAULT_FILE = "players.db";
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+    private static final int MAGIC = 0x54545053; // "TTPS"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 16; // Magic, version, padding, slot count
+    private static final int RECORD_SIZE = 128; // Name length, name, wins, losses, draws, rating, padding
+    private static final int STATS_OFFSET = 2 + MAX_NAME_BYTES;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final ExecutorService updater; // Applies queued results in order
+    // Guards the file, the index, the cache and the counters; the leaderboard is only modified under it
+    private final ReentrantLock storeLock = new ReentrantLock();
+    private final Map<String, Ranking> index = new HashMap<>(); // Every stored player
+    private final LinkedHashMap<String, PlayerStats> cache; // Recently used records, least recent first
+    private final ConcurrentSkipListSet<Ranking> leaderboard = new ConcurrentSkipListSet<>();
+    private final ByteBuffer recordBuffer = ByteBuffer.allocate(RECORD_SIZE); // Used under the lock
+    private int slotCount;
+    private long cacheHits;
+    private long cacheMisses;
+
+    /**
+     * Position of a player in the leaderboard and slot of its record in the file
+     * Ordered by rating, highest first, then by name so every player has exactly one place
+     */
+    private static final class Ranking implements Comparable<Ranking> {
+        final String name;
+        final double rating;
+        final int slot;
+
+        Ranking(String name, double rating, int slot) {
+            this.name = name;
+            this.rating = rating;
+            this.slot = slot;
+        }
+
+        @Override
+        public int compareTo(Ranking other) {
+            int byRating = Double.compare(other.rating, rating);
+            return byRating != 0 ? byRating : name.compareTo(other.name);
+        }
+    }
+
+    /**
+     * Open a store file, building the index and leaderboard from its slots
+     * @param path Store file, created if missing
+     * @param cacheSize Number of full records kept in memory
+     * @throws IOException File cannot be opened or is not a store file
+     */
+    public PlayerStore(Path path, int cacheSize) throws IOException {
+        this.path = path;
+        this.cache = new LinkedHashMap<String, PlayerStats>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PlayerStats> eldest) {
+                return size() > cacheSize; // Every record is already on disk, so eviction just drops it
+            }
+        };
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                writeHeader();
+            } else {
+                load();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        updater = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "player-store");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Open the store configured by system properties, if enabled
+     * A new store is filled from the game log so ratings survive deleting the file
+     * @param gameLog Server's game log, or null
+     * @return Open store, or null if disabled or the file cannot be used
+     */
+    public static PlayerStore openFromSystemProperty(GameLog gameLog) {
+        String file = System.getProperty(FILE_PROPERTY, DEFAULT_FILE);
+        if (file.equals("none")) return null;
+        try {
+            PlayerStore store = new PlayerStore(Paths.get(file), Integer.getInteger(CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE));
+            if (store.getPlayerCount() == 0 && gameLog != null) store.rebuildFrom(gameLog.getDirectory());
+            System.out.println("Player store at " + Paths.get(file).toAbsolutePath() + ", " + store.getPlayerCount() + " players");
+            return store;
+        } catch (IOException e) {
+            System.out.println("Player store not opened: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Apply every result of a game log directory, in order, on the calling thread
+     * @param logDirectory Game log directory
+     * @throws IOException Log or store cannot be read or written
+     */
+    public void rebuildFrom(Path logDirectory) throws IOException {
+        IOException[] failure = new IOException[1];
+        GameLog.replay(logDirectory, record -> {
+            if (record.getType() != GameLog.Record.Type.RESULT || failure[0] != null) return;
+            try {
+                apply(record.getP1Name(), record.getP2Name(), record.getPlayerId());
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null) throw failure[0];
+    }
+
+    /**
+     * Write the header of an empty store
+     * @throws IOException Write failure
+     */
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putInt(0).putInt(0).flip();
+        writeFully(header, 0);
+    }
+
+    /**
+     * Read every slot once to build the name index and the leaderboard
+     * @throws IOException Read failure or not a store file
+     */
+    private void load() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        int count = header.getInt(8);
+        if (header.getInt(0) != MAGIC || header.getShort(4) != VERSION
+                || channel.size() < HEADER_SIZE + (long) count * RECORD_SIZE) {
+            throw new IOException("Not a player store: " + path);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 512);
+        for (int slot = 0; slot < count; ) {
+            int batch = Math.min(512, count - slot);
+            buffer.clear().limit(batch * RECORD_SIZE);
+            readFully(buffer, HEADER_SIZE + (long) slot * RECORD_SIZE);
+            for (int i = 0; i < batch; i++, slot++) {
+                PlayerStats stats = decode(buffer, i * RECORD_SIZE);
+                Ranking ranking = new Ranking(stats.getName(), stats.getRating(), slot);
+                index.put(ranking.name, ranking);
+                leaderboard.add(ranking);
+            }
+        }
+        slotCount = count;
+    }
+
+    /**
+     * Queue a finished game for both players' records; never blocks and never touches the disk
+     * @param p1Name Name of player 1
+     * @param p2Name Name of player 2
+     * @param winnerId Winning player ID, or 0 for a draw
+     */
+    public void recordResult(String p1Name, String p2Name, int winnerId) {
+        if (p1Name == null || p2Name == null || updater.isShutdown()) return;
+        updater.execute(() -> {
+            try {
+                apply(p1Name, p2Name, winnerId);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Update both players' records, slots and leaderboard places for one result
+     * @param p1Name Name of player 1
+     * @param p2Name Name of player 2
+     * @param winnerId Winning player ID, or 0 for a draw
+     * @throws IOException Store file failure
+     */
+    private void apply(String p1Name, String p2Name, int winnerId) throws IOException {
+        String name1 = storedName(p1Name);
+        String name2 = storedName(p2Name);
+        if (name1.equals(name2)) return; // Two players sharing a name cannot be told apart
+        double score1 = winnerId == 1 ? 1 : winnerId == 2 ? 0 : 0.5;
+        storeLock.lock();
+        try {
+            PlayerStats before1 = find(name1);
+            PlayerStats before2 = find(name2);
+            if (before1 == null) before1 = PlayerStats.newPlayer(name1);
+            if (before2 == null) before2 = PlayerStats.newPlayer(name2);
+            save(before1.withResult(before2.getRating(), score1));
+            save(before2.withResult(before1.getRating(), 1 - score1));
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * Write a player's new record to its slot (appending a slot for a new player) and move it on the leaderboard
+     * Called with the lock held
+     * @param stats New record
+     * @throws IOException Write failure
+     */
+    private void save(PlayerStats stats) throws IOException {
+        Ranking old = index.get(stats.getName());
+        int slot = old != null ? old.slot : slotCount;
+        recordBuffer.clear();
+        encode(stats, recordBuffer);
+        recordBuffer.flip();
+        writeFully(recordBuffer, HEADER_SIZE + (long) slot * RECORD_SIZE);
+        if (old == null) {
+            slotCount++;
+            ByteBuffer count = ByteBuffer.allocate(4);
+            count.putInt(0, slotCount);
+            writeFully(count, 8);
+        } else {
+            leaderboard.remove(old);
+        }
+        Ranking ranking = new Ranking(stats.getName(), stats.getRating(), slot);
+        index.put(stats.getName(), ranking);
+        leaderboard.add(ranking);
+        cache.put(stats.getName(), stats);
+    }
+
+    /**
+     * Get a player's record from the cache, or from its slot on a miss
+     * Called with the lock held
+     * @param name Stored name
+     * @return Record, or null if the player has never finished a game
+     * @throws IOException Read failure
+     */
+    private PlayerStats find(String name) throws IOException {
+        PlayerStats stats = cache.get(name);
+        if (stats != null) {
+            cacheHits++;
+            return stats;
+        }
+        Ranking ranking = index.get(name);
+        if (ranking == null) return null;
+        cacheMisses++;
+        recordBuffer.clear();
+        readFully(recordBuffer, HEADER_SIZE + (long) ranking.slot * RECORD_SIZE);
+        stats = decode(recordBuffer, 0);
+        cache.put(name, stats);
+        return stats;
+    }
+
+    /**
+     * Look up one player
+     * @param name Player name
+     * @return Record, or null if the player has never finished a game
+     * @throws IOException Read failure
+     */
+    public PlayerStats getStats(String name) throws IOException {
+        storeLock.lock();
+        try {
+            return find(storedName(name));
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * Get the highest rated players
+     * @param count Number of players wanted
+     * @return Up to count records, highest rating first
+     * @throws IOException Read failure
+     */
+    public List<PlayerStats> getTopPlayers(int count) throws IOException {
+        List<PlayerStats> top = new ArrayList<>(count);
+        storeLock.lock();
+        try {
+            Iterator<Ranking> iterator = leaderboard.iterator();
+            while (top.size() < count && iterator.hasNext()) {
+                top.add(find(iterator.next().name));
+            }
+        } finally {
+            storeLock.unlock();
+        }
+        return top;
+    }
+
+    /**
+     * Get the number of stored players
+     * @return Player count
+     */
+    public int getPlayerCount() {
+        storeLock.lock();
+        try {
+            return slotCount;
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * Get the fraction of record lookups answered from the cache
+     * @return Hit rate between 0 and 1, or 0 before any lookup
+     */
+    public double getCacheHitRate() {
+        storeLock.lock();
+        try {
+            long lookups = cacheHits + cacheMisses;
+            return lookups == 0 ? 0 : (double) cacheHits / lookups;
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * Wait until every result queued so far has been applied
+     * @throws InterruptedException Interrupted while waiting
+     */
+    public void awaitPending() throws InterruptedException {
+        try {
+            updater.submit(() -> { }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Apply the queued results, force the file and close it
+     */
+    public void close() {
+        updater.shutdown();
+        try {
+            updater.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        storeLock.lock();
+        try {
+            channel.force(true);
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * Cut a name to the longest prefix that fits a slot without splitting a character
+     * @param name Player name
+     * @return Name as stored
+     */
+    private static String storedName(String name) {
+        if (name.length() * 3 <= MAX_NAME_BYTES) return name; // Fits however it encodes
+        int end = name.length();
+        while (name.substring(0, end).getBytes(StandardCharsets.UTF_8).length > MAX_NAME_BYTES) {
+            end--;
+            if (Character.isLowSurrogate(name.charAt(end)) && end > 0) end--;
+        }
+        return name.substring(0, end);
+    }
+
+    /**
+     * Encode a record into its fixed-size slot layout
+     * @param stats Record whose name already fits a slot
+     * @param buffer Receives RECORD_SIZE bytes
+     */
+    private static void encode(PlayerStats stats, ByteBuffer buffer) {
+        int start = buffer.position();
+        byte[] name = stats.getName().getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) name.length).put(name);
+        buffer.position(start + STATS_OFFSET);
+        buffer.putInt(stats.getWins()).putInt(stats.getLosses()).putInt(stats.getDraws()).putDouble(stats.getRating());
+        buffer.position(start + RECORD_SIZE);
+    }
+
+    /**
+     * Decode the record stored at an offset of a buffer
+     * @param buffer Buffer holding whole slots
+     * @param offset Offset of the slot
+     * @return Record
+     * @throws IOException Slot is corrupt
+     */
+    private PlayerStats decode(ByteBuffer buffer, int offset) throws IOException {
+        int nameLength = buffer.getShort(offset);
+        if (nameLength < 0 || nameLength > MAX_NAME_BYTES) throw new IOException("Corrupt player store: " + path);
+        byte[] name = new byte[nameLength];
+        for (int i = 0; i < nameLength; i++) name[i] = buffer.get(offset + 2 + i);
+        int stats = offset + STATS_OFFSET;
+        return new PlayerStats(new String(name, StandardCharsets.UTF_8), buffer.getInt(stats), buffer.getInt(stats + 4),
+                buffer.getInt(stats + 8), buffer.getDouble(stats + 12));
+    }
+
+    /**
+     * Read until the buffer is full
+     * @param buffer Buffer to fill from its position to its limit
+     * @param position File offset of the first byte
+     * @throws IOException Read failure or end of file
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) throw new IOException("Truncated player store: " + path);
+        }
+        buffer.position(start);
+    }
+
+    /**
+     * Write the whole buffer at a file offset
+     * @param buffer Bytes from its position to its limit
+     * @param position File offset of the first byte
+     * @throws IOException Write failure
+     */
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position() - start);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compact binary file of solved positions, written by ParallelSolver
+ * Layout, big-endian: a 16-byte header (magic, version, board size, win length, entry count, reserved) followed by
+ * fixed 12-byte entries sorted by key: canonical Zobrist key (8), best move as a canonical cell or -1 (2), and
+ * the result for the side to move (2): +n wins in n plies, -n loses in n plies, 0 draws.
+ * Fixed-size sorted entries can be binary searched in place, without parsing the file.
+ * @author Chen Junliang
+ */
+public final class PositionFile {
+    /** File magic, "TTTP" */
+    public static final int MAGIC = 0x54545450;
+    /** Format version */
+    public static final int VERSION = 1;
+    /** Bytes before the first entry */
+    public static final int HEADER_SIZE = 16;
+    /** Bytes per entry */
+    public static final int ENTRY_SIZE = 12;
+
+    /**
+     * Not instantiable
+     */
+    private PositionFile() {
+    }
+
+    /**
+     * Write a position file
+     * @param path Destination, replaced if it exists
+     * @param size Board width and height
+     * @param winLength Marks in a row needed to win
+     * @param keys Canonical keys in ascending signed order
+     * @param moves Best move of each key, as a canonical cell or -1
+     * @param results Result of each key for the side to move
+     * @param count Number of entries
+     * @throws IOException Write failure
+     */
+    public static void write(Path path, int size, int winLength, long[] keys, short[] moves, short[] results,
+                             int count) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeByte(size);
+            out.writeByte(winLength);
+            out.writeInt(count);
+            out.writeInt(0);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(keys[i]);
+                out.writeShort(moves[i]);
+                out.writeShort(results[i]);
+            }
+        }
+    }
+}
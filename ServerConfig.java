@@ -0,0 +1,291 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Settings the server is launched with
+ * Each setting is looked up, highest priority first, in --name=value command line options, system properties named
+ * tictactoe.server.name, a properties file given as --config=file or -Dtictactoe.config, and the defaults below. The
+ * original positional arguments (engine, then thread model) are still accepted, and the thread model still falls back
+ * to -Dtictactoe.threads, the outbound settings to -Dtictactoe.outbound.policy, highWatermark and lowWatermark.
+ * Every setting is validated here, so a bad value stops the server at startup instead of failing each connection.
+ * --train is not a setting but asks for a training run that prepares a class data sharing archive (see
+ * TicTacToeServer.main).
+ * @author Chen Junliang
+ */
+public final class ServerConfig {
+    /** System property with the path of a properties file holding settings */
+    public static final String FILE_PROPERTY = "tictactoe.config";
+    /** Prefix of the system property of each setting */
+    public static final String PROPERTY_PREFIX = "tictactoe.server.";
+    /** Usage text listing every setting */
+    public static final String USAGE = "Usage: java TicTacToeServer [blocking|nio] [platform|virtual] [--name=value ...]\n"
+            + "  --bind=ADDRESS        address to listen on (default all interfaces)\n"
+            + "  --port=N              port to listen on, 0 picks a free one (default 8888)\n"
+            + "  --backlog=N           connections waiting to be accepted (default 50)\n"
+            + "  --engine=NAME         blocking or nio (default blocking)\n"
+            + "  --threads=NAME        platform or virtual reader threads (default platform)\n"
+            + "  --loops=N             NIO event loops (default one per core)\n"
+            + "  --receiveBuffer=N     socket receive buffer in bytes (default from the OS)\n"
+            + "  --sendBuffer=N        socket send buffer in bytes (default from the OS)\n"
+            + "  --drainTimeoutMs=N    longest wait for games to finish when draining (default 30000)\n"
+            + "  --outboundPolicy=NAME block, drop or disconnect for a client that falls behind (default disconnect)\n"
+            + "  --outboundHigh=N      bytes queued for a client at which it falls behind (default 262144)\n"
+            + "  --outboundLow=N       bytes queued at which it catches up again (default a quarter of outboundHigh)\n"
+            + "  --join=HOST:PORT      cluster router admin port to join once listening, and to leave when draining\n"
+            + "  --advertise=HOST      host the router connects to (default the bind address, else 127.0.0.1)\n"
+            + "  --config=FILE         properties file with any of the settings above\n"
+            + "  --train               play a few games against itself and exit, to record a class archive";
+
+    private static final int DEFAULT_PORT = 8888;
+    private static final int DEFAULT_BACKLOG = 50;
+    private static final long DEFAULT_DRAIN_TIMEOUT_MS = 30000;
+    private static final int DEFAULT_OUTBOUND_HIGH = 256 * 1024; // Thousands of moves, far beyond a healthy client
+
+    private final String bindAddress;
+    private final int port;
+    private final int backlog;
+    private final String engine;
+    private final ThreadModel threadModel;
+    private final int loopCount;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+    private final long drainTimeoutMs;
+    private final OutboundLimit.Policy outboundPolicy;
+    private final int outboundHighWatermark;
+    private final int outboundLowWatermark;
+    private final String joinAddress;
+    private final String advertiseHost;
+    private final boolean isTraining;
+
+    /**
+     * Read every setting from merged sources
+     * @param settings Settings by name, already merged by priority
+     * @param isTraining Whether --train was given
+     */
+    private ServerConfig(Properties settings, boolean isTraining) {
+        this.bindAddress = settings.getProperty("bind", "").trim();
+        this.port = intSetting(settings, "port", DEFAULT_PORT, 0, 65535);
+        this.backlog = intSetting(settings, "backlog", DEFAULT_BACKLOG, 1, Integer.MAX_VALUE);
+        this.engine = settings.getProperty("engine", TicTacToeServer.ENGINE_BLOCKING).trim();
+        if (!engine.equals(TicTacToeServer.ENGINE_BLOCKING) && !engine.equals(TicTacToeServer.ENGINE_NIO)) {
+            throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+        String threads = settings.getProperty("threads");
+        this.threadModel = threads == null ? ThreadModel.fromSystemProperty() : ThreadModel.fromName(threads.trim());
+        this.loopCount = intSetting(settings, "loops", Math.max(1, Runtime.getRuntime().availableProcessors()), 1, 1024);
+        this.receiveBufferSize = intSetting(settings, "receiveBuffer", 0, 0, Integer.MAX_VALUE);
+        this.sendBufferSize = intSetting(settings, "sendBuffer", 0, 0, Integer.MAX_VALUE);
+        this.drainTimeoutMs = intSetting(settings, "drainTimeoutMs", (int) DEFAULT_DRAIN_TIMEOUT_MS, 0, Integer.MAX_VALUE);
+        String policy = settings.getProperty("outboundPolicy", System.getProperty(OutboundLimit.POLICY_PROPERTY));
+        try {
+            this.outboundPolicy = OutboundLimit.Policy.fromName(policy == null ? null : policy.trim());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown outboundPolicy, expected block, drop or disconnect: " + policy);
+        }
+        this.outboundHighWatermark = intValue("outboundHigh",
+                settings.getProperty("outboundHigh", System.getProperty(OutboundLimit.HIGH_WATERMARK_PROPERTY)),
+                DEFAULT_OUTBOUND_HIGH, 1, Integer.MAX_VALUE);
+        this.outboundLowWatermark = intValue("outboundLow",
+                settings.getProperty("outboundLow", System.getProperty(OutboundLimit.LOW_WATERMARK_PROPERTY)),
+                outboundHighWatermark / 4, 0, outboundHighWatermark - 1);
+        this.joinAddress = settings.getProperty("join", "").trim();
+        String advertise = settings.getProperty("advertise", "").trim();
+        this.advertiseHost = !advertise.isEmpty() ? advertise : !bindAddress.isEmpty() ? bindAddress : "127.0.0.1";
+        this.isTraining = isTraining;
+    }
+
+    /**
+     * Build the configuration from command line arguments, system properties and the configuration file
+     * @param args Positional engine and thread model, then --name=value options and --train
+     * @return Configuration
+     * @throws IOException Configuration file cannot be read
+     * @throws IllegalArgumentException Unknown option or invalid value
+     */
+    public static ServerConfig fromArgs(String[] args) throws IOException {
+        Properties options = new Properties();
+        boolean isTraining = false;
+        int positional = 0;
+        for (String arg : args) {
+            if (arg.equals("--train")) {
+                isTraining = true;
+            } else if (arg.startsWith("--") && arg.indexOf('=') > 2) {
+                int equals = arg.indexOf('=');
+                options.setProperty(arg.substring(2, equals), arg.substring(equals + 1));
+            } else if (!arg.startsWith("--") && positional < 2) {
+                options.setProperty(positional++ == 0 ? "engine" : "threads", arg); // Original arguments
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        Properties settings = new Properties();
+        String file = options.getProperty("config", System.getProperty(FILE_PROPERTY));
+        if (file != null) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+                settings.load(reader);
+            }
+        }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PROPERTY_PREFIX)) {
+                settings.setProperty(name.substring(PROPERTY_PREFIX.length()), System.getProperty(name));
+            }
+        }
+        settings.putAll(options);
+        settings.remove("config");
+        for (String name : settings.stringPropertyNames()) {
+            if (!USAGE.contains("--" + name + "=")) throw new IllegalArgumentException("Unknown setting: " + name);
+        }
+        return new ServerConfig(settings, isTraining);
+    }
+
+    /**
+     * Build the configuration from settings alone, ignoring system properties and files, e.g. for tests
+     * @param settings Settings by name (bind, port, backlog, ...); missing ones take their defaults
+     * @return Configuration
+     * @throws IllegalArgumentException Invalid value
+     */
+    public static ServerConfig fromProperties(Properties settings) {
+        return new ServerConfig(settings, false);
+    }
+
+    /**
+     * Parse one integer setting
+     * @param settings Merged settings
+     * @param name Setting name
+     * @param defaultValue Value when the setting is absent
+     * @param min Smallest valid value
+     * @param max Largest valid value
+     * @return Value
+     * @throws IllegalArgumentException Not a number or out of range
+     */
+    private static int intSetting(Properties settings, String name, int defaultValue, int min, int max) {
+        return intValue(name, settings.getProperty(name), defaultValue, min, max);
+    }
+
+    /**
+     * Parse one integer value
+     * @param name Setting name, for the error message
+     * @param text Value as given, null when absent
+     * @param defaultValue Value when absent
+     * @param min Smallest valid value
+     * @param max Largest valid value
+     * @return Value
+     * @throws IllegalArgumentException Not a number or out of range
+     */
+    private static int intValue(String name, String text, int defaultValue, int min, int max) {
+        if (text == null) return defaultValue;
+        int value;
+        try {
+            value = Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + text);
+        }
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(name + " must be between " + min + " and " + max + ": " + value);
+        }
+        return value;
+    }
+
+    /**
+     * Get the address to listen on
+     * @return Host name or IP address, empty for all interfaces
+     */
+    public String getBindAddress() { return bindAddress; }
+
+    /**
+     * Get the port to listen on
+     * @return Port, 0 to pick a free one
+     */
+    public int getPort() { return port; }
+
+    /**
+     * Get the accept backlog
+     * @return Connections the OS queues before the server accepts them
+     */
+    public int getBacklog() { return backlog; }
+
+    /**
+     * Get the server engine
+     * @return TicTacToeServer.ENGINE_BLOCKING or ENGINE_NIO
+     */
+    public String getEngine() { return engine; }
+
+    /**
+     * Get the threads of the blocking engine's readers and of spectator writers
+     * @return Thread model
+     */
+    public ThreadModel getThreadModel() { return threadModel; }
+
+    /**
+     * Get the number of NIO event loops
+     * @return Loop count
+     */
+    public int getLoopCount() { return loopCount; }
+
+    /**
+     * Get the socket receive buffer size
+     * @return Bytes, 0 for the OS default
+     */
+    public int getReceiveBufferSize() { return receiveBufferSize; }
+
+    /**
+     * Get the socket send buffer size
+     * @return Bytes, 0 for the OS default
+     */
+    public int getSendBufferSize() { return sendBufferSize; }
+
+    /**
+     * Get the longest time a drain waits for games to finish before closing the remaining rooms
+     * @return Milliseconds
+     */
+    public long getDrainTimeoutMs() { return drainTimeoutMs; }
+
+    /**
+     * Get what happens to messages for a client that has fallen behind
+     * @return BLOCK, DROP or DISCONNECT
+     */
+    public OutboundLimit.Policy getOutboundPolicy() { return outboundPolicy; }
+
+    /**
+     * Get the bytes queued for a client at which it falls behind
+     * @return High watermark in bytes
+     */
+    public int getOutboundHighWatermark() { return outboundHighWatermark; }
+
+    /**
+     * Get the bytes queued for a client that fell behind at which it catches up again
+     * @return Low watermark in bytes, below the high watermark
+     */
+    public int getOutboundLowWatermark() { return outboundLowWatermark; }
+
+    /**
+     * Get the cluster router this server joins
+     * @return Router as host:port, empty when not clustered
+     */
+    public String getJoinAddress() { return joinAddress; }
+
+    /**
+     * Get the host a cluster router should connect to for this server
+     * @return Host name or IP address
+     */
+    public String getAdvertiseHost() { return advertiseHost; }
+
+    /**
+     * Check whether a class archive training run was asked for
+     * @return true with --train
+     */
+    public boolean isTraining() { return isTraining; }
+
+    @Override
+    public String toString() {
+        return engine + (engine.equals(TicTacToeServer.ENGINE_NIO) ? ", " + loopCount + " loops"
+                : ", " + threadModel.name().toLowerCase() + " threads")
+                + ", " + (bindAddress.isEmpty() ? "*" : bindAddress) + ":" + port + ", backlog " + backlog
+                + (receiveBufferSize > 0 ? ", receive buffer " + receiveBufferSize : "")
+                + (sendBufferSize > 0 ? ", send buffer " + sendBufferSize : "")
+                + (joinAddress.isEmpty() ? "" : ", cluster " + joinAddress);
+    }
+}
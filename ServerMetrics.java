@@ -0,0 +1,335 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Server-wide counters and latency histograms
+ * Every record method is a lock-free add on a LongAdder or LatencyHistogram and never allocates, so metrics stay on
+ * in production. The same numbers are exposed over JMX and rendered as plain text for MetricsHttpEndpoint.
+ * @author Chen Junliang
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    /** JMX name the metrics are registered under */
+    public static final String OBJECT_NAME = "tictactoe:type=ServerMetrics";
+
+    /**
+     * Why a player connection ended
+     */
+    public enum DisconnectReason {
+        /** Player sent EXIT */
+        CLIENT_EXIT,
+        /** Peer closed or reset the socket */
+        PEER_CLOSED,
+        /** Malformed or oversized data */
+        PROTOCOL_ERROR,
+        /** Handshake failed or timed out */
+        HANDSHAKE_FAILED,
+        /** Writing to the peer failed */
+        WRITE_FAILED,
+        /** Server shut down */
+        SERVER_SHUTDOWN,
+        /** Reconnecting client's session token was unknown or had expired */
+        RESUME_REJECTED,
+        /** Spectator asked to watch a room that is not open */
+        WATCH_REJECTED,
+        /** Client fell too far behind reading what the server sent it */
+        SLOW_CONSUMER,
+        /** Cluster router sent a player to a game that is already being played on this node */
+        GAME_TAKEN
+    }
+
+    private static final GameData.Command[] COMMANDS = GameData.Command.values();
+    private static final DisconnectReason[] REASONS = DisconnectReason.values();
+    private static final double[] QUANTILES = {50, 99, 99.9}; // Percentiles published by scrape()
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.99", "0.999"};
+
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder gamesOpened = new LongAdder();
+    private final LongAdder gamesClosed = new LongAdder();
+    private final LongAdder movesHandled = new LongAdder();
+    private final LongAdder spectatorsJoined = new LongAdder();
+    private final LongAdder spectatorsLeft = new LongAdder();
+    private final LongAdder spectatorFrames = new LongAdder();
+    private final LongAdder spectatorResyncs = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder outboundQueuedBytes = new LongAdder();
+    private final LongAdder slowConnections = new LongAdder();
+    private final LongAdder outboundDropped = new LongAdder();
+    private final LongAdder[] messagesIn = newCounters(COMMANDS.length);
+    private final LongAdder[] messagesOut = newCounters(COMMANDS.length);
+    private final LongAdder[] disconnects = newCounters(REASONS.length);
+    private final LatencyHistogram handleTime = new LatencyHistogram();
+
+    /**
+     * Create an array of zeroed counters
+     * @param size Number of counters
+     * @return Counter array
+     */
+    private static LongAdder[] newCounters(int size) {
+        LongAdder[] counters = new LongAdder[size];
+        for (int i = 0; i < size; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    /**
+     * Register with the platform MBean server; failures are reported and otherwise ignored
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.out.println("Metrics not registered with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove the JMX registration, if any
+     */
+    public void unregisterMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException ignored) {
+            // Never registered or already removed
+        }
+    }
+
+    /**
+     * A player connection completed its handshake
+     */
+    public void connectionOpened() { connectionsOpened.increment(); }
+
+    /**
+     * A player connection was closed
+     */
+    public void connectionClosed() { connectionsClosed.increment(); }
+
+    /**
+     * A room was opened for two matched players
+     */
+    public void gameOpened() { gamesOpened.increment(); }
+
+    /**
+     * A room was closed
+     */
+    public void gameClosed() { gamesClosed.increment(); }
+
+    /**
+     * A valid move was applied to a board
+     */
+    public void moveHandled() { movesHandled.increment(); }
+
+    /**
+     * A spectator started watching a room
+     */
+    public void spectatorJoined() { spectatorsJoined.increment(); }
+
+    /**
+     * A spectator stopped watching, or its room closed
+     */
+    public void spectatorLeft() { spectatorsLeft.increment(); }
+
+    /**
+     * Frames were written to a spectator
+     * @param count Number of frames
+     */
+    public void spectatorFramesSent(int count) { spectatorFrames.add(count); }
+
+    /**
+     * A lagging spectator's queue was dropped in favour of a fresh snapshot
+     */
+    public void spectatorResynced() { spectatorResyncs.increment(); }
+
+    /**
+     * Bytes were read from a client
+     * @param count Number of bytes
+     */
+    public void addBytesIn(long count) { bytesIn.add(count); }
+
+    /**
+     * Bytes were written to a client
+     * @param count Number of bytes
+     */
+    public void addBytesOut(long count) { bytesOut.add(count); }
+
+    /**
+     * Bytes entered or left a connection's outbound queue
+     * @param count Bytes queued, negative when written or discarded
+     */
+    public void outboundQueued(long count) { outboundQueuedBytes.add(count); }
+
+    /**
+     * A connection's outbound queue reached its high watermark
+     */
+    public void outboundFellBehind() { slowConnections.increment(); }
+
+    /**
+     * A connection's outbound queue drained back to its low watermark, or the connection closed while behind
+     */
+    public void outboundCaughtUp() { slowConnections.decrement(); }
+
+    /**
+     * A message was discarded because its connection was behind
+     */
+    public void outboundDropped() { outboundDropped.increment(); }
+
+    /**
+     * A message was received from a client
+     * @param command Message command
+     */
+    public void messageIn(GameData.Command command) { messagesIn[command.ordinal()].increment(); }
+
+    /**
+     * A message was queued or written to a client
+     * @param command Message command
+     */
+    public void messageOut(GameData.Command command) { messagesOut[command.ordinal()].increment(); }
+
+    /**
+     * Connections ended
+     * @param reason Why they ended
+     * @param count Number of connections
+     */
+    public void disconnected(DisconnectReason reason, int count) { disconnects[reason.ordinal()].add(count); }
+
+    /**
+     * Record the time the room took to handle one client message
+     * @param nanos Duration in nanoseconds
+     */
+    public void recordHandleTime(long nanos) { handleTime.record(nanos); }
+
+    @Override
+    public long getActiveConnections() { return connectionsOpened.sum() - connectionsClosed.sum(); }
+
+    @Override
+    public long getActiveGames() { return gamesOpened.sum() - gamesClosed.sum(); }
+
+    @Override
+    public long getActiveSpectators() { return spectatorsJoined.sum() - spectatorsLeft.sum(); }
+
+    @Override
+    public long getSpectatorFramesSent() { return spectatorFrames.sum(); }
+
+    @Override
+    public long getSpectatorResyncs() { return spectatorResyncs.sum(); }
+
+    @Override
+    public long getOutboundQueuedBytes() { return outboundQueuedBytes.sum(); }
+
+    @Override
+    public long getSlowConnections() { return slowConnections.sum(); }
+
+    @Override
+    public long getOutboundDropped() { return outboundDropped.sum(); }
+
+    @Override
+    public long getConnectionsOpened() { return connectionsOpened.sum(); }
+
+    @Override
+    public long getGamesOpened() { return gamesOpened.sum(); }
+
+    @Override
+    public long getMovesHandled() { return movesHandled.sum(); }
+
+    @Override
+    public long getBytesIn() { return bytesIn.sum(); }
+
+    @Override
+    public long getBytesOut() { return bytesOut.sum(); }
+
+    @Override
+    public long getHandleCount() { return handleTime.getCount(); }
+
+    @Override
+    public double getHandleMeanMicros() { return handleTime.getMean() / 1e3; }
+
+    @Override
+    public double getHandleP50Micros() { return handleTime.getPercentile(50) / 1e3; }
+
+    @Override
+    public double getHandleP99Micros() { return handleTime.getPercentile(99) / 1e3; }
+
+    @Override
+    public double getHandleP999Micros() { return handleTime.getPercentile(99.9) / 1e3; }
+
+    @Override
+    public double getHandleMaxMicros() { return handleTime.getMax() / 1e3; }
+
+    @Override
+    public long getMessagesIn(String command) { return messagesIn[GameData.Command.valueOf(command).ordinal()].sum(); }
+
+    @Override
+    public long getMessagesOut(String command) { return messagesOut[GameData.Command.valueOf(command).ordinal()].sum(); }
+
+    @Override
+    public long getDisconnects(String reason) { return disconnects[DisconnectReason.valueOf(reason).ordinal()].sum(); }
+
+    @Override
+    public String scrape() {
+        StringBuilder text = new StringBuilder(2048);
+        appendGauge(text, "tictactoe_active_connections", getActiveConnections());
+        appendGauge(text, "tictactoe_active_games", getActiveGames());
+        appendGauge(text, "tictactoe_active_spectators", getActiveSpectators());
+        appendGauge(text, "tictactoe_outbound_queued_bytes", getOutboundQueuedBytes());
+        appendGauge(text, "tictactoe_slow_connections", getSlowConnections());
+        appendCounter(text, "tictactoe_connections_total", getConnectionsOpened());
+        appendCounter(text, "tictactoe_games_total", getGamesOpened());
+        appendCounter(text, "tictactoe_moves_total", getMovesHandled());
+        appendCounter(text, "tictactoe_bytes_in_total", getBytesIn());
+        appendCounter(text, "tictactoe_bytes_out_total", getBytesOut());
+        appendCounter(text, "tictactoe_spectator_frames_total", getSpectatorFramesSent());
+        appendCounter(text, "tictactoe_spectator_resyncs_total", getSpectatorResyncs());
+        appendCounter(text, "tictactoe_outbound_dropped_total", getOutboundDropped());
+        appendLabelled(text, "tictactoe_messages_in_total", "command", COMMANDS, messagesIn);
+        appendLabelled(text, "tictactoe_messages_out_total", "command", COMMANDS, messagesOut);
+        appendLabelled(text, "tictactoe_disconnects_total", "reason", REASONS, disconnects);
+        text.append("# TYPE tictactoe_handle_seconds summary\n");
+        for (int i = 0; i < QUANTILES.length; i++) {
+            text.append("tictactoe_handle_seconds{quantile=\"").append(QUANTILE_LABELS[i]).append("\"} ")
+                    .append(handleTime.getPercentile(QUANTILES[i]) / 1e9).append('\n');
+        }
+        text.append("tictactoe_handle_seconds_max ").append(handleTime.getMax() / 1e9).append('\n');
+        text.append("tictactoe_handle_seconds_count ").append(handleTime.getCount()).append('\n');
+        return text.toString();
+    }
+
+    /**
+     * Append one gauge line
+     * @param text Output text
+     * @param name Metric name
+     * @param value Current value
+     */
+    private static void appendGauge(StringBuilder text, String name, long value) {
+        text.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Append one counter line
+     * @param text Output text
+     * @param name Metric name
+     * @param value Current value
+     */
+    private static void appendCounter(StringBuilder text, String name, long value) {
+        text.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Append a counter with one line per enum constant
+     * @param text Output text
+     * @param name Metric name
+     * @param label Label name
+     * @param keys Enum constants, in ordinal order
+     * @param counters Counters indexed by ordinal
+     */
+    private static void appendLabelled(StringBuilder text, String name, String label, Enum<?>[] keys, LongAdder[] counters) {
+        text.append("# TYPE ").append(name).append(" counter\n");
+        for (int i = 0; i < keys.length; i++) {
+            text.append(name).append('{').append(label).append("=\"").append(keys[i].name()).append("\"} ")
+                    .append(counters[i].sum()).append('\n');
+        }
+    }
+}
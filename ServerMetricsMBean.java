@@ -0,0 +1,147 @@
+/**
+ * JMX view of the server metrics, registered as "tictactoe:type=ServerMetrics"
+ * Durations are reported in microseconds
+ * @author Chen Junliang
+ */
+public interface ServerMetricsMBean {
+    /**
+     * Get the number of open player connections
+     * @return Connections that completed the handshake and are not closed yet
+     */
+    long getActiveConnections();
+
+    /**
+     * Get the number of rooms currently hosting a match
+     * @return Active room count
+     */
+    long getActiveGames();
+
+    /**
+     * Get the number of spectators currently watching a room
+     * @return Active spectator count
+     */
+    long getActiveSpectators();
+
+    /**
+     * Get the number of frames written to spectators
+     * @return Total spectator frame count
+     */
+    long getSpectatorFramesSent();
+
+    /**
+     * Get the number of times a lagging spectator was sent a snapshot in place of its dropped queue
+     * @return Total resync count
+     */
+    long getSpectatorResyncs();
+
+    /**
+     * Get the bytes waiting in all connections' outbound queues
+     * @return Queued outbound bytes
+     */
+    long getOutboundQueuedBytes();
+
+    /**
+     * Get the number of connections whose outbound queue is above its high watermark
+     * @return Slow connection count
+     */
+    long getSlowConnections();
+
+    /**
+     * Get the number of messages discarded because their connection was behind
+     * @return Total dropped message count
+     */
+    long getOutboundDropped();
+
+    /**
+     * Get the number of connections accepted since startup
+     * @return Total connection count
+     */
+    long getConnectionsOpened();
+
+    /**
+     * Get the number of rooms opened since startup
+     * @return Total room count
+     */
+    long getGamesOpened();
+
+    /**
+     * Get the number of valid moves applied to a board
+     * @return Total move count
+     */
+    long getMovesHandled();
+
+    /**
+     * Get the number of bytes read from clients
+     * @return Total inbound bytes
+     */
+    long getBytesIn();
+
+    /**
+     * Get the number of bytes written to clients
+     * @return Total outbound bytes
+     */
+    long getBytesOut();
+
+    /**
+     * Get the number of handleClientData calls measured
+     * @return Sample count
+     */
+    long getHandleCount();
+
+    /**
+     * Get the mean handleClientData time
+     * @return Mean in microseconds
+     */
+    double getHandleMeanMicros();
+
+    /**
+     * Get the median handleClientData time
+     * @return p50 in microseconds
+     */
+    double getHandleP50Micros();
+
+    /**
+     * Get the 99th percentile handleClientData time
+     * @return p99 in microseconds
+     */
+    double getHandleP99Micros();
+
+    /**
+     * Get the 99.9th percentile handleClientData time
+     * @return p999 in microseconds
+     */
+    double getHandleP999Micros();
+
+    /**
+     * Get the slowest handleClientData time
+     * @return Maximum in microseconds
+     */
+    double getHandleMaxMicros();
+
+    /**
+     * Get the number of messages received for one command
+     * @param command GameData.Command name, such as "MOVE"
+     * @return Message count
+     */
+    long getMessagesIn(String command);
+
+    /**
+     * Get the number of messages sent for one command
+     * @param command GameData.Command name, such as "MOVE"
+     * @return Message count
+     */
+    long getMessagesOut(String command);
+
+    /**
+     * Get the number of disconnects for one reason
+     * @param reason ServerMetrics.DisconnectReason name, such as "PEER_CLOSED"
+     * @return Disconnect count
+     */
+    long getDisconnects(String reason);
+
+    /**
+     * Render every metric in the plain-text scrape format
+     * @return Metrics text
+     */
+    String scrape();
+}
@@ -0,0 +1,324 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Live stream of one room's game to any number of spectators
+ * Every method except the drain tasks runs on the room's owner (see GameRoom), so subscribers and the scratch buffer
+ * need no lock. The room publishes each event once; it is encoded once into an immutable frame that every subscriber's
+ * queue shares, so fan-out costs one queue insert per spectator and no per-spectator serialization. Each subscriber has
+ * a bounded queue drained by its own task on a shared writer executor, never on the room's thread. A subscriber that
+ * falls a full queue behind has its queue dropped and is sent a fresh snapshot instead, so one slow viewer can neither
+ * stall the players nor make the server buffer without limit. Frames stay in the subscriber's queue while its
+ * connection is not writable (see OutboundLimit), so a lagging viewer is resynchronized here rather than dropped by the
+ * connection; the connection catching up (see PlayerChannel.whenCaughtUp), the next event or the room closing starts
+ * the drain again.
+ * Spectators are told about a game with WATCH (snapshot: board as name, room ID as row, player to move as col, scores
+ * and variant), NAME (player name, seat as row), then the same MOVE, WIN, DRAW and RESTART messages as the players,
+ * and EXIT when the room closes.
+ * @author Chen Junliang
+ */
+public class SpectatorFeed {
+    /** System property with the number of frames a spectator may fall behind before it is resynchronized */
+    public static final String QUEUE_PROPERTY = "tictactoe.spectator.queue";
+
+    private static final int DEFAULT_QUEUE_FRAMES = 256;
+
+    private final Executor room; // Runs a task as the room's owner, so no event can fall between a snapshot and a queue
+    private final Supplier<List<GameData>> snapshot; // Current state as WATCH and NAME messages, called on the room
+    private final Executor writer;
+    private final ServerMetrics metrics;
+    private final int queueFrames = Integer.getInteger(QUEUE_PROPERTY, DEFAULT_QUEUE_FRAMES);
+    private final Map<Integer, Subscriber> subscribers = new HashMap<>(); // By spectator ID
+    private final ByteBuffer scratch = ByteBuffer.allocate(FrameCodec.MAX_ENCODED_SIZE);
+    private int activeCount; // Subscribers receiving events; publish is free while it is 0
+
+    /**
+     * Create the feed of a room
+     * @param room Runs tasks as the room's owner
+     * @param snapshot Builds the messages that bring a new or lagging spectator up to date, called on the room
+     * @param writer Executor that writes to spectator connections
+     * @param metrics Server metrics
+     */
+    public SpectatorFeed(Executor room, Supplier<List<GameData>> snapshot, Executor writer, ServerMetrics metrics) {
+        this.room = room;
+        this.snapshot = snapshot;
+        this.writer = writer;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Register a spectator connection; it receives nothing until its WATCH is handled by activate
+     * @param id Spectator ID, unique in the room
+     * @param channel Spectator's connection
+     */
+    public void add(int id, PlayerChannel channel) {
+        subscribers.put(id, new Subscriber(channel));
+        metrics.spectatorJoined();
+    }
+
+    /**
+     * Start streaming to a registered spectator with a snapshot of the game
+     * @param id Spectator ID
+     */
+    public void activate(int id) {
+        Subscriber subscriber = subscribers.get(id);
+        if (subscriber == null || subscriber.isActive) return;
+        subscriber.isActive = true;
+        activeCount++;
+        resync(subscriber);
+    }
+
+    /**
+     * Stop streaming to a spectator and close its connection
+     * @param id Spectator ID
+     */
+    public void remove(int id) {
+        Subscriber subscriber = subscribers.remove(id);
+        if (subscriber == null) return;
+        if (subscriber.isActive) activeCount--;
+        subscriber.isActive = false; // A snapshot still on its way is skipped
+        subscriber.channel.close();
+        metrics.spectatorLeft();
+    }
+
+    /**
+     * Send one event to every active spectator
+     * @param data Event, encoded once for all spectators
+     */
+    public void publish(GameData data) {
+        if (activeCount == 0) return;
+        ByteBuffer frame;
+        try {
+            frame = encode(data, scratch);
+        } catch (IOException e) {
+            e.printStackTrace(); // Only an oversized name can fail, and the players' copy failed the same way
+            return;
+        }
+        for (Subscriber subscriber : subscribers.values()) {
+            if (subscriber.isActive) subscriber.offer(frame);
+        }
+    }
+
+    /**
+     * Send EXIT to every spectator and close each connection once its queue has been written
+     * @param exit EXIT message
+     */
+    public void closeAll(GameData exit) {
+        ByteBuffer frame;
+        try {
+            frame = encode(exit, scratch);
+        } catch (IOException e) {
+            frame = null;
+        }
+        for (Subscriber subscriber : subscribers.values()) {
+            subscriber.finish(frame);
+            metrics.spectatorLeft();
+        }
+        subscribers.clear();
+        activeCount = 0;
+    }
+
+    /**
+     * Encode a message into an exactly sized, read-only frame
+     * @param data Message to encode
+     * @param buffer Scratch buffer of MAX_ENCODED_SIZE bytes
+     * @return Frame shared by all subscribers
+     * @throws IOException Player name too long to encode
+     */
+    private static ByteBuffer encode(GameData data, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        FrameCodec.encodeFrame(data, buffer);
+        buffer.flip();
+        ByteBuffer frame = ByteBuffer.allocate(buffer.remaining());
+        frame.put(buffer).flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    /**
+     * Replace a subscriber's queue with a snapshot of the game, on the room's owner
+     * @param subscriber Active subscriber
+     */
+    private void resync(Subscriber subscriber) {
+        if (!subscriber.isActive) return;
+        try {
+            List<ByteBuffer> frames = new ArrayList<>();
+            for (GameData data : snapshot.get()) {
+                frames.add(encode(data, scratch));
+            }
+            subscriber.replaceQueue(frames);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * One spectator connection with its bounded queue of shared frames
+     */
+    private final class Subscriber {
+        final PlayerChannel channel;
+        final AtomicBoolean isScheduled = new AtomicBoolean(); // A drain task is queued or running
+        final AtomicBoolean isAwaitingCatchUp = new AtomicBoolean(); // A catch-up task is registered with the channel
+        boolean isActive; // Only touched on the room's owner
+        final ReentrantLock queueLock = new ReentrantLock(); // Guards the fields below, held only briefly
+        final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+        boolean needsSnapshot; // Queue overflowed; events are dropped until the room resyncs it
+        boolean isResyncRequested; // The drain task asked the room for a snapshot that has not arrived yet
+        boolean isFinishing; // Room closed; close the connection once the queue is written
+
+        Subscriber(PlayerChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Queue a frame, or drop the queue and ask for a snapshot if the spectator is a full queue behind
+         * @param frame Shared frame
+         */
+        void offer(ByteBuffer frame) {
+            queueLock.lock();
+            try {
+                if (needsSnapshot || isFinishing) return;
+                if (queue.size() >= queueFrames) {
+                    queue.clear();
+                    needsSnapshot = true;
+                    metrics.spectatorResynced();
+                } else {
+                    queue.add(frame);
+                }
+            } finally {
+                queueLock.unlock();
+            }
+            schedule();
+        }
+
+        /**
+         * Replace the queue with snapshot frames, on the room's owner
+         * @param frames Encoded snapshot
+         */
+        void replaceQueue(List<ByteBuffer> frames) {
+            queueLock.lock();
+            try {
+                if (isFinishing) return;
+                queue.clear();
+                queue.addAll(frames);
+                needsSnapshot = false;
+                isResyncRequested = false;
+            } finally {
+                queueLock.unlock();
+            }
+            schedule();
+        }
+
+        /**
+         * Queue the final frame and close after it is written
+         * @param exit EXIT frame, or null
+         */
+        void finish(ByteBuffer exit) {
+            queueLock.lock();
+            try {
+                if (isFinishing) return;
+                if (exit != null && !needsSnapshot) queue.add(exit);
+                isFinishing = true;
+            } finally {
+                queueLock.unlock();
+            }
+            schedule();
+        }
+
+        /**
+         * Queue a drain task unless one is already queued or running
+         */
+        void schedule() {
+            if (isScheduled.compareAndSet(false, true)) {
+                try {
+                    writer.execute(this::drain);
+                } catch (RuntimeException e) {
+                    isScheduled.set(false); // Writer shut down with the server
+                    channel.close();
+                }
+            }
+        }
+
+        /**
+         * Drain again once the connection caught up, run by the channel's catch-up task
+         */
+        void onCaughtUp() {
+            isAwaitingCatchUp.set(false);
+            schedule();
+        }
+
+        /**
+         * Write everything queued in one flush per batch; an overflowed queue asks the room for a snapshot instead,
+         * and the snapshot's arrival starts the next drain; frames held for a connection that is behind are written
+         * once it catches up
+         */
+        void drain() {
+            List<ByteBuffer> batch = new ArrayList<>();
+            boolean isDone = false;
+            try {
+                while (true) {
+                    boolean isResyncNeeded;
+                    queueLock.lock();
+                    try {
+                        if (!isFinishing && !channel.isWritable()) break; // Hold frames until the client catches up
+                        if (needsSnapshot && !isFinishing && isResyncRequested) break; // Still on its way
+                        isResyncNeeded = needsSnapshot && !isFinishing;
+                        if (isResyncNeeded) {
+                            isResyncRequested = true;
+                        } else {
+                            batch.addAll(queue);
+                            queue.clear();
+                            isDone = isFinishing && batch.isEmpty();
+                        }
+                    } finally {
+                        queueLock.unlock();
+                    }
+                    if (isResyncNeeded) {
+                        room.execute(() -> resync(this));
+                        break;
+                    }
+                    if (batch.isEmpty()) break;
+                    for (ByteBuffer frame : batch) {
+                        channel.sendFrame(frame);
+                    }
+                    channel.flush();
+                    metrics.spectatorFramesSent(batch.size());
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                isDone = true; // Spectator is gone; its reader reports the disconnect
+            }
+            if (isDone) {
+                channel.close();
+                return;
+            }
+            isScheduled.set(false);
+            // Checked after giving up the schedule, so frames or a snapshot that arrived meanwhile are not left behind
+            boolean hasMore;
+            boolean isHeld;
+            queueLock.lock();
+            try {
+                hasMore = needsSnapshot ? !isResyncRequested : !queue.isEmpty();
+                hasMore |= isFinishing;
+                isHeld = !isFinishing && !channel.isWritable();
+            } finally {
+                queueLock.unlock();
+            }
+            if (!hasMore) return;
+            if (isHeld) {
+                if (isAwaitingCatchUp.getAndSet(true)) return; // Its task starts the next drain
+                if (channel.whenCaughtUp(this::onCaughtUp)) return;
+                isAwaitingCatchUp.set(false); // Caught up meanwhile
+            }
+            schedule();
+        }
+    }
+}
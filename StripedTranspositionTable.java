@@ -0,0 +1,96 @@
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe transposition table made of independently locked stripes
+ * A multiplicative hash of the key picks the stripe and the stripe's TranspositionTable uses the low bits, so threads
+ * working on different positions almost never wait for the same lock. The key's own top bits are not used: canonical
+ * keys are the smallest of 8 hashes and cluster at the bottom of the range.
+ * @author Chen Junliang
+ */
+public class StripedTranspositionTable {
+    private final TranspositionTable[] stripes;
+    private final ReentrantLock[] locks;
+    private final int stripeShift;
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Create an empty table
+     * @param bits Log2 of the total number of slots
+     * @param stripeBits Log2 of the number of stripes
+     */
+    public StripedTranspositionTable(int bits, int stripeBits) {
+        int stripeCount = 1 << stripeBits;
+        stripes = new TranspositionTable[stripeCount];
+        locks = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new TranspositionTable(bits - stripeBits);
+            locks[i] = new ReentrantLock();
+        }
+        stripeShift = 64 - stripeBits;
+    }
+
+    /**
+     * Find the stripe of a key
+     * @param key Canonical Zobrist key
+     * @return Stripe index
+     */
+    private int stripeOf(long key) {
+        return stripes.length == 1 ? 0 : (int) ((key * 0x9E3779B97F4A7C15L) >>> stripeShift);
+    }
+
+    /**
+     * Look up a position
+     * @param key Canonical Zobrist key
+     * @return Packed entry, or TranspositionTable.MISS
+     */
+    public long probe(long key) {
+        int stripe = stripeOf(key);
+        locks[stripe].lock();
+        try {
+            return stripes[stripe].probe(key);
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    /**
+     * Store a position
+     * @param key Canonical Zobrist key
+     * @param entry Packed entry
+     */
+    public void store(long key, long entry) {
+        int stripe = stripeOf(key);
+        boolean isEviction;
+        locks[stripe].lock();
+        try {
+            isEviction = stripes[stripe].store(key, entry);
+        } finally {
+            locks[stripe].unlock();
+        }
+        if (isEviction) evictions.increment();
+    }
+
+    /**
+     * Visit every stored position, one stripe at a time
+     * @param visitor Receives each key and entry
+     */
+    public void forEach(TranspositionTable.EntryVisitor visitor) {
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].lock();
+            try {
+                stripes[i].forEach(visitor);
+            } finally {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * Get the number of positions evicted because their probe window was full
+     * @return Eviction count; 0 means every stored position is still in the table
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+}
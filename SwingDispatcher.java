@@ -0,0 +1,57 @@
+import javax.swing.SwingUtilities;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Executor that runs a network thread's UI updates on the Swing event dispatch thread, coalesced
+ * Updates are queued on a lock-free mailbox, and however many arrive before the EDT gets to them, they run in order in
+ * one EDT task, so a burst of messages costs one invokeLater and one repaint pass rather than one per message. The
+ * network thread only queues and returns, so it never waits for the UI.
+ * A modal dialog opened by an update runs a nested event loop; updates queued meanwhile wait until the dialog closes
+ * and then run after the update that opened it, so the GUI sees messages in the order they arrived.
+ * @author Chen Junliang
+ */
+public class SwingDispatcher implements Executor {
+    private final MpscQueue<Runnable> updates = new MpscQueue<>(); // Queued by network threads, run on the EDT
+    private final AtomicBoolean isScheduled = new AtomicBoolean(); // A drain task is waiting on the EDT
+    private boolean isDraining; // Only touched on the EDT; true while an update (or its dialog) runs
+
+    /**
+     * Queue a UI update, from any thread
+     * @param update Update that touches Swing components
+     */
+    @Override
+    public void execute(Runnable update) {
+        updates.offer(update);
+        schedule();
+    }
+
+    /**
+     * Post a drain task to the EDT unless one is already waiting
+     */
+    private void schedule() {
+        if (isScheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this::drain);
+    }
+
+    /**
+     * Run every queued update, on the EDT
+     */
+    private void drain() {
+        isScheduled.set(false); // Updates queued from here on post a new task
+        if (isDraining) return; // Inside a dialog opened by an update; the outer drain picks these up once it closes
+        isDraining = true;
+        try {
+            Runnable update;
+            while ((update = updates.poll()) != null) {
+                try {
+                    update.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace(); // One failed update must not stop the ones after it
+                }
+            }
+        } finally {
+            isDraining = false;
+        }
+        if (!updates.isEmpty()) schedule(); // An update still being linked when the queue looked empty
+    }
+}
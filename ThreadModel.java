@@ -0,0 +1,60 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Choice of threads used for blocking per-connection readers, selectable at startup for A/B load comparisons
+ * PLATFORM gives every reader an OS thread; VIRTUAL runs them on JDK 21+ virtual threads so parked readers are cheap
+ * @author Chen Junliang
+ */
+public enum ThreadModel {
+    PLATFORM, VIRTUAL;
+
+    /** System property used by both server and client to pick the model ("platform" or "virtual") */
+    public static final String PROPERTY = "tictactoe.threads";
+
+    /**
+     * Parse a model name, case-insensitive
+     * @param name "platform" or "virtual", null selects PLATFORM
+     * @return Matching thread model
+     */
+    public static ThreadModel fromName(String name) {
+        if (name == null || name.isEmpty()) return PLATFORM;
+        return valueOf(name.trim().toUpperCase());
+    }
+
+    /**
+     * Read the model from the tictactoe.threads system property
+     * @return Configured thread model, PLATFORM if unset
+     */
+    public static ThreadModel fromSystemProperty() {
+        return fromName(System.getProperty(PROPERTY));
+    }
+
+    /**
+     * Create an executor that starts one thread per submitted task
+     * Virtual threads are created reflectively so the code still compiles and runs on JDK 17; on a JVM without them
+     * the VIRTUAL model falls back to platform threads with a warning
+     * @param namePrefix Prefix for platform thread names
+     * @return Executor running every task on its own thread
+     */
+    public ExecutorService newPerTaskExecutor(String namePrefix) {
+        if (this == VIRTUAL) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads need JDK 21+, falling back to platform threads");
+            }
+        }
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = task -> {
+            Thread thread = new Thread(task, namePrefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return Executors.newCachedThreadPool(threadFactory);
+    }
+}
@@ -3,19 +3,21 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
-import java.net.SocketException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 
 /**
- * Two-player Tic Tac Toe client that connects to local server (127.0.0.1:8888)
+ * Two-player Tic Tac Toe client that connects to a server, local (127.0.0.1:8888) unless told otherwise
  * Reuses GUI layout from Assignment 4, adds network communication and two-player battle logic
+ * Server messages are read on a listener thread and every ClientListener callback runs on the EDT through a
+ * SwingDispatcher, so Swing components are only touched on the EDT and a dialog never stops messages being read
  * @author Chen Junliang
  */
-public class TicTacToeClient implements ActionListener {
+public class TicTacToeClient implements ActionListener, ClientListener {
+    // Board variants offered at login: {size, marks in a row}
+    private static final int[][] VARIANTS = {{3, 3}, {5, 4}, {9, 5}, {15, 5}, {19, 5}};
+
     private JFrame mainFrame;
     private JTextField nameTextField;
     private JButton submitBtn;
@@ -25,30 +27,37 @@ public class TicTacToeClient implements ActionListener {
     private JLabel drawLabel;
     private JLabel timeLabel;
     private JButton[][] boardButtons;
+    private JPanel boardPanel;
+    private JComboBox<String> variantBox;
+    private JButton hintBtn; // Shown when an opening book (-Dtictactoe.book) covers the board being played
+    private OpeningBook book;
+    private int hintCell = -1; // Cell highlighted by the last hint, -1 if none
     private JMenuBar menuBar;
     private JMenu controlMenu;
     private JMenu helpMenu;
     private JMenuItem exitItem;
+    private JMenuItem leaderboardItem; // Enabled once seated, the server only answers players in a room
     private JMenuItem instructionItem;
 
-    private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private ClientSession session; // Connection, seat, turn and scores; binary protocol unless -Dtictactoe.protocol=serialized
     private String playerName;
-    private int playerId; // 1=Player 1(X), 2=Player 2(O)
-    private boolean isMyTurn;
-    private boolean isGameActive;
-    private int p1Wins;
-    private int p2Wins;
-    private int draws;
     private Timer timeTimer;
 
     /**
-     * Client initialization: create GUI, connect to server, start time display
+     * Client initialization with the local server (127.0.0.1:8888)
      */
     public TicTacToeClient() {
+        this("127.0.0.1", 8888);
+    }
+
+    /**
+     * Client initialization: create GUI, connect to server, start time display
+     * @param host Server host name or address
+     * @param port Server port
+     */
+    public TicTacToeClient(String host, int port) {
         initGUI();
-        connectToServer();
+        connectToServer(host, port);
         startTimeDisplay();
     }
 
@@ -66,10 +75,14 @@ public class TicTacToeClient implements ActionListener {
         controlMenu = new JMenu("Control");
         helpMenu = new JMenu("Help");
         exitItem = new JMenuItem("Exit");
+        leaderboardItem = new JMenuItem("Leaderboard");
+        leaderboardItem.setEnabled(false);
         instructionItem = new JMenuItem("Instruction");
 
         exitItem.addActionListener(e -> exitGame());
+        leaderboardItem.addActionListener(e -> requestLeaderboard());
         instructionItem.addActionListener(e -> showInstruction());
+        controlMenu.add(leaderboardItem);
         controlMenu.add(exitItem);
         helpMenu.add(instructionItem);
         menuBar.add(controlMenu);
@@ -85,19 +98,9 @@ public class TicTacToeClient implements ActionListener {
         JPanel centerPanel = new JPanel(new BorderLayout(10, 0));
         centerPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
 
-        // Board panel
-        JPanel boardPanel = new JPanel(new GridLayout(3, 3, 5, 5));
-        boardButtons = new JButton[3][3];
-        for (int i = 0; i < 3; i++) {
-            for (int j = 0; j < 3; j++) {
-                boardButtons[i][j] = new JButton("");
-                boardButtons[i][j].setFont(new Font("Arial", Font.BOLD, 50));
-                boardButtons[i][j].setBackground(Color.WHITE);
-                boardButtons[i][j].setFocusPainted(false);
-                boardButtons[i][j].addActionListener(this);
-                boardPanel.add(boardButtons[i][j]);
-            }
-        }
+        // Board panel (rebuilt when the server confirms a different board size)
+        boardPanel = new JPanel();
+        buildBoard(Board.DEFAULT_SIZE);
         centerPanel.add(boardPanel, BorderLayout.CENTER);
 
         // Score panel
@@ -130,8 +133,17 @@ public class TicTacToeClient implements ActionListener {
         nameTextField = new JTextField(15);
         submitBtn = new JButton("Submit");
         submitBtn.addActionListener(e -> submitName());
+        variantBox = new JComboBox<>();
+        for (int[] variant : VARIANTS) {
+            variantBox.addItem(variant[0] + "×" + variant[0] + " (" + variant[1] + " in a row)");
+        }
+        hintBtn = new JButton("Hint");
+        hintBtn.addActionListener(e -> showHint());
+        hintBtn.setVisible(false);
         namePanel.add(nameTextField);
+        namePanel.add(variantBox);
         namePanel.add(submitBtn);
+        namePanel.add(hintBtn);
         bottomPanel.add(namePanel, BorderLayout.NORTH);
 
         timeLabel = new JLabel("", SwingConstants.CENTER);
@@ -139,12 +151,6 @@ public class TicTacToeClient implements ActionListener {
         bottomPanel.add(timeLabel, BorderLayout.SOUTH);
         mainFrame.add(bottomPanel, BorderLayout.SOUTH);
 
-        // Initial state
-        isGameActive = false;
-        isMyTurn = false;
-        p1Wins = 0;
-        p2Wins = 0;
-        draws = 0;
         mainFrame.setVisible(true);
 
         // Window closing event (equivalent to Exit)
@@ -157,17 +163,44 @@ public class TicTacToeClient implements ActionListener {
     }
 
     /**
-     * Connect to local server (127.0.0.1:8888)
+     * Fill the board panel with a size × size grid of empty buttons
+     * @param size Board width and height
+     */
+    private void buildBoard(int size) {
+        boardPanel.removeAll();
+        int gap = size <= 5 ? 5 : 1;
+        boardPanel.setLayout(new GridLayout(size, size, gap, gap));
+        boardButtons = new JButton[size][size];
+        int fontSize = Math.max(10, 150 / size); // 50 on the classic board
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                boardButtons[i][j] = new JButton("");
+                boardButtons[i][j].setFont(new Font("Arial", Font.BOLD, fontSize));
+                boardButtons[i][j].setBackground(Color.WHITE);
+                boardButtons[i][j].setFocusPainted(false);
+                boardButtons[i][j].setMargin(new Insets(0, 0, 0, 0));
+                boardButtons[i][j].addActionListener(this);
+                boardPanel.add(boardButtons[i][j]);
+            }
+        }
+        boardPanel.revalidate();
+        boardPanel.repaint();
+    }
+
+    /**
+     * Connect to the server
+     * Speaks the binary protocol unless started with -Dtictactoe.protocol=serialized (legacy blocking engine only)
+     * @param host Server host name or address
+     * @param port Server port
      */
-    private void connectToServer() {
+    private void connectToServer(String host, int port) {
         try {
-            socket = new Socket("127.0.0.1", 8888);
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
-            messageLabel.setText("Connected to server. Waiting for opponent...");
+            session = ClientSession.connect(host, port);
+            session.setListener(this, new SwingDispatcher()); // Callbacks below run on the EDT
+            messageLabel.setText("Connected to server. Enter your name to find an opponent...");
 
-            // Start thread to listen for server messages
-            new Thread(this::listenToServer).start();
+            // Start thread to listen for server messages (platform or virtual, see -Dtictactoe.threads)
+            ThreadModel.fromSystemProperty().newPerTaskExecutor("server-listener").execute(session::listen);
         } catch (IOException e) {
             JOptionPane.showMessageDialog(mainFrame, "Failed to connect to server!", "Error", JOptionPane.ERROR_MESSAGE);
             System.exit(1);
@@ -175,94 +208,135 @@ public class TicTacToeClient implements ActionListener {
     }
 
     /**
-     * Listen for messages sent by the server and handle different commands
+     * Both players named: show own seat and opponent, and size the board as the server confirmed
+     * @param playerId Own player ID (1 = X, 2 = O)
+     * @param opponentName Opponent's name
+     * @param boardSize Board width and height
+     * @param winLength Marks in a row needed to win
      */
-    private void listenToServer() {
-        try {
-            while (true) {
-                GameData data = (GameData) in.readObject();
-                switch (data.getCommand()) {
-                    // Replace NAME branch in Client's listenToServer
-                    case NAME:
-                        // The row parameter sent by the server = opponent's player ID
-                        int opponentId = data.getRow();
-                        // Own ID is the opposite of opponent's ID
-                        playerId = (opponentId == 1) ? 2 : 1;
-                        isMyTurn = (playerId == 1); // Only player 1 moves first
-                        
-                        // Save opponent's name and update message label (modified)
-                        String opponentName = data.getPlayerName();
-                        // Handle case where opponent's name may be empty
-                        if (opponentName == null || opponentName.isEmpty()) {
-                            opponentName = "Opponent";
-                        }
-                        
-                        messageLabel.setText(
-                            "WELCOME " + playerName + " (Player " + playerId + ": " + (playerId == 1 ? "X" : "O") + ")\n" +
-                            "Opponent: " + opponentName
-                        );
-                        mainFrame.setTitle("Tic Tac Toe - Player: " + playerName);
-                        isGameActive = true; // Game activates after both players submit names
-                        break;
-
-                    case MOVE:
-                        // Handle opponent's move, update local board
-                        int row = data.getRow();
-                        int col = data.getCol();
-                        String opponentMark = playerId == 1 ? "O" : "X";
-                        Color opponentColor = playerId == 1 ? Color.BLUE : Color.RED;
-                        boardButtons[row][col].setText(opponentMark);
-                        boardButtons[row][col].setForeground(opponentColor);
-                        boardButtons[row][col].setBackground(Color.LIGHT_GRAY);
-
-                        // Switch to own turn
-                        isMyTurn = true;
-                        messageLabel.setText("Your opponent has moved, now is your turn.");
-                        break;
-
-                    case WIN:
-                        // Handle win/loss result
-                        p1Wins = data.getP1Wins();
-                        p2Wins = data.getP2Wins();
-                        updateScoreLabels();
-                        String winMsg = data.getPlayerName().equals(playerName) ? "You win!" : "You lose!";
-                        showGameOverDialog(winMsg);
-                        break;
-
-                    case DRAW:
-                        // Handle tie result
-                        draws = data.getDraws();
-                        updateScoreLabels();
-                        showGameOverDialog("It's a draw!");
-                        break;
-
-                    case EXIT:
-                        // Opponent exited
-                        JOptionPane.showMessageDialog(mainFrame, "Game Ends. One of the players left.", "Game Over", JOptionPane.INFORMATION_MESSAGE);
-                        exitGame();
-                        break;
-
-                    case RESTART:
-                        // Restart game
-                        resetBoard();
-                        p1Wins = data.getP1Wins();
-                        p2Wins = data.getP2Wins();
-                        draws = data.getDraws();
-                        updateScoreLabels();
-                        isGameActive = true;
-                        isMyTurn = (playerId == 1); // Player 1 moves first
-                        messageLabel.setText(isMyTurn ? "Your turn (X)" : "Waiting for opponent (O)");
-                        break;
-                }
+    @Override
+    public void onGameStart(int playerId, String opponentName, int boardSize, int winLength) {
+        if (boardButtons.length != boardSize) {
+            buildBoard(boardSize);
+        }
+        book = OpeningBook.forVariant(boardSize, winLength);
+        hintBtn.setVisible(book != null);
+        leaderboardItem.setEnabled(true);
+        messageLabel.setText(
+            "WELCOME " + playerName + " (Player " + playerId + ": " + (playerId == 1 ? "X" : "O") + ")\n" +
+            "Opponent: " + opponentName
+        );
+        mainFrame.setTitle("Tic Tac Toe - Player: " + playerName);
+    }
+
+    /**
+     * Handle opponent's move, update local board
+     * @param row Row of the opponent's move
+     * @param col Column of the opponent's move
+     */
+    @Override
+    public void onOpponentMove(int row, int col) {
+        clearHint();
+        int playerId = session.getPlayerId();
+        String opponentMark = playerId == 1 ? "O" : "X";
+        Color opponentColor = playerId == 1 ? Color.BLUE : Color.RED;
+        boardButtons[row][col].setText(opponentMark);
+        boardButtons[row][col].setForeground(opponentColor);
+        boardButtons[row][col].setBackground(Color.LIGHT_GRAY);
+        messageLabel.setText("Your opponent has moved, now is your turn.");
+    }
+
+    /**
+     * Handle win/loss result
+     * @param isWinner true if this player won
+     */
+    @Override
+    public void onWin(boolean isWinner) {
+        updateScoreLabels();
+        showGameOverDialog(isWinner ? "You win!" : "You lose!");
+    }
+
+    /**
+     * Handle tie result
+     */
+    @Override
+    public void onDraw() {
+        updateScoreLabels();
+        showGameOverDialog("It's a draw!");
+    }
+
+    /**
+     * Restart game with a cleared board
+     */
+    @Override
+    public void onRestart() {
+        resetBoard();
+        updateScoreLabels();
+        messageLabel.setText(session.isMyTurn() ? "Your turn (X)" : "Waiting for opponent (O)");
+    }
+
+    /**
+     * Opponent exited
+     */
+    @Override
+    public void onOpponentExit() {
+        JOptionPane.showMessageDialog(mainFrame, "Game Ends. One of the players left.", "Game Over", JOptionPane.INFORMATION_MESSAGE);
+        exitGame();
+    }
+
+    /**
+     * Redraw the board from the server's snapshot after the connection dropped and came back
+     * @param board Board as the server holds it
+     */
+    @Override
+    public void onResumed(Board board) {
+        resetBoard();
+        for (int i = 0; i < board.getSize(); i++) {
+            for (int j = 0; j < board.getSize(); j++) {
+                int owner = board.getCell(i, j);
+                if (owner == 0) continue;
+                boardButtons[i][j].setText(owner == 1 ? "X" : "O");
+                boardButtons[i][j].setForeground(owner == 1 ? Color.RED : Color.BLUE);
+                boardButtons[i][j].setBackground(Color.LIGHT_GRAY);
             }
-        } catch (SocketException e) {
-            JOptionPane.showMessageDialog(mainFrame, "Server disconnected!", "Error", JOptionPane.ERROR_MESSAGE);
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
-        } finally {
-            closeConnections();
-            System.exit(0);
         }
+        updateScoreLabels();
+        messageLabel.setText("Reconnected. " + (session.isMyTurn() ? "Your turn." : "Waiting for opponent..."));
+    }
+
+    /**
+     * Show the leaderboard the server sent
+     * @param topPlayers Highest rated players, best first
+     * @param totalPlayers Number of rated players on the server
+     */
+    @Override
+    public void onLeaderboard(List<PlayerStats> topPlayers, int totalPlayers) {
+        if (topPlayers.isEmpty()) {
+            JOptionPane.showMessageDialog(mainFrame, "No rated players yet.", "Leaderboard", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        StringBuilder text = new StringBuilder("Top " + topPlayers.size() + " of " + totalPlayers + " players:\n");
+        for (int i = 0; i < topPlayers.size(); i++) {
+            text.append(i + 1).append(". ").append(topPlayers.get(i)).append('\n');
+        }
+        JOptionPane.showMessageDialog(mainFrame, text.toString(), "Leaderboard", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    /**
+     * Server closed the connection
+     */
+    @Override
+    public void onServerDisconnected() {
+        JOptionPane.showMessageDialog(mainFrame, "Server disconnected!", "Error", JOptionPane.ERROR_MESSAGE);
+    }
+
+    /**
+     * Listening stopped: stop the timer and quit
+     */
+    @Override
+    public void onSessionClosed() {
+        closeConnections();
+        System.exit(0);
     }
 
     /**
@@ -276,9 +350,11 @@ public class TicTacToeClient implements ActionListener {
         }
 
         try {
-            // Send name to server
-            out.writeObject(new GameData(GameData.Command.NAME, playerName, 0, 0, p1Wins, p2Wins, draws));
+            // Send name and requested board to server
+            int[] variant = VARIANTS[variantBox.getSelectedIndex()];
+            session.submitName(playerName, variant[0], variant[1]);
             nameTextField.setEnabled(false);
+            variantBox.setEnabled(false);
             submitBtn.setEnabled(false);
             messageLabel.setText("Waiting for opponent to submit name..."); // More explicit prompt
         } catch (IOException e) {
@@ -292,15 +368,15 @@ public class TicTacToeClient implements ActionListener {
      */
     @Override
     public void actionPerformed(ActionEvent e) {
-        if (!isGameActive || !isMyTurn) return;
+        if (!session.isGameActive() || !session.isMyTurn()) return;
 
         JButton clickedBtn = (JButton) e.getSource();
         if (!clickedBtn.getText().equals("")) return; // Skip already occupied positions
 
         // Find move coordinates
         int row = -1, col = -1;
-        for (int i = 0; i < 3; i++) {
-            for (int j = 0; j < 3; j++) {
+        for (int i = 0; i < boardButtons.length; i++) {
+            for (int j = 0; j < boardButtons.length; j++) {
                 if (boardButtons[i][j] == clickedBtn) {
                     row = i;
                     col = j;
@@ -310,6 +386,8 @@ public class TicTacToeClient implements ActionListener {
         }
 
         // Update local move
+        clearHint();
+        int playerId = session.getPlayerId();
         String myMark = playerId == 1 ? "X" : "O";
         Color myColor = playerId == 1 ? Color.RED : Color.BLUE;
         clickedBtn.setText(myMark);
@@ -318,15 +396,47 @@ public class TicTacToeClient implements ActionListener {
 
         // Send move information to server
         try {
-            out.writeObject(new GameData(GameData.Command.MOVE, playerName, row, col, p1Wins, p2Wins, draws));
-            isMyTurn = false;
+            session.sendMove(row, col);
             messageLabel.setText("Valid move, waiting for your opponent.");
-            isGameActive = true;
         } catch (IOException ex) {
             ex.printStackTrace();
         }
     }
 
+    /**
+     * Highlight the book's best move for the current position, looked up locally without asking the server
+     */
+    private void showHint() {
+        if (book == null || !session.isGameActive() || !session.isMyTurn()) return;
+        int size = boardButtons.length;
+        Board position = new Board(size, session.getWinLength());
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                String mark = boardButtons[i][j].getText();
+                if (!mark.isEmpty()) position.place(i, j, mark.equals("X") ? 1 : 2);
+            }
+        }
+        clearHint();
+        int cell = book.bestMove(position);
+        if (cell < 0) {
+            messageLabel.setText("No hint for this position.");
+            return;
+        }
+        hintCell = cell;
+        boardButtons[cell / size][cell % size].setBackground(Color.YELLOW);
+    }
+
+    /**
+     * Remove the hint highlight, if any
+     */
+    private void clearHint() {
+        if (hintCell < 0) return;
+        int size = boardButtons.length;
+        JButton hinted = boardButtons[hintCell / size][hintCell % size];
+        if (hinted.getText().isEmpty()) hinted.setBackground(Color.WHITE);
+        hintCell = -1;
+    }
+
     /**
      * Show game over dialog, ask to restart
      * @param resultMsg Game result message
@@ -341,7 +451,7 @@ public class TicTacToeClient implements ActionListener {
 
         try {
             if (option == JOptionPane.YES_OPTION) {
-                out.writeObject(new GameData(GameData.Command.RESTART, playerName, 0, 0, p1Wins, p2Wins, draws));
+                session.requestRestart();
             } else {
                 exitGame();
             }
@@ -354,8 +464,9 @@ public class TicTacToeClient implements ActionListener {
      * Reset board state (clear moves, restore colors)
      */
     private void resetBoard() {
-        for (int i = 0; i < 3; i++) {
-            for (int j = 0; j < 3; j++) {
+        hintCell = -1;
+        for (int i = 0; i < boardButtons.length; i++) {
+            for (int j = 0; j < boardButtons.length; j++) {
                 boardButtons[i][j].setText("");
                 boardButtons[i][j].setBackground(Color.WHITE);
                 boardButtons[i][j].setForeground(Color.BLACK);
@@ -367,6 +478,9 @@ public class TicTacToeClient implements ActionListener {
      * Update score label display
      */
     private void updateScoreLabels() {
+        int p1Wins = session == null ? 0 : session.getP1Wins();
+        int p2Wins = session == null ? 0 : session.getP2Wins();
+        int draws = session == null ? 0 : session.getDraws();
         p1WinLabel.setText("Player 1 Wins: " + p1Wins);
         p2WinLabel.setText("Player 2 Wins: " + p2Wins);
         drawLabel.setText("Draws: " + draws);
@@ -384,6 +498,17 @@ public class TicTacToeClient implements ActionListener {
         updateScoreLabels(); // Initialize score display
     }
 
+    /**
+     * Ask the server for the top 10 players
+     */
+    private void requestLeaderboard() {
+        try {
+            session.requestLeaderboard(10);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Show game instructions
      */
@@ -392,8 +517,10 @@ public class TicTacToeClient implements ActionListener {
                 "- Enter your name to join the game.\n" +
                 "- Player 1 plays as 'X' (red), Player 2 as 'O' (blue).\n" +
                 "- Player 1 starts first.\n" +
-                "- Valid move: Empty cell + your turn + within 3×3 board.\n" +
-                "- Win by aligning 3 marks in a row, column, or diagonal.\n" +
+                "- Pick a board before submitting; you are paired with a player who picked the same one.\n" +
+                "- Valid move: Empty cell + your turn + within the board.\n" +
+                "- Win by aligning the required number of marks (3 on the classic 3×3 board)\n" +
+                "  in a row, column, or diagonal.\n" +
                 "- If opponent leaves, game ends immediately.";
         JOptionPane.showMessageDialog(mainFrame, instruction, "Instruction", JOptionPane.INFORMATION_MESSAGE);
     }
@@ -402,37 +529,27 @@ public class TicTacToeClient implements ActionListener {
      * Exit game: send exit command, close connections
      */
     private void exitGame() {
-        try {
-            if (out != null) {
-                out.writeObject(new GameData(GameData.Command.EXIT, playerName, 0, 0, p1Wins, p2Wins, draws));
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            closeConnections();
-            System.exit(0);
-        }
+        if (session != null) session.exit();
+        closeConnections();
+        System.exit(0);
     }
 
     /**
      * Close network connections and timer
      */
     private void closeConnections() {
-        try {
-            if (in != null) in.close();
-            if (out != null) out.close();
-            if (socket != null) socket.close();
-            if (timeTimer != null) timeTimer.stop();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        if (session != null) session.close();
+        if (timeTimer != null) timeTimer.stop();
     }
 
     /**
      * Main method: start the client
-     * @param args Command line arguments (not used)
+     * @param args Optional server host, then optional port; they may also be given as -Dtictactoe.host and
+     *             -Dtictactoe.port (default 127.0.0.1 and 8888)
      */
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(TicTacToeClient::new);
+        String host = args.length > 0 ? args[0] : System.getProperty("tictactoe.host", "127.0.0.1");
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : Integer.getInteger("tictactoe.port", 8888);
+        SwingUtilities.invokeLater(() -> new TicTacToeClient(host, port));
     }
 }
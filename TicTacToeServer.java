@@ -1,335 +1,806 @@
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Two-player Tic Tac Toe server that listens on local port 8888 and supports two client connections
- * Responsible for forwarding player operations, synchronizing game status, determining wins and losses, and handling disconnection logic
+ * Multi-room Tic Tac Toe server, listening on port 8888 unless configured otherwise (see ServerConfig)
+ * Accepts clients until stopped, pairs players who asked for the same board variant through a matchmaking queue and
+ * hosts each pair in its own GameRoom; a player left waiting too long gets the computer (AiPlayer) as opponent
+ * Runs either the blocking engine (one reader thread per player) or the NIO engine (a few selector threads);
+ * blocking readers run on platform or virtual threads depending on the chosen ThreadModel
+ * start() returns as soon as the server listens, and stop() closes everything at once, so tests can run a server
+ * in-process; drain() instead stops accepting and lets the games in progress finish, which is what a rolling restart
+ * (SIGTERM) does
+ * As a cluster node (--join, see ClusterRouter) players arrive through the router, which numbers their games; a room
+ * takes its first player's game ID as room ID, so WATCH and RESUME can be routed back to the node holding it
  * @author Chen Junliang
  */
 public class TicTacToeServer {
+    private static final int HANDSHAKE_TIMEOUT_MS = 10000; // Max time a new client may take to open its streams
+    /** Engine name for one blocking reader thread per player */
+    public static final String ENGINE_BLOCKING = "blocking";
+    /** Engine name for the selector-based non-blocking engine */
+    public static final String ENGINE_NIO = "nio";
+    /** System property with the milliseconds a player waits for a human before the computer takes the seat (negative disables) */
+    public static final String AI_WAIT_PROPERTY = "tictactoe.ai.waitMs";
+    /** Default of AI_WAIT_PROPERTY, also the pairing window of a cluster router */
+    static final long DEFAULT_AI_WAIT_MS = 10000;
+    private static final long MATCH_POLL_MS = 250; // How often the matchmaker checks for players who waited too long
+    /** System property with the milliseconds a dropped player's seat is held for a reconnect (0 disables) */
+    public static final String RECONNECT_GRACE_PROPERTY = "tictactoe.reconnect.graceMs";
+    private static final long DEFAULT_RECONNECT_GRACE_MS = 30000;
+    private static final int TOKEN_BYTES = 16;
+
+    private final ServerConfig config;
     private ServerSocket serverSocket;
-    private Socket client1Socket;
-    private Socket client2Socket;
-    private ObjectOutputStream out1;
-    private ObjectInputStream in1;
-    private ObjectOutputStream out2;
-    private ObjectInputStream in2;
-    private boolean isServerRunning; // Whether the server is running
-    private boolean isCurrentGameRunning; // Whether the current game is in progress
-    private boolean isPlayer1Turn;
-    private String p1Name;
-    private String p2Name;
-    private int p1Wins;
-    private int p2Wins;
-    private int draws;
-    private String[][] board; // Server maintains global board status
-
-    /**
-     * Server initialization: start listening, initialize game status
-     */
-    public TicTacToeServer() {
+    private Thread acceptor; // Runs the engine's accept loop; not a daemon, so it keeps the JVM alive
+    private Thread warmup; // Starts what connecting players do not need yet, off the startup path
+    private NioServerEngine nioEngine;
+    private ExecutorService connectionExecutor; // Runs handshakes and reader loops of the blocking engine
+    private ExecutorService aiExecutor; // Runs computer players' searches, one thread per core
+    private ExecutorService spectatorExecutor; // Writes room feeds to spectators, off the rooms' threads
+    private ExecutorService roomExecutor; // Runs rooms whose mailbox outgrew one batch, work-stealing over all cores
+    private volatile boolean isServerRunning; // Whether the server is running
+    private final AtomicBoolean isStarted = new AtomicBoolean();
+    private final AtomicBoolean isDraining = new AtomicBoolean(); // No new players, rooms close after their game
+    private final AtomicBoolean isStopped = new AtomicBoolean();
+    private final CompletableFuture<Void> stopped = new CompletableFuture<>(); // Completed by stop()
+    private final BlockingQueue<MatchRequest> waitingPlayers = new LinkedBlockingQueue<>(); // Matchmaking queue
+    private final Map<Integer, GameRoom> rooms = new ConcurrentHashMap<>(); // Active rooms by ID
+    private final AtomicInteger nextRoomId = new AtomicInteger(1);
+    private volatile int lastRoomId; // Most recently opened room, watched by a WATCH without a room ID
+    private final ServerMetrics metrics = new ServerMetrics();
+    private volatile MetricsHttpEndpoint metricsEndpoint; // Local scrape endpoint, null if disabled or not started yet
+    private GameLog gameLog; // Durable match history, null if disabled
+    private GameArchive archive; // Compact move sequences of finished games, null if disabled
+    private PlayerStore playerStore; // Ratings and leaderboard, null if disabled
+    private final Map<String, GameRoom> sessions = new ConcurrentHashMap<>(); // Rooms by session token
+    private final SecureRandom tokenRandom = new SecureRandom();
+    private final long reconnectGraceMs = Long.getLong(RECONNECT_GRACE_PROPERTY, DEFAULT_RECONNECT_GRACE_MS);
+    private ScheduledExecutorService sessionTimer; // Ends seats whose player did not reconnect in time
+
+    /**
+     * Create a server; nothing is opened until start()
+     * @param config Engine, address, socket and drain settings
+     */
+    public TicTacToeServer(ServerConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Start the server and return once it listens
+     * The game log, game archive, player store, matchmaking and the engine's accept thread start here; JMX, the metrics endpoint,
+     * the classic solver, opening books, session token generator and game log report warm up on a background thread,
+     * since no connecting player needs them in its first milliseconds
+     * @throws IOException Log, player store or listening socket cannot be opened (the server is stopped again)
+     * @throws IllegalStateException The server was already started
+     */
+    public void start() throws IOException {
+        if (!isStarted.compareAndSet(false, true)) throw new IllegalStateException("Server already started");
+        long startNanos = System.nanoTime();
+        isServerRunning = true; // Server remains running after startup
         try {
-            serverSocket = new ServerSocket(8888);
-            System.out.println("Server started, listening on port 8888...");
-            board = new String[3][3];
-            resetBoard();
-            isServerRunning = true; // Server remains running after startup
-            isCurrentGameRunning = false; // Initial game not started
-            isPlayer1Turn = true;
-            p1Wins = 0;
-            p2Wins = 0;
-            draws = 0;
-            acceptClients(); // Wait for two client connections
-        } catch (IOException e) {
-            e.printStackTrace();
+            openGameLog();
+            archive = GameArchive.openFromSystemProperty();
+            playerStore = PlayerStore.openFromSystemProperty(gameLog); // Rebuilt from the log when missing
+            startAi();
+            startSessionTimer();
+            startSpectators(config.getThreadModel());
+            startRooms();
+            startMatchmaking();
+            startEngine();
+        } catch (IOException | RuntimeException e) {
+            stop();
+            throw e;
+        }
+        startWarmup();
+        System.out.println("Server started (" + config + ") in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms, listening on port " + getPort() + "...");
+    }
+
+    /**
+     * Bind the configured engine and start accepting clients on the acceptor thread
+     * @throws IOException Listening socket cannot be bound
+     */
+    private void startEngine() throws IOException {
+        InetSocketAddress address = config.getBindAddress().isEmpty() ? new InetSocketAddress(config.getPort())
+                : new InetSocketAddress(config.getBindAddress(), config.getPort());
+        if (ENGINE_NIO.equals(config.getEngine())) {
+            nioEngine = new NioServerEngine(this, address, config);
+            acceptor = new Thread(nioEngine::acceptClients, "acceptor");
+        } else {
+            connectionExecutor = config.getThreadModel().newPerTaskExecutor("connection");
+            serverSocket = new ServerSocket();
+            // Set before binding so accepted sockets inherit it in time for the TCP window negotiation
+            if (config.getReceiveBufferSize() > 0) serverSocket.setReceiveBufferSize(config.getReceiveBufferSize());
+            serverSocket.bind(address, config.getBacklog());
+            acceptor = new Thread(this::acceptClients, "acceptor");
         }
+        acceptor.start();
     }
 
     /**
-     * Wait for and accept two client connections, initialize input and output streams
-     * @throws IOException Network connection exception
+     * Start the background thread that joins the cluster, registers the metrics, solves the classic game, maps the
+     * opening books, seeds the session token generator and reports the game log's totals
      */
-    private void acceptClients() throws IOException {
-        // Accept first client (player 1)
-        client1Socket = serverSocket.accept();
-        out1 = new ObjectOutputStream(client1Socket.getOutputStream());
-        in1 = new ObjectInputStream(client1Socket.getInputStream());
-        System.out.println("Player 1 connected: " + client1Socket.getInetAddress());
+    private void startWarmup() {
+        warmup = new Thread(() -> {
+            announceCluster(ClusterRouter.ROUTE_JOIN); // First, so the router routes here as soon as possible
+            metrics.registerMBean(); // Creating the platform MBean server alone takes a few hundred milliseconds
+            metricsEndpoint = MetricsHttpEndpoint.startFromSystemProperty(metrics);
+            long startNanos = System.nanoTime();
+            GameAi.classic(); // A computer move made before this finishes waits for it
+            System.out.println("Classic game solved in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms");
+            OpeningBook.loadConfigured(); // Map -Dtictactoe.book files now, not on the first computer move
+            tokenRandom.nextBytes(new byte[TOKEN_BYTES]); // Seeds the generator before the first token is issued
+            reportGameLog();
+        }, "server-warmup");
+        warmup.setDaemon(true);
+        warmup.start();
+    }
 
-        // Accept second client (player 2)
-        client2Socket = serverSocket.accept();
-        out2 = new ObjectOutputStream(client2Socket.getOutputStream());
-        in2 = new ObjectInputStream(client2Socket.getInputStream());
-        System.out.println("Player 2 connected: " + client2Socket.getInetAddress());
+    /**
+     * Tell the configured cluster router that this server joins or leaves, if it is a cluster node
+     * @param change ClusterRouter.ROUTE_JOIN or ROUTE_LEAVE
+     */
+    private void announceCluster(int change) {
+        if (config.getJoinAddress().isEmpty()) return;
+        String node = config.getAdvertiseHost() + ":" + getPort();
+        try {
+            int nodes = ClusterRouter.announce(config.getJoinAddress(), node, change);
+            System.out.println((change == ClusterRouter.ROUTE_JOIN ? "Joined" : "Left") + " cluster at "
+                    + config.getJoinAddress() + " as " + node + ", " + nodes + " nodes");
+        } catch (IOException e) {
+            System.out.println("Cluster router " + config.getJoinAddress() + " not reached: " + e.getMessage());
+        }
+    }
 
-        startListeningClients(); // Start threads to listen for client messages
+    /**
+     * Get the port the server listens on
+     * @return Bound port (useful when port 0 was configured), or the configured port before start()
+     */
+    public int getPort() {
+        if (nioEngine != null) return nioEngine.getPort();
+        if (serverSocket != null && serverSocket.isBound()) return serverSocket.getLocalPort();
+        return config.getPort();
     }
 
     /**
-     * Start two threads to listen for messages from the two clients respectively
+     * Accept client connections until the listening socket closes and put each one into the matchmaking queue
+     * The stream handshake runs on the connection executor, so a slow or failing client never stalls the accept loop
      */
-    private void startListeningClients() {
-        // Listen for player 1 messages
-        new Thread(() -> {
+    private void acceptClients() {
+        while (isServerRunning) {
+            Socket socket;
             try {
-                while (isServerRunning) {
-                    GameData data = (GameData) in1.readObject();
-                    handleClientData(data, 1);
-                }
+                socket = serverSocket.accept();
             } catch (SocketException e) {
-                System.out.println("Player 1 disconnected");
-                try {
-                    notifyOpponentExit(2);
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
-            } catch (IOException | ClassNotFoundException e) {
+                break; // Server socket closed
+            } catch (IOException e) {
                 e.printStackTrace();
+                continue;
             }
-        }).start();
+            connectionExecutor.execute(() -> handshake(socket));
+        }
+    }
 
-        // Listen for player 2 messages
-        new Thread(() -> {
+    /**
+     * Open the streams of a freshly accepted socket, wait for the player's NAME and queue the player for matchmaking
+     * @param socket Accepted client socket
+     */
+    private void handshake(Socket socket) {
+        PlayerConnection player = null;
+        try {
+            socket.setTcpNoDelay(true); // Each flush is a complete batch, never wait to coalesce with the next one
+            if (config.getSendBufferSize() > 0) socket.setSendBufferSize(config.getSendBufferSize());
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            player = new PlayerConnection(socket, connectionExecutor, metrics, newOutboundLimit());
+            socket.setSoTimeout(0);
+            System.out.println("Player connected: " + player.getRemoteAddress());
+            GameData firstMessage = player.readNameRequest(); // The NAME carries the requested board variant
+            admitPlayer(player, firstMessage, player.getGameId());
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Handshake failed: " + socket.getInetAddress());
+            // Past the protocol handshake, a first message that does not decode is a protocol error, as on NIO
+            boolean isMalformed = player != null && !(e instanceof EOFException || e instanceof SocketException);
+            metrics.disconnected(isMalformed ? ServerMetrics.DisconnectReason.PROTOCOL_ERROR
+                    : ServerMetrics.DisconnectReason.HANDSHAKE_FAILED, 1);
+            if (player != null) {
+                player.close();
+                return;
+            }
             try {
-                while (isServerRunning) {
-                    GameData data = (GameData) in2.readObject();
-                    handleClientData(data, 2);
-                }
-            } catch (SocketException e) {
-                System.out.println("Player 2 disconnected");
-                try {
-                    notifyOpponentExit(1);
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
-            } catch (IOException | ClassNotFoundException e) {
-                e.printStackTrace();
+                socket.close();
+            } catch (IOException ignored) {
+                // Nothing more to clean up
             }
-        }).start();
-    }
-
-    /**
-     * Process data sent by clients and execute corresponding logic according to command type
-     * @param data Game data transmitted by client
-     * @param playerId Player ID (1 or 2)
-     * @throws IOException Data sending exception
-     */
-    private void handleClientData(GameData data, int playerId) throws IOException {
-        switch (data.getCommand()) {
-            case NAME:
-                // Save player name and synchronize "opponent's ID + name" to client
-                if (playerId == 1) {
-                    p1Name = data.getPlayerName();
-                    // Send confirmation to player 1 (added)
-                    out1.writeObject(new GameData(GameData.Command.NAME, p2Name, 2, 0, p1Wins, p2Wins, draws));
-                } else {
-                    p2Name = data.getPlayerName();
-                    // Send to player 1: player 2's ID is 2 + name
-                    out1.writeObject(new GameData(GameData.Command.NAME, p2Name, 2, 0, p1Wins, p2Wins, draws));
-                }
-                // Start current game after both players submit names (modified)
-                if (p1Name != null && p2Name != null) {
-                    isCurrentGameRunning = true;
-                    // Send to player 2: player 1's ID is 1 + name (added)
-                    out2.writeObject(new GameData(GameData.Command.NAME, p1Name, 1, 0, p1Wins, p2Wins, draws));
-                }
-                break;
-
-            case MOVE:
-                // Verify move validity (current game must be running)
-                int row = data.getRow();
-                int col = data.getCol();
-                if (isCurrentGameRunning && isValidMove(row, col, playerId)) {
-                    String mark = playerId == 1 ? "X" : "O";
-                    board[row][col] = mark;
-
-                    // Forward move information to opponent
-                    GameData moveData = new GameData(GameData.Command.MOVE, "", row, col, p1Wins, p2Wins, draws);
-                    if (playerId == 1) {
-                        out2.writeObject(moveData);
-                    } else {
-                        out1.writeObject(moveData);
-                    }
+        }
+    }
 
-                    // Determine win or loss
-                    if (checkWin(mark)) {
-                        handleWin(playerId);
-                        isCurrentGameRunning = false; // Game ends
-                    } else if (isBoardFull()) {
-                        handleDraw();
-                        isCurrentGameRunning = false; // Game ends
-                    } else {
-                        switchTurn(); // Switch turns
-                    }
-                }
-                break;
+    /**
+     * Route a connected player by its first message, called by the accepting engine
+     * A NAME joins matchmaking; a RESUME carries a session token and goes back to the seat it was issued for; a WATCH
+     * joins a room as a spectator
+     * @param player Connected player
+     * @param firstMessage The player's NAME, RESUME or WATCH, held by the channel until a room starts reading
+     * @param gameId Game ID a cluster router gave the player (see ClusterRouter), 0 for a direct connection
+     */
+    public void admitPlayer(PlayerChannel player, GameData firstMessage, int gameId) {
+        if (firstMessage.getCommand() == GameData.Command.RESUME) {
+            resumePlayer(player, firstMessage.getPlayerName());
+        } else if (firstMessage.getCommand() == GameData.Command.WATCH) {
+            watchRoom(player, firstMessage.getRow());
+        } else {
+            enqueuePlayer(player, firstMessage, gameId);
+        }
+    }
 
-            case RESTART:
-                // Restart game, reset board and turn
-                resetBoard();
-                isPlayer1Turn = true;
-                isCurrentGameRunning = true; // Start new game after restart
-                GameData restartData = new GameData(GameData.Command.RESTART, "", 0, 0, p1Wins, p2Wins, draws);
-                out1.writeObject(restartData);
-                out2.writeObject(restartData);
-                break;
+    /**
+     * Give a reconnecting player back the seat its token was issued for, or turn it away with EXIT
+     * @param player Connection the player reconnected on
+     * @param token Session token from the player's SESSION message
+     */
+    private void resumePlayer(PlayerChannel player, String token) {
+        GameRoom room = token == null ? null : sessions.get(token);
+        if (room != null) {
+            room.resume(token, player); // The room still checks the token, it may have closed meanwhile
+            return;
+        }
+        System.out.println("Resume rejected: " + player.getRemoteAddress());
+        rejectPlayer(player, ServerMetrics.DisconnectReason.RESUME_REJECTED);
+    }
 
-            case EXIT:
-                // Handle player exit
-                notifyOpponentExit(playerId == 1 ? 2 : 1);
-                closeConnections();
-                break;
+    /**
+     * Add a spectator to a room, or turn it away with EXIT if the room is not open
+     * @param spectator Spectator's connection
+     * @param roomId Room to watch, or 0 for the most recently opened room that is still open
+     */
+    private void watchRoom(PlayerChannel spectator, int roomId) {
+        GameRoom room = rooms.get(roomId != 0 ? roomId : lastRoomId);
+        for (int id = nextRoomId.get() - 1; roomId == 0 && room == null && id > 0; id--) {
+            room = rooms.get(id);
         }
+        if (room != null) {
+            room.watch(spectator);
+            return;
+        }
+        rejectPlayer(spectator, ServerMetrics.DisconnectReason.WATCH_REJECTED);
     }
 
     /**
-     * Verify if a move is valid (empty board position + current player's turn)
-     * @param row Move row number
-     * @param col Move column number
-     * @param playerId Player ID
-     * @return true if valid, false otherwise
+     * Turn a connection away with EXIT and close it, called by the server and by rooms
+     * @param player Connection to turn away
+     * @param reason Why, counted as the connection's disconnect reason
      */
-    private boolean isValidMove(int row, int col, int playerId) {
-        if (row < 0 || row >= 3 || col < 0 || col >= 3) return false;
-        if (board[row][col] != null) return false;
-        return (playerId == 1 && isPlayer1Turn) || (playerId == 2 && !isPlayer1Turn);
+    public void rejectPlayer(PlayerChannel player, ServerMetrics.DisconnectReason reason) {
+        metrics.disconnected(reason, 1);
+        try {
+            player.send(new GameData(GameData.Command.EXIT, "", 0, 0, 0, 0, 0));
+            player.flush();
+        } catch (IOException ignored) {
+            // Closing anyway
+        }
+        player.close();
     }
 
     /**
-     * Check if the specified mark has won (three in a row, column, or diagonal)
-     * @param mark Player's mark (X or O)
-     * @return true if won, false otherwise
+     * Start the executor that writes to spectators, one thread per busy spectator so a stalled viewer's blocking write
+     * only holds its own thread (cached platform threads, or virtual threads with that thread model)
+     * @param threadModel Thread model of the blocking engine
      */
-    private boolean checkWin(String mark) {
-        // Check rows
-        for (int i = 0; i < 3; i++) {
-            if (mark.equals(board[i][0]) && mark.equals(board[i][1]) && mark.equals(board[i][2])) {
-                return true;
-            }
+    private void startSpectators(ThreadModel threadModel) {
+        spectatorExecutor = threadModel.newPerTaskExecutor("spectator");
+    }
+
+    /**
+     * Start the pool that runs busy rooms: a work-stealing pool in FIFO mode with one daemon thread per core, since
+     * room tasks are short and never wait on each other
+     */
+    private void startRooms() {
+        AtomicInteger counter = new AtomicInteger();
+        roomExecutor = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors()), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("room-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, null, true);
+    }
+
+    /**
+     * Get the pool that runs rooms whose mailbox outgrew one batch
+     * @return Room executor
+     */
+    public ExecutorService getRoomExecutor() {
+        return roomExecutor;
+    }
+
+    /**
+     * Get the executor that writes room feeds to spectators
+     * @return Spectator writer executor
+     */
+    public ExecutorService getSpectatorExecutor() {
+        return spectatorExecutor;
+    }
+
+    /**
+     * Issue a session token for a seat, called by the room when a player asks for one
+     * @param room Room holding the seat
+     * @return New token (room ID, a dash and 32 random hex digits), valid until the room closes
+     */
+    public String issueSessionToken(GameRoom room) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        tokenRandom.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(TOKEN_BYTES * 2 + 12);
+        token.append(room.getRoomId()).append('-'); // Lets a cluster router find the room's node
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
         }
-        // Check columns
-        for (int i = 0; i < 3; i++) {
-            if (mark.equals(board[0][i]) && mark.equals(board[1][i]) && mark.equals(board[2][i])) {
-                return true;
-            }
+        sessions.put(token.toString(), room);
+        return token.toString();
+    }
+
+    /**
+     * Invalidate a session token, called by the room when it closes
+     * @param token Token issued by issueSessionToken
+     */
+    public void endSession(String token) {
+        sessions.remove(token);
+    }
+
+    /**
+     * Get how long a dropped player's seat is held
+     * @return Grace window in milliseconds, 0 or less if seats are not held
+     */
+    public long getReconnectGraceMs() {
+        return reconnectGraceMs;
+    }
+
+    /**
+     * Run a task once the reconnect grace window has passed
+     * @param task Task to run on the session timer thread
+     */
+    public void scheduleSessionExpiry(Runnable task) {
+        sessionTimer.schedule(task, reconnectGraceMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start the timer thread that ends seats whose player did not reconnect
+     */
+    private void startSessionTimer() {
+        sessionTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "session-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Put a named player into the matchmaking queue
+     * An unsupported variant falls back to the classic board; the room's NAME replies tell the client what it got
+     * @param player Connected player waiting for an opponent
+     * @param nameRequest The player's NAME message, held by the channel until the room starts reading
+     * @param gameId Game ID from a cluster router, 0 for a direct connection
+     */
+    public void enqueuePlayer(PlayerChannel player, GameData nameRequest, int gameId) {
+        int boardSize = nameRequest.getBoardSize();
+        int winLength = nameRequest.getWinLength();
+        if (!Board.isValidVariant(boardSize, winLength)) {
+            boardSize = Board.DEFAULT_SIZE;
+            winLength = Board.DEFAULT_WIN_LENGTH;
         }
-        // Check diagonals
-        if (mark.equals(board[0][0]) && mark.equals(board[1][1]) && mark.equals(board[2][2])) {
-            return true;
+        waitingPlayers.add(new MatchRequest(player, boardSize, winLength, gameId));
+    }
+
+    /**
+     * Open the game log, recovering a torn tail left by a crash
+     * @throws IOException Existing log cannot be read
+     */
+    private void openGameLog() throws IOException {
+        gameLog = GameLog.openFromSystemProperty();
+    }
+
+    /**
+     * Report the player totals the game log holds; reads the whole log, so it runs on the warmup thread
+     */
+    private void reportGameLog() {
+        if (gameLog == null) return;
+        try {
+            Map<String, GameLog.Totals> totals = GameLog.replayTotals(gameLog.getDirectory());
+            System.out.println("Game log holds results for " + totals.size() + " players");
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        return mark.equals(board[0][2]) && mark.equals(board[1][1]) && mark.equals(board[2][0]);
     }
 
     /**
-     * Check if the board is full (tie determination)
-     * @return true if board is full, false otherwise
+     * Start the AI threads; the classic game is solved and the opening books mapped by the warmup thread
      */
-    private boolean isBoardFull() {
-        for (int i = 0; i < 3; i++) {
-            for (int j = 0; j < 3; j++) {
-                if (board[i][j] == null) {
-                    return false;
+    private void startAi() {
+        AtomicInteger counter = new AtomicInteger();
+        aiExecutor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()), task -> {
+            Thread thread = new Thread(task, "ai-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start the matchmaking thread that pairs waiting players of the same board variant into new rooms
+     * Players relayed by a cluster router are only paired with the other player of their router game, whose ID the
+     * room then takes; a player still unmatched after the AI wait gets a computer opponent, for a routed player only
+     * once the router has stopped offering its game (see mayFill)
+     */
+    private void startMatchmaking() {
+        long aiWaitNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong(AI_WAIT_PROPERTY, DEFAULT_AI_WAIT_MS));
+        Thread matchmaker = new Thread(() -> {
+            Map<Long, MatchRequest> firstByKey = new HashMap<>(); // Only touched by the matchmaker
+            try {
+                while (isServerRunning) {
+                    MatchRequest next = waitingPlayers.poll(MATCH_POLL_MS, TimeUnit.MILLISECONDS);
+                    if (isDraining.get()) {
+                        turnAwayWaiting(firstByKey, next); // No new games while draining
+                        continue;
+                    }
+                    if (aiWaitNanos >= 0) seatComputers(firstByKey, aiWaitNanos);
+                    if (next == null || !next.player.isOpen()) continue; // Timed out, or left while waiting
+                    MatchRequest first = firstByKey.remove(next.pairingKey());
+                    if (first == null || !first.player.isOpen()) {
+                        firstByKey.put(next.pairingKey(), next);
+                        continue;
+                    }
+                    openRoom(first.player, next.player, next.boardSize, next.winLength, first.gameId);
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        }
-        return true;
+            for (MatchRequest unmatched : firstByKey.values()) {
+                unmatched.player.close();
+            }
+        }, "matchmaker");
+        matchmaker.setDaemon(true);
+        matchmaker.start();
     }
 
     /**
-     * Handle player win logic, update scores and notify both players
-     * @param winnerId Winning player ID (1 or 2)
-     * @throws IOException Data sending exception
+     * Turn away every player waiting for an opponent with EXIT
+     * @param firstByKey Players waiting for an opponent, by pairing key; emptied
+     * @param next Player just taken from the queue, or null
      */
-    private void handleWin(int winnerId) throws IOException {
-        if (winnerId == 1) p1Wins++;
-        else p2Wins++;
+    private void turnAwayWaiting(Map<Long, MatchRequest> firstByKey, MatchRequest next) {
+        if (next != null && next.player.isOpen()) rejectPlayer(next.player, ServerMetrics.DisconnectReason.SERVER_SHUTDOWN);
+        for (MatchRequest waiting : firstByKey.values()) {
+            if (waiting.player.isOpen()) rejectPlayer(waiting.player, ServerMetrics.DisconnectReason.SERVER_SHUTDOWN);
+        }
+        firstByKey.clear();
+    }
 
-        GameData winData = new GameData(
-                GameData.Command.WIN,
-                winnerId == 1 ? p1Name : p2Name,
-                0, 0,
-                p1Wins, p2Wins, draws
-        );
-        out1.writeObject(winData);
-        out2.writeObject(winData);
+    /**
+     * Give every player who has waited longer than the AI wait a computer opponent
+     * @param firstByKey Players waiting for an opponent, by pairing key
+     * @param aiWaitNanos Longest wait for a human opponent
+     */
+    private void seatComputers(Map<Long, MatchRequest> firstByKey, long aiWaitNanos) {
+        long now = System.nanoTime();
+        firstByKey.values().removeIf(waiting -> {
+            if (!waiting.player.isOpen()) return true;
+            if (now - waiting.enqueuedNanos < aiWaitNanos) return false;
+            if (!mayFill(waiting.gameId)) {
+                waiting.enqueuedNanos = now; // Its opponent is on the way; wait once more before asking again
+                return false;
+            }
+            openRoom(waiting.player, new AiPlayer(aiExecutor), waiting.boardSize, waiting.winLength, waiting.gameId);
+            return true;
+        });
     }
 
     /**
-     * Handle tie logic, update scores and notify both players
-     * @throws IOException Data sending exception
+     * Check with the cluster router that a routed game may get a computer opponent, so the router never sends a
+     * second player to a game already filled; blocks the matchmaker for at most the router's connect timeout
+     * @param gameId Game ID from the router, 0 for a direct connection
+     * @return true for a direct connection, when no second player was sent, or when the router cannot be reached
+     *         (a router that is down routes no one)
      */
-    private void handleDraw() throws IOException {
-        draws++;
-        GameData drawData = new GameData(
-                GameData.Command.DRAW,
-                "", 0, 0,
-                p1Wins, p2Wins, draws
-        );
-        out1.writeObject(drawData);
-        out2.writeObject(drawData);
+    private boolean mayFill(int gameId) {
+        if (gameId == 0 || config.getJoinAddress().isEmpty()) return true;
+        try {
+            return ClusterRouter.claim(config.getJoinAddress(), gameId);
+        } catch (IOException e) {
+            System.out.println("Cluster router " + config.getJoinAddress() + " not reached: " + e.getMessage());
+            return true;
+        }
     }
 
     /**
-     * Switch player turns
+     * Create, register and start a room for two matched players
+     * @param player1 Connection of player 1 (X)
+     * @param player2 Connection of player 2 (O)
+     * @param boardSize Board width and height
+     * @param winLength Marks in a row needed to win
+     * @param gameId Game ID a cluster router gave both players, used as room ID; 0 numbers the room locally
      */
-    private void switchTurn() {
-        isPlayer1Turn = !isPlayer1Turn;
+    private void openRoom(PlayerChannel player1, PlayerChannel player2, int boardSize, int winLength, int gameId) {
+        // Only the matchmaker opens rooms, so checking for a taken ID cannot race
+        if (gameId != 0 && rooms.containsKey(gameId)) {
+            // A routed game keeps its ID: under any other, its tokens and WATCH IDs would hash to another node
+            System.out.println("Game " + gameId + " is already open, turning its players away");
+            rejectPlayer(player1, ServerMetrics.DisconnectReason.GAME_TAKEN);
+            rejectPlayer(player2, ServerMetrics.DisconnectReason.GAME_TAKEN);
+            return;
+        }
+        int roomId = gameId;
+        while (roomId == 0 || rooms.containsKey(roomId)) {
+            roomId = nextRoomId.getAndIncrement();
+        }
+        GameRoom room = new GameRoom(roomId, this, player1, player2, boardSize, winLength);
+        rooms.put(roomId, room);
+        lastRoomId = roomId;
+        metrics.gameOpened();
+        System.out.println("Room " + room.getRoomId() + " opened, " + boardSize + "x" + boardSize + " (" + rooms.size() + " active)");
+        room.start();
     }
 
     /**
-     * Notify opponent that a player has exited (declares IOException to be handled by caller)
-     * @param opponentId Opponent player ID (1 or 2)
-     * @throws IOException Data sending exception
+     * Unregister a closed room, called by the room itself
+     * @param room Room that has been closed
      */
-    private void notifyOpponentExit(int opponentId) throws IOException {
-        GameData exitData = new GameData(GameData.Command.EXIT, "", 0, 0, p1Wins, p2Wins, draws);
-        if (opponentId == 1 && out1 != null) {
-            out1.writeObject(exitData);
-        } else if (opponentId == 2 && out2 != null) {
-            out2.writeObject(exitData);
+    public void removeRoom(GameRoom room) {
+        if (rooms.remove(room.getRoomId()) != null) {
+            metrics.gameClosed();
+            if (isDraining.get() && rooms.isEmpty()) stopInBackground(); // The last game has finished
         }
-        closeConnections();
     }
 
     /**
-     * Reset the board (clear all moves)
+     * Get the server's metrics, shared by rooms and connections
+     * @return Server metrics
      */
-    private void resetBoard() {
-        for (int i = 0; i < 3; i++) {
-            for (int j = 0; j < 3; j++) {
-                board[i][j] = null;
-            }
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get what happens to messages for a client that falls behind, so rooms know whether to hold back its opponent
+     * @return Configured outbound policy
+     */
+    public OutboundLimit.Policy getOutboundPolicy() {
+        return config.getOutboundPolicy();
+    }
+
+    /**
+     * Create the outbound limit of one new connection from the configured watermarks and policy
+     * @return Limit for one connection
+     */
+    public OutboundLimit newOutboundLimit() {
+        return new OutboundLimit(config.getOutboundHighWatermark(), config.getOutboundLowWatermark(),
+                config.getOutboundPolicy(), metrics);
+    }
+
+    /**
+     * Get the server's game log, shared by rooms
+     * @return Game log, or null if disabled
+     */
+    public GameLog getGameLog() {
+        return gameLog;
+    }
+
+    /**
+     * Get the server's game archive, shared by rooms
+     * @return Game archive, or null if disabled
+     */
+    public GameArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Get the server's player store, shared by rooms
+     * @return Player store, or null if disabled
+     */
+    public PlayerStore getPlayerStore() {
+        return playerStore;
+    }
+
+    /**
+     * Get the number of rooms currently hosting a match
+     * @return Active room count
+     */
+    public int getActiveRoomCount() {
+        return rooms.size();
+    }
+
+    /**
+     * Check whether the server is draining, called by rooms when a game ends
+     * @return true once drain() was called
+     */
+    public boolean isDraining() {
+        return isDraining.get();
+    }
+
+    /**
+     * Stop accepting clients and let the games in progress finish, then stop; returns at once
+     * Players still waiting for an opponent are turned away with EXIT, and each room closes with EXIT as soon as no
+     * game is running in it. Rooms still open after the drain timeout are closed by stop().
+     * Players who drop during the drain cannot reconnect, since nothing is accepted any more.
+     * @return Completes once the server has stopped
+     */
+    public CompletableFuture<Void> drain() {
+        if (!isStarted.get() || isStopped.get() || !isDraining.compareAndSet(false, true)) return stopped;
+        System.out.println("Draining: no new connections, " + rooms.size() + " rooms left");
+        if (!config.getJoinAddress().isEmpty()) {
+            // The router also drops a node that refuses connections, so the drain need not wait for this
+            Thread leave = new Thread(() -> announceCluster(ClusterRouter.ROUTE_LEAVE), "cluster-leave");
+            leave.setDaemon(true);
+            leave.start();
         }
+        try {
+            if (serverSocket != null) serverSocket.close();
+            if (nioEngine != null) nioEngine.stopAccepting();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (GameRoom room : rooms.values()) {
+            room.drain();
+        }
+        sessionTimer.schedule(this::stopInBackground, config.getDrainTimeoutMs(), TimeUnit.MILLISECONDS);
+        if (rooms.isEmpty()) stopInBackground();
+        return stopped;
+    }
+
+    /**
+     * Run stop() on its own thread, so a room or timer thread never waits for the executors it runs on
+     */
+    private void stopInBackground() {
+        if (isStopped.get()) return;
+        new Thread(this::stop, "server-stop").start();
     }
 
     /**
-     * Close all network connections and streams
+     * Stop accepting clients and close every active room at once; later calls do nothing
      */
-    private void closeConnections() {
+    public void stop() {
+        if (!isStopped.compareAndSet(false, true)) return;
         isServerRunning = false;
         try {
-            if (in1 != null) in1.close();
-            if (out1 != null) out1.close();
-            if (client1Socket != null) client1Socket.close();
-            if (in2 != null) in2.close();
-            if (out2 != null) out2.close();
-            if (client2Socket != null) client2Socket.close();
             if (serverSocket != null) serverSocket.close();
-            System.out.println("Server connections closed");
+            if (nioEngine != null) nioEngine.shutdown();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        for (GameRoom room : rooms.values()) {
+            metrics.disconnected(ServerMetrics.DisconnectReason.SERVER_SHUTDOWN, 2); // Both players
+            room.close();
+        }
+        MatchRequest waiting;
+        while ((waiting = waitingPlayers.poll()) != null) {
+            metrics.disconnected(ServerMetrics.DisconnectReason.SERVER_SHUTDOWN, 1);
+            waiting.player.close();
+        }
+        if (connectionExecutor != null) connectionExecutor.shutdownNow();
+        if (aiExecutor != null) aiExecutor.shutdownNow();
+        if (sessionTimer != null) sessionTimer.shutdownNow();
+        if (roomExecutor != null) {
+            roomExecutor.shutdown(); // A room that outgrows a batch after this keeps running on its current thread
+            try {
+                roomExecutor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (spectatorExecutor != null) spectatorExecutor.shutdown(); // Lets the rooms' final EXIT frames go out
+        if (gameLog != null) gameLog.close(); // After the rooms, so their last results are written
+        if (archive != null) archive.close();
+        if (playerStore != null) playerStore.close();
+        if (warmup != null) {
+            try {
+                warmup.join(); // So the endpoint and MBean it registers are not left behind
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        MetricsHttpEndpoint endpoint = metricsEndpoint;
+        if (endpoint != null) endpoint.stop();
+        metrics.unregisterMBean();
+        System.out.println("Server connections closed");
+        stopped.complete(null);
     }
 
     /**
-     * Main method: start the server
-     * @param args Command line arguments (not used)
+     * Main method: start the server, and drain it on SIGTERM or Ctrl-C
+     * With --train the server instead plays a few games against bots and exits. Run that once from the jar with
+     * -XX:ArchiveClassesAtExit=tictactoe.jsa (add --port=0 if a server is already running) and start the real server
+     * with -XX:SharedArchiveFile=tictactoe.jsa: the classes it loads then come mapped from the archive instead of
+     * being parsed and verified again on every restart (class data sharing only archives classes loaded from jars).
+     * @param args Optional engine name: "blocking" (default) or "nio", then optional thread model: "platform" (default)
+     *             or "virtual", then any --name=value settings (see ServerConfig.USAGE)
      */
     public static void main(String[] args) {
-        new TicTacToeServer();
+        ServerConfig config;
+        try {
+            config = ServerConfig.fromArgs(args);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Invalid configuration: " + e.getMessage());
+            System.out.println(ServerConfig.USAGE);
+            System.exit(2);
+            return;
+        }
+        TicTacToeServer server = new TicTacToeServer(config);
+        try {
+            server.start();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        if (config.isTraining()) {
+            train(server, config);
+            System.exit(0); // Writes the class archive if one was asked for
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.drain().join(), "server-drain"));
+    }
+
+    /**
+     * Play complete games on the classic board and on a larger variant so a training run loads what a real one does
+     * @param server Running server
+     * @param config Its configuration
+     */
+    private static void train(TicTacToeServer server, ServerConfig config) {
+        String host = config.getBindAddress().isEmpty() ? "127.0.0.1" : config.getBindAddress();
+        try {
+            new LoadGenerator(host, server.getPort(), 5, 0, Board.DEFAULT_SIZE, Board.DEFAULT_WIN_LENGTH).run(20);
+            new LoadGenerator(host, server.getPort(), 2, 0, 9, 5).run(4);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server.drain().join();
+    }
+
+    /**
+     * A named player waiting in the matchmaking queue with the board variant it asked for
+     */
+    private static final class MatchRequest {
+        private final PlayerChannel player;
+        private final int boardSize;
+        private final int winLength;
+        private final int gameId; // From a cluster router, 0 for a direct connection
+        private long enqueuedNanos = System.nanoTime(); // When the player started waiting, or last waited again
+
+        /**
+         * Create a request
+         * @param player Waiting player
+         * @param boardSize Requested board size
+         * @param winLength Requested win length
+         * @param gameId Game ID from a cluster router, or 0
+         */
+        MatchRequest(PlayerChannel player, int boardSize, int winLength, int gameId) {
+            this.player = player;
+            this.boardSize = boardSize;
+            this.winLength = winLength;
+            this.gameId = gameId;
+        }
+
+        /**
+         * Key shared by the requests that may be paired: those of the same router game, or, for direct connections,
+         * those of the same variant
+         * @return Game ID for a routed request, otherwise a variant key outside the int range
+         */
+        long pairingKey() {
+            return gameId != 0 ? gameId : Long.MIN_VALUE + boardSize * 32 + winLength;
+        }
     }
 }
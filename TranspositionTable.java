@@ -0,0 +1,152 @@
+import java.util.Arrays;
+
+/**
+ * Fixed-size hash table of searched positions, keyed by canonical Zobrist key
+ * Each entry is packed into one long (score, depth, bound type, best move), so the table is two flat arrays and a
+ * probe never allocates. Collisions are resolved by probing a few neighbouring slots; when all are taken the
+ * shallowest entry is replaced. Not thread-safe: each search owns its table, or only reads a finished one.
+ * @author Chen Junliang
+ */
+public class TranspositionTable {
+    /** Returned by probe() when the position is not stored */
+    public static final long MISS = -1L;
+    /** Score is exact */
+    public static final int EXACT = 0;
+    /** Score is a lower bound (search failed high) */
+    public static final int LOWER = 1;
+    /** Score is an upper bound (search failed low) */
+    public static final int UPPER = 2;
+
+    private static final int PROBES = 4; // Slots examined per key
+
+    /**
+     * Receives the entries of a table
+     */
+    public interface EntryVisitor {
+        /**
+         * Visit one stored position
+         * @param key Canonical Zobrist key
+         * @param entry Packed entry
+         */
+        void visit(long key, long entry);
+    }
+
+    private final long[] keys;
+    private final long[] entries;
+    private final int mask;
+
+    /**
+     * Create an empty table
+     * @param bits Log2 of the number of slots
+     */
+    public TranspositionTable(int bits) {
+        keys = new long[1 << bits];
+        entries = new long[1 << bits];
+        mask = (1 << bits) - 1;
+        clear();
+    }
+
+    /**
+     * Pack an entry into one long; the move field keeps the top bits clear so no entry equals MISS
+     * @param score Score from the side to move
+     * @param depth Remaining depth searched (0 to 255)
+     * @param bound EXACT, LOWER or UPPER
+     * @param move Best move as a canonical cell, or -1 if none
+     * @return Packed entry
+     */
+    public static long pack(int score, int depth, int bound, int move) {
+        return ((long) (move + 1) << 48) | ((long) bound << 40) | ((long) depth << 32) | (score & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Get the score of a packed entry
+     * @param entry Packed entry
+     * @return Score
+     */
+    public static int score(long entry) { return (int) entry; }
+
+    /**
+     * Get the searched depth of a packed entry
+     * @param entry Packed entry
+     * @return Depth
+     */
+    public static int depth(long entry) { return (int) (entry >>> 32) & 0xFF; }
+
+    /**
+     * Get the bound type of a packed entry
+     * @param entry Packed entry
+     * @return EXACT, LOWER or UPPER
+     */
+    public static int bound(long entry) { return (int) (entry >>> 40) & 0x3; }
+
+    /**
+     * Get the best move of a packed entry
+     * @param entry Packed entry
+     * @return Canonical cell, or -1 if none
+     */
+    public static int move(long entry) { return (int) (entry >>> 48) - 1; }
+
+    /**
+     * Find the slot index to start probing at for a key
+     * @param key Canonical Zobrist key
+     * @return Slot index
+     */
+    private int home(long key) {
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    /**
+     * Look up a position
+     * @param key Canonical Zobrist key
+     * @return Packed entry, or MISS
+     */
+    public long probe(long key) {
+        int slot = home(key);
+        for (int i = 0; i < PROBES; i++) {
+            int index = (slot + i) & mask;
+            if (entries[index] == MISS) return MISS;
+            if (keys[index] == key) return entries[index];
+        }
+        return MISS;
+    }
+
+    /**
+     * Store a position, replacing its old entry or else the shallowest entry among the probed slots
+     * @param key Canonical Zobrist key
+     * @param entry Packed entry
+     * @return true if another position was evicted to make room
+     */
+    public boolean store(long key, long entry) {
+        int slot = home(key);
+        int victim = slot;
+        for (int i = 0; i < PROBES; i++) {
+            int index = (slot + i) & mask;
+            if (entries[index] == MISS || keys[index] == key) {
+                victim = index;
+                break;
+            }
+            if (depth(entries[index]) < depth(entries[victim])) victim = index;
+        }
+        boolean isEviction = entries[victim] != MISS && keys[victim] != key;
+        keys[victim] = key;
+        entries[victim] = entry;
+        return isEviction;
+    }
+
+    /**
+     * Visit every stored position, in slot order
+     * @param visitor Receives each key and entry
+     */
+    public void forEach(EntryVisitor visitor) {
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i] != MISS) visitor.visit(keys[i], entries[i]);
+        }
+    }
+
+    /**
+     * Remove every entry
+     */
+    public void clear() {
+        Arrays.fill(entries, MISS);
+    }
+}
@@ -0,0 +1,130 @@
+import java.util.Random;
+
+/**
+ * Zobrist hashing of boards, canonicalized over the 8 symmetries of the square
+ * A position and its rotations and reflections share one canonical key (the smallest of its 8 hashes), so a
+ * transposition table stores each symmetric family once. Each hash is updated with one XOR per move.
+ * @author Chen Junliang
+ */
+public final class Zobrist {
+    /** Number of symmetries of the square: 4 rotations, each optionally mirrored */
+    public static final int SYMMETRIES = 8;
+
+    private static final long SEED = 0x5EED_7AC7_0E5L; // Fixed so keys are stable across runs and processes
+    private static final Zobrist[] BY_SIZE = new Zobrist[Board.MAX_SIZE + 1];
+
+    static {
+        for (int size = Board.MIN_SIZE; size <= Board.MAX_SIZE; size++) {
+            BY_SIZE[size] = new Zobrist(size);
+        }
+    }
+
+    private final int size;
+    private final long[][] keys; // [playerId - 1][cell]
+    private final int[][] transforms; // [symmetry][cell] -> cell in the transformed board
+    private final int[][] inverses; // [symmetry][transformed cell] -> original cell
+
+    /**
+     * Build the keys and symmetry maps for one board size
+     * @param size Board width and height
+     */
+    private Zobrist(int size) {
+        this.size = size;
+        int cells = size * size;
+        Random random = new Random(SEED + size);
+        keys = new long[2][cells];
+        for (int player = 0; player < 2; player++) {
+            for (int cell = 0; cell < cells; cell++) {
+                keys[player][cell] = random.nextLong();
+            }
+        }
+        transforms = new int[SYMMETRIES][cells];
+        inverses = new int[SYMMETRIES][cells];
+        int last = size - 1;
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < size; col++) {
+                // identity, rotate 90, rotate 180, rotate 270, mirror, mirror + rotations
+                int[][] images = {
+                        {row, col}, {col, last - row}, {last - row, last - col}, {last - col, row},
+                        {row, last - col}, {last - row, col}, {col, row}, {last - col, last - row}
+                };
+                int cell = row * size + col;
+                for (int s = 0; s < SYMMETRIES; s++) {
+                    int image = images[s][0] * size + images[s][1];
+                    transforms[s][cell] = image;
+                    inverses[s][image] = cell;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the hasher for a board size
+     * @param size Board width and height (Board.MIN_SIZE to Board.MAX_SIZE)
+     * @return Shared, immutable hasher
+     */
+    public static Zobrist forSize(int size) {
+        return BY_SIZE[size];
+    }
+
+    /**
+     * Fill the 8 symmetric hashes of a position
+     * @param board Position to hash
+     * @param hashes Destination, length SYMMETRIES
+     */
+    public void hashAll(Board board, long[] hashes) {
+        for (int s = 0; s < SYMMETRIES; s++) hashes[s] = 0;
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < size; col++) {
+                int player = board.getCell(row, col);
+                if (player != 0) toggle(hashes, row * size + col, player);
+            }
+        }
+    }
+
+    /**
+     * Add or remove one mark in all 8 hashes (XOR is its own inverse)
+     * @param hashes Symmetric hashes to update
+     * @param cell Cell index row * size + col
+     * @param playerId Player ID (1 or 2)
+     */
+    public void toggle(long[] hashes, int cell, int playerId) {
+        long[] playerKeys = keys[playerId - 1];
+        for (int s = 0; s < SYMMETRIES; s++) {
+            hashes[s] ^= playerKeys[transforms[s][cell]];
+        }
+    }
+
+    /**
+     * Pick the symmetry whose hash is the canonical key
+     * @param hashes Symmetric hashes
+     * @return Index of the smallest hash
+     */
+    public static int canonicalSymmetry(long[] hashes) {
+        int best = 0;
+        for (int s = 1; s < SYMMETRIES; s++) {
+            if (hashes[s] < hashes[best]) best = s;
+        }
+        return best;
+    }
+
+    /**
+     * Map a cell into a symmetric board
+     * @param symmetry Symmetry index
+     * @param cell Cell in the original board
+     * @return Cell in the transformed board
+     */
+    public int transform(int symmetry, int cell) {
+        return transforms[symmetry][cell];
+    }
+
+    /**
+     * Map a cell of a symmetric board back to the original board
+     * @param symmetry Symmetry index
+     * @param cell Cell in the transformed board
+     * @return Cell in the original board
+     */
+    public int inverse(int symmetry, int cell) {
+        return inverses[symmetry][cell];
+    }
+}